@@ -16,6 +16,8 @@
  */
 package org.apache.cocoon.caching;
 
+import java.util.Collection;
+
 import org.apache.cocoon.caching.validity.Event;
 
 /**
@@ -32,4 +34,11 @@ public interface EventAware {
      * @param e The Event
      */
     void processEvent(Event e);
+
+    /**
+     * Receive notification of several Events at once.
+     * 
+     * @param events The Events
+     */
+    void processEvents(Collection events);
 }
@@ -58,6 +58,15 @@ public interface EventRegistry {
      * @param key - The key to remove.
      */
     void removeKey(Serializable key);
+
+    /**
+     * Remove all occurances of the specified keys from the registry.
+     * This is the same as calling {@link #removeKey(Serializable)} for
+     * every key, but it is done in one go.
+     * 
+     * @param keys - The keys to remove, null entries are ignored.
+     */
+    void removeKeys(Serializable[] keys);
     
     /**
      * Retrieve an array of all keys mapped to this event.
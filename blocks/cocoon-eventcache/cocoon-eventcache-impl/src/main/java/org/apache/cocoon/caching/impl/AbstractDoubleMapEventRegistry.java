@@ -17,9 +17,14 @@
 package org.apache.cocoon.caching.impl;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.avalon.framework.activity.Disposable;
 import org.apache.avalon.framework.activity.Initializable;
@@ -32,14 +37,22 @@ import org.apache.cocoon.util.AbstractLogEnabled;
 
 /**
  * This abstract base implementation of <code>EventRegistry</code> stores 
- * the event-key mappings in a simple pair of <code>MultiMap</code>s.  It 
- * leaves all persistence to its concrete subclasses.  To protect against 
+ * the event-key mappings in a pair of concurrent maps of sets, one indexed
+ * by event and one by key.  It leaves all persistence to its concrete
+ * subclasses.  To protect against 
  * future confusing inheritance trees, all internal implementation of the 
  * event-key mapping mechanism is hidden from its subclasses.  If future 
  * EventRegistry implementations desire to use a different event-key mapping 
  * strategy but share persistence code, this package should probably be 
  * refactored to employ composition rather than inheritance.  For now, 
  * simplicity favors inheritance.
+ *
+ * <p>Lookups don't lock, changes are serialized by locking the registry.
+ * Subclasses can persist every change incrementally by overriding
+ * {@link #mappingAdded(Event, Serializable)}, {@link #keysRemoved(Collection)}
+ * and {@link #mappingsCleared()}, which are called while the lock is held.
+ * Expensive work can be left to {@link #changeCompleted()}, which is called
+ * after the lock has been released.</p>
  * 
  * @since 2.1
  * @version $Id$
@@ -49,8 +62,12 @@ public abstract class AbstractDoubleMapEventRegistry extends AbstractLogEnabled
                                                                 Disposable, ThreadSafe {
 
     private boolean m_init_success;
-    private MultiHashMap m_keyMMap;
-    private MultiHashMap m_eventMMap;
+
+    /** Key to the set of its events */
+    private ConcurrentMap m_keyMap;
+
+    /** Event to the set of its keys */
+    private ConcurrentMap m_eventMap;
     
     /**
      * Registers (stores) a two-way mapping between this Event and this 
@@ -61,9 +78,11 @@ public abstract class AbstractDoubleMapEventRegistry extends AbstractLogEnabled
      */
     public void register(Event e, Serializable key) {
         synchronized(this) {
-            m_keyMMap.put(key,e);
-            m_eventMMap.put(e,key);
+            if (addMapping(m_keyMap, key, e) | addMapping(m_eventMap, e, key)) {
+                mappingAdded(e, key);
+            }
         }
+        changeCompleted();
     }
 
     /**
@@ -71,23 +90,25 @@ public abstract class AbstractDoubleMapEventRegistry extends AbstractLogEnabled
      */
     public void clear() {
         synchronized(this) {
-            m_keyMMap.clear();
-            m_eventMMap.clear();
+            m_keyMap.clear();
+            m_eventMap.clear();
+            mappingsCleared();
         }
+        changeCompleted();
     }
 
     /**
      * Retrieve all pipeline keys mapped to this event.
      */
     public Serializable[] keysForEvent(Event e) {
-        Collection coll = (Collection)m_eventMMap.get(e);
-        if (coll==null || coll.isEmpty()) {
+        Set keys = (Set)m_eventMap.get(e);
+        if (keys==null || keys.isEmpty()) {
             if (getLogger().isDebugEnabled()) {
                 getLogger().debug("The event map returned empty");
             }
             return null;
         } else {
-            return (Serializable[])coll.toArray(new Serializable[coll.size()]);
+            return (Serializable[])keys.toArray(new Serializable[keys.size()]);
         }
     }
 
@@ -95,7 +116,7 @@ public abstract class AbstractDoubleMapEventRegistry extends AbstractLogEnabled
      * Return all pipeline keys mapped to any event
      */
     public Serializable[] allKeys() {
-        Set keys = this.m_keyMMap.keySet();
+        Set keys = this.m_keyMap.keySet();
         return (Serializable[])keys.toArray(
                 new Serializable[keys.size()]);
     }
@@ -105,31 +126,105 @@ public abstract class AbstractDoubleMapEventRegistry extends AbstractLogEnabled
      * in the event mapping must be cleaned up.
      */
     public void removeKey(Serializable key) {
-        Collection coll = (Collection)m_keyMMap.get(key);
-        if (coll==null || coll.isEmpty()) {
+        if (!m_keyMap.containsKey(key)) {
             return;
-        } 
-        // get the iterator over all matching PCK keyed 
-        // entries in the key-indexed MMap.
+        }
         synchronized(this) {
-            Iterator it = coll.iterator();
-            while (it.hasNext()) {
-                /* remove all entries in the event-indexed map where this
-                 * PCK key is the value.
-                 */ 
-                Object o = it.next();
-                if (o != null) {
-                    if (getLogger().isDebugEnabled()) {
-                        getLogger().debug("Removing from event mapping: " + o.toString());
-                    }
-                    m_eventMMap.remove(o,key);            
+            if (removeMappings(key)) {
+                keysRemoved(Collections.singleton(key));
+            }
+        }
+        changeCompleted();
+    }
+
+    /**
+     * Remove all the given keys in one go.
+     */
+    public void removeKeys(Serializable[] keys) {
+        synchronized(this) {
+            final Collection removed = new ArrayList(keys.length);
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != null && removeMappings(keys[i])) {
+                    removed.add(keys[i]);
                 }
             }
-            
-            // remove all entries in the key-indexed map where this PCK key 
-            // is the key -- confused yet?
-            m_keyMMap.remove(key);
+            if (!removed.isEmpty()) {
+                keysRemoved(removed);
+            }
         }
+        changeCompleted();
+    }
+
+    /**
+     * Remove the key from both maps. Must be called with the lock held.
+     *
+     * @return true if the key was registered
+     */
+    private boolean removeMappings(Serializable key) {
+        Set events = (Set)m_keyMap.remove(key);
+        if (events == null) {
+            return false;
+        }
+        Iterator it = events.iterator();
+        while (it.hasNext()) {
+            /* remove all entries in the event-indexed map where this
+             * PCK key is the value.
+             */ 
+            Object o = it.next();
+            if (getLogger().isDebugEnabled()) {
+                getLogger().debug("Removing from event mapping: " + o.toString());
+            }
+            Set keys = (Set)m_eventMap.get(o);
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty()) {
+                    m_eventMap.remove(o);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Add the value to the set of the key. Must be called with the lock held.
+     *
+     * @return true if the value was not yet in the set
+     */
+    private static boolean addMapping(ConcurrentMap map, Object key, Object value) {
+        Set values = (Set)map.get(key);
+        if (values == null) {
+            values = Collections.newSetFromMap(new ConcurrentHashMap());
+            map.put(key, values);
+        }
+        return values.add(value);
+    }
+
+    /**
+     * Called after a new mapping has been registered.
+     */
+    protected void mappingAdded(Event e, Serializable key) {
+        // nothing to do
+    }
+
+    /**
+     * Called after registered keys have been removed.
+     */
+    protected void keysRemoved(Collection keys) {
+        // nothing to do
+    }
+
+    /**
+     * Called after all mappings have been removed.
+     */
+    protected void mappingsCleared() {
+        // nothing to do
+    }
+
+    /**
+     * Called after a change, once the lock has been released.
+     */
+    protected void changeCompleted() {
+        // nothing to do
     }
     
     /**
@@ -147,12 +242,20 @@ public abstract class AbstractDoubleMapEventRegistry extends AbstractLogEnabled
      * Delegate persistence to subclasses then clean up resources.
      */
     public void dispose() {
-        EventRegistryDataWrapper ecdw = wrapRegistry();
-        persist(ecdw);
-        m_keyMMap.clear();
-        m_keyMMap = null;
-        m_eventMMap.clear();
-        m_eventMMap = null;
+        persistState();
+        m_keyMap.clear();
+        m_keyMap = null;
+        m_eventMap.clear();
+        m_eventMap = null;
+    }
+
+    /**
+     * Persist the registry on dispose by handing the wrapped registry to
+     * {@link #persist(EventRegistryDataWrapper)}. Subclasses which persist
+     * every change incrementally can override this.
+     */
+    protected void persistState() {
+        persist(wrapRegistry());
     }
 
     /**
@@ -164,19 +267,48 @@ public abstract class AbstractDoubleMapEventRegistry extends AbstractLogEnabled
     
     protected EventRegistryDataWrapper wrapRegistry() {
         EventRegistryDataWrapper ecdw = new EventRegistryDataWrapper();
-        ecdw.setupMaps(this.m_keyMMap, this.m_eventMMap);
+        synchronized(this) {
+            ecdw.setupMaps(toMultiMap(this.m_keyMap), toMultiMap(this.m_eventMap));
+        }
         return ecdw;
     }
     
     protected void unwrapRegistry(EventRegistryDataWrapper ecdw) {
-        this.m_eventMMap = ecdw.get_eventMap();
-        this.m_keyMMap = ecdw.get_keyMap();
+        createBlankCache();
+        MultiHashMap eventMMap = ecdw.get_eventMap();
+        if (eventMMap == null) {
+            return;
+        }
+        // the key map is derived from the event map
+        Iterator it = eventMMap.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry entry = (Map.Entry)it.next();
+            Iterator keys = ((Collection)entry.getValue()).iterator();
+            while (keys.hasNext()) {
+                Object key = keys.next();
+                addMapping(this.m_eventMap, entry.getKey(), key);
+                addMapping(this.m_keyMap, key, entry.getKey());
+            }
+        }
+    }
+
+    private static MultiHashMap toMultiMap(Map map) {
+        MultiHashMap mmap = new MultiHashMap(map.size());
+        Iterator it = map.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry entry = (Map.Entry)it.next();
+            Iterator values = ((Set)entry.getValue()).iterator();
+            while (values.hasNext()) {
+                mmap.put(entry.getKey(), values.next());
+            }
+        }
+        return mmap;
     }
 
     protected final void createBlankCache() {
         // TODO: don't hardcode initial size
-        this.m_eventMMap = new MultiHashMap(100); 
-        this.m_keyMMap = new MultiHashMap(100); 
+        this.m_eventMap = new ConcurrentHashMap(100); 
+        this.m_keyMap = new ConcurrentHashMap(100); 
     }
     
     /** 
@@ -16,6 +16,9 @@
  */
 package org.apache.cocoon.caching.impl;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -23,17 +26,30 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Iterator;
 
 import org.apache.avalon.framework.context.Context;
 import org.apache.avalon.framework.context.ContextException;
 import org.apache.avalon.framework.context.Contextualizable;
 import org.apache.cocoon.Constants;
 import org.apache.cocoon.caching.EventRegistry;
+import org.apache.cocoon.caching.validity.Event;
 
 /**
  * This implementation of <code>EventRegistry</code> handles
  * persistence by serializing an <code>EventRegistryDataWrapper</code> to
- * disk.
+ * disk and appending every later change to a log file.
+ *
+ * <p>On startup the serialized registry is read and the log is replayed.
+ * Then the registry is serialized again and a new log is started. When the
+ * log gets longer than <code>maxLogRecords</code> records, a new log is
+ * started and a snapshot of the registry replaces the old log. The snapshot
+ * is serialized after the registry lock has been released, and the old log
+ * is replayed as well until that is done. As every change is flushed before
+ * it returns, the registry survives a crash of the JVM as well; if the log
+ * can't be read completely, the recovery fails and the cache is cleared.</p>
  *
  * @since 2.1
  * @version $Id$
@@ -43,8 +59,46 @@ public class DefaultEventRegistryImpl extends AbstractDoubleMapEventRegistry
 
     private static final String PERSISTENT_FILE = "/WEB-INF/ev_cache.ser";
 
+    private static final String LOG_FILE = "/WEB-INF/ev_cache.log";
+
+    /** Log record: a mapping has been registered, followed by event and key */
+    private static final byte REGISTER = 1;
+
+    /** Log record: keys have been removed, followed by count and keys */
+    private static final byte REMOVE_KEYS = 2;
+
+    /** Log record: all mappings have been removed */
+    private static final byte CLEAR = 3;
+
     private File m_persistentFile;
 
+    private File m_logFile;
+
+    /** The previous log, until the snapshot replacing it has been written */
+    private File m_oldLogFile;
+
+    /** Guards the log, as it is written with the registry lock held but flushed without */
+    private final Object m_logLock = new Object();
+
+    /** The log, <code>null</code> while recovering or if writing failed */
+    private ObjectOutputStream m_log;
+
+    /** Are there records which have not been flushed yet? */
+    private boolean m_logDirty;
+
+    private int m_logRecords;
+
+    /** The snapshot to write once the registry lock has been released */
+    private EventRegistryDataWrapper m_snapshot;
+
+    /** Is a snapshot being written? */
+    private boolean m_compacting;
+
+    /** Has logging failed? */
+    private boolean m_logFailed;
+
+    private int m_maxLogRecords = 100000;
+
     /**
      * Set up the persistence file.
      */
@@ -60,6 +114,16 @@ public class DefaultEventRegistryImpl extends AbstractDoubleMapEventRegistry
         }
 
         m_persistentFile = new File(path);
+        m_logFile = new File(ctx.getRealPath(LOG_FILE));
+        m_oldLogFile = new File(m_logFile.getPath() + ".old");
+    }
+
+    /**
+     * Set the number of log records after which the registry is serialized
+     * again and a new log is started.
+     */
+    public void setMaxLogRecords(int maxLogRecords) {
+        m_maxLogRecords = maxLogRecords;
     }
 
     /**
@@ -68,20 +132,207 @@ public class DefaultEventRegistryImpl extends AbstractDoubleMapEventRegistry
      * at startup.
      */
     protected void persist(EventRegistryDataWrapper registryWrapper) {
+        writeSnapshot(registryWrapper);
+    }
+
+    /**
+     * @return true if the registry has been written
+     */
+    private boolean writeSnapshot(EventRegistryDataWrapper registryWrapper) {
+        File tmpFile = new File(this.m_persistentFile.getPath() + ".tmp");
         ObjectOutputStream oos = null;
         try {
-            oos = new ObjectOutputStream(new FileOutputStream(this.m_persistentFile));
+            oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
             oos.writeObject(registryWrapper);
             oos.flush();
         } catch (FileNotFoundException e) {
             getLogger().error("Unable to persist EventRegistry", e);
+            return false;
         } catch (IOException e) {
             getLogger().error("Unable to persist EventRegistry", e);
+            return false;
         } finally {
             try {
                 if (oos != null) oos.close();
             } catch (IOException e) { /* ignored */ }
         }
+        // replace the old state only if the new one has been written completely
+        this.m_persistentFile.delete();
+        if (!tmpFile.renameTo(this.m_persistentFile)) {
+            getLogger().error("Unable to persist EventRegistry: can't rename " + tmpFile);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Close the log, every change has already been written to it.
+     */
+    protected void persistState() {
+        synchronized(this) {
+            synchronized(m_logLock) {
+                closeLog();
+            }
+        }
+    }
+
+    protected void mappingAdded(Event e, Serializable key) {
+        synchronized(m_logLock) {
+            if (m_log != null) {
+                try {
+                    m_log.writeByte(REGISTER);
+                    m_log.writeObject(e);
+                    m_log.writeObject(key);
+                    logWritten();
+                } catch (IOException ioe) {
+                    logFailed(ioe);
+                }
+            }
+        }
+    }
+
+    protected void keysRemoved(Collection keys) {
+        synchronized(m_logLock) {
+            if (m_log != null) {
+                try {
+                    m_log.writeByte(REMOVE_KEYS);
+                    m_log.writeInt(keys.size());
+                    Iterator it = keys.iterator();
+                    while (it.hasNext()) {
+                        m_log.writeObject(it.next());
+                    }
+                    logWritten();
+                } catch (IOException ioe) {
+                    logFailed(ioe);
+                }
+            }
+        }
+    }
+
+    protected void mappingsCleared() {
+        synchronized(m_logLock) {
+            if (m_log != null) {
+                try {
+                    m_log.writeByte(CLEAR);
+                    logWritten();
+                } catch (IOException ioe) {
+                    logFailed(ioe);
+                }
+            }
+        }
+    }
+
+    /**
+     * Flush the logged changes and write the snapshot of a rotated log. This
+     * is done without the registry lock, and concurrent changes are flushed
+     * together.
+     */
+    protected void changeCompleted() {
+        EventRegistryDataWrapper snapshot;
+        synchronized(m_logLock) {
+            if (m_logDirty && m_log != null) {
+                try {
+                    m_log.flush();
+                } catch (IOException e) {
+                    logFailed(e);
+                }
+            }
+            m_logDirty = false;
+            snapshot = m_snapshot;
+            m_snapshot = null;
+        }
+        if (snapshot != null) {
+            final boolean written = writeSnapshot(snapshot);
+            synchronized(m_logLock) {
+                m_compacting = false;
+                if (!written || m_logFailed) {
+                    // neither the snapshot nor the logs are complete
+                    discardState();
+                } else {
+                    m_oldLogFile.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Called with the log lock held after a record has been written.
+     */
+    private void logWritten() throws IOException {
+        // forget the written objects, they are not referenced again
+        m_log.reset();
+        m_logDirty = true;
+        if (++m_logRecords > m_maxLogRecords && !m_compacting) {
+            rotateLog();
+        }
+    }
+
+    /**
+     * Continue with a new log and take a snapshot of the registry, which is
+     * written in {@link #changeCompleted()}. Until then the old log is kept.
+     * Called with both the registry and the log lock held.
+     */
+    private void rotateLog() throws IOException {
+        closeLog();
+        if (!this.m_logFile.renameTo(this.m_oldLogFile)) {
+            throw new IOException("Unable to rename " + this.m_logFile);
+        }
+        m_snapshot = wrapRegistry();
+        m_compacting = true;
+        startLog();
+    }
+
+    /**
+     * If a change can't be logged the persistent state is outdated, so
+     * it is removed to make the next recovery fail.
+     */
+    private void logFailed(IOException e) {
+        getLogger().error("Unable to log EventRegistry change, the registry won't be persisted", e);
+        discardState();
+    }
+
+    private void discardState() {
+        m_logFailed = true;
+        closeLog();
+        this.m_persistentFile.delete();
+        this.m_logFile.delete();
+        this.m_oldLogFile.delete();
+    }
+
+    /**
+     * Serialize the registry and start a new log.
+     */
+    private void openLog() {
+        synchronized(m_logLock) {
+            if (!writeSnapshot(wrapRegistry())) {
+                discardState();
+                return;
+            }
+            this.m_oldLogFile.delete();
+            try {
+                startLog();
+            } catch (IOException e) {
+                logFailed(e);
+            }
+        }
+    }
+
+    private void startLog() throws IOException {
+        m_logRecords = 0;
+        m_log = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(this.m_logFile)));
+        m_log.flush();
+    }
+
+    private void closeLog() {
+        if (m_log != null) {
+            try {
+                m_log.close();
+            } catch (IOException e) {
+                getLogger().error("Unable to close EventRegistry log", e);
+            }
+            m_log = null;
+        }
+        m_logDirty = false;
     }
 
     /*
@@ -90,23 +341,31 @@ public class DefaultEventRegistryImpl extends AbstractDoubleMapEventRegistry
      * once by the container.
      */
     protected boolean recover() {
+        // an old log is left if the JVM stopped while its snapshot was written;
+        // replaying it again on top of a newer snapshot changes nothing
+        boolean recovered = recoverState() && replayLog(this.m_oldLogFile) && replayLog(this.m_logFile);
+        if (!recovered) {
+            createBlankCache();
+        }
+        openLog();
+        return recovered;
+    }
+
+    private boolean recoverState() {
         if (this.m_persistentFile.exists()) {
             ObjectInputStream ois = null;
             EventRegistryDataWrapper ecdw = null;
             try {
-                ois = new ObjectInputStream(new FileInputStream(this.m_persistentFile));
+                ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(this.m_persistentFile)));
                 ecdw = (EventRegistryDataWrapper)ois.readObject();
             } catch (FileNotFoundException e) {
                 getLogger().error("Unable to retrieve EventRegistry", e);
-                createBlankCache();
                 return false;
             } catch (IOException e) {
                 getLogger().error("Unable to retrieve EventRegistry", e);
-                createBlankCache();
                 return false;
             } catch (ClassNotFoundException e) {
                 getLogger().error("Unable to retrieve EventRegistry", e);
-                createBlankCache();
                 return false;
             } finally {
                 try {
@@ -119,10 +378,62 @@ public class DefaultEventRegistryImpl extends AbstractDoubleMapEventRegistry
         } else {
             getLogger().warn(this.m_persistentFile + " does not exist - Unable to " +
                              "retrieve EventRegistry.");
-            createBlankCache();
             return false;
         }
         return true;
     }
 
+    /**
+     * Apply the changes logged after the registry has been serialized.
+     */
+    private boolean replayLog(File logFile) {
+        if (!logFile.exists() || logFile.length() == 0) {
+            return true;
+        }
+        ObjectInputStream ois = null;
+        try {
+            ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+            while (true) {
+                byte record;
+                try {
+                    record = ois.readByte();
+                } catch (EOFException e) {
+                    // end of the log
+                    return true;
+                }
+                switch (record) {
+                    case REGISTER:
+                        Event e = (Event)ois.readObject();
+                        register(e, (Serializable)ois.readObject());
+                        break;
+                    case REMOVE_KEYS:
+                        Serializable[] keys = new Serializable[ois.readInt()];
+                        for (int i = 0; i < keys.length; i++) {
+                            keys[i] = (Serializable)ois.readObject();
+                        }
+                        removeKeys(keys);
+                        break;
+                    case CLEAR:
+                        clear();
+                        break;
+                    default:
+                        getLogger().error("Unable to replay EventRegistry log: unknown record " + record);
+                        return false;
+                }
+            }
+        } catch (IOException e) {
+            getLogger().error("Unable to replay EventRegistry log", e);
+            return false;
+        } catch (ClassNotFoundException e) {
+            getLogger().error("Unable to replay EventRegistry log", e);
+            return false;
+        } finally {
+            try {
+                if (ois != null) ois.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
 }
@@ -17,7 +17,11 @@
 package org.apache.cocoon.caching.impl;
 
 import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Set;
 
 import org.apache.avalon.framework.activity.Initializable;
 import org.apache.cocoon.ProcessingException;
@@ -34,7 +38,7 @@ import org.apache.excalibur.source.impl.validity.AbstractAggregatedValidity;
 
 /**
  * This implementation holds all mappings between Events and PipelineCacheKeys 
- * in two MultiHashMap to facilitate efficient lookup by either as Key.
+ * in an {@link EventRegistry} to facilitate efficient lookup by either as Key.
  * 
  * @version $Id$
  */
@@ -89,21 +93,43 @@ public class EventAwareCacheImpl extends CacheImpl implements EventAware {
      */
     public void processEvent(Event e) {
         if (e == null) return;
-        Serializable[] keys = this.eventRegistry.keysForEvent(e);
-        if (keys == null) return;
-        for (int i=0;i<keys.length; i++) {
-            if (keys[i] != null) {
-                if (logger.isDebugEnabled()) {
-                    logger.debug("Processing cache event, found Pipeline key: " + keys[i].toString());
+        processEvents(Collections.singleton(e));
+    }
+
+    /**
+     * Receive notification about the occurrence of several Events.
+     * The pipeline keys registered for any of the events are removed
+     * from the Store and then unregistered in one go.
+     * @param events The Events to be processed.
+     */
+    public void processEvents(Collection events) {
+        Set keys = new HashSet();
+        Iterator it = events.iterator();
+        while (it.hasNext()) {
+            Event e = (Event) it.next();
+            if (e == null) continue;
+            Serializable[] eventKeys = this.eventRegistry.keysForEvent(e);
+            if (eventKeys == null) continue;
+            for (int i=0;i<eventKeys.length; i++) {
+                if (eventKeys[i] != null) {
+                    keys.add(eventKeys[i]);
                 }
-                /* every pck associated with this event needs to be
-                 * removed -- regardless of event mapping. and every 
-                 * event mapped to those keys needs to be removed 
-                 * recursively.
-                 */ 
-                remove(keys[i]);
             }
         }
+        if (keys.isEmpty()) return;
+
+        /* every pck associated with these events needs to be
+         * removed -- regardless of event mapping. and every 
+         * event mapped to those keys needs to be removed.
+         */ 
+        Serializable[] removed = (Serializable[]) keys.toArray(new Serializable[keys.size()]);
+        for (int i=0;i<removed.length; i++) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Processing cache event, found Pipeline key: " + removed[i].toString());
+            }
+            super.remove(removed[i]);
+        }
+        this.eventRegistry.removeKeys(removed);
     }
     
     /**
@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.caching.impl;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.avalon.framework.context.DefaultContext;
+import org.apache.cocoon.Constants;
+import org.apache.cocoon.caching.validity.Event;
+import org.apache.cocoon.caching.validity.NamedEvent;
+import org.apache.cocoon.environment.mock.MockContext;
+
+/**
+ * Test case for the persistence of the {@link DefaultEventRegistryImpl}.
+ *
+ * @version $Id$
+ */
+public class DefaultEventRegistryImplTestCase extends TestCase {
+
+    private static final Event RED = new NamedEvent("red");
+    private static final Event BLUE = new NamedEvent("blue");
+
+    private File directory;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.directory = File.createTempFile("eventregistry", "");
+        this.directory.delete();
+        new File(this.directory, "WEB-INF").mkdirs();
+    }
+
+    protected void tearDown() throws Exception {
+        final File webInf = new File(this.directory, "WEB-INF");
+        final File[] files = webInf.listFiles();
+        for (int i = 0; i < files.length; i++) {
+            files[i].delete();
+        }
+        webInf.delete();
+        this.directory.delete();
+        super.tearDown();
+    }
+
+    private DefaultEventRegistryImpl createRegistry(int maxLogRecords) throws Exception {
+        final DefaultContext context = new DefaultContext();
+        context.put(Constants.CONTEXT_ENVIRONMENT_CONTEXT, new MockContext() {
+            public String getRealPath(String path) {
+                return new File(directory, path).getPath();
+            }
+        });
+        final DefaultEventRegistryImpl registry = new DefaultEventRegistryImpl();
+        registry.contextualize(context);
+        registry.setMaxLogRecords(maxLogRecords);
+        registry.initialize();
+        return registry;
+    }
+
+    private File getFile(String name) {
+        return new File(new File(this.directory, "WEB-INF"), name);
+    }
+
+    private static void assertKeys(String[] expected, Serializable[] keys) {
+        final Set actual = keys == null ? new HashSet() : new HashSet(Arrays.asList(keys));
+        assertEquals(new HashSet(Arrays.asList(expected)), actual);
+    }
+
+    public void testFirstStart() throws Exception {
+        final DefaultEventRegistryImpl registry = createRegistry(100);
+        assertFalse(registry.wasRecoverySuccessful());
+        registry.dispose();
+    }
+
+    public void testRestart() throws Exception {
+        DefaultEventRegistryImpl registry = createRegistry(100);
+        registry.register(RED, "a");
+        registry.register(BLUE, "b");
+        registry.dispose();
+
+        registry = createRegistry(100);
+        assertTrue(registry.wasRecoverySuccessful());
+        assertKeys(new String[] { "a" }, registry.keysForEvent(RED));
+        assertKeys(new String[] { "b" }, registry.keysForEvent(BLUE));
+        registry.dispose();
+    }
+
+    public void testReplayLog() throws Exception {
+        final DefaultEventRegistryImpl crashed = createRegistry(100);
+        crashed.register(RED, "a");
+        crashed.register(RED, "b");
+        crashed.register(BLUE, "b");
+        crashed.register(BLUE, "c");
+        crashed.removeKey("b");
+        // not disposed: only the log knows about the changes
+
+        final DefaultEventRegistryImpl registry = createRegistry(100);
+        assertTrue(registry.wasRecoverySuccessful());
+        assertKeys(new String[] { "a" }, registry.keysForEvent(RED));
+        assertKeys(new String[] { "c" }, registry.keysForEvent(BLUE));
+        assertKeys(new String[] { "a", "c" }, registry.allKeys());
+        registry.dispose();
+    }
+
+    public void testReplayClear() throws Exception {
+        final DefaultEventRegistryImpl crashed = createRegistry(100);
+        crashed.register(RED, "a");
+        crashed.clear();
+        crashed.register(BLUE, "b");
+
+        final DefaultEventRegistryImpl registry = createRegistry(100);
+        assertTrue(registry.wasRecoverySuccessful());
+        assertKeys(new String[0], registry.keysForEvent(RED));
+        assertKeys(new String[] { "b" }, registry.keysForEvent(BLUE));
+        registry.dispose();
+    }
+
+    public void testCompaction() throws Exception {
+        final DefaultEventRegistryImpl crashed = createRegistry(3);
+        for (int i = 0; i < 10; i++) {
+            crashed.register(RED, "key" + i);
+        }
+        crashed.removeKeys(new Serializable[] { "key0", "key1" });
+        assertFalse("The old log is replaced by the snapshot", getFile("ev_cache.log.old").exists());
+
+        final DefaultEventRegistryImpl registry = createRegistry(3);
+        assertTrue(registry.wasRecoverySuccessful());
+        assertKeys(new String[] { "key2", "key3", "key4", "key5", "key6", "key7", "key8", "key9" },
+                   registry.keysForEvent(RED));
+        registry.dispose();
+    }
+
+    public void testReplayOldLog() throws Exception {
+        final DefaultEventRegistryImpl crashed = createRegistry(100);
+        crashed.register(RED, "a");
+        crashed.register(BLUE, "b");
+        // stopped while the snapshot replacing the log was written
+        assertTrue(getFile("ev_cache.log").renameTo(getFile("ev_cache.log.old")));
+
+        final DefaultEventRegistryImpl registry = createRegistry(100);
+        assertTrue(registry.wasRecoverySuccessful());
+        assertKeys(new String[] { "a" }, registry.keysForEvent(RED));
+        assertKeys(new String[] { "b" }, registry.keysForEvent(BLUE));
+        assertFalse(getFile("ev_cache.log.old").exists());
+        registry.dispose();
+    }
+
+    public void testBrokenLog() throws Exception {
+        final DefaultEventRegistryImpl crashed = createRegistry(100);
+        crashed.register(RED, "a");
+        final File log = getFile("ev_cache.log");
+        final RandomAccessFile file = new RandomAccessFile(log, "rw");
+        // cut off the end of the key
+        file.setLength(log.length() - 3);
+        file.close();
+
+        final DefaultEventRegistryImpl registry = createRegistry(100);
+        assertFalse("Incomplete logs aren't used", registry.wasRecoverySuccessful());
+        assertKeys(new String[0], registry.allKeys());
+        registry.dispose();
+    }
+}
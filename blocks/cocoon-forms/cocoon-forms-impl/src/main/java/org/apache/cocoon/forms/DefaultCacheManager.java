@@ -16,27 +16,56 @@
  */
 package org.apache.cocoon.forms;
 
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.excalibur.source.Source;
 import org.apache.excalibur.source.SourceValidity;
 
-import org.apache.commons.collections.FastHashMap;
-
 /**
  * Component implementing the {@link CacheManager} role.
  *
+ * <p>The cache is bounded: when it holds more than <code>maxObjects</code>
+ * objects, or when the total weight of the objects (the content length of
+ * their sources) exceeds <code>maxWeight</code>, the least recently used
+ * objects are evicted. The validity of a cached object is checked at most
+ * once per <code>checkInterval</code> milliseconds, by the lookup which
+ * finds the check is due, so the other lookups don't access the source.</p>
+ *
  * @version $Id$
  */
 public class DefaultCacheManager implements CacheManager {
     // NOTE: Component is there to allow this block to also run in the 2.1 branch
 
-    // FIXME Unbounded map - the road to OOME
+    /** The default maximum number of cached objects */
+    public static final int DEFAULT_MAX_OBJECTS = 500;
+
+    /** The default time between two validity checks of an object */
+    public static final long DEFAULT_CHECK_INTERVAL = 1000;
+
+    /** The {@link Entry}s in least recently used order, guarded by itself */
     protected Map cache;
 
+    /** The total weight of the entries, guarded by the cache */
+    private long weight;
+
+    private int maxObjects = DEFAULT_MAX_OBJECTS;
+
+    private long maxWeight;
+
+    private long checkInterval = DEFAULT_CHECK_INTERVAL;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
 
     public DefaultCacheManager() {
-        this.cache = new FastHashMap();
+        this.cache = new LinkedHashMap(16, 0.75f, true);
     }
 
     public Object get(Source source, String prefix) {
@@ -44,39 +73,155 @@ public class DefaultCacheManager implements CacheManager {
         final String key = prefix + source.getURI();
 
         // If object is not in the cache then return null
-        Object[] objectAndValidity = (Object[]) this.cache.get(key);
-        if (objectAndValidity == null) {
+        final Entry entry;
+        synchronized (this.cache) {
+            entry = (Entry) this.cache.get(key);
+        }
+        if (entry == null) {
+            this.misses.incrementAndGet();
             return null;
         }
 
-        // If object is in the cache, check stored object validity
-        final SourceValidity validity = (SourceValidity) objectAndValidity[1];
-        int valid = validity.isValid();
-        if (valid == SourceValidity.UNKNOWN) {
-            // Compare against current source validity
-            valid = validity.isValid(source.getValidity());
-        }
+        // If object is in the cache and due for a check, check stored object validity
+        final long now = System.currentTimeMillis();
+        if (now - entry.checked >= this.checkInterval) {
+            int valid = entry.validity.isValid();
+            if (valid == SourceValidity.UNKNOWN) {
+                // Compare against current source validity
+                valid = entry.validity.isValid(source.getValidity());
+            }
 
-        // If stored object is not valid then remove object from cache and return null
-        if (valid != SourceValidity.VALID) {
-            this.cache.remove(key);
-            return null;
+            // If stored object is not valid then remove object from cache and return null
+            if (valid != SourceValidity.VALID) {
+                synchronized (this.cache) {
+                    if (this.cache.get(key) == entry) {
+                        removeEntry(key);
+                    }
+                }
+                this.misses.incrementAndGet();
+                return null;
+            }
+            entry.checked = now;
         }
 
         // If valid then return cached object
-        return objectAndValidity[0];
+        this.hits.incrementAndGet();
+        return entry.object;
     }
 
     public void set(Object object, Source source, String prefix) {
         final SourceValidity validity = source.getValidity();
         if (validity != null) {
             final String key = prefix + source.getURI();
-            this.cache.put(key, new Object[]{ object, validity });
+            final Entry entry = new Entry(object, validity, Math.max(1, source.getContentLength()));
+            synchronized (this.cache) {
+                removeEntry(key);
+                this.cache.put(key, entry);
+                this.weight += entry.weight;
+
+                // Evict the least recently used entries, but keep the new one
+                final Iterator i = this.cache.values().iterator();
+                while (this.cache.size() > 1 &&
+                       (this.cache.size() > this.maxObjects || this.maxWeight > 0 && this.weight > this.maxWeight)) {
+                    this.weight -= ((Entry) i.next()).weight;
+                    i.remove();
+                    this.evictions.incrementAndGet();
+                }
+            }
         }
     }
 
     public void remove(Source source, String prefix) {
         final String key = prefix + source.getURI();
-        this.cache.remove(key);
+        synchronized (this.cache) {
+            removeEntry(key);
+        }
+    }
+
+    private void removeEntry(String key) {
+        final Entry entry = (Entry) this.cache.remove(key);
+        if (entry != null) {
+            this.weight -= entry.weight;
+        }
+    }
+
+    /**
+     * Set the maximum number of cached objects.
+     */
+    public void setMaxObjects(int maxObjects) {
+        this.maxObjects = maxObjects;
+    }
+
+    /**
+     * Set the maximum total weight of the cached objects, 0 for no limit.
+     * The weight of an object is the content length of its source.
+     */
+    public void setMaxWeight(long maxWeight) {
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * Set the time in milliseconds between two validity checks of a cached object.
+     */
+    public void setCheckInterval(long checkInterval) {
+        this.checkInterval = checkInterval;
+    }
+
+    /**
+     * @return the number of lookups which found a valid object
+     */
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    /**
+     * @return the number of lookups which found no valid object
+     */
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    /**
+     * @return the number of objects evicted because the cache was full
+     */
+    public long getEvictions() {
+        return this.evictions.get();
+    }
+
+    /**
+     * @return the number of cached objects
+     */
+    public int getSize() {
+        synchronized (this.cache) {
+            return this.cache.size();
+        }
+    }
+
+    /**
+     * @return the total weight of the cached objects
+     */
+    public long getWeight() {
+        synchronized (this.cache) {
+            return this.weight;
+        }
+    }
+
+    /**
+     * A cached object with the validity of its source.
+     */
+    private static final class Entry {
+        final Object object;
+        final SourceValidity validity;
+        final long weight;
+
+        /** When the validity has been checked last */
+        volatile long checked;
+
+        Entry(Object object, SourceValidity validity, long weight) {
+            this.object = object;
+            this.validity = validity;
+            this.weight = weight;
+            this.checked = System.currentTimeMillis();
+        }
     }
 }
@@ -34,10 +34,16 @@ import org.w3c.dom.Element;
 import org.xml.sax.InputSource;
 
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Component implementing the {@link FormManager} role.
  *
+ * <p>A form definition which is not cached is built while holding a lock
+ * for its source only, so concurrent requests for the same definition wait
+ * for it to be built once, and requests for other definitions don't wait.</p>
+ *
  * @version $Id$
  */
 public class DefaultFormManager implements FormManager {
@@ -52,6 +58,9 @@ public class DefaultFormManager implements FormManager {
     private SourceResolver sourceResolver;
     private SAXParser parser;
 
+    /** The locks of the form definitions being built, by source URI */
+    private final ConcurrentMap locks = new ConcurrentHashMap();
+
     //
     // Business Methods
     //
@@ -104,31 +113,55 @@ public class DefaultFormManager implements FormManager {
     }
 
     public FormDefinition createFormDefinition(Source source) throws Exception {
+        FormDefinition formDefinition = getCachedFormDefinition(source);
+
+        if (formDefinition == null) {
+            final String uri = source.getURI();
+            final Object lock = new Object();
+            final Object oldLock = this.locks.putIfAbsent(uri, lock);
+            synchronized (oldLock != null ? oldLock : lock) {
+                try {
+                    // another thread may have built it meanwhile
+                    formDefinition = getCachedFormDefinition(source);
+                    if (formDefinition == null) {
+                        formDefinition = buildFormDefinition(source);
+                        this.cacheManager.set(formDefinition, source, PREFIX);
+                    }
+                } finally {
+                    if (oldLock == null) {
+                        this.locks.remove(uri);
+                    }
+                }
+            }
+        }
+        return formDefinition;
+    }
+
+    private FormDefinition getCachedFormDefinition(Source source) throws Exception {
         FormDefinition formDefinition = (FormDefinition) this.cacheManager.get(source, PREFIX);
         if (formDefinition != null && formDefinition.getLocalLibrary().dependenciesHaveChanged()) {
             formDefinition = null; // invalidate
         }
+        return formDefinition;
+    }
 
-        if (formDefinition == null) {
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("Building Form: " + source.getURI());
-            }
-
-            Document formDocument;
-            try {
-                InputSource inputSource = new InputSource(source.getInputStream());
-                inputSource.setSystemId(source.getURI());
-                formDocument = DomHelper.parse(inputSource, parser);
-            } catch (Exception e) {
-                throw new FormsException("Could not parse form definition.",
-                                         e, new LocationImpl("[FormManager]", source.getURI()));
-            }
+    private FormDefinition buildFormDefinition(Source source) throws Exception {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Building Form: " + source.getURI());
+        }
 
-            Element formElement = formDocument.getDocumentElement();
-            formDefinition = createFormDefinition(formElement);
-            this.cacheManager.set(formDefinition, source, PREFIX);
+        Document formDocument;
+        try {
+            InputSource inputSource = new InputSource(source.getInputStream());
+            inputSource.setSystemId(source.getURI());
+            formDocument = DomHelper.parse(inputSource, parser);
+        } catch (Exception e) {
+            throw new FormsException("Could not parse form definition.",
+                                     e, new LocationImpl("[FormManager]", source.getURI()));
         }
-        return formDefinition;
+
+        Element formElement = formDocument.getDocumentElement();
+        return createFormDefinition(formElement);
     }
 
     public FormDefinition createFormDefinition(Element formElement) throws Exception {
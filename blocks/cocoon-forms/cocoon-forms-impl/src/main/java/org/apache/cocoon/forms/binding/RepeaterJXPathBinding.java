@@ -18,16 +18,17 @@ package org.apache.cocoon.forms.binding;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.cocoon.forms.datatype.convertor.ConversionResult;
 import org.apache.cocoon.forms.formmodel.Repeater;
 import org.apache.cocoon.forms.formmodel.Widget;
 
-import org.apache.commons.collections.ListUtils;
 import org.apache.commons.jxpath.JXPathContext;
 import org.apache.commons.jxpath.Pointer;
 
@@ -161,6 +162,12 @@ public class RepeaterJXPathBinding extends JXPathBindingBase {
      * Uses the mapped identity of each row to detect if rows have been
      * updated, inserted or removed.  Depending on what happened the appropriate
      * child-bindings are allowed to visit the narrowed contexts.
+     * <p>
+     * The rows of the object model are indexed by their identity once, before
+     * any row is saved, so that matching the rows of the form takes linear
+     * time. If several rows have the same identity, the first one is updated.
+     * Rows are checked for deletion with their identity after the updates, as
+     * saving a row may change it.
      */
     public void doSave(Widget frmModel, JXPathContext jxpc)
     throws BindingException {
@@ -171,6 +178,19 @@ public class RepeaterJXPathBinding extends JXPathBindingBase {
         JXPathContext repeaterContext =
             jxpc.getRelativeContext(jxpc.createPath(this.repeaterPath));
 
+        // index the rows of the object model by their identity
+        Map rowContextsByIdentity = new HashMap();
+        Iterator rowPointers = repeaterContext.iteratePointers(this.rowPath);
+        while (rowPointers.hasNext()) {
+            Pointer jxp = (Pointer) rowPointers.next();
+            JXPathContext rowContext = repeaterContext.getRelativeContext((Pointer) jxp.clone());
+            List contextIdentity = getIdentity(rowContext);
+            // if several rows have the same identity, the first one is updated
+            if (!rowContextsByIdentity.containsKey(contextIdentity)) {
+                rowContextsByIdentity.put(contextIdentity, rowContext);
+            }
+        }
+
         // create set of updatedRowIds
         Set updatedRows = new HashSet();
         //create list of rows to insert at end
@@ -185,23 +205,14 @@ public class RepeaterJXPathBinding extends JXPathBindingBase {
             List identity = getIdentity(thisRow);
 
             if (hasNonNullElements(identity)) {
-                // iterate nodes to find match
-                Iterator rowPointers = repeaterContext.iteratePointers(this.rowPath);
-                boolean found = false;
-                while (rowPointers.hasNext()) {
-                    Pointer jxp = (Pointer) rowPointers.next();
-                    JXPathContext rowContext = repeaterContext.getRelativeContext(jxp);
-                    List contextIdentity = getIdentity(rowContext);
-                    if (ListUtils.isEqualList(identity, contextIdentity)) {
-                        // match! --> bind to children
-                        this.rowBinding.saveFormToModel(thisRow, rowContext);
-                        //        --> store rowIdValue in list of updatedRowIds
-                        updatedRows.add(identity);
-                        found = true;
-                        break;
-                    }
-                }
-                if (!found) {
+                // find the matching node
+                JXPathContext rowContext = (JXPathContext) rowContextsByIdentity.get(identity);
+                if (rowContext != null) {
+                    // match! --> bind to children
+                    this.rowBinding.saveFormToModel(thisRow, rowContext);
+                    //        --> store rowIdValue in list of updatedRowIds
+                    updatedRows.add(identity);
+                } else {
                     // this is a new row
                     rowsToInsert.add(thisRow);
                     // also add it to the updated row id's so that this row doesn't get deleted
@@ -213,7 +224,7 @@ public class RepeaterJXPathBinding extends JXPathBindingBase {
             }
         }
         // Iterate again nodes for deletion
-        Iterator rowPointers = repeaterContext.iteratePointers(this.rowPath);
+        rowPointers = repeaterContext.iteratePointers(this.rowPath);
         List rowsToDelete = new ArrayList();
         while (rowPointers.hasNext()) {
             Pointer jxp = (Pointer)rowPointers.next();
@@ -221,7 +232,7 @@ public class RepeaterJXPathBinding extends JXPathBindingBase {
             List contextIdentity = getIdentity(rowContext);
             // check if the identity of the rowContext is in the updated rows
             //     if not --> bind for delete
-            if (!isIdentityInUpdatedRows(updatedRows, contextIdentity)) {
+            if (!updatedRows.contains(contextIdentity)) {
                 rowsToDelete.add(rowContext);
             }
         }
@@ -283,23 +294,6 @@ public class RepeaterJXPathBinding extends JXPathBindingBase {
         }
     }
 
-    /**
-     * Tests if an identity is already contained in a Set of identities.
-     * @param identitySet the Set of identities.
-     * @param identity the identity that is tested if it is already in the Set.
-     * @return true if the Set contains the identity, false otherwise.
-     */
-    private boolean isIdentityInUpdatedRows(Set identitySet, List identity) {
-        Iterator iter = identitySet.iterator();
-        while (iter.hasNext()) {
-            List identityFromSet = (List)iter.next();
-            if (ListUtils.isEqualList(identityFromSet, identity)) {
-                return true;
-            }
-        }
-        return false;
-    }
-
     /**
      * Tests if any of the elements in a List is not null.
      * @param list
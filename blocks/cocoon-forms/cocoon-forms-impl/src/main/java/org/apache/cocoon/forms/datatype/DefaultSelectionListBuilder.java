@@ -21,6 +21,7 @@ import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 import org.w3c.dom.Node;
 import org.apache.cocoon.core.xml.SAXParser;
+import org.apache.cocoon.forms.CacheManager;
 import org.apache.cocoon.forms.FormsConstants;
 import org.apache.cocoon.forms.datatype.convertor.Convertor;
 import org.apache.cocoon.forms.datatype.convertor.DefaultFormatCache;
@@ -54,6 +55,7 @@ public class DefaultSelectionListBuilder implements SelectionListBuilder {
     private XMLizer xmlizer;
     private ProcessInfoProvider processInfoProvider;
     private SAXParser parser;
+    private CacheManager cacheManager;
 
     public SelectionList build(Element selectionListElement, Datatype datatype) throws Exception {
         SelectionList selectionList;
@@ -62,12 +64,16 @@ public class DefaultSelectionListBuilder implements SelectionListBuilder {
             // Principle of least surprise, use dynamic lists by default
             boolean dynamic = true;
             boolean usePerRequestCache = false;
+            boolean shared = false;
             String cacheType = DomHelper.getAttribute(selectionListElement, "cache", null);
 
             // Read @cache 
             if ("request".equals(cacheType)) { // Dynamic SelectionList cached per request
                 dynamic = true;
                 usePerRequestCache = true;
+            } else if ("shared".equals(cacheType)) { // Dynamic SelectionList shared between requests
+                dynamic = true;
+                shared = true;
             } else if ("none".equals(cacheType)){ // Dynamic SelectionList non cached
                 dynamic = true;
             } else if ("static".equals(cacheType)) {
@@ -80,7 +86,11 @@ public class DefaultSelectionListBuilder implements SelectionListBuilder {
                 }
             }
             // Create SelectionList
-            if (dynamic) {
+            if (shared) {
+                // @expires is in seconds
+                long expires = DomHelper.getAttributeAsInteger(selectionListElement, "expires", 0) * 1000L;
+                selectionList = new DynamicSelectionList(datatype, src, cacheManager, expires, xmlizer, sourceResolver, processInfoProvider.getRequest());
+            } else if (dynamic) {
                 selectionList = new DynamicSelectionList(datatype, src, usePerRequestCache, xmlizer, sourceResolver, processInfoProvider.getRequest());
             } else {
                 selectionListElement = readSelectionList(src);
@@ -184,4 +194,9 @@ public class DefaultSelectionListBuilder implements SelectionListBuilder {
     {
         this.parser = parser;
     }
+
+    public void setCacheManager( CacheManager cacheManager )
+    {
+        this.cacheManager = cacheManager;
+    }
 }
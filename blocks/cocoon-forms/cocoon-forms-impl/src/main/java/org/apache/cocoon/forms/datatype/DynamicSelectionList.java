@@ -17,6 +17,7 @@
 package org.apache.cocoon.forms.datatype;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.Locale;
 
@@ -24,6 +25,7 @@ import javax.servlet.http.HttpServletRequest;
 
 import org.apache.cocoon.ProcessingException;
 import org.apache.cocoon.components.source.SourceUtil;
+import org.apache.cocoon.forms.CacheManager;
 import org.apache.cocoon.forms.FormsConstants;
 import org.apache.cocoon.forms.datatype.convertor.ConversionResult;
 import org.apache.cocoon.forms.datatype.convertor.Convertor;
@@ -35,7 +37,10 @@ import org.apache.cocoon.xml.SaxBuffer;
 import org.apache.cocoon.xml.XMLUtils;
 import org.apache.cocoon.xml.dom.DOMBuilder;
 import org.apache.excalibur.source.Source;
+import org.apache.excalibur.source.SourceException;
 import org.apache.excalibur.source.SourceResolver;
+import org.apache.excalibur.source.SourceValidity;
+import org.apache.excalibur.source.impl.validity.ExpiresValidity;
 import org.apache.excalibur.xmlizer.XMLizer;
 import org.w3c.dom.Element;
 import org.xml.sax.Attributes;
@@ -50,6 +55,14 @@ import org.xml.sax.SAXException;
  * is appended to the URL, e.g. <code>&lt;fd:selection-list src="cocoon://pipeline.xml"/&gt;</code>
  * will call, given the "<code>foo</code>" filter value, the URL <code>cocoon://pipeline.xml?filter=foo</code>.
  * <p>
+ * If a {@link CacheManager} is given, the unfiltered list is shared between requests: the
+ * content read from the source is cached for each resolved source URI, as long as the
+ * source is valid and, if an expiration time is given, until it expires. So all form
+ * definitions using the same list share it, also after they have been rebuilt. Its values
+ * are converted with the convertor of each datatype and for each locale when the cached
+ * content is output. Sources without validity are only cached if an expiration time is
+ * given.
+ * <p>
  * Note: the class {@link SelectionListBuilder} also interprets the same
  * <code>fd:selection-list</code> XML, so if anything changes here to how that
  * XML is interpreted, it also needs to change over there and vice versa.</p>
@@ -57,8 +70,11 @@ import org.xml.sax.SAXException;
  * @version $Id$
  */
 public class DynamicSelectionList implements FilterableSelectionList {
+
     private String src;
     private boolean usePerRequestCache;
+    private CacheManager cacheManager;
+    private long expires;
     private Datatype datatype;
     private XMLizer xmlizer;
     private SourceResolver sourceResolver;
@@ -80,6 +96,17 @@ public class DynamicSelectionList implements FilterableSelectionList {
         this.request = request;
     }
 
+    /**
+     * Creates a DynamicSelectionList shared between requests
+     * @param cacheManager the cache of the lists
+     * @param expires the time in milliseconds after which the cached list expires, 0 for none
+     */
+    public DynamicSelectionList(Datatype datatype, String src, CacheManager cacheManager, long expires, XMLizer xmlizer, SourceResolver sourceResolver, HttpServletRequest request) {
+        this(datatype, src, false, xmlizer, sourceResolver, request);
+        this.cacheManager = cacheManager;
+        this.expires = expires;
+    }
+
     /**
      * Creates a DynamicSelectionList without caching
      * @param datatype - 
@@ -126,8 +153,52 @@ public class DynamicSelectionList implements FilterableSelectionList {
         }
     }
 
+    /*
+     * This method generates SaxFragment from the list cached in the CacheManager,
+     * caching it if needed.
+     */
+    private void generateSaxFragmentFromCache(String url, ContentHandler contentHandler, Locale locale) throws SAXException {
+        // the cache manager appends the resolved URI; the cached content is the
+        // one of the source, as lists with other datatypes or locales share it
+        final String prefix = "DynamicSelectionList:";
+        Source source = null;
+        try {
+            source = sourceResolver.resolveURI(url);
+            CachedList list = (CachedList) cacheManager.get(source, prefix);
+            if (list == null || list.expires != 0 && list.expires <= System.currentTimeMillis()) {
+                SaxBuffer saxBuffer = new SaxBuffer();
+                SourceUtil.toSAX(xmlizer, source, null, saxBuffer);
+                if (this.expires > 0) {
+                    list = new CachedList(saxBuffer, System.currentTimeMillis() + this.expires);
+                    cacheManager.set(list, source.getValidity() != null ? source : new ExpiresSource(source, this.expires), prefix);
+                } else {
+                    list = new CachedList(saxBuffer, 0);
+                    cacheManager.set(list, source, prefix);
+                }
+            }
+
+            // Convert the stored saxBuffer to the contentHandler
+            SelectionListHandler handler = new SelectionListHandler(locale);
+            handler.setContentHandler(contentHandler);
+            list.saxBuffer.toSAX(handler);
+        } catch (SAXException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new SAXException("Error while generating selection list: " + e.getMessage(), e);
+        } finally {
+            if (source != null) {
+                try { sourceResolver.release(source); } catch (Exception e) {}
+            }
+        }
+    }
+
     public void generateSaxFragment(ContentHandler contentHandler, Locale locale, String filter) throws SAXException {
-        
+        if (cacheManager != null && filter == null) {
+            // Filtered lists are not shared, so that they don't fill the cache
+            generateSaxFragmentFromCache(this.src, contentHandler, locale);
+            return;
+        }
+
         String url = this.src;
         if (filter != null) {
             if (url.indexOf('?') != -1) {
@@ -171,6 +242,72 @@ public class DynamicSelectionList implements FilterableSelectionList {
         generateSaxFragment(contentHandler, locale, (String)null);
     }
 
+    /**
+     * A list stored in the {@link CacheManager}, as the SAX events read from
+     * its source, before they are converted by a {@link SelectionListHandler}.
+     */
+    private static final class CachedList {
+        final SaxBuffer saxBuffer;
+
+        /** When the list expires, 0 for never */
+        final long expires;
+
+        CachedList(SaxBuffer saxBuffer, long expires) {
+            this.saxBuffer = saxBuffer;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * A source without validity, given an {@link ExpiresValidity} so that
+     * its list can be cached.
+     */
+    private static final class ExpiresSource implements Source {
+        private final Source source;
+        private final SourceValidity validity;
+
+        ExpiresSource(Source source, long expires) {
+            this.source = source;
+            this.validity = new ExpiresValidity(expires);
+        }
+
+        public boolean exists() {
+            return this.source.exists();
+        }
+
+        public InputStream getInputStream() throws IOException, SourceException {
+            return this.source.getInputStream();
+        }
+
+        public String getURI() {
+            return this.source.getURI();
+        }
+
+        public String getScheme() {
+            return this.source.getScheme();
+        }
+
+        public SourceValidity getValidity() {
+            return this.validity;
+        }
+
+        public void refresh() {
+            this.source.refresh();
+        }
+
+        public String getMimeType() {
+            return this.source.getMimeType();
+        }
+
+        public long getContentLength() {
+            return this.source.getContentLength();
+        }
+
+        public long getLastModified() {
+            return this.source.getLastModified();
+        }
+    }
+
     /**
      * XMLConsumer used to handle selection lists generated on the fly.
      */
@@ -242,6 +242,14 @@ public class AggregateField extends Field implements ContainerWidget {
         return super.validate();
     }
 
+    /**
+     * The validation of an aggregate field depends on its child fields, which are not
+     * tracked: always validate it.
+     */
+    protected boolean isIncrementallyValidated() {
+        return false;
+    }
+
     /**
      * @return "aggregatefield"
      */
@@ -93,6 +93,8 @@ public class BooleanField extends AbstractWidget
         value = BooleanUtils.toBooleanObject(definition.getTrueParamValue().equals(param));
 
         if (!value.equals(oldValue)) {
+            // Fields whose validation read the old value must be validated again
+            getForm().invalidateValidation(this);
             getForm().addWidgetEvent(new ValueChangedEvent(this, oldValue, value));
         }
     }
@@ -148,6 +150,8 @@ public class BooleanField extends AbstractWidget
     }
 
     public Object getValue() {
+        // Record the dependency if a field is validating
+        getForm().fieldRead(this);
         return value;
     }
 
@@ -34,6 +34,7 @@ import org.apache.cocoon.forms.event.WidgetEventMulticaster;
 import org.apache.cocoon.forms.util.I18nMessage;
 import org.apache.cocoon.forms.validation.ValidationError;
 import org.apache.cocoon.forms.validation.ValidationErrorAware;
+import org.apache.cocoon.forms.validation.WidgetValidator;
 import org.apache.cocoon.xml.AttributesImpl;
 import org.apache.cocoon.xml.XMLUtils;
 
@@ -212,6 +213,9 @@ public class Field extends AbstractWidget
     }
 
     public Object getValue() {
+        // Record the dependency if another field is validating
+        getForm().fieldRead(this);
+
         // if getValue() is called on this field while we're validating, then it's because a validation
         // rule called getValue(), so then we just return the parsed (but not VALUE_VALIDATED) value to avoid an endless loop
         if (this.valueState == VALUE_VALIDATING) {
@@ -342,6 +346,7 @@ public class Field extends AbstractWidget
             validationError = null;
             value = null;
             this.valueState = VALUE_UNPARSED;
+            getForm().invalidateValidation(this);
 
             if (hasListeners) {
                 // Throw an event that will hold the old value and
@@ -383,10 +388,18 @@ public class Field extends AbstractWidget
      */
     public boolean validate() {
         if (!getCombinedState().isValidatingValues()) {
+            getForm().removeValidationDependencies(this);
             this.wasValid = true;
             return true;
         }
 
+        // Keep the result of the previous validation if nothing it depends on has changed
+        if (this.valueState == VALUE_DISPLAY_VALIDATION && isIncrementallyValidated() &&
+                !getForm().isValidationRequired(this)) {
+            this.wasValid = this.validationError == null;
+            return this.wasValid;
+        }
+
         if (this.valueState == VALUE_UNPARSED) {
             doParse();
         }
@@ -464,6 +477,8 @@ public class Field extends AbstractWidget
         // reset validation errot
         this.validationError = null;
 
+        Form form = getForm();
+        form.startFieldValidation(this);
         try {
             if (this.value == null && this.required) {
                 // Field is required
@@ -477,9 +492,21 @@ public class Field extends AbstractWidget
         } finally {
             // Consider validation finished even in case of exception
             this.valueState = VALUE_VALIDATED;
+            form.endFieldValidation(this);
         }
     }
 
+    /**
+     * Can the previous validation result of this field be kept in an incremental validation
+     * (see {@link FormDefinition#isIncrementalValidation()}) if neither this field nor the fields
+     * read by its validators have changed?
+     *
+     * @return <code>true</code> by default
+     */
+    protected boolean isIncrementallyValidated() {
+        return true;
+    }
+
     /**
      * Returns the validation error, if any. There will always be a validation error in case the
      * {@link #validate} method returned false.
@@ -517,6 +544,16 @@ public class Field extends AbstractWidget
         getForm().addWidgetUpdate(this);
     }
 
+    public void addValidator(WidgetValidator validator) {
+        super.addValidator(validator);
+        getForm().invalidateValidation(this);
+    }
+
+    public boolean removeValidator(WidgetValidator validator) {
+        getForm().invalidateValidation(this);
+        return super.removeValidator(validator);
+    }
+
     /**
      * @return "field"
      */
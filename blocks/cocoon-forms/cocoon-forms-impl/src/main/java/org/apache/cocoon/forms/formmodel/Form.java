@@ -16,8 +16,12 @@
  */
 package org.apache.cocoon.forms.formmodel;
 
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.cocoon.forms.FormContext;
@@ -76,11 +80,32 @@ public class Form extends AbstractContainerWidget
     /** Optional id which overrides the value from the form definition */
     private String id;
 
+    //Incremental validation (see FormDefinition#isIncrementalValidation()): the fields, boolean
+    //fields and multivalue fields read by the validation of each field, the reverse relation, and
+    //the widgets changed since the last validation. Fields which are not in the graph are always
+    //validated.
+    private Map validationDependencies;
+    private Map validationDependents;
+    private Set changedWidgets;
+    private LinkedList validatingFields;
+
+    /** Is the current validation incremental? */
+    private boolean incremental;
+
+    /** Fields to validate in the current incremental validation */
+    private Set invalidFields;
+
 
     public Form(FormDefinition definition) {
         super(definition);
         this.definition = definition;
         this.listener = definition.getProcessingPhaseListener();
+        if (definition.isIncrementalValidation()) {
+            this.validationDependencies = new HashMap();
+            this.validationDependents = new HashMap();
+            this.changedWidgets = new HashSet();
+            this.validatingFields = new LinkedList();
+        }
     }
 
     /**
@@ -135,6 +160,16 @@ public class Form extends AbstractContainerWidget
      * @return <code>true</code> if this widget was added to the list (i.e. wasn't alredy marked for update)
      */
     public boolean addWidgetUpdate(Widget widget) {
+        if (this.validationDependencies != null) {
+            if (widget instanceof Field || widget instanceof BooleanField || widget instanceof MultiValueField) {
+                this.changedWidgets.add(widget);
+            } else {
+                // Value or structure of another widget changed: we don't know which
+                // fields depend on it, so validate all of them again.
+                clearValidationDependencies();
+            }
+        }
+
         if (this.updatedWidgets != null) {
             if (this.updatedWidgets.add(widget.getRequestParameterName())) {
                 // Wasn't already there: register parents
@@ -153,6 +188,115 @@ public class Form extends AbstractContainerWidget
         return false;
     }
 
+    /**
+     * Inform the form that the validation of a field must be performed again, even if neither it nor the
+     * fields it depends on have changed (e.g. because its validators changed), or that the value of a
+     * field, boolean field or multivalue field changed, so that the fields whose validation read it must
+     * be validated again.
+     */
+    void invalidateValidation(Widget widget) {
+        if (this.changedWidgets != null) {
+            this.changedWidgets.add(widget);
+        }
+    }
+
+    /**
+     * Called by a field when it starts validating its value. The values of other fields read until
+     * {@link #endFieldValidation(Field)} is called are recorded as its dependencies.
+     */
+    void startFieldValidation(Field field) {
+        if (this.validationDependencies != null) {
+            removeValidationDependencies(field);
+            this.validationDependencies.put(field, new HashSet());
+            this.validatingFields.addLast(field);
+        }
+    }
+
+    void endFieldValidation(Field field) {
+        if (this.validationDependencies != null && !this.validatingFields.isEmpty() &&
+                this.validatingFields.getLast() == field) {
+            this.validatingFields.removeLast();
+        }
+    }
+
+    /**
+     * Called by a field, boolean field or multivalue field when its value is read, to record it as a
+     * dependency of the field being validated, if any.
+     */
+    void fieldRead(Widget widget) {
+        if (this.validationDependencies != null && !this.validatingFields.isEmpty()) {
+            Field validating = (Field) this.validatingFields.getLast();
+            if (validating != widget) {
+                Set dependencies = (Set) this.validationDependencies.get(validating);
+                if (dependencies != null && dependencies.add(widget)) {
+                    Set dependents = (Set) this.validationDependents.get(widget);
+                    if (dependents == null) {
+                        dependents = new HashSet();
+                        this.validationDependents.put(widget, dependents);
+                    }
+                    dependents.add(validating);
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove a field from the validation graph, so that it will be validated on the next validation.
+     */
+    void removeValidationDependencies(Field field) {
+        if (this.validationDependencies != null) {
+            Set dependencies = (Set) this.validationDependencies.remove(field);
+            if (dependencies != null) {
+                for (Iterator i = dependencies.iterator(); i.hasNext();) {
+                    Set dependents = (Set) this.validationDependents.get(i.next());
+                    if (dependents != null) {
+                        dependents.remove(field);
+                    }
+                }
+            }
+        }
+    }
+
+    private void clearValidationDependencies() {
+        this.validationDependencies.clear();
+        this.validationDependents.clear();
+    }
+
+    /**
+     * Does a field need to be validated in the current validation? Outside incremental validation,
+     * this is always the case. Otherwise, fields which have changed, fields which have not been validated
+     * yet and fields whose validation read a value which has changed are validated again.
+     *
+     * @param field the field
+     * @return <code>true</code> if the field must be validated
+     */
+    boolean isValidationRequired(Field field) {
+        return this.invalidFields == null ||
+               !this.validationDependencies.containsKey(field) ||
+               this.invalidFields.contains(field);
+    }
+
+    /**
+     * Compute the fields to validate in an incremental validation: the changed widgets and, transitively,
+     * the fields which depend on them.
+     */
+    private Set computeInvalidFields() {
+        Set invalid = new HashSet(this.changedWidgets);
+        LinkedList queue = new LinkedList(this.changedWidgets);
+        while (!queue.isEmpty()) {
+            Set dependents = (Set) this.validationDependents.get(queue.removeFirst());
+            if (dependents != null) {
+                for (Iterator i = dependents.iterator(); i.hasNext();) {
+                    Object dependent = i.next();
+                    if (invalid.add(dependent)) {
+                        queue.addLast(dependent);
+                    }
+                }
+            }
+        }
+        return invalid;
+    }
+
     public Set getUpdatedWidgetIds() {
         return this.updatedWidgets;
     }
@@ -305,7 +449,8 @@ public class Form extends AbstractContainerWidget
      */
     public synchronized boolean process(FormContext formContext) {
         // Is this an AJAX request?
-        if (formContext.getRequest().getParameter("cocoon-ajax") != null) {
+        boolean ajax = formContext.getRequest().getParameter("cocoon-ajax") != null;
+        if (ajax) {
             this.updatedWidgets = new HashSet();
             this.childUpdatedWidgets = new HashSet();
         }
@@ -314,6 +459,7 @@ public class Form extends AbstractContainerWidget
         fireEvents();
 
         // setup processing
+        Locale oldLocale = this.locale;
         this.submitWidget = null;
         this.locale = formContext.getLocale();
         this.endProcessing = null;
@@ -371,7 +517,14 @@ public class Form extends AbstractContainerWidget
             return this.endProcessing.booleanValue();
         }
 
-        return validate();
+        // Ajax requests only validate the fields affected by the changes, unless the locale
+        // changed, which affects the parsing of all values.
+        this.incremental = ajax && this.validationDependencies != null && this.locale.equals(oldLocale);
+        try {
+            return validate();
+        } finally {
+            this.incremental = false;
+        }
     }
 
     /**
@@ -425,8 +578,20 @@ public class Form extends AbstractContainerWidget
      * Performs validation phase of form processing.
      */
     public boolean validate() {
+        if (this.changedWidgets != null) {
+            // Widgets changed while validating will be validated again next time
+            if (this.incremental) {
+                this.invalidFields = computeInvalidFields();
+            }
+            this.changedWidgets.clear();
+        }
+
         // Validate the form
-        this.isValid = super.validate();
+        try {
+            this.isValid = super.validate();
+        } finally {
+            this.invalidFields = null;
+        }
 
         // FIXME: Is this check needed, before invoking the listener?
         if (this.endProcessing != null) {
@@ -39,6 +39,7 @@ public class FormDefinition extends AbstractContainerDefinition {
 
     private Library localLibrary;
 
+    private boolean incrementalValidation;
 
     public FormDefinition(LibraryManager libraryManager) {
         super();
@@ -88,6 +89,21 @@ public class FormDefinition extends AbstractContainerDefinition {
 
         super.addWidgetDefinition(definition);
     }
+
+    /**
+     * Should Ajax requests only validate the fields which changed and the fields whose validation
+     * read the value of a changed field? Validators must read the values of other fields using
+     * {@link Widget#getValue()} for their dependencies to be known.
+     */
+    public boolean isIncrementalValidation() {
+        return incrementalValidation;
+    }
+
+    public void setIncrementalValidation(boolean incrementalValidation) {
+        checkMutable();
+        this.incrementalValidation = incrementalValidation;
+    }
+
     /**
      * @return Returns the listener.
      */
@@ -20,6 +20,7 @@ import java.util.Iterator;
 
 import org.apache.cocoon.forms.event.ProcessingPhaseListener;
 import org.apache.cocoon.forms.formmodel.library.LibraryManager;
+import org.apache.cocoon.forms.util.DomHelper;
 import org.apache.cocoon.util.location.LocationAttributes;
 import org.w3c.dom.Element;
 
@@ -53,6 +54,8 @@ public final class FormDefinitionBuilder extends AbstractContainerDefinitionBuil
             formDefinition.addProcessingPhaseListener((ProcessingPhaseListener) i.next());
         }
 
+        formDefinition.setIncrementalValidation(DomHelper.getAttributeAsBoolean(formElement, "incremental-validation", false));
+
         setupDefinition(formElement, formDefinition, context);
         setDisplayData(formElement, formDefinition);
         setupContainer(formElement, "widgets", formDefinition, context);
@@ -17,6 +17,7 @@
 package org.apache.cocoon.forms.formmodel;
 
 import java.lang.reflect.Array;
+import java.util.Arrays;
 import java.util.Locale;
 
 import org.apache.cocoon.forms.FormsConstants;
@@ -118,6 +119,10 @@ public class MultiValueField extends AbstractWidget
             values = new Object[0];
         }
 
+        if (!Arrays.equals(oldValues, values)) {
+            // Fields whose validation read the old values must be validated again
+            getForm().invalidateValidation(this);
+        }
         engenderChangeEvent(oldValues);
     }
 
@@ -205,6 +210,8 @@ public class MultiValueField extends AbstractWidget
 
 
     public Object getValue() {
+        // Record the dependency if a field is validating
+        getForm().fieldRead(this);
         return values;
     }
 
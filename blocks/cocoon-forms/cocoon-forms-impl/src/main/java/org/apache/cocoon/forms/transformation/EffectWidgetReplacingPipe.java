@@ -41,6 +41,7 @@ import org.xml.sax.ext.LexicalHandler;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
@@ -59,6 +60,11 @@ import java.util.Map;
  * <p>For more information about the supported tags and their function,
  * see the user documentation for the forms template transformer.</p>
  *
+ * <p>Template fragments which are streamed several times (the rows of a
+ * repeater, <code>ft:class</code> instances) are split once per rendering
+ * into a {@link TemplateFragment}, so that only their <code>ft:</code>
+ * elements go through the handlers again for every row.</p>
+ *
  * @version $Id$
  */
 public class EffectWidgetReplacingPipe extends EffectPipe {
@@ -646,7 +652,7 @@ public class EffectWidgetReplacingPipe extends EffectPipe {
 
         public void endElement(String uri, String loc, String raw)
         throws SAXException {
-            SaxBuffer buffer = endBuffer();
+            TemplateFragment fragment = createFragment(endBuffer());
             final Repeater repeater = (Repeater) contextWidget;
             final int rowCount = repeater.getSize();
             pushHandler(hNested);
@@ -654,7 +660,7 @@ public class EffectWidgetReplacingPipe extends EffectPipe {
             for (int i = 0; i < rowCount; i++) {
                 contextWidget = repeater.getRow(i);
                 if (isVisible(contextWidget)) {
-                    buffer.toSAX(EffectWidgetReplacingPipe.this);
+                    fragment.toSAX(EffectWidgetReplacingPipe.this);
                 }
             }
             contextWidget = (Widget) contextWidgets.removeFirst();
@@ -684,7 +690,7 @@ public class EffectWidgetReplacingPipe extends EffectPipe {
 
         public void endElement(String uri, String loc, String raw)
         throws SAXException {
-            SaxBuffer buffer = endBuffer();
+            TemplateFragment fragment = createFragment(endBuffer());
             final Repeater repeater = (Repeater) widget;
             final int rowCount = repeater.getSize();
             pushHandler(hNested);
@@ -692,7 +698,7 @@ public class EffectWidgetReplacingPipe extends EffectPipe {
             for (int i = 0; i < rowCount; i++) {
                 contextWidget = repeater.getRow(i);
                 if (isVisible(contextWidget)) {
-                    buffer.toSAX(EffectWidgetReplacingPipe.this);
+                    fragment.toSAX(EffectWidgetReplacingPipe.this);
                 }
             }
             contextWidget = (Widget) contextWidgets.removeFirst();
@@ -870,13 +876,13 @@ public class EffectWidgetReplacingPipe extends EffectPipe {
         public Handler startElement(String uri, String loc, String raw, Attributes attrs)
         throws SAXException {
             String id = getRequiredAttributeValue(loc, attrs, "id");
-            SaxBuffer buffer = (SaxBuffer) classes.get(id);
-            if (buffer == null) {
+            TemplateFragment fragment = (TemplateFragment) classes.get(id);
+            if (fragment == null) {
                 throw new SAXException("New: Class '" + id + "' does not exist, " +
                                        "at " + getLocation());
             }
             pushHandler(hNested);
-            buffer.toSAX(EffectWidgetReplacingPipe.this);
+            fragment.toSAX(EffectWidgetReplacingPipe.this);
             popHandler();
             return this;
         }
@@ -916,7 +922,7 @@ public class EffectWidgetReplacingPipe extends EffectPipe {
         }
 
         public void endElement(String uri, String loc, String raw) throws SAXException {
-            classes.put(widgetPath, endBuffer());
+            classes.put(widgetPath, createFragment(endBuffer()));
         }
     }
 
@@ -1016,6 +1022,79 @@ public class EffectWidgetReplacingPipe extends EffectPipe {
     }
 
 
+    /**
+     * Create the fragment streaming a buffered part of the template.
+     */
+    protected TemplateFragment createFragment(SaxBuffer buffer) {
+        return new TemplateFragment(buffer);
+    }
+
+    /**
+     * A buffered template fragment, split into chunks of static markup and
+     * chunks containing <code>ft:</code> elements. The pipe must be using the
+     * {@link NestedHandler} when the fragment is streamed: as that handler
+     * copies elements outside of the template namespace unchanged, static
+     * chunks are streamed directly to the output, and only the other chunks
+     * through the pipe. Static elements are neither pushed nor popped, so
+     * the handler stack stays balanced.
+     */
+    protected static class TemplateFragment {
+        /** The chunks of the fragment, as {@link SaxBuffer}s */
+        private final List chunks = new ArrayList();
+
+        /** Does the chunk at the same index need to be interpreted? */
+        private final List dynamic = new ArrayList();
+
+        public TemplateFragment(SaxBuffer buffer) {
+            List chunk = null;
+            boolean chunkDynamic = false;
+            // Nesting of the current ft: element, if any
+            int depth = 0;
+            for (Iterator i = buffer.getBits().iterator(); i.hasNext();) {
+                Object bit = i.next();
+                boolean bitDynamic;
+                if (depth > 0) {
+                    bitDynamic = true;
+                    if (bit instanceof SaxBuffer.StartElement) {
+                        depth++;
+                    } else if (bit instanceof SaxBuffer.EndElement) {
+                        depth--;
+                    }
+                } else if (bit instanceof SaxBuffer.StartElement) {
+                    bitDynamic = FormsConstants.TEMPLATE_NS.equals(((SaxBuffer.StartElement) bit).namespaceURI);
+                    if (bitDynamic) {
+                        depth++;
+                    }
+                } else {
+                    // Namespace declarations, lexical events... are left to the pipe
+                    bitDynamic = !(bit instanceof SaxBuffer.EndElement ||
+                                   bit instanceof SaxBuffer.Characters ||
+                                   bit instanceof SaxBuffer.IgnorableWhitespace ||
+                                   bit instanceof SaxBuffer.PI);
+                }
+
+                if (chunk == null || chunkDynamic != bitDynamic) {
+                    chunk = new ArrayList();
+                    chunkDynamic = bitDynamic;
+                    this.chunks.add(new SaxBuffer(chunk));
+                    this.dynamic.add(Boolean.valueOf(chunkDynamic));
+                }
+                chunk.add(bit);
+            }
+        }
+
+        public void toSAX(EffectWidgetReplacingPipe pipe) throws SAXException {
+            final int size = this.chunks.size();
+            for (int i = 0; i < size; i++) {
+                SaxBuffer chunk = (SaxBuffer) this.chunks.get(i);
+                if (((Boolean) this.dynamic.get(i)).booleanValue()) {
+                    chunk.toSAX(pipe);
+                } else {
+                    chunk.toSAX(pipe.getContentHandler());
+                }
+            }
+        }
+    }
 
     private Attributes translateAttributes(Attributes attributes, String[] names) {
         AttributesImpl newAtts = new AttributesImpl(attributes);
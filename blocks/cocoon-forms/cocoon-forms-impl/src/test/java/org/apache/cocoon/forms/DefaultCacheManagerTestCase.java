@@ -0,0 +1,170 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.forms;
+
+import java.io.InputStream;
+
+import org.apache.excalibur.source.Source;
+import org.apache.excalibur.source.SourceValidity;
+
+import junit.framework.TestCase;
+
+/**
+ * Test case for the {@link DefaultCacheManager} class.
+ *
+ * @version $Id$
+ */
+public class DefaultCacheManagerTestCase extends TestCase {
+
+    private static final String PREFIX = "Test:";
+
+    private static class TestValidity implements SourceValidity {
+        int valid = SourceValidity.VALID;
+
+        public int isValid() {
+            return this.valid;
+        }
+
+        public int isValid(SourceValidity newValidity) {
+            return SourceValidity.INVALID;
+        }
+    }
+
+    private static class TestSource implements Source {
+        final String uri;
+        final long contentLength;
+        final TestValidity validity = new TestValidity();
+
+        TestSource(String uri, long contentLength) {
+            this.uri = uri;
+            this.contentLength = contentLength;
+        }
+
+        public boolean exists() {
+            return true;
+        }
+
+        public InputStream getInputStream() {
+            throw new UnsupportedOperationException();
+        }
+
+        public String getURI() {
+            return this.uri;
+        }
+
+        public String getScheme() {
+            return "test";
+        }
+
+        public SourceValidity getValidity() {
+            return this.validity;
+        }
+
+        public void refresh() {
+        }
+
+        public String getMimeType() {
+            return null;
+        }
+
+        public long getContentLength() {
+            return this.contentLength;
+        }
+
+        public long getLastModified() {
+            return 0;
+        }
+    }
+
+    private DefaultCacheManager cacheManager;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.cacheManager = new DefaultCacheManager();
+        this.cacheManager.setCheckInterval(0);
+    }
+
+    public void testGetAndSet() {
+        final TestSource source = new TestSource("a", 10);
+        assertNull(this.cacheManager.get(source, PREFIX));
+        this.cacheManager.set("a", source, PREFIX);
+        assertEquals("a", this.cacheManager.get(source, PREFIX));
+        assertNull(this.cacheManager.get(source, "Other:"));
+        assertEquals(1, this.cacheManager.getHits());
+        assertEquals(2, this.cacheManager.getMisses());
+    }
+
+    public void testInvalid() {
+        final TestSource source = new TestSource("a", 10);
+        this.cacheManager.set("a", source, PREFIX);
+        source.validity.valid = SourceValidity.INVALID;
+        assertNull(this.cacheManager.get(source, PREFIX));
+        assertEquals(0, this.cacheManager.getSize());
+    }
+
+    public void testCheckInterval() {
+        this.cacheManager.setCheckInterval(60000);
+        final TestSource source = new TestSource("a", 10);
+        this.cacheManager.set("a", source, PREFIX);
+        // not checked again before the interval is over
+        source.validity.valid = SourceValidity.INVALID;
+        assertEquals("a", this.cacheManager.get(source, PREFIX));
+    }
+
+    public void testMaxObjects() {
+        this.cacheManager.setMaxObjects(2);
+        final TestSource a = new TestSource("a", 10);
+        final TestSource b = new TestSource("b", 10);
+        final TestSource c = new TestSource("c", 10);
+        this.cacheManager.set("a", a, PREFIX);
+        this.cacheManager.set("b", b, PREFIX);
+        // a is now used more recently than b
+        this.cacheManager.get(a, PREFIX);
+        this.cacheManager.set("c", c, PREFIX);
+        assertEquals(2, this.cacheManager.getSize());
+        assertEquals(1, this.cacheManager.getEvictions());
+        assertEquals("a", this.cacheManager.get(a, PREFIX));
+        assertNull(this.cacheManager.get(b, PREFIX));
+        assertEquals("c", this.cacheManager.get(c, PREFIX));
+    }
+
+    public void testMaxWeight() {
+        this.cacheManager.setMaxWeight(100);
+        this.cacheManager.set("a", new TestSource("a", 60), PREFIX);
+        this.cacheManager.set("b", new TestSource("b", 30), PREFIX);
+        assertEquals(90, this.cacheManager.getWeight());
+        this.cacheManager.set("c", new TestSource("c", 20), PREFIX);
+        assertEquals(2, this.cacheManager.getSize());
+        assertEquals(50, this.cacheManager.getWeight());
+
+        // an object heavier than the limit is cached alone
+        this.cacheManager.set("d", new TestSource("d", 200), PREFIX);
+        assertEquals(1, this.cacheManager.getSize());
+        assertEquals(200, this.cacheManager.getWeight());
+    }
+
+    public void testReplace() {
+        final TestSource source = new TestSource("a", 10);
+        this.cacheManager.set("a", source, PREFIX);
+        this.cacheManager.set("b", source, PREFIX);
+        assertEquals(1, this.cacheManager.getSize());
+        assertEquals(10, this.cacheManager.getWeight());
+        this.cacheManager.remove(source, PREFIX);
+        assertEquals(0, this.cacheManager.getSize());
+        assertEquals(0, this.cacheManager.getWeight());
+    }
+}
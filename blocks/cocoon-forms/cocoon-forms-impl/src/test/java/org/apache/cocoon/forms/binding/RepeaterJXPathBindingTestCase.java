@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.cocoon.forms.binding;
+
+import java.io.StringReader;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.cocoon.CocoonTestCase;
+import org.apache.cocoon.forms.formmodel.Field;
+import org.apache.cocoon.forms.formmodel.Form;
+import org.apache.cocoon.forms.formmodel.Repeater;
+import org.apache.cocoon.forms.formmodel.WidgetTestHelper;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+/**
+ * Test case for the {@link RepeaterJXPathBinding}.
+ *
+ * @version $Id$
+ */
+public class RepeaterJXPathBindingTestCase extends CocoonTestCase {
+
+    private Document parse(InputSource input) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        DocumentBuilder parser = factory.newDocumentBuilder();
+        return parser.parse(input);
+    }
+
+    private Document createModel(String[] ids, String[] names) throws Exception {
+        StringBuffer data = new StringBuffer("<data>");
+        for (int i = 0; i < ids.length; i++) {
+            data.append("<contact id=\"").append(ids[i]).append("\"><name>")
+                .append(names[i]).append("</name></contact>");
+        }
+        data.append("</data>");
+        return parse(new InputSource(new StringReader(data.toString())));
+    }
+
+    private Binding createBinding() throws Exception {
+        Document doc = parse(new InputSource(getClass().getResource(
+                "RepeaterJXPathBindingTestCase.binding.xml").toExternalForm()));
+        BindingManager bindingManager = (BindingManager) getManager().lookup(BindingManager.ROLE);
+        try {
+            return bindingManager.createBinding(doc.getDocumentElement());
+        } finally {
+            getManager().release(bindingManager);
+        }
+    }
+
+    private String getContacts(Document model) {
+        StringBuffer contacts = new StringBuffer();
+        NodeList rows = model.getElementsByTagName("contact");
+        for (int i = 0; i < rows.getLength(); i++) {
+            Element row = (Element) rows.item(i);
+            contacts.append(row.getAttribute("id")).append('=')
+                    .append(row.getElementsByTagName("name").item(0).getFirstChild().getNodeValue())
+                    .append(';');
+        }
+        return contacts.toString();
+    }
+
+    private void setRow(Repeater.RepeaterRow row, String id, String name) {
+        ((Field) row.getChild("id")).setValue(id);
+        ((Field) row.getChild("name")).setValue(name);
+    }
+
+    /**
+     * Updates, removes and adds rows in a single save.
+     */
+    public void testSave() throws Exception {
+        Form form = WidgetTestHelper.loadForm(getManager(), this, "RepeaterJXPathBindingTestCase.model.xml");
+        Binding binding = createBinding();
+        Document model = createModel(new String[] {"1", "2", "3"}, new String[] {"a", "b", "c"});
+
+        binding.loadFormFromModel(form, model);
+        Repeater contacts = (Repeater) form.getChild("contacts");
+        assertEquals(3, contacts.getSize());
+        assertEquals("2", ((Field) contacts.getRow(1).getChild("id")).getValue());
+
+        ((Field) contacts.getRow(0).getChild("name")).setValue("x");
+        contacts.removeRow(1);
+        setRow(contacts.addRow(), "4", "d");
+        binding.saveFormToModel(form, model);
+
+        assertEquals("1=x;3=c;4=d;", getContacts(model));
+    }
+
+    /**
+     * Rows of the object model with the same identity are not deleted, and
+     * only the first of them is updated.
+     */
+    public void testSaveDuplicateIdentities() throws Exception {
+        Form form = WidgetTestHelper.loadForm(getManager(), this, "RepeaterJXPathBindingTestCase.model.xml");
+        Binding binding = createBinding();
+        Document model = createModel(new String[] {"1", "1"}, new String[] {"a", "b"});
+
+        binding.loadFormFromModel(form, model);
+        Repeater contacts = (Repeater) form.getChild("contacts");
+        assertEquals(2, contacts.getSize());
+
+        ((Field) contacts.getRow(0).getChild("name")).setValue("x");
+        ((Field) contacts.getRow(1).getChild("name")).setValue("y");
+        binding.saveFormToModel(form, model);
+
+        assertEquals("1=y;1=b;", getContacts(model));
+    }
+
+    public void testSpeed() throws Exception {
+        final int rows = 10000;
+        Form form = WidgetTestHelper.loadForm(getManager(), this, "RepeaterJXPathBindingTestCase.model.xml");
+        Binding binding = createBinding();
+        String[] ids = new String[rows];
+        String[] names = new String[rows];
+        for (int i = 0; i < rows; i++) {
+            ids[i] = String.valueOf(i);
+            names[i] = "name" + i;
+        }
+        Document model = createModel(ids, names);
+
+        binding.loadFormFromModel(form, model);
+        Repeater contacts = (Repeater) form.getChild("contacts");
+        for (int i = 0; i < rows; i += 2) {
+            ((Field) contacts.getRow(i).getChild("name")).setValue("changed" + i);
+        }
+
+        long start = System.currentTimeMillis();
+        binding.saveFormToModel(form, model);
+        long stop = System.currentTimeMillis() + 1;
+        System.out.println("Saved a repeater of " + rows + " rows in " + (stop - start) + " ms");
+
+        NodeList saved = model.getElementsByTagName("contact");
+        assertEquals(rows, saved.getLength());
+        assertEquals("changed" + (rows - 2), ((Element) saved.item(rows - 2))
+                .getElementsByTagName("name").item(0).getFirstChild().getNodeValue());
+        assertEquals("name" + (rows - 1), ((Element) saved.item(rows - 1))
+                .getElementsByTagName("name").item(0).getFirstChild().getNodeValue());
+    }
+}
@@ -17,8 +17,10 @@
 
 package org.apache.cocoon.forms.datatype;
 
+import java.io.StringReader;
 import java.util.Locale;
 
+import org.apache.cocoon.forms.DefaultCacheManager;
 import org.apache.cocoon.forms.FormsConstants;
 import org.apache.cocoon.xml.dom.DOMBuilder;
 
@@ -29,6 +31,8 @@ import org.apache.excalibur.xmlizer.XMLizer;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
 
 /**
  * Test case for CForms's DynamicSelectionList datatype.
@@ -65,4 +69,61 @@ public class DynamicSelectionListTestCase extends AbstractSelectionListTestCase
         assertEqual("Test if output is what is expected", expected, destDocument);
     }
 
+    /**
+     * Test that all definitions of a cached list share one entry.
+     */
+    public void testSharedCache() throws Exception {
+        final String src = "resource://org/apache/cocoon/forms/datatype/DynamicSelectionListTestCase.source.xml";
+        Document sourceDoc = this.parser.parse(new ResourceSource(src).getInputStream());
+        Element datatypeElement = (Element) sourceDoc.getElementsByTagNameNS(FormsConstants.DEFINITION_NS, "convertor").item(0);
+        final XMLizer xmlizer = (XMLizer)getManager().lookup( XMLizer.ROLE );
+        final SourceResolver sourceResolver = (SourceResolver)getManager().lookup( SourceResolver.ROLE );
+        final DefaultCacheManager cacheManager = new DefaultCacheManager();
+
+        // the same list in a form definition and in the rebuilt definition
+        DynamicSelectionList list = new DynamicSelectionList(this.datatypeManager.createDatatype(datatypeElement, false),
+                                                             src, cacheManager, 60000, xmlizer, sourceResolver, null);
+        DynamicSelectionList rebuilt = new DynamicSelectionList(this.datatypeManager.createDatatype(datatypeElement, false),
+                                                                src, cacheManager, 60000, xmlizer, sourceResolver, null);
+
+        Source expectedSource =
+            new ResourceSource("resource://org/apache/cocoon/forms/datatype/DynamicSelectionListTestCase.dest.xml");
+        Document expected = this.parser.parse(expectedSource.getInputStream());
+        expected.getDocumentElement().removeAttribute("xmlns:" + FormsConstants.INSTANCE_PREFIX);
+
+        // two requests using the first definition, one using the rebuilt one
+        assertEqual("First request", expected, generate(list, Locale.ENGLISH));
+        assertEqual("Second request", expected, generate(list, Locale.ENGLISH));
+        assertEqual("Rebuilt definition", expected, generate(rebuilt, Locale.ENGLISH));
+        assertEquals("One entry is shared", 1, cacheManager.getSize());
+        assertEquals(1, cacheManager.getMisses());
+        assertEquals(2, cacheManager.getHits());
+
+        generate(rebuilt, Locale.FRENCH);
+        assertEquals("Locales share the entry", 1, cacheManager.getSize());
+
+        // a list on the same source, converting with another pattern
+        final String datatypeXml =
+            "<fd:datatype xmlns:fd=\"" + FormsConstants.DEFINITION_NS + "\" base=\"date\">" +
+            "<fd:convertor type=\"formatting\"><fd:patterns><fd:pattern>dd.MM.yyyy</fd:pattern></fd:patterns></fd:convertor>" +
+            "</fd:datatype>";
+        Element patternElement = this.parser.parse(new InputSource(new StringReader(datatypeXml))).getDocumentElement();
+        DynamicSelectionList pattern = new DynamicSelectionList(this.datatypeManager.createDatatype(patternElement, false),
+                                                                src, cacheManager, 60000, xmlizer, sourceResolver, null);
+        NodeList items = generate(pattern, Locale.ENGLISH).getElementsByTagNameNS(FormsConstants.INSTANCE_NS, "item");
+        assertEquals(2, items.getLength());
+        assertEquals("Converted with its own convertor", "11.10.2003", ((Element) items.item(0)).getAttribute("value"));
+        assertEquals("04.02.1963", ((Element) items.item(1)).getAttribute("value"));
+        assertEqual("The other convertor is unchanged", expected, generate(list, Locale.ENGLISH));
+        assertEquals("Convertors share the entry", 1, cacheManager.getSize());
+    }
+
+    private Document generate(DynamicSelectionList list, Locale locale) throws Exception {
+        DOMBuilder dest = new DOMBuilder();
+        dest.startDocument();
+        list.generateSaxFragment(dest, locale);
+        dest.endDocument();
+        return dest.getDocument();
+    }
+
 }
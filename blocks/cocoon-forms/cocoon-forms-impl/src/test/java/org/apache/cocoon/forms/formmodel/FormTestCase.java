@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.forms.formmodel;
+
+import java.util.Locale;
+
+import org.apache.cocoon.CocoonTestCase;
+import org.apache.cocoon.environment.mock.MockRequest;
+import org.apache.cocoon.forms.FormContext;
+import org.apache.cocoon.forms.validation.ValidationError;
+import org.apache.cocoon.forms.validation.WidgetValidator;
+
+/**
+ * Test case for CForm's incremental validation of Ajax requests
+ *
+ * @version $Id$
+ */
+public class FormTestCase extends CocoonTestCase {
+
+    /**
+     * Counts its calls, and checks that the value of the "max" field
+     * is not less than the value of the "min" field.
+     */
+    private static class CountingValidator implements WidgetValidator {
+        int count;
+
+        public boolean validate(Widget widget) {
+            this.count++;
+            if (!"max".equals(widget.getId())) {
+                return true;
+            }
+
+            Integer min = (Integer) widget.getForm().getChild("min").getValue();
+            Integer max = (Integer) widget.getValue();
+            if (min != null && max != null && max.intValue() < min.intValue()) {
+                ((Field) widget).setValidationError(new ValidationError("max < min", false));
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Counts its calls, and reads the value of another widget.
+     */
+    private static class ReadingValidator implements WidgetValidator {
+        final String read;
+        int count;
+
+        ReadingValidator(String read) {
+            this.read = read;
+        }
+
+        public boolean validate(Widget widget) {
+            this.count++;
+            widget.getForm().getChild(this.read).getValue();
+            return true;
+        }
+    }
+
+    private boolean process(Form form, boolean ajax, String min, String max) {
+        return process(form, ajax, min, max, false);
+    }
+
+    private boolean process(Form form, boolean ajax, String min, String max, boolean confirm) {
+        MockRequest request = new MockRequest();
+        if (ajax) {
+            request.addParameter("cocoon-ajax", "true");
+        }
+        request.addParameter("min", min);
+        request.addParameter("max", max);
+        request.addParameter("other", "value");
+        if (confirm) {
+            request.addParameter("confirm", "true");
+        }
+        return form.process(new FormContext(request, Locale.US));
+    }
+
+    public void testIncrementalValidation() throws Exception {
+        Form form = WidgetTestHelper.loadForm(getManager(), this, "FormTestCase.model.xml");
+        assertTrue(((FormDefinition) form.getDefinition()).isIncrementalValidation());
+
+        CountingValidator maxValidator = new CountingValidator();
+        CountingValidator otherValidator = new CountingValidator();
+        form.getChild("max").addValidator(maxValidator);
+        form.getChild("other").addValidator(otherValidator);
+
+        // Everything is validated the first time
+        assertTrue(process(form, true, "1", "5"));
+        assertEquals(1, maxValidator.count);
+        assertEquals(1, otherValidator.count);
+
+        // Nothing changed: nothing validated again
+        assertTrue(process(form, true, "1", "5"));
+        assertEquals(1, maxValidator.count);
+        assertEquals(1, otherValidator.count);
+
+        // "max" read "min" during its validation
+        assertFalse(process(form, true, "10", "5"));
+        assertEquals(2, maxValidator.count);
+        assertEquals(1, otherValidator.count);
+        assertNotNull(((Field) form.getChild("max")).getValidationError());
+
+        // Not an Ajax request: everything is validated
+        assertFalse(process(form, false, "10", "5"));
+        assertEquals(3, maxValidator.count);
+        assertEquals(2, otherValidator.count);
+    }
+
+    public void testValidatorChange() throws Exception {
+        Form form = WidgetTestHelper.loadForm(getManager(), this, "FormTestCase.model.xml");
+        assertTrue(process(form, true, "1", "5"));
+
+        CountingValidator otherValidator = new CountingValidator();
+        form.getChild("other").addValidator(otherValidator);
+        assertTrue(process(form, true, "1", "5"));
+        assertEquals(1, otherValidator.count);
+    }
+
+    public void testBooleanFieldDependency() throws Exception {
+        Form form = WidgetTestHelper.loadForm(getManager(), this, "FormTestCase.model.xml");
+        ReadingValidator otherValidator = new ReadingValidator("confirm");
+        form.getChild("other").addValidator(otherValidator);
+
+        assertTrue(process(form, true, "1", "5", false));
+        assertEquals(1, otherValidator.count);
+
+        // Nothing changed: nothing validated again
+        assertTrue(process(form, true, "1", "5", false));
+        assertEquals(1, otherValidator.count);
+
+        // "other" read "confirm" during its validation
+        assertTrue(process(form, true, "1", "5", true));
+        assertEquals(2, otherValidator.count);
+        assertEquals(Boolean.TRUE, form.getChild("confirm").getValue());
+
+        // Changed by the application
+        form.getChild("confirm").setValue(Boolean.FALSE);
+        assertTrue(process(form, true, "1", "5", false));
+        assertEquals(3, otherValidator.count);
+    }
+}
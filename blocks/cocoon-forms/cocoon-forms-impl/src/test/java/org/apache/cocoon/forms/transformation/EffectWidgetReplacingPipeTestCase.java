@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.forms.transformation;
+
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.avalon.framework.parameters.Parameters;
+import org.apache.cocoon.CocoonTestCase;
+import org.apache.cocoon.environment.ObjectModelHelper;
+import org.apache.cocoon.environment.mock.MockRequest;
+import org.apache.cocoon.forms.formmodel.Field;
+import org.apache.cocoon.forms.formmodel.Form;
+import org.apache.cocoon.forms.formmodel.Repeater;
+import org.apache.cocoon.forms.formmodel.WidgetTestHelper;
+import org.apache.cocoon.xml.SaxBuffer;
+import org.xml.sax.SAXException;
+
+/**
+ * Test case for the forms template transformer's {@link EffectWidgetReplacingPipe}.
+ *
+ * @version $Id$
+ */
+public class EffectWidgetReplacingPipeTestCase extends CocoonTestCase {
+
+    /**
+     * Streams the buffered fragments through the whole pipe, as the pipe
+     * did before it split them into static and template chunks.
+     */
+    private static class BufferReplayingPipe extends EffectWidgetReplacingPipe {
+        protected TemplateFragment createFragment(final SaxBuffer buffer) {
+            return new TemplateFragment(buffer) {
+                public void toSAX(EffectWidgetReplacingPipe pipe) throws SAXException {
+                    buffer.toSAX(pipe);
+                }
+            };
+        }
+    }
+
+    private Form createForm() throws Exception {
+        Form form = WidgetTestHelper.loadForm(getManager(), this, "EffectWidgetReplacingPipeTestCase.model.xml");
+        Repeater contacts = (Repeater) form.getChild("contacts");
+        for (int i = 0; i < 3; i++) {
+            Repeater.RepeaterRow contact = contacts.addRow();
+            ((Field) contact.getChild("name")).setValue("name" + i);
+            Repeater phones = (Repeater) contact.getChild("phones");
+            for (int j = 0; j <= i; j++) {
+                ((Field) phones.addRow().getChild("number")).setValue("number" + i + j);
+            }
+        }
+        return form;
+    }
+
+    private String transform(EffectWidgetReplacingPipe pipe, Form form) throws Exception {
+        MockRequest request = new MockRequest();
+        request.setAttribute("form", form);
+        Map objectModel = new HashMap();
+        objectModel.put(ObjectModelHelper.REQUEST_OBJECT, request);
+        Parameters parameters = new Parameters();
+        parameters.setParameter("attribute-name", "form");
+        parameters.setParameter("locale", "en_US");
+
+        StringWriter writer = new StringWriter();
+        TransformerHandler serializer = ((SAXTransformerFactory) SAXTransformerFactory.newInstance()).newTransformerHandler();
+        serializer.setResult(new StreamResult(writer));
+        pipe.init(null, FormsPipelineConfig.createConfig(objectModel, parameters));
+        pipe.setContentHandler(serializer);
+        pipe.setLexicalHandler(serializer);
+
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        SAXParser parser = factory.newSAXParser();
+        parser.getXMLReader().setProperty("http://xml.org/sax/properties/lexical-handler", pipe);
+        parser.getXMLReader().setContentHandler(pipe);
+        parser.getXMLReader().parse(getClass().getResource("EffectWidgetReplacingPipeTestCase.template.xml").toExternalForm());
+        return writer.toString();
+    }
+
+    /**
+     * Nested repeaters, classes and namespace declarations in the rows give
+     * the same output as when the fragments were streamed through the pipe.
+     */
+    public void testFragments() throws Exception {
+        Form form = createForm();
+        String expected = transform(new BufferReplayingPipe(), form);
+        String actual = transform(new EffectWidgetReplacingPipe(), form);
+        assertEquals(expected, actual);
+
+        assertEquals("Rows", 3, count(actual, "<tr "));
+        assertEquals("Namespace declarations", 3, count(actual, "xmlns:h=\"http://www.w3.org/1999/xhtml\""));
+        assertEquals("Classes", 6, count(actual, "<li class=\"phone\">"));
+        assertEquals("Comments", 3, count(actual, "<!-- a comment in every row -->"));
+        assertEquals("Processing instructions", 3, count(actual, "<?row-pi data?>"));
+        assertEquals("Widgets", 1, count(actual, "number22"));
+        assertEquals("No template elements", -1, actual.indexOf("forms/1.0#template"));
+    }
+
+    private static int count(String text, String part) {
+        int count = 0;
+        for (int i = text.indexOf(part); i != -1; i = text.indexOf(part, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+}
@@ -128,6 +128,10 @@ public class Define extends Instruction {
         return body;
     }
 
+    public void setBody(Event body) {
+        this.body = body;
+    }
+
     public String getQname() {
         return qname;
     }
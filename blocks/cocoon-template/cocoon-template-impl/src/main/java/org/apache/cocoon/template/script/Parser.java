@@ -16,10 +16,13 @@
  */
 package org.apache.cocoon.template.script;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Stack;
 
 import org.apache.cocoon.template.JXTemplateGenerator;
 import org.apache.cocoon.template.environment.ParsingContext;
+import org.apache.cocoon.template.instruction.Define;
 import org.apache.cocoon.template.instruction.Instruction;
 import org.apache.cocoon.template.script.event.*;
 import org.apache.commons.lang.StringUtils;
@@ -110,6 +113,62 @@ public class Parser implements ContentHandler, LexicalHandler {
         EndDocument endDoc = new EndDocument(locator);
         startDoc.setEndDocument(endDoc);
         addEvent(endDoc);
+        compileStaticEvents(startDoc);
+    }
+
+    /**
+     * Put a {@link StaticEvents} in front of every balanced run of static
+     * events, so that the run is replayed in one go instead of executing
+     * every single event. A run doesn't continue over the body of a macro
+     * definition, which is then started by the static events as well.
+     */
+    protected void compileStaticEvents(StartDocument startDoc) throws SAXException {
+        final Map bodies = new HashMap();
+        for (Event ev = startDoc.getNext(); ev != null; ev = ev.getNext()) {
+            if (ev instanceof Define) {
+                bodies.put(((Define) ev).getBody(), ev);
+            }
+        }
+
+        Event previous = startDoc;
+        Event ev = startDoc.getNext();
+        while (ev != null) {
+            Event last = null;
+            int count = 0;
+            int depth = 0;
+            int i = 0;
+            for (Event e = ev; e != null && StaticEvents.isStatic(e); e = e.getNext()) {
+                if (e != ev && bodies.containsKey(e)) {
+                    break;
+                }
+                if (e instanceof StartElement) {
+                    depth++;
+                } else if (e instanceof EndElement) {
+                    if (depth == 0) {
+                        break;
+                    }
+                    depth--;
+                }
+                i++;
+                if (depth == 0) {
+                    last = e;
+                    count = i;
+                }
+            }
+
+            if (count > 1) {
+                StaticEvents run = new StaticEvents(ev, last);
+                previous.setNext(run);
+                Define define = (Define) bodies.get(ev);
+                if (define != null) {
+                    define.setBody(run);
+                }
+                previous = last;
+            } else {
+                previous = ev;
+            }
+            ev = previous.getNext();
+        }
     }
 
     public void endElement(String namespaceURI, String localName, String raw)
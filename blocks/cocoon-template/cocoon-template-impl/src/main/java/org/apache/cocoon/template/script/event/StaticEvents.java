@@ -0,0 +1,170 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.template.script.event;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.cocoon.el.objectmodel.ObjectModel;
+import org.apache.cocoon.template.environment.ExecutionContext;
+import org.apache.cocoon.template.expression.Literal;
+import org.apache.cocoon.template.instruction.MacroContext;
+import org.apache.cocoon.xml.SaxBuffer;
+import org.apache.cocoon.xml.XMLConsumer;
+import org.apache.cocoon.xml.util.NamespacesTable;
+import org.xml.sax.SAXException;
+
+/**
+ * A run of static events (elements without expressions in their attributes,
+ * literal text) recorded into {@link SaxBuffer}s when the template is parsed
+ * and replayed in one go when it is executed.
+ *
+ * <p>The events of the run stay in the event chain after this event: they
+ * are executed one by one if an element of the run is the name of a macro
+ * defined at execution time. Pending prefix mappings are sent around the
+ * top level elements of the run just as {@link StartElement} and
+ * {@link EndElement} do it.</p>
+ *
+ * @version SVN $Id$
+ */
+public class StaticEvents extends Event {
+
+    /** The replayed SAX fragments */
+    private final SaxBuffer[] fragments;
+
+    /** Whether a fragment is a top level element */
+    private final boolean[] elements;
+
+    /** The element names of the run, see {@link StartElement#getQname()} */
+    private final String[] qnames;
+
+    /** The event after the run */
+    private final Event end;
+
+    /**
+     * @param first the first event of the run
+     * @param last  the last event of the run, the run must be balanced
+     *              and contain only events accepted by {@link #isStatic(Event)}
+     */
+    public StaticEvents(Event first, Event last) throws SAXException {
+        super(first.getLocation());
+        setNext(first);
+        this.end = last.getNext();
+
+        // record the events by executing them: static events don't use
+        // the object model and a new namespaces table has nothing pending
+        final NamespacesTable namespaces = new NamespacesTable();
+        final List fragments = new ArrayList();
+        final List elements = new ArrayList();
+        final Set qnames = new HashSet();
+        SaxBuffer text = null;
+        SaxBuffer element = null;
+        int depth = 0;
+        Event ev = first;
+        while (ev != this.end) {
+            if (ev instanceof StartElement) {
+                qnames.add(((StartElement) ev).getQname());
+                if (depth++ == 0) {
+                    element = new SaxBuffer();
+                    fragments.add(element);
+                    elements.add(Boolean.TRUE);
+                    text = null;
+                }
+            } else if (ev instanceof EndElement) {
+                depth--;
+            } else if (depth == 0 && ev instanceof TextEvent && text == null) {
+                text = new SaxBuffer();
+                fragments.add(text);
+                elements.add(Boolean.FALSE);
+            }
+            ev.execute(depth > 0 || ev instanceof EndElement ? element : text,
+                       null, null, null, namespaces, first, this.end);
+            ev = ev.getNext();
+        }
+
+        this.fragments = (SaxBuffer[]) fragments.toArray(new SaxBuffer[fragments.size()]);
+        this.elements = new boolean[this.fragments.length];
+        for (int i = 0; i < this.elements.length; i++) {
+            this.elements[i] = ((Boolean) elements.get(i)).booleanValue();
+        }
+        this.qnames = (String[]) qnames.toArray(new String[qnames.size()]);
+    }
+
+    /**
+     * @return the event after the run
+     */
+    public Event getEnd() {
+        return end;
+    }
+
+    /**
+     * Can the event be recorded when the template is parsed?
+     */
+    public static boolean isStatic(Event ev) {
+        if (ev.getClass() == StartElement.class) {
+            Iterator i = ((StartElement) ev).getAttributeEvents().iterator();
+            while (i.hasNext()) {
+                if (!(i.next() instanceof CopyAttribute)) {
+                    return false;
+                }
+            }
+            return true;
+        } else if (ev.getClass() == Characters.class || ev.getClass() == IgnorableWhitespace.class) {
+            Iterator i = ((TextEvent) ev).getSubstitutions().iterator();
+            while (i.hasNext()) {
+                if (!(i.next() instanceof Literal)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        // (endPrefixMapping is sent in EndElement)
+        return ev.getClass() == EndElement.class || ev.getClass() == EndPrefixMapping.class;
+    }
+
+    public Event execute(XMLConsumer consumer,
+            ObjectModel objectModel,
+            ExecutionContext executionContext, MacroContext macroContext,
+            NamespacesTable namespaces, Event startEvent, Event endEvent) throws SAXException {
+        final Map definitions = executionContext.getDefinitions();
+        if (!definitions.isEmpty()) {
+            for (int i = 0; i < this.qnames.length; i++) {
+                if (definitions.containsKey(this.qnames[i])) {
+                    // macro call: execute the single events
+                    return getNext();
+                }
+            }
+        }
+
+        for (int i = 0; i < this.fragments.length; i++) {
+            if (this.elements[i]) {
+                // Send any pending startPrefixMapping events
+                namespaces.enterScope(consumer);
+                this.fragments[i].toSAX(consumer);
+                // Send any pending endPrefixMapping events
+                namespaces.leaveScope(consumer);
+            } else {
+                this.fragments[i].toSAX(consumer);
+            }
+        }
+        return this.end;
+    }
+}
@@ -165,6 +165,13 @@ public class JXTemplateGeneratorTestCase extends SitemapComponentTestCase {
         assertEqual(load(outputURI), generate(JX, inputURI, EMPTY_PARAMS));
     }
 
+    public void testJXStaticEvents() throws Exception {
+        String inputURI = docBase + "jxStaticEvents.xml";
+        String outputURI = docBase + "jxStaticEvents-output.xml";
+
+        assertEqual(load(outputURI), generate(JX, inputURI, EMPTY_PARAMS));
+    }
+
     public void testJXSet() throws Exception {
         String inputURI = docBase + "jxSet.xml";
         String outputURI = docBase + "jxSet-output.xml";
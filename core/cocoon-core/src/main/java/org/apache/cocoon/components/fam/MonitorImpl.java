@@ -18,67 +18,211 @@
  */
 package org.apache.cocoon.components.fam;
 
-// TODO rcl
-//import org.apache.avalon.framework.activity.Disposable;
-//import org.apache.avalon.framework.activity.Initializable;
-//import org.apache.avalon.framework.logger.AbstractLogEnabled;
-//import org.apache.avalon.framework.thread.ThreadSafe;
-//import org.apache.cocoon.classloader.reloading.Monitor;
-//import org.apache.cocoon.classloader.reloading.NotifyingResourceStore;
-//import org.apache.commons.jci.listeners.NotificationListener;
-//import org.apache.commons.jci.listeners.ReloadingListener;
-//import org.apache.commons.jci.monitor.FilesystemAlterationListener;
-//import org.apache.commons.jci.monitor.FilesystemAlterationMonitor;
+import java.io.File;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 /**
+ * Default implementation of the {@link Monitor}.
+ *
+ * <p>All monitored files are checked by one background thread every
+ * <code>interval</code> milliseconds, so the components subscribed to the
+ * monitor don't have to access the file system while processing a request.
+ * A file is considered to be changed if its modification date, its length
+ * or its existence differ from the last check.</p>
+ *
+ * <p>A few parameters can be used:
+ * <ul>
+ *  <li><b>interval</b>: The time between two checks of the monitored files
+ *      in milliseconds (Default: 500)</li>
+ * </ul></p>
+ *
+ * @since 2.2
  * @version $Id$
  */
-public final class MonitorImpl  {
-// TODO rcl    
-//    extends AbstractLogEnabled 
-//    implements Monitor, ThreadSafe, Initializable, Disposable {
-//
-//    private FilesystemAlterationMonitor monitor;
-//    private NotificationListener sitemapNotifier;
-//
-//    /**
-//     * @see org.apache.avalon.framework.activity.Initializable#initialize()
-//     */
-//    public void initialize() throws Exception {
-//        this.monitor = new FilesystemAlterationMonitor();
-//        this.monitor.start();
-//    }
-//
-//    /**
-//     * @see org.apache.avalon.framework.activity.Disposable#dispose()
-//     */
-//    public void dispose() {
-//        if ( this.monitor != null ) {
-//            this.monitor.stop();
-//            this.monitor = null;
-//        }
-//    }
-//
-//    /**
-//     * @see org.apache.cocoon.classloader.reloading.Monitor#subscribe(org.apache.commons.jci.monitor.FilesystemAlterationListener)
-//     */
-//    public void subscribe(final FilesystemAlterationListener listener) {
-//        this.monitor.addListener(listener);
-//        this.monitor.addListener(new ReloadingListener(listener.getRepository(),new NotifyingResourceStore(this.sitemapNotifier)));
-//    }
-//
-//    /**
-//     * @see org.apache.cocoon.classloader.reloading.Monitor#unsubscribe(org.apache.commons.jci.monitor.FilesystemAlterationListener)
-//     */
-//    public void unsubscribe(final FilesystemAlterationListener listener) {
-//        this.monitor.removeListener(listener);
-//        this.monitor.removeListener(new ReloadingListener(listener.getRepository(),new NotifyingResourceStore(this.sitemapNotifier)));
-//    }
-//    
-//    /**
-//     * @see org.apache.cocoon.classloader.reloading.Monitor#setSitemapNotifier(org.apache.commons.jci.listeners.NotificationListener)
-//     */
-//    public void setSitemapNotifier(NotificationListener sitemapNotifier) {
-//        this.sitemapNotifier = sitemapNotifier;
-//    }    
+public final class MonitorImpl implements Monitor, Runnable {
+
+    private Log logger = LogFactory.getLog(getClass());
+
+    private long interval = 500;
+
+    /** The monitored files: absolute file to {@link Entry} */
+    private final ConcurrentMap entries = new ConcurrentHashMap();
+
+    private Thread thread;
+
+    private volatile boolean running;
+
+    public void setInterval(long interval) {
+        this.interval = interval;
+    }
+
+    public Log getLogger() {
+        return this.logger;
+    }
+
+    public void setLogger(Log l) {
+        this.logger = l;
+    }
+
+    /**
+     * Start the background thread.
+     */
+    public void init() {
+        this.running = true;
+        this.thread = new Thread(this, "cocoon-monitor");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Stop the background thread.
+     */
+    public void destroy() {
+        this.running = false;
+        if (this.thread != null) {
+            this.thread.interrupt();
+            try {
+                this.thread.join(this.interval);
+            } catch (InterruptedException ignore) {
+                // we are stopping anyway
+            }
+            this.thread = null;
+        }
+        this.entries.clear();
+    }
+
+    /**
+     * @see org.apache.cocoon.components.fam.Monitor#subscribe(java.io.File, org.apache.cocoon.components.fam.MonitorListener)
+     */
+    public void subscribe(File file, MonitorListener listener) {
+        addListener(file, listener);
+    }
+
+    /**
+     * @see org.apache.cocoon.components.fam.Monitor#subscribe(java.io.File, org.apache.cocoon.components.fam.MonitorListener, long)
+     */
+    public void subscribe(File file, MonitorListener listener, long lastModified) {
+        final Entry entry = addListener(file, listener);
+        // Compare after adding the listener: a change found by a concurrent
+        // check either is in the state read here or is reported to the listener
+        if (entry.lastModified != lastModified) {
+            if (getLogger().isDebugEnabled()) {
+                getLogger().debug("File changed before subscription: " + entry.file);
+            }
+            fireChanged(entry, listener);
+        }
+    }
+
+    private synchronized Entry addListener(File file, MonitorListener listener) {
+        final File key = file.getAbsoluteFile();
+        Entry entry = (Entry) this.entries.get(key);
+        if (entry == null) {
+            entry = new Entry(key);
+            this.entries.put(key, entry);
+        }
+        entry.listeners.addIfAbsent(listener);
+        return entry;
+    }
+
+    /**
+     * @see org.apache.cocoon.components.fam.Monitor#unsubscribe(java.io.File, org.apache.cocoon.components.fam.MonitorListener)
+     */
+    public synchronized void unsubscribe(File file, MonitorListener listener) {
+        final File key = file.getAbsoluteFile();
+        final Entry entry = (Entry) this.entries.get(key);
+        if (entry != null) {
+            entry.listeners.remove(listener);
+            if (entry.listeners.isEmpty()) {
+                this.entries.remove(key);
+            }
+        }
+    }
+
+    /**
+     * @return the number of monitored files
+     */
+    public int getMonitoredFileCount() {
+        return this.entries.size();
+    }
+
+    /**
+     * @see java.lang.Runnable#run()
+     */
+    public void run() {
+        while (this.running) {
+            try {
+                Thread.sleep(this.interval);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            try {
+                check();
+            } catch (Throwable t) {
+                getLogger().error("Unable to check monitored files.", t);
+            }
+        }
+    }
+
+    /**
+     * Check all monitored files once and notify the listeners of the
+     * changed files.
+     */
+    public void check() {
+        final Iterator i = this.entries.values().iterator();
+        while (i.hasNext()) {
+            final Entry entry = (Entry) i.next();
+            if (entry.hasChanged()) {
+                if (getLogger().isDebugEnabled()) {
+                    getLogger().debug("File changed: " + entry.file);
+                }
+                final Iterator listeners = entry.listeners.iterator();
+                while (listeners.hasNext()) {
+                    fireChanged(entry, (MonitorListener) listeners.next());
+                }
+            }
+        }
+    }
+
+    private void fireChanged(Entry entry, MonitorListener listener) {
+        try {
+            listener.fileChanged(entry.file);
+        } catch (RuntimeException e) {
+            getLogger().warn("Listener failed for changed file " + entry.file, e);
+        }
+    }
+
+    /**
+     * A monitored file with the state of the last check. The state is
+     * only changed by the thread checking the files.
+     */
+    private static final class Entry {
+        final File file;
+        final CopyOnWriteArrayList listeners = new CopyOnWriteArrayList();
+        volatile long lastModified;
+        private volatile long length;
+
+        Entry(File file) {
+            this.file = file;
+            this.lastModified = file.lastModified();
+            this.length = file.length();
+        }
+
+        boolean hasChanged() {
+            // lastModified() returns 0 for a file which does not exist
+            final long newLastModified = this.file.lastModified();
+            final long newLength = this.file.length();
+            if (newLastModified == this.lastModified && newLength == this.length) {
+                return false;
+            }
+            this.lastModified = newLastModified;
+            this.length = newLength;
+            return true;
+        }
+    }
 }
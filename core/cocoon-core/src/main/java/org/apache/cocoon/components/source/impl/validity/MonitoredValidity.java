@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.source.impl.validity;
+
+import java.io.File;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+import org.apache.cocoon.components.fam.Monitor;
+import org.apache.cocoon.components.fam.MonitorListener;
+import org.apache.excalibur.source.SourceValidity;
+
+/**
+ * Validity of a file watched by the {@link Monitor}.
+ *
+ * <p>
+ * This is wrapper validity which is valid without accessing the file
+ * system until the monitor reports a change of the file. After that, or
+ * after the validity has been serialized, the wrapped validity is checked.
+ *
+ * <p>
+ * The monitor only holds a weak reference to the validity: validities which
+ * are no longer used, for example because the object they belong to has been
+ * evicted from a cache, are unsubscribed from the monitor the next time a
+ * validity is created, or when their file changes.
+ *
+ * @since 2.2
+ * @version $Id$
+ */
+public class MonitoredValidity implements SourceValidity {
+
+    /** The subscriptions of the validities which have been collected */
+    private static final ReferenceQueue UNUSED = new ReferenceQueue();
+
+    private final File file;
+
+    private final SourceValidity delegate;
+
+    private transient Subscription subscription;
+
+    private transient volatile boolean changed;
+
+
+    /**
+     * @param monitor      the monitor watching the file
+     * @param file         the file
+     * @param lastModified the modification date of the file when the object
+     *                     this validity belongs to was built from it; a
+     *                     change since then is reported right away
+     * @param validity     the validity of the file checked after a change
+     */
+    public MonitoredValidity(Monitor monitor, File file, long lastModified, SourceValidity validity) {
+        this.file = file;
+        this.delegate = validity;
+        expungeUnusedSubscriptions();
+        this.subscription = new Subscription(this, monitor, file);
+        monitor.subscribe(file, this.subscription, lastModified);
+    }
+
+    public int isValid() {
+        if (!this.changed && this.subscription != null) {
+            // No change has been reported - source is valid.
+            return SourceValidity.VALID;
+        }
+        return this.delegate.isValid();
+    }
+
+    public int isValid(SourceValidity newValidity) {
+        // Always delegate
+        return this.delegate.isValid(newValidity);
+    }
+
+    /**
+     * Stop monitoring the file, the wrapped validity is checked from now on.
+     */
+    public synchronized void dispose() {
+        if (this.subscription != null) {
+            this.changed = true;
+            this.subscription.cancel();
+            this.subscription = null;
+        }
+    }
+
+    private static void expungeUnusedSubscriptions() {
+        Subscription unused;
+        while ((unused = (Subscription) UNUSED.poll()) != null) {
+            unused.cancel();
+        }
+    }
+
+    /**
+     * The listener subscribed to the monitor, weakly referencing the validity.
+     */
+    private static final class Subscription extends WeakReference implements MonitorListener {
+        private final File file;
+        private Monitor monitor;
+
+        Subscription(MonitoredValidity validity, Monitor monitor, File file) {
+            super(validity, UNUSED);
+            this.monitor = monitor;
+            this.file = file;
+        }
+
+        public void fileChanged(File changedFile) {
+            final MonitoredValidity validity = (MonitoredValidity) get();
+            if (validity != null) {
+                validity.dispose();
+            } else {
+                cancel();
+            }
+        }
+
+        synchronized void cancel() {
+            if (this.monitor != null) {
+                this.monitor.unsubscribe(this.file, this);
+                this.monitor = null;
+            }
+        }
+    }
+}
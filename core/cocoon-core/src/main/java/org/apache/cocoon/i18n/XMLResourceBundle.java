@@ -26,12 +26,15 @@ import org.apache.excalibur.source.Source;
 import org.apache.excalibur.source.SourceNotFoundException;
 import org.apache.excalibur.source.SourceResolver;
 import org.apache.excalibur.source.SourceValidity;
+import org.apache.excalibur.source.impl.FileSource;
 import org.apache.excalibur.source.impl.validity.ExpiresValidity;
 
 import org.apache.cocoon.CascadingIOException;
 import org.apache.cocoon.ResourceNotFoundException;
+import org.apache.cocoon.components.fam.Monitor;
 import org.apache.cocoon.components.source.SourceUtil;
 import org.apache.cocoon.components.source.impl.validity.DelayedValidity;
+import org.apache.cocoon.components.source.impl.validity.MonitoredValidity;
 import org.apache.cocoon.util.AbstractLogEnabled;
 import org.apache.cocoon.xml.ParamSaxBuffer;
 
@@ -61,6 +64,9 @@ import org.xml.sax.SAXException;
  *
  * <p>
  * If value for a key is not present in this bundle, parent bundle will be queried.
+ * The values of this bundle and all its parent bundles are merged into one map
+ * when the first key is looked up after (re)loading, so a lookup doesn't walk
+ * the parent bundles key by key.
  *
  * @version $Id$
  */
@@ -105,7 +111,12 @@ public class XMLResourceBundle extends AbstractLogEnabled
     /**
      * Objects stored in the bundle
      */
-    protected Map values;
+    protected volatile Map values;
+
+    /**
+     * Objects stored in the bundle and its parents
+     */
+    private volatile MergedValues merged;
 
 
     /**
@@ -254,6 +265,16 @@ public class XMLResourceBundle extends AbstractLogEnabled
      * @return true if reloaded successfully
      */
     protected boolean reload(SourceResolver resolver, long interval) {
+        return reload(resolver, interval, null);
+    }
+
+    /**
+     * (Re)Loads the XML bundle if necessary, based on the source URI.
+     * If a monitor is given, a bundle loaded from a file is only checked
+     * again after the monitor reported a change of the file.
+     * @return true if reloaded successfully
+     */
+    protected boolean reload(SourceResolver resolver, long interval, Monitor monitor) {
         Source newSource = null;
         Map newValues;
 
@@ -263,13 +284,19 @@ public class XMLResourceBundle extends AbstractLogEnabled
                 // Saved validity is not valid, get new source and validity
                 newSource = resolver.resolveURI(this.sourceURI);
                 SourceValidity newValidity = newSource.getValidity();
+                // changes made while the bundle is parsed are reported by the monitor
+                final long lastModified = newSource.getLastModified();
 
                 if (valid == SourceValidity.INVALID || this.validity.isValid(newValidity) != SourceValidity.VALID) {
                     newValues = new HashMap();
                     SourceUtil.toSAX(newSource, new SAXContentHandler(newValues));
                     synchronized (this) {
                         // Update source validity and values
-                        if (interval > 0 && newValidity != null) {
+                        disposeValidity();
+                        if (monitor != null && newValidity != null && newSource instanceof FileSource) {
+                            this.validity = new MonitoredValidity(monitor, ((FileSource) newSource).getFile(),
+                                                                  lastModified, newValidity);
+                        } else if (interval > 0 && newValidity != null) {
                             this.validity = new DelayedValidity(interval, newValidity);
                         } else {
                             this.validity = newValidity;
@@ -326,6 +353,7 @@ public class XMLResourceBundle extends AbstractLogEnabled
 
         synchronized (this) {
             // Use expires validity to delay next reloading.
+            disposeValidity();
             if (interval > 0) {
                 this.validity = new ExpiresValidity(interval);
             } else {
@@ -338,6 +366,15 @@ public class XMLResourceBundle extends AbstractLogEnabled
         return false;
     }
 
+    /**
+     * Stop watching the source of the bundle, if it is watched by a monitor.
+     */
+    protected synchronized void disposeValidity() {
+        if (this.validity instanceof MonitoredValidity) {
+            ((MonitoredValidity) this.validity).dispose();
+        }
+    }
+
     /**
      * Gets the locale of the bundle.
      *
@@ -365,8 +402,35 @@ public class XMLResourceBundle extends AbstractLogEnabled
         return this.validity;
     }
 
+    /**
+     * Gets the values of this bundle merged with the values of the parent
+     * bundles. The merged map is created again if this bundle or a parent
+     * bundle has been reloaded.
+     *
+     * @return the merged values, or the values of this bundle if the parent
+     *         isn't an <code>XMLResourceBundle</code>
+     */
+    protected Map getMergedValues() {
+        final Map values = this.values;
+        final Map parentValues = this.parent instanceof XMLResourceBundle ?
+                ((XMLResourceBundle) this.parent).getMergedValues() : null;
+
+        MergedValues merged = this.merged;
+        if (merged == null || merged.values != values || merged.parentValues != parentValues) {
+            Map all = values;
+            if (parentValues != null && !parentValues.isEmpty()) {
+                all = new HashMap(parentValues);
+                all.putAll(values);
+            }
+            merged = new MergedValues(values, parentValues, all);
+            this.merged = merged;
+        }
+        return merged.all;
+    }
+
     /**
      * Get an instance of the {@link ParamSaxBuffer} associated with the key.
+     * The returned buffer is shared and must not be changed.
      *
      * @param key the key
      * @return the value, or null if no value associated with the key.
@@ -376,12 +440,12 @@ public class XMLResourceBundle extends AbstractLogEnabled
             return null;
         }
 
-        Object value = this.values.get(key);
+        Object value = getMergedValues().get(key);
         if (value != null) {
             return value;
         }
 
-        if (this.parent != null) {
+        if (this.parent != null && !(this.parent instanceof XMLResourceBundle)) {
             return this.parent.getObject(key);
         }
 
@@ -399,15 +463,30 @@ public class XMLResourceBundle extends AbstractLogEnabled
             return null;
         }
 
-        Object value = this.values.get(key);
+        Object value = getMergedValues().get(key);
         if (value != null) {
             return value.toString();
         }
 
-        if (this.parent != null) {
+        if (this.parent != null && !(this.parent instanceof XMLResourceBundle)) {
             return this.parent.getString(key);
         }
 
         return null;
     }
+
+    /**
+     * The merged values and the maps they have been created from.
+     */
+    private static final class MergedValues {
+        final Map values;
+        final Map parentValues;
+        final Map all;
+
+        MergedValues(Map values, Map parentValues, Map all) {
+            this.values = values;
+            this.parentValues = parentValues;
+            this.all = all;
+        }
+    }
 }
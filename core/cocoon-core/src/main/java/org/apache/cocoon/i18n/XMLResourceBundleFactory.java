@@ -18,9 +18,12 @@ package org.apache.cocoon.i18n;
 
 import java.io.IOException;
 import java.util.Collections;
+import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.avalon.framework.activity.Disposable;
 import org.apache.avalon.framework.configuration.Configurable;
@@ -36,6 +39,7 @@ import org.apache.excalibur.source.SourceNotFoundException;
 import org.apache.excalibur.source.SourceResolver;
 import org.apache.excalibur.store.Store;
 
+import org.apache.cocoon.components.fam.Monitor;
 import org.apache.cocoon.util.AbstractLogEnabled;
 import org.apache.cocoon.util.NetUtils;
 
@@ -43,12 +47,21 @@ import org.apache.cocoon.util.NetUtils;
  * This is the XMLResourceBundleFactory, the method for getting and creating
  * XMLResourceBundles.
  *
+ * <p>Cached bundles are selected without locking. A missing bundle is
+ * created while holding a lock for its cache key only, so loading a bundle
+ * doesn't block requests for other bundles.</p>
+ *
  * @version $Id$
  */
 public class XMLResourceBundleFactory extends AbstractLogEnabled
                                       implements BundleFactory, Serviceable, Configurable,
                                                  Disposable, ThreadSafe {
 
+    /**
+     * Prefix of the cache keys of the bundles
+     */
+    private static final String CACHE_PREFIX = "XRB";
+
     /**
      * Root directory to all bundle names
      */
@@ -58,7 +71,8 @@ public class XMLResourceBundleFactory extends AbstractLogEnabled
      * Reload check interval in milliseconds.
      * Defaults to 60000 (1 minute), use <code>-1</code> to
      * disable reloads and <code>0</code> to check for modifications
-     * on each catalogue request.
+     * on each catalogue request. Bundles loaded from files are
+     * watched by the {@link Monitor} instead, if it is available.
      */
     private long interval;
 
@@ -77,6 +91,16 @@ public class XMLResourceBundleFactory extends AbstractLogEnabled
      */
     protected Store cache;
 
+    /**
+     * Monitor notifying about changed bundles, if available
+     */
+    protected Monitor monitor;
+
+    /**
+     * Locks of the bundles being created, by cache key
+     */
+    private final ConcurrentMap locks = new ConcurrentHashMap();
+
 
     //
     // Lifecycle
@@ -85,6 +109,9 @@ public class XMLResourceBundleFactory extends AbstractLogEnabled
     public void service(ServiceManager manager) throws ServiceException {
         this.manager = manager;
         this.resolver = (SourceResolver) this.manager.lookup(SourceResolver.ROLE);
+        if (this.manager.hasService(Monitor.ROLE)) {
+            this.monitor = (Monitor) this.manager.lookup(Monitor.ROLE);
+        }
     }
 
     /**
@@ -114,9 +141,23 @@ public class XMLResourceBundleFactory extends AbstractLogEnabled
      * Disposes this component.
      */
     public void dispose() {
+        if (this.monitor != null && this.cache != null) {
+            // Stop watching the cached bundles with the released monitor
+            for (Enumeration i = this.cache.keys(); i.hasMoreElements();) {
+                final Object key = i.nextElement();
+                if (key instanceof String && ((String) key).startsWith(CACHE_PREFIX)) {
+                    final Object bundle = this.cache.get(key);
+                    if (bundle instanceof XMLResourceBundle) {
+                        ((XMLResourceBundle) bundle).disposeValidity();
+                    }
+                }
+            }
+        }
         this.manager.release(this.resolver);
         this.manager.release(this.cache);
+        this.manager.release(this.monitor);
         this.resolver = null;
+        this.monitor = null;
         this.cache = null;
         this.manager = null;
     }
@@ -231,31 +272,41 @@ public class XMLResourceBundleFactory extends AbstractLogEnabled
                               ", directory: " + directories[index]);
         }
 
-        final String cacheKey = "XRB" + getCacheKey(directories, index, name, locale);
+        final String cacheKey = CACHE_PREFIX + getCacheKey(directories, index, name, locale);
 
         XMLResourceBundle bundle = selectCached(cacheKey);
         if (bundle == null) {
-            synchronized (this) {
-                bundle = selectCached(cacheKey);
-                if (bundle == null) {
-                    boolean localeAvailable = (locale != null && !locale.getLanguage().equals(""));
-                    index++;
-
-                    // Find parent bundle first
-                    XMLResourceBundle parent = null;
-                    if (localeAvailable && index == directories.length) {
-                        // all directories have been searched with this locale,
-                        // now start again with the first directory and the parent locale
-                        parent = _select(directories, 0, name, getParentLocale(locale));
-                    } else if (index < directories.length) {
-                        // there are directories left to search for with this locale
-                        parent = _select(directories, index, name, locale);
+            // parent bundles are locked after their children only, so
+            // there can't be a deadlock
+            final Object lock = new Object();
+            final Object oldLock = this.locks.putIfAbsent(cacheKey, lock);
+            synchronized (oldLock != null ? oldLock : lock) {
+                try {
+                    bundle = selectCached(cacheKey);
+                    if (bundle == null) {
+                        boolean localeAvailable = (locale != null && !locale.getLanguage().equals(""));
+                        index++;
+
+                        // Find parent bundle first
+                        XMLResourceBundle parent = null;
+                        if (localeAvailable && index == directories.length) {
+                            // all directories have been searched with this locale,
+                            // now start again with the first directory and the parent locale
+                            parent = _select(directories, 0, name, getParentLocale(locale));
+                        } else if (index < directories.length) {
+                            // there are directories left to search for with this locale
+                            parent = _select(directories, index, name, locale);
+                        }
+
+                        // Create this bundle (if source exists) and pass parent to it.
+                        final String sourceURI = getSourceURI(directories[index - 1], name, locale);
+                        bundle = _create(sourceURI, locale, parent);
+                        updateCache(cacheKey, bundle);
+                    }
+                } finally {
+                    if (oldLock == null) {
+                        this.locks.remove(cacheKey);
                     }
-
-                    // Create this bundle (if source exists) and pass parent to it.
-                    final String sourceURI = getSourceURI(directories[index - 1], name, locale);
-                    bundle = _create(sourceURI, locale, parent);
-                    updateCache(cacheKey, bundle);
                 }
             }
         }
@@ -281,7 +332,7 @@ public class XMLResourceBundleFactory extends AbstractLogEnabled
         }
 
         XMLResourceBundle bundle = new XMLResourceBundle(sourceURI, locale, parent);
-        bundle.reload(this.resolver, this.interval);
+        bundle.reload(this.resolver, this.interval, getMonitor());
         return bundle;
     }
 
@@ -394,6 +445,14 @@ public class XMLResourceBundleFactory extends AbstractLogEnabled
         return uri;
     }
 
+    /**
+     * @return the monitor to watch the bundles with, or <code>null</code>
+     *         if reloading is disabled
+     */
+    private Monitor getMonitor() {
+        return this.interval == -1 ? null : this.monitor;
+    }
+
     /**
      * Selects a bundle from the cache, and reloads it if needed.
      *
@@ -406,7 +465,7 @@ public class XMLResourceBundleFactory extends AbstractLogEnabled
         if (bundle != null && this.interval != -1) {
             // Reload this bundle and all parent bundles, as necessary
             for (XMLResourceBundle b = bundle; b != null; b = (XMLResourceBundle) b.parent) {
-                b.reload(this.resolver, this.interval);
+                b.reload(this.resolver, this.interval, getMonitor());
             }
         }
 
@@ -103,6 +103,13 @@ import org.xml.sax.helpers.AttributesImpl;
  * With the optional parameter <code>parallel</code> the various
  * included contents are processed (included) in parallel rather than
  * in a series.
+ * Identical URIs are then loaded only once. The time to wait for the
+ * included contents can be limited with the parameters
+ * <code>include-timeout</code> (for each content, counted from the start
+ * of its loading) and <code>page-timeout</code> (for all contents, counted
+ * from the start of the transformation), both in milliseconds. If loading
+ * times out, the expired content from the cache is used if there is one,
+ * otherwise processing fails.
  * With the optional parameter <code>preemptive</code> set to <code>true</code>
  * a pre-emptive caching is activated. When a resource is requested with
  * pre-emptive caching, this transformer always attempts to get the
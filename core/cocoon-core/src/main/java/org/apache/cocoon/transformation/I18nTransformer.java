@@ -47,6 +47,7 @@ import java.io.IOException;
 import java.text.DateFormat;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
+import java.text.Format;
 import java.text.NumberFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -754,6 +755,9 @@ public class I18nTransformer extends AbstractTransformer
     // Date pattern types map: short, medium, long, full
     private static final Map datePatterns;
 
+    // Maximum number of formats kept by a transformer
+    private static final int MAX_CACHED_FORMATS = 64;
+
     static {
         // initialize date types set
         HashSet set = new HashSet(5);
@@ -883,6 +887,9 @@ public class I18nTransformer extends AbstractTransformer
     // Translated text. Inside i18n:translate, collects character events.
     private ParamSaxBuffer tr_text_recorder;
 
+    // Whether tr_text_recorder is a message of a catalogue, which must not be changed
+    private boolean tr_text_shared;
+
     // Current "i18n:text" events
     private ParamSaxBuffer text_recorder;
 
@@ -898,6 +905,10 @@ public class I18nTransformer extends AbstractTransformer
     // i18n:param's hashmap for substitution
     private HashMap indexedParams;
 
+    // Date and number formats by kind, locale and pattern. A transformer is
+    // used by one thread at a time, so they can be reused across requests.
+    private final Map formats = new HashMap();
+
     // Current parameter value (translated or not)
     private String param_value;
 
@@ -1256,6 +1267,7 @@ public class I18nTransformer extends AbstractTransformer
 
             if (currentKey != null) {
                 tr_text_recorder = getMessage(currentKey, (ParamSaxBuffer)null);
+                tr_text_shared = true;
             }
 
         } else if (I18N_TRANSLATE_ELEMENT.equals(name)) {
@@ -1517,7 +1529,11 @@ public class I18nTransformer extends AbstractTransformer
             case STATE_INSIDE_TRANSLATE:
                 if (tr_text_recorder == null) {
                     tr_text_recorder = new ParamSaxBuffer();
+                } else if (tr_text_shared) {
+                    // Copy the message before adding to it
+                    tr_text_recorder = new ParamSaxBuffer(tr_text_recorder);
                 }
+                tr_text_shared = false;
                 buffer = tr_text_recorder;
                 break;
 
@@ -1730,6 +1746,9 @@ public class I18nTransformer extends AbstractTransformer
                         if (tr_text_recorder == text_recorder) {
                             // If the default value was returned, make a copy
                             tr_text_recorder = new ParamSaxBuffer(text_recorder);
+                            tr_text_shared = false;
+                        } else {
+                            tr_text_shared = true;
                         }
                     }
                 }
@@ -1903,46 +1922,24 @@ public class I18nTransformer extends AbstractTransformer
         String paramType = (String)formattingParams.get(I18N_TYPE_ATTRIBUTE);
 
         // Initializing date formatters
+        String kind;
         if (current_state == STATE_INSIDE_DATE ||
                 I18N_DATE_ELEMENT.equals(paramType)) {
-
-            to_fmt = (SimpleDateFormat)DateFormat.getDateInstance(style, loc);
-            from_fmt = (SimpleDateFormat)DateFormat.getDateInstance(
-                    srcStyle,
-                    srcLoc
-            );
+            kind = I18N_DATE_ELEMENT;
         } else if (current_state == STATE_INSIDE_DATE_TIME ||
                 I18N_DATE_TIME_ELEMENT.equals(paramType)) {
-            to_fmt = (SimpleDateFormat)DateFormat.getDateTimeInstance(
-                    style,
-                    style,
-                    loc
-            );
-            from_fmt = (SimpleDateFormat)DateFormat.getDateTimeInstance(
-                    srcStyle,
-                    srcStyle,
-                    srcLoc
-            );
+            kind = I18N_DATE_TIME_ELEMENT;
         } else {
             // STATE_INSIDE_TIME or param type='time'
-            to_fmt = (SimpleDateFormat)DateFormat.getTimeInstance(style, loc);
-            from_fmt = (SimpleDateFormat)DateFormat.getTimeInstance(
-                    srcStyle,
-                    srcLoc
-            );
+            kind = I18N_TIME_ELEMENT;
         }
 
-        // parsed date object
-        Date dateValue;
-
         // pattern overwrites locale format
-        if (realSrcPattern) {
-            from_fmt.applyPattern(srcPattern);
-        }
+        to_fmt = getDateFormat(kind, style, loc, realPattern ? pattern : null);
+        from_fmt = getDateFormat(kind, srcStyle, srcLoc, realSrcPattern ? srcPattern : null);
 
-        if (realPattern) {
-            to_fmt.applyPattern(pattern);
-        }
+        // parsed date object
+        Date dateValue;
 
         // get current date and time by default
         if (value == null) {
@@ -2029,105 +2026,163 @@ public class I18nTransformer extends AbstractTransformer
             loc = currencyLoc;
         }
 
-        // src format
-        DecimalFormat from_fmt = (DecimalFormat)NumberFormat.getInstance(srcLoc);
+        // src format, src-pattern overwrites locale format
+        DecimalFormat from_fmt = getNumberFormat(null, srcLoc, null, -1, srcPattern);
         int int_currency = 0;
 
-        // src-pattern overwrites locale format
-        if (srcPattern != null) {
-            from_fmt.applyPattern(srcPattern);
-        }
-
         // to format
-        DecimalFormat to_fmt;
+        DecimalFormat to_fmt = getNumberFormat(type, loc, dgLoc, fractionDigits, pattern);
         char dec = from_fmt.getDecimalFormatSymbols().getDecimalSeparator();
         int decAt = 0;
         boolean appendDec = false;
 
         if (type == null || type.equals( I18N_NUMBER_ELEMENT )) {
-            to_fmt = (DecimalFormat)NumberFormat.getInstance(loc);
-            to_fmt.setMaximumFractionDigits(309);
-            for (int i = value.length() - 1;
-                 i >= 0 && value.charAt(i) != dec; i--, decAt++) {
-            }
+            // fraction digits and pattern overwrite the digits of the value
+            if (pattern == null) {
+                to_fmt = (DecimalFormat) to_fmt.clone();
+                if (fractionDigits < 0) {
+                    to_fmt.setMaximumFractionDigits(309);
+                    for (int i = value.length() - 1;
+                         i >= 0 && value.charAt(i) != dec; i--, decAt++) {
+                    }
 
-            if (decAt < value.length())to_fmt.setMinimumFractionDigits(decAt);
-            decAt = 0;
-            for (int i = 0; i < value.length() && value.charAt(i) != dec; i++) {
-                if (Character.isDigit(value.charAt(i))) {
-                    decAt++;
+                    if (decAt < value.length())to_fmt.setMinimumFractionDigits(decAt);
+                }
+                decAt = 0;
+                for (int i = 0; i < value.length() && value.charAt(i) != dec; i++) {
+                    if (Character.isDigit(value.charAt(i))) {
+                        decAt++;
+                    }
                 }
-            }
 
-            to_fmt.setMinimumIntegerDigits(decAt);
+                to_fmt.setMinimumIntegerDigits(decAt);
+            }
             if (value.charAt(value.length() - 1) == dec) {
                 appendDec = true;
             }
-        } else if (type.equals( I18N_CURRENCY_ELEMENT )) {
-            to_fmt = (DecimalFormat)NumberFormat.getCurrencyInstance(loc);
-        } else if (type.equals( I18N_INT_CURRENCY_ELEMENT )) {
-            to_fmt = (DecimalFormat)NumberFormat.getCurrencyInstance(loc);
+        } else if (type.equals( I18N_INT_CURRENCY_ELEMENT ) ||
+                   type.equals( I18N_INT_CURRENCY_NO_UNIT_ELEMENT )) {
+            DecimalFormat tmp = getNumberFormat(I18N_CURRENCY_ELEMENT, loc, null, -1, null);
             int_currency = 1;
-            for (int i = 0; i < to_fmt.getMaximumFractionDigits(); i++) {
+            for (int i = 0; i < tmp.getMaximumFractionDigits(); i++) {
                 int_currency *= 10;
             }
-        } else if ( type.equals( I18N_CURRENCY_NO_UNIT_ELEMENT ) ) {
-            DecimalFormat tmp = (DecimalFormat) NumberFormat.getCurrencyInstance( loc );
-            to_fmt = (DecimalFormat) NumberFormat.getInstance( loc );
-            to_fmt.setMinimumFractionDigits(tmp.getMinimumFractionDigits());
-            to_fmt.setMaximumFractionDigits(tmp.getMaximumFractionDigits());
-        } else if ( type.equals( I18N_INT_CURRENCY_NO_UNIT_ELEMENT ) ) {
-            DecimalFormat tmp = (DecimalFormat) NumberFormat.getCurrencyInstance( loc );
-            int_currency = 1;
-            for ( int i = 0; i < tmp.getMaximumFractionDigits(); i++ )
-                int_currency *= 10;
-            to_fmt = (DecimalFormat) NumberFormat.getInstance( loc );
-            to_fmt.setMinimumFractionDigits(tmp.getMinimumFractionDigits());
-            to_fmt.setMaximumFractionDigits(tmp.getMaximumFractionDigits());
+        }
+
+        try {
+            numberValue = from_fmt.parse(value);
+            if (int_currency > 0) {
+                numberValue = new Double(numberValue.doubleValue() / int_currency);
+            } else {
+                // what?
+            }
+        } catch (ParseException pe) {
+            throw new SAXException(this.getClass().getName() + "i18n:number - parsing error.", pe);
+        }
+
+        // we have all necessary data here: do formatting.
+        String result = to_fmt.format(numberValue);
+        if (appendDec) result = result + dec;
+        if (getLogger().isDebugEnabled()) {
+            getLogger().debug("i18n:number result: " + result);
+        }
+        return result;
+    }
+
+    /**
+     * Gets a date format from the formats of this transformer, or creates it.
+     * The returned format must not be changed.
+     *
+     * @param kind    date, date-time or time
+     * @param style   the style of the format
+     * @param loc     the locale of the format
+     * @param pattern the pattern overwriting the locale format, or null
+     */
+    private SimpleDateFormat getDateFormat(String kind, int style, Locale loc, String pattern) {
+        final String key = kind + ' ' + style + ' ' + loc + ' ' + pattern;
+        SimpleDateFormat fmt = (SimpleDateFormat) formats.get(key);
+        if (fmt == null) {
+            if (I18N_DATE_ELEMENT.equals(kind)) {
+                fmt = (SimpleDateFormat)DateFormat.getDateInstance(style, loc);
+            } else if (I18N_DATE_TIME_ELEMENT.equals(kind)) {
+                fmt = (SimpleDateFormat)DateFormat.getDateTimeInstance(style, style, loc);
+            } else {
+                fmt = (SimpleDateFormat)DateFormat.getTimeInstance(style, loc);
+            }
+            if (pattern != null) {
+                fmt.applyPattern(pattern);
+            }
+            cacheFormat(key, fmt);
+        }
+        return fmt;
+    }
+
+    /**
+     * Gets a number format from the formats of this transformer, or creates it.
+     * The returned format must not be changed.
+     *
+     * @param type           the number type, null for a plain number
+     * @param loc            the locale of the format
+     * @param dgLoc          the locale of the decimal and grouping separators, or null
+     * @param fractionDigits the fraction digits, or -1
+     * @param pattern        the pattern overwriting the locale format, or null
+     */
+    private DecimalFormat getNumberFormat(String type, Locale loc, Locale dgLoc,
+                                          int fractionDigits, String pattern)
+    throws SAXException {
+        final String key = type + ' ' + loc + ' ' + dgLoc + ' ' + fractionDigits + ' ' + pattern;
+        DecimalFormat fmt = (DecimalFormat) formats.get(key);
+        if (fmt != null) {
+            return fmt;
+        }
+
+        if (type == null || type.equals( I18N_NUMBER_ELEMENT )) {
+            fmt = (DecimalFormat)NumberFormat.getInstance(loc);
+        } else if (type.equals( I18N_CURRENCY_ELEMENT ) ||
+                   type.equals( I18N_INT_CURRENCY_ELEMENT )) {
+            fmt = (DecimalFormat)NumberFormat.getCurrencyInstance(loc);
+        } else if ( type.equals( I18N_CURRENCY_NO_UNIT_ELEMENT ) ||
+                    type.equals( I18N_INT_CURRENCY_NO_UNIT_ELEMENT ) ) {
+            DecimalFormat tmp = getNumberFormat(I18N_CURRENCY_ELEMENT, loc, null, -1, null);
+            fmt = (DecimalFormat) NumberFormat.getInstance( loc );
+            fmt.setMinimumFractionDigits(tmp.getMinimumFractionDigits());
+            fmt.setMaximumFractionDigits(tmp.getMaximumFractionDigits());
         } else if (type.equals( I18N_PERCENT_ELEMENT )) {
-            to_fmt = (DecimalFormat)NumberFormat.getPercentInstance(loc);
+            fmt = (DecimalFormat)NumberFormat.getPercentInstance(loc);
         } else {
             throw new SAXException("&lt;i18n:number>: unknown type: " + type);
         }
 
         if(fractionDigits > -1) {
-            to_fmt.setMinimumFractionDigits(fractionDigits);
-            to_fmt.setMaximumFractionDigits(fractionDigits);
+            fmt.setMinimumFractionDigits(fractionDigits);
+            fmt.setMaximumFractionDigits(fractionDigits);
         }
 
         if(dgLoc != null) {
-            DecimalFormat df = (DecimalFormat)NumberFormat.getCurrencyInstance(dgLoc);
+            DecimalFormat df = getNumberFormat(I18N_CURRENCY_ELEMENT, dgLoc, null, -1, null);
             DecimalFormatSymbols dfsNew = df.getDecimalFormatSymbols();
-            DecimalFormatSymbols dfsOrig = to_fmt.getDecimalFormatSymbols();
+            DecimalFormatSymbols dfsOrig = fmt.getDecimalFormatSymbols();
             dfsOrig.setDecimalSeparator(dfsNew.getDecimalSeparator());
             dfsOrig.setMonetaryDecimalSeparator(dfsNew.getMonetaryDecimalSeparator());
             dfsOrig.setGroupingSeparator(dfsNew.getGroupingSeparator());
-            to_fmt.setDecimalFormatSymbols(dfsOrig);
+            fmt.setDecimalFormatSymbols(dfsOrig);
         }
 
         // pattern overwrites locale format
         if (pattern != null) {
-            to_fmt.applyPattern(pattern);
+            fmt.applyPattern(pattern);
         }
 
-        try {
-            numberValue = from_fmt.parse(value);
-            if (int_currency > 0) {
-                numberValue = new Double(numberValue.doubleValue() / int_currency);
-            } else {
-                // what?
-            }
-        } catch (ParseException pe) {
-            throw new SAXException(this.getClass().getName() + "i18n:number - parsing error.", pe);
-        }
+        cacheFormat(key, fmt);
+        return fmt;
+    }
 
-        // we have all necessary data here: do formatting.
-        String result = to_fmt.format(numberValue);
-        if (appendDec) result = result + dec;
-        if (getLogger().isDebugEnabled()) {
-            getLogger().debug("i18n:number result: " + result);
+    private void cacheFormat(String key, Format format) {
+        // patterns may come from the document, so don't keep too many
+        if (formats.size() >= MAX_CACHED_FORMATS) {
+            formats.clear();
         }
-        return result;
+        formats.put(key, format);
     }
 
     //-- Dictionary handling routines
@@ -2176,15 +2231,16 @@ public class I18nTransformer extends AbstractTransformer
      * A default value is returned if message is not found.
      *
      * @return SaxBuffer containing message, or defaultValue if not found.
+     *         A message is shared by all transformers and must not be changed.
      */
     private ParamSaxBuffer getMessage(String key, ParamSaxBuffer defaultValue) {
-        SaxBuffer value = getMessage(currentCatalogueId, key);
+        ParamSaxBuffer value = getMessage(currentCatalogueId, key);
         if (value == null) {
         	getLogger().debug("Untranslated key: '" + key + "'");
             return defaultValue;
         }
 
-        return new ParamSaxBuffer(value);
+        return value;
     }
 
     public void recycle() {
@@ -23,7 +23,6 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Stack;
 
-import org.apache.avalon.framework.CascadingRuntimeException;
 import org.apache.avalon.framework.configuration.Configurable;
 import org.apache.avalon.framework.configuration.Configuration;
 import org.apache.avalon.framework.configuration.ConfigurationException;
@@ -33,6 +32,7 @@ import org.apache.avalon.framework.service.ServiceManager;
 import org.apache.avalon.framework.service.Serviceable;
 import org.apache.excalibur.source.Source;
 import org.apache.excalibur.source.SourceValidity;
+import org.apache.excalibur.xml.sax.XMLizable;
 import org.springframework.web.context.request.RequestAttributes;
 import org.springframework.web.context.request.RequestContextHolder;
 
@@ -45,9 +45,12 @@ import org.apache.cocoon.environment.Environment;
 import org.apache.cocoon.environment.SourceResolver;
 import org.apache.cocoon.environment.internal.EnvironmentHelper;
 import org.apache.cocoon.thread.RunnableManager;
+import org.apache.cocoon.transformation.helpers.IncludeExecutor;
 import org.apache.cocoon.transformation.helpers.NOPRecorder;
 import org.apache.cocoon.util.NetUtils;
 import org.apache.cocoon.xml.AbstractXMLPipe;
+import org.apache.cocoon.xml.CompactSaxBuffer;
+import org.apache.cocoon.xml.DefaultLexicalHandler;
 import org.apache.cocoon.xml.IncludeXMLConsumer;
 import org.apache.cocoon.xml.SaxBuffer;
 import org.apache.cocoon.xml.XMLConsumer;
@@ -151,6 +154,21 @@ import org.xml.sax.ext.LexicalHandler;
  * </pre>
  * <p>By default, parallel processing is turned off.</p>
  *
+ * <p>Identical includes of a page are loaded only once when processing in parallel.
+ * The time to wait for the included content can be limited per include and per
+ * page with the <code>include-timeout</code> and <code>page-timeout</code>
+ * parameters (in milliseconds, 0 for no limit), set in the transformer definition
+ * or in the pipeline. The include timeout is counted from the start of the include,
+ * the page timeout from the setup of the transformer. The fallback content is used
+ * for an include which is not loaded in time and the page is not cached. The
+ * timeouts also limit the wait for the remaining includes at the end of the
+ * request: includes still loading then are interrupted, and the request waits
+ * for them to stop, as they use its environment.</p>
+ * <pre>
+ *   &lt;map:parameter name="include-timeout" value="2000"/&gt;
+ *   &lt;map:parameter name="page-timeout" value="5000"/&gt;
+ * </pre>
+ *
  *
  * <h3>Recursive Processing</h3>
  * <p>This {@link Transformer} allows recursive processing of includes.
@@ -235,6 +253,12 @@ public class IncludeTransformer extends AbstractTransformer
     /** The name of the thread pool to use (for parallel processing). */
     protected String threadPool;
 
+    /** Configuration option limiting the time to wait for an include (for parallel processing) */
+    private long defaultIncludeTimeout;
+
+    /** Configuration option limiting the time to wait for all includes (for parallel processing) */
+    private long defaultPageTimeout;
+
     /** The default value to be appended to the caching key. */
     private String defaultKey;
 
@@ -242,17 +266,11 @@ public class IncludeTransformer extends AbstractTransformer
     // Current configuration
     //
 
-    /** The {@link SourceResolver} used to resolve included URIs. */
-    protected SourceResolver resolver;
-
-    /** The {@link RequestAttributes} used within parallel threads */
-    protected RequestAttributes attributes;
-
-    /** The {@link Environment} used within parallel threads */
-    protected Environment environment;
+    /** The {@link IncludeContext} of the current request. */
+    private IncludeContext context;
 
-    /** The {@link Processor} used within parallel threads */
-    private Processor processor;
+    /** The {@link RunnableManager} used for parallel processing */
+    private RunnableManager runnableManager;
 
     /** The value to be appended to the caching key. */
     private String key;
@@ -261,9 +279,6 @@ public class IncludeTransformer extends AbstractTransformer
     // Current state
     //
 
-    /** The {@link SourceValidity} instance associated with this request. */
-    protected MultiSourceValidity validity;
-
     /** A {@link NamespacesTable} used to filter namespace declarations. */
     private NamespacesTable namespaces;
 
@@ -297,6 +312,8 @@ public class IncludeTransformer extends AbstractTransformer
         this.defaultRecursiveParallel = configuration.getChild("recursive-parallel").getValueAsBoolean(false);
         /* Read configuration node for thread pool name */
         this.threadPool = configuration.getChild("thread-pool").getValue("default");
+        this.defaultIncludeTimeout = configuration.getChild("include-timeout").getValueAsLong(0);
+        this.defaultPageTimeout = configuration.getChild("page-timeout").getValueAsLong(0);
         this.defaultKey = configuration.getChild("key").getValue(null);
     }
 
@@ -315,14 +332,21 @@ public class IncludeTransformer extends AbstractTransformer
         this.key = parameters.getParameter("key", this.defaultKey);
 
         /* Init transformer state */
+        IncludeExecutor executor = null;
         if (this.pipe.parallel) {
-            this.attributes = RequestContextHolder.getRequestAttributes();
-            this.environment = EnvironmentHelper.getCurrentEnvironment();
-            this.processor = EnvironmentHelper.getCurrentProcessor();
+            try {
+                this.runnableManager = (RunnableManager) this.manager.lookup(RunnableManager.ROLE);
+            } catch (ServiceException e) {
+                throw new ProcessingException("Unable to lookup thread pool.", e);
+            }
+            executor = new IncludeExecutor(this.runnableManager, this.threadPool,
+                                           parameters.getParameterAsLong("include-timeout", this.defaultIncludeTimeout),
+                                           parameters.getParameterAsLong("page-timeout", this.defaultPageTimeout),
+                                           getLogger());
         }
         this.namespaces = new NamespacesTable();
-        this.resolver = resolver;
-        this.validity = null;
+        this.context = new IncludeContext(resolver, executor);
+        this.pipe.context = this.context;
 
         // Set root include pipe as consumer.
         // Won't use setter methods here - they are overridden
@@ -350,18 +374,20 @@ public class IncludeTransformer extends AbstractTransformer
      */
     public void recycle() {
         this.namespaces = null;
-        this.validity = null;
 
-        /* Make sure all threads completed their work */
+        /* Wait for the threads to complete their work, as long as the
+           timeouts allow. Threads still running then are interrupted and
+           have stopped when awaitAll() returns, so none of them uses the
+           environment or the resolver of the request after it has ended. */
         this.pipe.recycle();
-
-        // Resolver can be nulled out when all threads completed processing
-        // and released their Sources.
-        this.resolver = null;
-
-        this.processor = null;
-        this.environment = null;
-        this.attributes = null;
+        if (this.context != null && this.context.executor != null) {
+            if (!this.context.executor.awaitAll() && getLogger().isInfoEnabled()) {
+                getLogger().info("Interrupted includes which were still loading.");
+            }
+            this.manager.release(this.runnableManager);
+            this.runnableManager = null;
+        }
+        this.context = null;
 
         super.recycle();
     }
@@ -388,7 +414,7 @@ public class IncludeTransformer extends AbstractTransformer
     public void endDocument()
     throws SAXException {
         /* Make sure that the validity is "closed" at the end */
-        this.validity.close();
+        this.context.validity.close();
 
         super.endDocument();
     }
@@ -464,16 +490,59 @@ public class IncludeTransformer extends AbstractTransformer
      * @see org.apache.cocoon.caching.CacheableProcessingComponent#getValidity()
      */
     public SourceValidity getValidity() {
-        if (validity == null) {
-            validity = new MultiSourceValidity(resolver, -1);
+        if (context.validity == null) {
+            context.validity = new MultiSourceValidity(context.resolver, -1);
+        }
+        return context.validity;
+    }
+
+    /**
+     * The resources of one request used to load its includes. The includes
+     * loaded in parallel refer to it rather than to the fields of this
+     * transformer; they have all stopped before it is recycled.
+     */
+    private static final class IncludeContext {
+
+        /** The {@link SourceResolver} used to resolve included URIs. */
+        final SourceResolver resolver;
+
+        /** The {@link IncludeExecutor} loading the includes in parallel, or <code>null</code> */
+        final IncludeExecutor executor;
+
+        /** The {@link RequestAttributes} used within parallel threads */
+        final RequestAttributes attributes;
+
+        /** The {@link Environment} used within parallel threads */
+        final Environment environment;
+
+        /** The {@link Processor} used within parallel threads */
+        final Processor processor;
+
+        /** The {@link SourceValidity} instance associated with this request. */
+        volatile MultiSourceValidity validity;
+
+        IncludeContext(SourceResolver resolver, IncludeExecutor executor) {
+            this.resolver = resolver;
+            this.executor = executor;
+            if (executor != null) {
+                this.attributes = RequestContextHolder.getRequestAttributes();
+                this.environment = EnvironmentHelper.getCurrentEnvironment();
+                this.processor = EnvironmentHelper.getCurrentProcessor();
+            } else {
+                this.attributes = null;
+                this.environment = null;
+                this.processor = null;
+            }
         }
-        return validity;
     }
 
     /**
      * Description of the include element
      */
     private class IncludeElement {
+        /** The context of the request including the source */
+        private final IncludeContext context;
+
         /** Parameter controlling recursive includes processing */
         private boolean recursive;
 
@@ -511,7 +580,9 @@ public class IncludeTransformer extends AbstractTransformer
         protected StringBuffer value;
 
         /** Create include element */
-        private IncludeElement(String base, boolean parallel, boolean recursive, boolean recursiveParallel) {
+        private IncludeElement(IncludeContext context, String base,
+                               boolean parallel, boolean recursive, boolean recursiveParallel) {
+            this.context = context;
             this.base = base;
             this.parallel = parallel;
             this.recursive = recursive;
@@ -536,7 +607,7 @@ public class IncludeTransformer extends AbstractTransformer
                     getLogger().info("Failed to load <" + this.source + ">, using fallback.", e);
                 }
                 // Stream fallback through IncludeXMLPipe
-                this.fallback.toSAX(new IncludeXMLPipe(buffer, buffer,
+                this.fallback.toSAX(new IncludeXMLPipe(context, buffer, buffer,
                                                        recursive, recursiveParallel && parallel, recursiveParallel));
             }
         }
@@ -546,7 +617,7 @@ public class IncludeTransformer extends AbstractTransformer
         throws SAXException {
             try {
                 if (this.fallback != null) {
-                    SaxBuffer buffer = new SaxBuffer();
+                    SaxBuffer buffer = new CompactSaxBuffer();
                     process(buffer);
                     buffer.toSAX(contentHandler);
                 } else {
@@ -554,11 +625,30 @@ public class IncludeTransformer extends AbstractTransformer
                 }
             } catch (SAXException e) {
                 // source must not be cached if an error occurs
-                validity = null;
+                context.validity = null;
                 throw e;
             }
         }
 
+        /**
+         * Stream the fallback content into the provided handlers, in place of
+         * the content of the source. Nested includes are processed inline.
+         */
+        public void processFallback(ContentHandler contentHandler, LexicalHandler lexicalHandler)
+        throws SAXException {
+            this.fallback.toSAX(new IncludeXMLPipe(context, contentHandler, lexicalHandler,
+                                                   recursive, false, recursiveParallel));
+        }
+
+        /**
+         * Identical includes have the same key, and are loaded only once
+         * when processing in parallel.
+         */
+        public String getKey() {
+            return this.base + '|' + this.source + '|' + this.parse + '|' + this.mimeType + '|' +
+                   this.stripRoot + '|' + this.recursive + '|' + this.recursiveParallel;
+        }
+
         /** Load URI into the provided handlers. */
         private void process0(ContentHandler contentHandler, LexicalHandler lexicalHandler)
         throws SAXException {
@@ -567,15 +657,15 @@ public class IncludeTransformer extends AbstractTransformer
                 getLogger().debug("Loading <" + this.source + ">");
             }
 
-            // Setup this thread's environment
+            final SourceResolver resolver = context.resolver;
             try {
                 if (base != null) {
                     source = resolver.resolveURI(this.source, base, null);
                 } else {
                     source = resolver.resolveURI(this.source);
                 }
+                final MultiSourceValidity validity = context.validity;
                 if (validity != null) {
-                    //noinspection SynchronizeOnNonFinalField
                     synchronized (validity) {
                         validity.addSource(source);
                     }
@@ -584,7 +674,7 @@ public class IncludeTransformer extends AbstractTransformer
                 // Include source
                 if (this.parse && recursive) {
                     SourceUtil.toSAX(manager, source, this.mimeType,
-                                     new IncludeXMLPipe(contentHandler, lexicalHandler,
+                                     new IncludeXMLPipe(context, contentHandler, lexicalHandler,
                                                         recursive, recursiveParallel && parallel, recursiveParallel));
                 } else if (this.parse) {
                     IncludeXMLConsumer includeXMLConsumer = new IncludeXMLConsumer(contentHandler, lexicalHandler);
@@ -638,6 +728,9 @@ public class IncludeTransformer extends AbstractTransformer
         /** Indicates whether this is root include pipe (owned by transformer) or a nested one */
         private final boolean root;
 
+        /** The context of the request, set in setup for the root pipe */
+        private IncludeContext context;
+
         /** Parameter controlling recursive includes processing */
         private boolean recursive;
 
@@ -669,13 +762,9 @@ public class IncludeTransformer extends AbstractTransformer
         /**
          * <p>The IncludeBuffer that is used to buffering events if parallel
          * processing is turned on.</p>
-         * <p>This object is also used as a lock for the thread counter <code>threads</code>.</p>
          */
         private SaxBuffer buffer;
 
-        /** Inclusion threads/tasks counter (if executing in parallel) */
-        private int threads;
-
         /**
          * <p>Create a new {@link IncludeXMLPipe} instance.</p>
          */
@@ -686,9 +775,10 @@ public class IncludeTransformer extends AbstractTransformer
         /**
          * <p>Create a new {@link IncludeXMLPipe} instance.</p>
          */
-        public IncludeXMLPipe(ContentHandler contentHandler, LexicalHandler lexicalHandler,
+        public IncludeXMLPipe(IncludeContext context, ContentHandler contentHandler, LexicalHandler lexicalHandler,
                               boolean recursive, boolean parallel, boolean recursiveParallel) {
             root = false;
+            this.context = context;
             setContentHandler(contentHandler);
             setLexicalHandler(lexicalHandler);
             this.recursive = recursive;
@@ -700,17 +790,14 @@ public class IncludeTransformer extends AbstractTransformer
          * Finish processing.
          */
         public void recycle() {
-            if (this.buffering) {
-                // Wait for threads to complete and release Sources
-                waitForThreads();
-                this.buffering = false;
-                this.buffer = null;
-            }
-            this.threads = 0;
+            // The transformer waits for threads to complete, or stops them
+            this.buffering = false;
+            this.buffer = null;
 
             this.consumers.clear();
             this.base = null;
             this.element = null;
+            this.context = null;
 
             super.recycle();
         }
@@ -739,11 +826,11 @@ public class IncludeTransformer extends AbstractTransformer
         public void setDocumentLocator(Locator locator) {
             try {
                 if (locator != null && locator.getSystemId() != null) {
-                    Source source = resolver.resolveURI(locator.getSystemId());
+                    Source source = context.resolver.resolveURI(locator.getSystemId());
                     try {
                         base = source.getURI();
                     } finally {
-                        resolver.release(source);
+                        context.resolver.release(source);
                     }
                 }
             } catch (IOException e) {
@@ -802,7 +889,7 @@ public class IncludeTransformer extends AbstractTransformer
                     if (element != null) {
                         throw new SAXException("Element " + INCLUDE_ELEMENT + " nested in another one.");
                     }
-                    element = new IncludeElement(this.base, this.parallel, this.recursive, this.recursiveParallel);
+                    element = new IncludeElement(this.context, this.base, this.parallel, this.recursive, this.recursiveParallel);
 
                     /* Remember the source we are trying to include */
                     element.source = atts.getValue(SRC_ATTRIBUTE);
@@ -923,7 +1010,7 @@ public class IncludeTransformer extends AbstractTransformer
                     if (this.parallel) {
                         if (!this.buffering) {
                             this.buffering = true;
-                            buffer = new SaxBuffer();
+                            buffer = new CompactSaxBuffer();
                             push(buffer);
                         }
 
@@ -999,149 +1086,86 @@ public class IncludeTransformer extends AbstractTransformer
             super.characters(data, offset, length);
         }
 
-        //
-        // Thread management
-        //
-
-        /**
-         * Increment active threads counter
-         */
-        int incrementThreads() {
-            //noinspection SynchronizeOnNonFinalField
-            synchronized (buffer) {
-                return ++threads;
-            }
-        }
-
         /**
-         * Decrement active threads counter
+         * Placeholder of an included source loaded in a separate thread.
+         * Streaming of the loaded content is possible only when the source
+         * is loaded completely. If loading is not complete, toSAX method
+         * will block until the include times out.
          */
-        void decrementThreads() {
-            //noinspection SynchronizeOnNonFinalField
-            synchronized (buffer) {
-                if (--threads <= 0) {
-                    buffer.notify();
-                }
-            }
-        }
+        private class IncludeBuffer implements XMLizable {
 
-        /**
-         * Wait till there is no active threads
-         */
-        private void waitForThreads() {
-            //noinspection SynchronizeOnNonFinalField
-            synchronized (buffer) {
-                if (threads > 0) {
-                    if (getLogger().isDebugEnabled()) {
-                        getLogger().debug(threads + " threads in progress, waiting");
-                    }
-
-                    try {
-                        buffer.wait();
-                    } catch (InterruptedException e) { /* ignored */ }
-                    // Don't continue waiting if interrupted.
-                }
-            }
-        }
-
-        /**
-         * Buffer for loading included source in separate thread.
-         * Streaming of the loaded buffer possible only when source is
-         * loaded completely. If loading is not complete, toSAX method
-         * will block.
-         */
-        private class IncludeBuffer extends SaxBuffer
-                                    implements Runnable {
-
-            private IncludeElement element;
-            private int thread;
-            private boolean finished;
-            private SAXException e;
+            private final IncludeElement element;
 
+            private final IncludeLoader loader;
 
             public IncludeBuffer(IncludeElement element) {
                 this.element = element;
-
-                RunnableManager runnable = null;
-                try {
-                    runnable = (RunnableManager) IncludeTransformer.this.manager.lookup(RunnableManager.ROLE);
-                    runnable.execute(IncludeTransformer.this.threadPool, this);
-                } catch (final ServiceException e) {
-                    // In case we failed to spawn a thread
-                    throw new CascadingRuntimeException(e.getMessage(), e);
-                } finally {
-                    IncludeTransformer.this.manager.release(runnable);
-                }
-
-                // Increment active threads counter
-                this.thread = incrementThreads();
+                this.loader = (IncludeLoader) element.context.executor.execute(element.getKey(), new IncludeLoader(element));
             }
 
             /**
-             * Load content of the source into this buffer.
+             * Stream the loaded content, or the fallback content if loading
+             * failed or timed out.
              */
-            public void run() {
-                try {
-                    if (getLogger().isDebugEnabled()) {
-                        getLogger().debug("Thread #" + thread + " loading <" + element.source + ">");
-                    }
-
-                    // Setup this thread's environment
-                    RequestContextHolder.setRequestAttributes(attributes);
-                    EnvironmentHelper.enterProcessor(processor, environment);
-                    try {
-                        element.process(this);
-
-                    } catch (SAXException e) {
-                        this.e = e;
-
-                    } finally {
-                        EnvironmentHelper.leaveProcessor();
-                        RequestContextHolder.resetRequestAttributes();
+            public void toSAX(ContentHandler contentHandler)
+            throws SAXException {
+                final LexicalHandler lexicalHandler = contentHandler instanceof LexicalHandler ?
+                        (LexicalHandler) contentHandler : DefaultLexicalHandler.NULL_HANDLER;
+
+                if (!this.element.context.executor.await(this.loader)) {
+                    // The page misses the content, it must not be cached
+                    final MultiSourceValidity validity = this.element.context.validity;
+                    if (validity != null) {
+                        validity.invalidate();
                     }
-                } catch (ProcessingException e) {
-                    /* Unable to set thread's environment */
-                    this.e = new SAXException(e);
-
-                } finally {
-                    synchronized (this) {
-                        this.finished = true;
-                        notify();
+                    if (this.element.fallback == null) {
+                        throw new SAXException("Timed out loading <" + this.element.source + ">");
                     }
+                    this.element.processFallback(contentHandler, lexicalHandler);
 
-                    // Make sure that active threads counter is decremented
-                    decrementThreads();
-                }
+                } else if (this.loader.getException() != null) {
+                    final Exception e = this.loader.getException();
+                    if (this.element.fallback == null) {
+                        throw e instanceof SAXException ? (SAXException) e : new SAXException(e);
+                    }
 
-                if (getLogger().isDebugEnabled()) {
-                    if (this.e == null) {
-                        getLogger().debug("Thread #" + thread + " loaded <" + element.source + ">");
-                    } else {
-                        getLogger().debug("Thread #" + thread + " failed to load <" + element.source + ">", this.e);
+                    if (getLogger().isInfoEnabled()) {
+                        getLogger().info("Failed to load <" + this.element.source + ">, using fallback.", e);
                     }
+                    this.element.processFallback(contentHandler, lexicalHandler);
+
+                } else {
+                    this.loader.content.toSAX(contentHandler);
                 }
             }
+        }
+    }
 
-            /**
-             * Stream content of this buffer when it is loaded completely.
-             * This method blocks if loading is not complete.
-             */
-            public void toSAX(ContentHandler contentHandler)
-            throws SAXException {
-                synchronized (this) {
-                    if (!this.finished) {
-                        try {
-                            wait();
-                        } catch (InterruptedException e) { /* ignored */ }
-                        // Don't continue waiting if interrupted.
-                    }
-                }
+    /**
+     * Loads an included source into a buffer in separate thread.
+     */
+    private class IncludeLoader extends IncludeExecutor.Include {
 
-                if (this.e != null) {
-                    throw this.e;
-                }
+        private final IncludeElement element;
 
-                super.toSAX(contentHandler);
+        /** The loaded content, complete if loading succeeded */
+        final SaxBuffer content = new CompactSaxBuffer();
+
+        public IncludeLoader(IncludeElement element) {
+            super(element.source);
+            this.element = element;
+        }
+
+        protected void load() throws Exception {
+            // Setup this thread's environment
+            final IncludeContext context = this.element.context;
+            RequestContextHolder.setRequestAttributes(context.attributes);
+            EnvironmentHelper.enterProcessor(context.processor, context.environment);
+            try {
+                this.element.process0(this.content, this.content);
+            } finally {
+                EnvironmentHelper.leaveProcessor();
+                RequestContextHolder.resetRequestAttributes();
             }
         }
     }
@@ -39,12 +39,10 @@ import org.apache.cocoon.components.sax.XMLByteStreamCompiler;
 import org.apache.cocoon.components.sax.XMLByteStreamInterpreter;
 import org.apache.cocoon.components.sax.XMLTeePipe;
 import org.apache.cocoon.components.source.SourceUtil;
-import org.apache.cocoon.environment.CocoonRunnable;
 import org.apache.cocoon.thread.RunnableManager;
 import org.apache.cocoon.util.AbstractLogEnabled;
 import org.apache.cocoon.xml.XMLConsumer;
 
-import EDU.oswego.cs.dl.util.concurrent.CountDown;
 import org.xml.sax.SAXException;
 
 /**
@@ -59,6 +57,10 @@ import org.xml.sax.SAXException;
  * If this loader cannot be started, only an error is logged into the
  * log, so actually cached content is never updated!
  * 
+ * Content loaded in parallel is loaded only once per request and
+ * session, using an {@link IncludeExecutor}. If loading times out,
+ * the expired cached content is used, if any.
+ * 
  *  @version $Id$
  *  @since   2.1
  */
@@ -71,6 +73,8 @@ public final class DefaultIncludeCacheManager extends AbstractLogEnabled
     private SourceResolver resolver;
     
     private Store          store;
+
+    private RunnableManager runnableManager;
     
     private IncludeCacheStorageProxy defaultCacheStorage;
     
@@ -97,6 +101,12 @@ public final class DefaultIncludeCacheManager extends AbstractLogEnabled
                 this.resolver.release(source);
             }
         }
+        if (session.isParallel() && !session.isPreemptive()) {
+            session.setExecutor(new IncludeExecutor(this.runnableManager, null,
+                                                    session.getIncludeTimeout(),
+                                                    session.getPageTimeout(),
+                                                    this.getLogger()));
+        }
         if (session.isPreemptive()) {
             if ( null == this.preemptiveLoaderURI ) {
                 this.getLogger().error("Preemptive loading is turned off because the preemptive-loader-url is not configured.");
@@ -147,7 +157,15 @@ public final class DefaultIncludeCacheManager extends AbstractLogEnabled
         
         // if we are processing in parallel (and not preemptive) then....
         if ( session.isParallel() && !session.isPreemptive()) {
-            
+
+            // the same URI is loaded only once
+            if ( null != session.get(uri) ) {
+                if (this.getLogger().isDebugEnabled()) {
+                    this.getLogger().debug("Already loading " + uri);
+                }
+                return uri;
+            }
+
             // first look-up if we have a valid stored response
             IncludeCacheStorageProxy storage = session.getCacheStorageProxy();
             CachedResponse response = (CachedResponse)storage.get(uri);
@@ -163,8 +181,11 @@ public final class DefaultIncludeCacheManager extends AbstractLogEnabled
                     session.add(uri, response.getResponse());
                     return uri;
                 } else {
-                    // response is not used
+                    // response is not used, unless loading times out
                     storage.remove(uri);
+                    if ( !session.isPurging() ) {
+                        session.addStale(uri, response.getResponse());
+                    }
                 }
             }
 
@@ -178,15 +199,10 @@ public final class DefaultIncludeCacheManager extends AbstractLogEnabled
                 Source source = session.resolveURI(uri, this.resolver);
 
                 LoaderThread loader = new LoaderThread(source, serializer);
-                final RunnableManager runnableManager = (RunnableManager)this.manager.lookup( RunnableManager.ROLE );
-                session.add(uri, loader);
-                runnableManager.execute( new CocoonRunnable(loader) );
-                this.manager.release( runnableManager );
+                session.add(uri, session.getExecutor().execute(uri, loader));
                 if (this.getLogger().isDebugEnabled()) {
                     this.getLogger().debug("Thread started for " + uri);
                 }
-            } catch (ServiceException ce) {
-                throw new SourceException("Unable to lookup thread pool, RunnableManager, or xml serializer.", ce);
             } catch (Exception e) {
                 throw new SourceException("Unable to get pooled thread.", e);
             }
@@ -226,22 +242,35 @@ public final class DefaultIncludeCacheManager extends AbstractLogEnabled
                 }
 
                 // wait for it
-                loader.join();
+                if (!session.getExecutor().await(loader)) {
+                    result = session.getStale(uri);
+                    if ( null == result ) {
+                        throw new SAXException("Timed out loading " + uri);
+                    }
+                    if (this.getLogger().isDebugEnabled()) {
+                        this.getLogger().debug("Streaming from expired cached response.");
+                    }
+                    XMLByteStreamInterpreter deserializer = new XMLByteStreamInterpreter();
+                    deserializer.setConsumer(handler);
+                    deserializer.deserialize(result);
+                    return;
+                }
 
                 if (this.getLogger().isDebugEnabled()) {
                     this.getLogger().debug("Pooled thread finished loading.");
                 }
                 
                 // did an exception occur? Then reraise it
-                if ( null != loader.exception) {
-                    if ( loader.exception instanceof SAXException ) {
-                        throw (SAXException)loader.exception;
-                    } else if (loader.exception instanceof SourceException ) {
-                        throw (SourceException)loader.exception;
-                    } else if (loader.exception instanceof IOException) {
-                        throw (IOException)loader.exception;
+                final Exception exception = loader.getException();
+                if ( null != exception) {
+                    if ( exception instanceof SAXException ) {
+                        throw (SAXException)exception;
+                    } else if (exception instanceof SourceException ) {
+                        throw (SourceException)exception;
+                    } else if (exception instanceof IOException) {
+                        throw (IOException)exception;
                     } else {
-                        throw new SAXException("Exception.", loader.exception);
+                        throw new SAXException("Exception.", exception);
                     }
                 }
                 
@@ -251,7 +280,9 @@ public final class DefaultIncludeCacheManager extends AbstractLogEnabled
                 result = loader.content;
 
                 // cache the response (remember preemptive is off)
-                if (session.getExpires() > 0) {
+                // (a response shared with a previous include is cached already)
+                if (session.getExpires() > 0 && !loader.cached) {
+                    loader.cached = true;
                     SourceValidity[] validities = new SourceValidity[1];
                     validities[0] = session.getExpiresValidity();
                     CachedResponse response = new CachedResponse(validities, result);
@@ -359,6 +390,7 @@ public final class DefaultIncludeCacheManager extends AbstractLogEnabled
     public void service(ServiceManager manager) throws ServiceException {
         this.manager = manager;
         this.resolver = (SourceResolver)this.manager.lookup(SourceResolver.ROLE);
+        this.runnableManager = (RunnableManager)this.manager.lookup(RunnableManager.ROLE);
     }
 
     /**
@@ -370,8 +402,10 @@ public final class DefaultIncludeCacheManager extends AbstractLogEnabled
         if ( null != this.manager ) {
             this.manager.release( this.resolver);
             this.manager.release(this.store);
+            this.manager.release(this.runnableManager);
             this.store = null;
             this.resolver = null;
+            this.runnableManager = null;
             this.manager = null;
             this.defaultCacheStorage = null;
         }
@@ -395,38 +429,23 @@ public final class DefaultIncludeCacheManager extends AbstractLogEnabled
         this.defaultCacheStorage = new StoreIncludeCacheStorageProxy(this.store);
     }
     
-    final private static class LoaderThread implements Runnable {
+    final private static class LoaderThread extends IncludeExecutor.Include {
         
         private final Source source;
         private final XMLByteStreamCompiler serializer;
-        private final CountDown finished;
-        Exception exception;
         byte[]    content;
+        boolean   cached;
         
         public LoaderThread(Source source, 
                             XMLByteStreamCompiler serializer) {
+            super(source.getURI());
             this.source = source;
             this.serializer = serializer;
-            this.finished = new CountDown( 1 );
         }
         
-        public void run() {
-            try {
-                SourceUtil.toSAX(this.source, this.serializer);
-                this.content = (byte[])this.serializer.getSAXFragment();
-            } catch (Exception local) {
-                this.exception = local;
-            } finally {
-                this.finished.release();
-            }
-        }
-        
-        void join() {
-            try {
-                this.finished.acquire();
-            } catch ( final InterruptedException ie) {
-                // ignore
-            }
+        protected void load() throws Exception {
+            SourceUtil.toSAX(this.source, this.serializer);
+            this.content = (byte[])this.serializer.getSAXFragment();
         }
     }
     
@@ -39,6 +39,10 @@ import org.apache.excalibur.source.impl.validity.ExpiresValidity;
  * - preemptive (boolean/false) : Turn on/off preemptive caching
  * - parallel (boolean/false) : Turn on/off parallel processing
  * - expires (long/0) : The lifetime of the cached content
+ * - include-timeout (long/0) : The time in milliseconds to wait for content
+ *   loaded in parallel, 0 for no limit
+ * - page-timeout (long/0) : The time in milliseconds to wait for all content
+ *   loaded in parallel, 0 for no limit
  * 
  *  @version $Id$
  *  @since   2.1
@@ -57,6 +61,18 @@ public final class IncludeCacheManagerSession {
     /** Should we process everything in parallel */
     private boolean parallel;
 
+    /** The time to wait for an include loaded in parallel */
+    private long includeTimeout;
+
+    /** The time to wait for all includes loaded in parallel */
+    private long pageTimeout;
+
+    /** The executor loading the includes in parallel */
+    private IncludeExecutor executor;
+
+    /** Expired cached responses, used if loading times out */
+    private Map staleResponses;
+
     /** The used {@link IncludeCacheStorageProxy} */
     private IncludeCacheStorageProxy storage;
     
@@ -80,6 +96,8 @@ public final class IncludeCacheManagerSession {
         this.purge = configuration.getParameterAsBoolean("purge", false);    
         this.preemptive = configuration.getParameterAsBoolean("preemptive", false);
         this.parallel = configuration.getParameterAsBoolean("parallel", false);
+        this.includeTimeout = configuration.getParameterAsLong("include-timeout", 0);
+        this.pageTimeout = configuration.getParameterAsLong("page-timeout", 0);
         this.storage = proxy;    
     }
     
@@ -125,6 +143,58 @@ public final class IncludeCacheManagerSession {
         return this.parallel;
     }
 
+    /**
+     * Get the time to wait for an include loaded in parallel
+     */
+    public long getIncludeTimeout() {
+        return this.includeTimeout;
+    }
+
+    /**
+     * Get the time to wait for all includes loaded in parallel
+     */
+    public long getPageTimeout() {
+        return this.pageTimeout;
+    }
+
+    /**
+     * Get the executor loading the includes in parallel
+     */
+    IncludeExecutor getExecutor() {
+        return this.executor;
+    }
+
+    /**
+     * Set the executor loading the includes in parallel
+     */
+    void setExecutor(IncludeExecutor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Remember an expired cached response
+     * @param uri    The absolute URI
+     * @param response The cached content
+     */
+    void addStale(String uri, byte[] response) {
+        if ( null == this.staleResponses ) {
+            this.staleResponses = new HashMap(10);
+        }
+        this.staleResponses.put(uri, response);
+    }
+
+    /**
+     * Get an expired cached response
+     * @param uri     The URI
+     * @return byte[] The cached content or null.
+     */
+    byte[] getStale(String uri) {
+        if ( null != this.staleResponses ) {
+            return (byte[]) this.staleResponses.get( uri );
+        }
+        return null;
+    }
+
     /**
      * Add another object to the thread list
      * @param uri    The absolute URI
@@ -166,7 +236,7 @@ public final class IncludeCacheManagerSession {
         Source source = (Source)this.sourceList.get(uri);
         if ( null == source ) {
             source = resolver.resolveURI( uri );
-            this.sourceList.put( source.getURI(), source );
+            this.sourceList.put( uri, source );
         }
         return source;
     }
@@ -175,11 +245,16 @@ public final class IncludeCacheManagerSession {
      * Cleanup
      * @param resolver The source resolver to release cached sources
      */
-    void cleanup(SourceResolver resolver) {
+    void cleanup(final SourceResolver resolver) {
+        // the loading threads use the sources, wait for them as long as
+        // the timeouts allow and stop the others
+        if ( null != this.executor ) {
+            this.executor.awaitAll();
+            this.executor = null;
+        }
         Iterator iter = this.sourceList.values().iterator();
         while ( iter.hasNext() ) {
-            final Source source = (Source) iter.next();
-            resolver.release( source );   
+            resolver.release( (Source) iter.next() );
         }
     }
     
@@ -190,6 +265,8 @@ public final class IncludeCacheManagerSession {
         return "CacheManagerSession(" + this.hashCode() + ") -" +
                 " expires: " + this.expires +
                 " parallel: " + this.parallel + 
+                " include-timeout: " + this.includeTimeout +
+                " page-timeout: " + this.pageTimeout +
                 " preemptive: " + this.preemptive +
                 " purge: " + this.purge;
     }
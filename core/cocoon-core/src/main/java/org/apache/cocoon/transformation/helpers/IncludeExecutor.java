@@ -0,0 +1,369 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.transformation.helpers;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.cocoon.environment.CocoonRunnable;
+import org.apache.cocoon.thread.RunnableManager;
+import org.apache.commons.logging.Log;
+
+/**
+ * Loads the included sources of one request in the background, using a
+ * thread pool of the {@link RunnableManager}.
+ *
+ * <p>Identical includes (with the same key) are loaded only once per
+ * request. Waiting for an include is limited by the include timeout,
+ * counted from the time the include was started, and by the page timeout,
+ * counted from the creation of the executor. Includes which have not
+ * started when their time is over are removed from the thread pool. The
+ * time spent loading every include is logged.</p>
+ *
+ * <p>The includes run in the environment of the request, so they must not
+ * outlive it: at the end of the request, {@link #awaitAll()} interrupts the
+ * includes still loading when their time is over and waits for them to
+ * stop.</p>
+ *
+ * @since 2.2
+ * @version $Id$
+ */
+public class IncludeExecutor {
+
+    /** The {@link RunnableManager} running the includes */
+    private final RunnableManager runnableManager;
+
+    /** The name of the thread pool, or <code>null</code> for the default one */
+    private final String threadPool;
+
+    /** The maximum time in milliseconds to wait for an include, 0 for no limit */
+    private final long includeTimeout;
+
+    /** The time when waiting for includes ends, 0 for no limit */
+    private final long deadline;
+
+    private final Log logger;
+
+    /** The started {@link Include}s by their keys */
+    private final ConcurrentMap includes = new ConcurrentHashMap();
+
+    /** Set at the end of the request, when no more includes are run */
+    private volatile boolean closed;
+
+    /**
+     * @param runnableManager the {@link RunnableManager} running the includes
+     * @param threadPool      the name of the thread pool or <code>null</code>
+     * @param includeTimeout  the maximum time in milliseconds to wait for an
+     *                        include, 0 for no limit
+     * @param pageTimeout     the maximum time in milliseconds to wait for all
+     *                        includes, 0 for no limit
+     * @param logger          the logger receiving the timings
+     */
+    public IncludeExecutor(RunnableManager runnableManager, String threadPool,
+                           long includeTimeout, long pageTimeout, Log logger) {
+        this.runnableManager = runnableManager;
+        this.threadPool = threadPool;
+        this.includeTimeout = includeTimeout;
+        this.deadline = pageTimeout > 0 ? System.currentTimeMillis() + pageTimeout : 0;
+        this.logger = logger;
+    }
+
+    /**
+     * Start loading an include, unless an include with the same key has
+     * been started before.
+     *
+     * @param key     the key identifying the included content
+     * @param include the include to start
+     * @return the include which loads the content, <code>include</code>
+     *         or the one started before
+     */
+    public Include execute(Object key, Include include) {
+        final Include running = (Include) this.includes.putIfAbsent(key, include);
+        if (running != null) {
+            if (this.logger.isDebugEnabled()) {
+                this.logger.debug("Reusing include <" + running.getURI() + ">");
+            }
+            return running;
+        }
+
+        include.logger = this.logger;
+        include.submitted = System.currentTimeMillis();
+        if (this.closed) {
+            // started by an include which is stopped at the end of the request
+            cancel(include);
+            return include;
+        }
+        if (this.threadPool != null) {
+            this.runnableManager.execute(this.threadPool, include);
+        } else {
+            this.runnableManager.execute(include);
+        }
+        return include;
+    }
+
+    /**
+     * Wait until an include is loaded or its time is over.
+     *
+     * @return <code>true</code> if the include has been loaded (successfully
+     *         or not), <code>false</code> if it timed out
+     */
+    public boolean await(Include include) {
+        return waitFor(include) && !include.cancelled;
+    }
+
+    /**
+     * Wait until all started includes, including those started while
+     * waiting, have finished, at the end of the request. Waiting is limited
+     * by the same timeouts as {@link #await(Include)}. Includes still loading
+     * when their time is over are interrupted, and this method waits until
+     * they have stopped: no include uses the environment of the request
+     * after this method has returned. Includes started later on are not run.
+     *
+     * @return <code>true</code> if all includes have finished in time,
+     *         <code>false</code> if some of them have been interrupted
+     */
+    public boolean awaitAll() {
+        boolean finished = true;
+        int count;
+        do {
+            count = this.includes.size();
+            final List includes = new ArrayList(this.includes.values());
+            for (Iterator i = includes.iterator(); i.hasNext();) {
+                final Include include = (Include) i.next();
+                if (!waitFor(include)) {
+                    finished = false;
+                    if (Thread.currentThread().isInterrupted()) {
+                        break;
+                    }
+                }
+            }
+        } while (finished && count != this.includes.size());
+
+        if (!finished) {
+            this.closed = true;
+            do {
+                count = this.includes.size();
+                final List includes = new ArrayList(this.includes.values());
+                for (Iterator i = includes.iterator(); i.hasNext();) {
+                    final Include include = (Include) i.next();
+                    if (include.started.compareAndSet(false, true)) {
+                        cancel(include);
+                    } else {
+                        include.interrupt();
+                    }
+                }
+                for (Iterator i = includes.iterator(); i.hasNext();) {
+                    awaitStopped((Include) i.next());
+                }
+            } while (count != this.includes.size());
+        }
+        return finished;
+    }
+
+    /**
+     * Wait until an interrupted include has stopped.
+     */
+    private void awaitStopped(Include include) {
+        if (include.done.getCount() == 0) {
+            return;
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                include.done.await();
+                break;
+            } catch (InterruptedException e) {
+                // the request must not end while the include is loading
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (this.logger.isInfoEnabled()) {
+            this.logger.info("Include <" + include.getURI() + "> stopped after " +
+                             (System.currentTimeMillis() - include.submitted) + "ms");
+        }
+    }
+
+    /**
+     * Cancel an include which has not been started.
+     */
+    private void cancel(Include include) {
+        include.started.set(true);
+        include.cancelled = true;
+        this.runnableManager.remove(include);
+        include.complete();
+    }
+
+    /**
+     * Wait until an include is done or its time is over. An include which
+     * has not been started then is cancelled.
+     *
+     * @return <code>true</code> if the include is done (loaded, failed or
+     *         cancelled), <code>false</code> if it is still loading
+     */
+    private boolean waitFor(Include include) {
+        if (include.done.getCount() == 0) {
+            return true;
+        }
+
+        final long now = System.currentTimeMillis();
+        long timeout = Long.MAX_VALUE;
+        if (this.includeTimeout > 0) {
+            timeout = include.submitted + this.includeTimeout - now;
+        }
+        if (this.deadline > 0) {
+            timeout = Math.min(timeout, this.deadline - now);
+        }
+
+        boolean completed;
+        try {
+            completed = include.done.await(Math.max(0, timeout), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            // Don't continue waiting if interrupted.
+            Thread.currentThread().interrupt();
+            completed = false;
+        }
+
+        if (!completed) {
+            if (include.started.compareAndSet(false, true)) {
+                // not started yet, no need to keep it in the queue
+                cancel(include);
+                completed = true;
+            }
+            if (!include.timedOut && this.logger.isWarnEnabled()) {
+                this.logger.warn("Include <" + include.getURI() + "> timed out after " +
+                                 (System.currentTimeMillis() - include.submitted) + "ms");
+            }
+            include.timedOut = true;
+        }
+        return completed;
+    }
+
+    /**
+     * The loading of an included source. It runs in the environment of the
+     * thread which created it. A load which is interrupted should stop as
+     * soon as possible, the request is waiting for it to end.
+     */
+    public abstract static class Include extends CocoonRunnable {
+
+        private final String uri;
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        /** Set when the include is run or cancelled */
+        private final AtomicBoolean started = new AtomicBoolean();
+
+        private volatile boolean cancelled;
+
+        private volatile Exception exception;
+
+        private volatile long submitted;
+
+        /** Set when waiting for the include timed out, to log it once */
+        private volatile boolean timedOut;
+
+        /** The thread loading the include, guarded by this */
+        private Thread runner;
+
+        /** Set when the loading thread has been interrupted, guarded by this */
+        private boolean interrupted;
+
+        private Log logger;
+
+        /**
+         * @param uri the included URI, used for logging
+         */
+        protected Include(String uri) {
+            this.uri = uri;
+        }
+
+        /**
+         * Load the included content.
+         */
+        protected abstract void load() throws Exception;
+
+        protected final void doRun() {
+            if (!this.started.compareAndSet(false, true)) {
+                // timed out before it has been started
+                return;
+            }
+
+            final long start = System.currentTimeMillis();
+            synchronized (this) {
+                this.runner = Thread.currentThread();
+                if (this.interrupted) {
+                    // stopped before it got here
+                    this.runner.interrupt();
+                }
+            }
+            try {
+                load();
+            } catch (Exception e) {
+                this.exception = e;
+            } finally {
+                synchronized (this) {
+                    this.runner = null;
+                    if (this.interrupted) {
+                        // don't pass the interrupt on to the next task of the pool
+                        Thread.interrupted();
+                    }
+                }
+                complete();
+            }
+
+            if (this.logger.isDebugEnabled()) {
+                final long end = System.currentTimeMillis();
+                this.logger.debug((this.exception == null ? "Loaded <" : "Failed to load <") + this.uri +
+                                  "> in " + (end - start) + "ms, waited " + (start - this.submitted) + "ms",
+                                  this.exception);
+            }
+        }
+
+        /**
+         * Interrupt the thread loading this include.
+         */
+        synchronized void interrupt() {
+            this.interrupted = true;
+            if (this.runner != null) {
+                this.runner.interrupt();
+            }
+        }
+
+        private void complete() {
+            this.done.countDown();
+        }
+
+        public String getURI() {
+            return this.uri;
+        }
+
+        /**
+         * @return the exception thrown while loading, if any
+         */
+        public Exception getException() {
+            return this.exception;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/* 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ * 
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.fam;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the {@link MonitorImpl} class.
+ *
+ * @version $Id$
+ */
+public class MonitorImplTestCase extends TestCase {
+
+    private MonitorImpl monitor;
+
+    private File file;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.monitor = new MonitorImpl();
+        this.file = File.createTempFile("monitor", ".xml");
+    }
+
+    protected void tearDown() throws Exception {
+        this.monitor.destroy();
+        this.file.delete();
+        super.tearDown();
+    }
+
+    public void testNotifyOnChange() throws Exception {
+        final RecordingListener listener = new RecordingListener();
+        this.monitor.subscribe(this.file, listener);
+
+        this.monitor.check();
+        assertEquals(0, listener.changed.size());
+
+        write(this.file, "changed");
+        this.monitor.check();
+        assertEquals(1, listener.changed.size());
+        assertEquals(this.file.getAbsoluteFile(), listener.changed.get(0));
+
+        // every change is reported once
+        this.monitor.check();
+        assertEquals(1, listener.changed.size());
+    }
+
+    public void testNotifyOnCreateAndDelete() throws Exception {
+        final RecordingListener listener = new RecordingListener();
+        this.file.delete();
+        this.monitor.subscribe(this.file, listener);
+
+        write(this.file, "created");
+        this.monitor.check();
+        assertEquals(1, listener.changed.size());
+
+        this.file.delete();
+        this.monitor.check();
+        assertEquals(2, listener.changed.size());
+    }
+
+    public void testChangedBeforeSubscribe() throws Exception {
+        // the listener has built its state from the file, which is changed
+        // before the listener subscribes
+        final long built = this.file.lastModified();
+        write(this.file, "changed");
+
+        final RecordingListener listener = new RecordingListener();
+        this.monitor.subscribe(this.file, listener, built);
+        assertEquals(1, listener.changed.size());
+
+        this.monitor.check();
+        assertEquals("The change is reported once", 1, listener.changed.size());
+    }
+
+    public void testChangedBeforeSubscribeToMonitoredFile() throws Exception {
+        final RecordingListener first = new RecordingListener();
+        this.monitor.subscribe(this.file, first);
+        final long built = this.file.lastModified();
+        write(this.file, "changed");
+        this.monitor.check();
+        assertEquals(1, first.changed.size());
+
+        final RecordingListener second = new RecordingListener();
+        this.monitor.subscribe(this.file, second, built);
+        assertEquals(1, second.changed.size());
+        assertEquals(1, first.changed.size());
+    }
+
+    public void testUnchangedSinceBuild() throws Exception {
+        final RecordingListener listener = new RecordingListener();
+        this.monitor.subscribe(this.file, listener, this.file.lastModified());
+        assertEquals(0, listener.changed.size());
+
+        write(this.file, "changed");
+        this.monitor.check();
+        assertEquals(1, listener.changed.size());
+    }
+
+    public void testUnsubscribe() throws Exception {
+        final RecordingListener first = new RecordingListener();
+        final RecordingListener second = new RecordingListener();
+        this.monitor.subscribe(this.file, first);
+        this.monitor.subscribe(this.file, second);
+        assertEquals(1, this.monitor.getMonitoredFileCount());
+
+        this.monitor.unsubscribe(this.file, first);
+        write(this.file, "changed");
+        this.monitor.check();
+        assertEquals(0, first.changed.size());
+        assertEquals(1, second.changed.size());
+
+        this.monitor.unsubscribe(this.file, second);
+        assertEquals(0, this.monitor.getMonitoredFileCount());
+    }
+
+    public void testFailingListener() throws Exception {
+        final RecordingListener listener = new RecordingListener();
+        this.monitor.subscribe(this.file, new MonitorListener() {
+            public void fileChanged(File changed) {
+                throw new IllegalStateException("failing listener");
+            }
+        });
+        this.monitor.subscribe(this.file, listener);
+
+        write(this.file, "changed");
+        this.monitor.check();
+        assertEquals(1, listener.changed.size());
+    }
+
+    public void testBackgroundThread() throws Exception {
+        final RecordingListener listener = new RecordingListener();
+        this.monitor.setInterval(10);
+        this.monitor.init();
+        this.monitor.subscribe(this.file, listener);
+
+        write(this.file, "changed");
+        for (int i = 0; i < 200 && listener.changed.isEmpty(); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, listener.changed.size());
+    }
+
+    private static void write(File file, String content) throws IOException {
+        final long lastModified = file.lastModified();
+        final FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+        // make sure the change is visible on file systems with a coarse timestamp
+        file.setLastModified(Math.max(lastModified, System.currentTimeMillis()) + 2000);
+    }
+
+    private static final class RecordingListener implements MonitorListener {
+        final List changed = Collections.synchronizedList(new ArrayList());
+
+        public void fileChanged(File file) {
+            this.changed.add(file);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.source.impl.validity;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.apache.cocoon.components.fam.MonitorImpl;
+import org.apache.excalibur.source.SourceValidity;
+
+/**
+ * Test cases for the {@link MonitoredValidity} class.
+ *
+ * @version $Id$
+ */
+public class MonitoredValidityTestCase extends TestCase {
+
+    private MonitorImpl monitor;
+
+    private File file;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.monitor = new MonitorImpl();
+        this.file = File.createTempFile("validity", ".xml");
+    }
+
+    protected void tearDown() throws Exception {
+        this.monitor.destroy();
+        this.file.delete();
+        super.tearDown();
+    }
+
+    public void testValidUntilChanged() throws Exception {
+        final MonitoredValidity validity =
+            new MonitoredValidity(this.monitor, this.file, this.file.lastModified(), INVALID);
+        assertEquals(SourceValidity.VALID, validity.isValid());
+
+        write(this.file, "changed");
+        this.monitor.check();
+        assertEquals(SourceValidity.INVALID, validity.isValid());
+        assertEquals(0, this.monitor.getMonitoredFileCount());
+    }
+
+    public void testChangedWhileBuilding() throws Exception {
+        // the file is changed after the object has been built from it,
+        // but before its validity is created
+        final long built = this.file.lastModified();
+        write(this.file, "changed");
+
+        final MonitoredValidity validity = new MonitoredValidity(this.monitor, this.file, built, INVALID);
+        assertEquals(SourceValidity.INVALID, validity.isValid());
+        assertEquals(0, this.monitor.getMonitoredFileCount());
+    }
+
+    private static void write(File file, String content) throws IOException {
+        final long lastModified = file.lastModified();
+        final FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+        // make sure the change is visible on file systems with a coarse timestamp
+        file.setLastModified(Math.max(lastModified, System.currentTimeMillis()) + 2000);
+    }
+
+    /** The validity of the file once a change has been reported */
+    private static final SourceValidity INVALID = new SourceValidity() {
+        public int isValid() {
+            return SourceValidity.INVALID;
+        }
+
+        public int isValid(SourceValidity newValidity) {
+            return SourceValidity.INVALID;
+        }
+    };
+}
@@ -111,6 +111,41 @@ public class PreparedVariableResolverTestCase extends SitemapComponentTestCase {
         assertEquals("123abc/def", resolver.resolve(context, getObjectModel()));
     }
 
+    public void testPrefixedSitemapVariableWithNestedName() throws PatternException {
+        String expr = "{sitemap:{2}}/{sitemap:../{2}}";
+
+        Map sitemapElements;
+        sitemapElements = new HashMap();
+        sitemapElements.put("1", "juliet");
+        context.pushMap("label1", sitemapElements);
+
+        sitemapElements = new HashMap();
+        sitemapElements.put("1", "oscar");
+        sitemapElements.put("2", "1");
+        context.pushMap("label2", sitemapElements);
+
+        resolver.setExpression(expr);
+        assertEquals("oscar/juliet", resolver.resolve(context, getObjectModel()));
+    }
+
+    public void testResolveTwice() throws PatternException {
+        String expr = "{1}-{request-param:foo}";
+        MockRequest request = getRequest();
+        request.reset();
+        request.addParameter("foo", "bar");
+
+        Map sitemapElements = new HashMap();
+        sitemapElements.put("1", "abc");
+        context.pushMap("label", sitemapElements);
+        resolver.setExpression(expr);
+        assertEquals("abc-bar", resolver.resolve(context, getObjectModel()));
+
+        sitemapElements.put("1", "def");
+        request.reset();
+        request.addParameter("foo", "baz");
+        assertEquals("def-baz", resolver.resolve(context, getObjectModel()));
+    }
+
     public void testMultilevelSitemapVariables() throws PatternException {
         String expr = "from {../1} to {1}";
 
@@ -62,4 +62,23 @@ public class I18NTransformerTestCase extends SitemapComponentTestCase {
         assertEqual( load(result),
         transform("i18n", src, parameters, load(input)));
     }
+
+    /** Testcase for i18n: the catalogue messages are shared and must not
+     * be changed by text added inside i18n:translate
+     *
+     * @throws Exception if ServiceManager enterEnvironment fails
+     */
+    public void testI18n3() throws Exception {
+        getLogger().debug("testI18n3");
+        
+        Parameters parameters = new Parameters();
+        parameters.setParameter( "support-caching", "false" );
+        
+        String input = "resource://org/apache/cocoon/transformation/i18n-input-3.xml";
+        String result = "resource://org/apache/cocoon/transformation/i18n-result-3.xml";
+        String src =  null;
+        
+        assertEqual( load(result),
+        transform("i18n", src, parameters, load(input)));
+    }
 }
@@ -0,0 +1,254 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.transformation.helpers;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.cocoon.thread.RunnableManager;
+import org.apache.cocoon.thread.ThreadPool;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Testcase for IncludeExecutor.
+ *
+ * @version $Id$
+ */
+public class IncludeExecutorTestCase extends TestCase {
+
+    /**
+     * Runs every command in a new thread, or queues it if not started.
+     */
+    private static class TestRunnableManager implements RunnableManager {
+
+        final boolean started;
+        final List queued = new ArrayList();
+
+        TestRunnableManager(boolean started) {
+            this.started = started;
+        }
+
+        public void execute(Runnable command) {
+            if (this.started) {
+                new Thread(command).start();
+            } else {
+                this.queued.add(command);
+            }
+        }
+
+        public void execute(String threadPoolName, Runnable command) {
+            execute(command);
+        }
+
+        public void remove(Runnable command) {
+            this.queued.remove(command);
+        }
+
+        public ThreadPool createPool(String name, int queueSize, int maxPoolSize, int minPoolSize,
+                                     int priority, boolean isDaemon, long keepAliveTime,
+                                     String blockPolicy, boolean shutdownGraceful, int shutdownWaitTime) {
+            throw new UnsupportedOperationException();
+        }
+
+        public ThreadPool createPool(int queueSize, int maxPoolSize, int minPoolSize,
+                                     int priority, boolean isDaemon, long keepAliveTime,
+                                     String blockPolicy, boolean shutdownGraceful, int shutdownWaitTime) {
+            throw new UnsupportedOperationException();
+        }
+
+        public ThreadPool getPool(String name) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void execute(Runnable command, long delay) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void execute(Runnable command, long delay, long interval) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void execute(String threadPoolName, Runnable command, long delay) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void execute(String threadPoolName, Runnable command, long delay, long interval) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class TestInclude extends IncludeExecutor.Include {
+
+        final long duration;
+        final Exception exception;
+        int loads;
+
+        TestInclude(String uri, long duration, Exception exception) {
+            super(uri);
+            this.duration = duration;
+            this.exception = exception;
+        }
+
+        protected void load() throws Exception {
+            this.loads++;
+            Thread.sleep(this.duration);
+            if (this.exception != null) {
+                throw this.exception;
+            }
+        }
+    }
+
+    private IncludeExecutor createExecutor(RunnableManager manager, long includeTimeout, long pageTimeout) {
+        return new IncludeExecutor(manager, "include", includeTimeout, pageTimeout,
+                                   LogFactory.getLog(IncludeExecutorTestCase.class));
+    }
+
+    public void testLoad() {
+        final IncludeExecutor executor = createExecutor(new TestRunnableManager(true), 0, 0);
+        final TestInclude include = new TestInclude("a", 10, null);
+        assertSame(include, executor.execute("a", include));
+        assertTrue(executor.await(include));
+        assertNull(include.getException());
+        assertEquals(1, include.loads);
+    }
+
+    public void testFailure() {
+        final IncludeExecutor executor = createExecutor(new TestRunnableManager(true), 0, 0);
+        final IOException e = new IOException();
+        final TestInclude include = new TestInclude("a", 0, e);
+        executor.execute("a", include);
+        assertTrue(executor.await(include));
+        assertSame(e, include.getException());
+    }
+
+    public void testIdenticalIncludes() {
+        final IncludeExecutor executor = createExecutor(new TestRunnableManager(true), 0, 0);
+        final TestInclude first = new TestInclude("a", 10, null);
+        final TestInclude second = new TestInclude("a", 10, null);
+        executor.execute("a", first);
+        assertSame(first, executor.execute("a", second));
+        assertTrue(executor.await(first));
+        assertEquals(1, first.loads);
+        assertEquals(0, second.loads);
+    }
+
+    public void testIncludeTimeout() {
+        final IncludeExecutor executor = createExecutor(new TestRunnableManager(true), 50, 0);
+        final TestInclude slow = new TestInclude("slow", 500, null);
+        final TestInclude fast = new TestInclude("fast", 0, null);
+        executor.execute("slow", slow);
+        executor.execute("fast", fast);
+        assertFalse(executor.await(slow));
+        assertTrue(executor.await(fast));
+        assertFalse("The slow include is abandoned", executor.awaitAll());
+        assertEquals(1, slow.loads);
+    }
+
+    public void testPageTimeout() {
+        final IncludeExecutor executor = createExecutor(new TestRunnableManager(true), 1000, 50);
+        final TestInclude slow = new TestInclude("slow", 500, null);
+        executor.execute("slow", slow);
+        final long start = System.currentTimeMillis();
+        assertFalse(executor.await(slow));
+        assertTrue(System.currentTimeMillis() - start < 500);
+        assertFalse(executor.awaitAll());
+    }
+
+    public void testQueuedIncludeTimeout() {
+        final TestRunnableManager manager = new TestRunnableManager(false);
+        final IncludeExecutor executor = createExecutor(manager, 10, 0);
+        final TestInclude include = new TestInclude("a", 0, null);
+        executor.execute("a", include);
+        assertEquals(1, manager.queued.size());
+        assertFalse(executor.await(include));
+        assertEquals(0, manager.queued.size());
+        // a cancelled include is not waited for and not run
+        assertTrue(executor.awaitAll());
+        include.run();
+        assertEquals(0, include.loads);
+    }
+
+    public void testAwaitAll() {
+        final IncludeExecutor executor = createExecutor(new TestRunnableManager(true), 0, 0);
+        final TestInclude include = new TestInclude("a", 50, null);
+        executor.execute("a", include);
+        assertTrue(executor.awaitAll());
+        assertEquals(1, include.loads);
+    }
+
+    public void testAwaitAllTimeout() {
+        final IncludeExecutor executor = createExecutor(new TestRunnableManager(true), 1000, 50);
+        final TestInclude slow = new TestInclude("slow", 500, null);
+        executor.execute("slow", slow);
+        final long start = System.currentTimeMillis();
+        assertFalse(executor.awaitAll());
+        assertTrue(System.currentTimeMillis() - start < 500);
+    }
+
+    public void testAwaitAllInterrupts() {
+        final IncludeExecutor executor = createExecutor(new TestRunnableManager(true), 50, 0);
+        final TestInclude slow = new TestInclude("slow", 5000, null);
+        executor.execute("slow", slow);
+        final long start = System.currentTimeMillis();
+        assertFalse(executor.awaitAll());
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertTrue("Stopped when awaitAll returns", executor.await(slow));
+        assertTrue(slow.getException() instanceof InterruptedException);
+    }
+
+    public void testAwaitAllWaitsForLoad() {
+        final IncludeExecutor executor = createExecutor(new TestRunnableManager(true), 50, 0);
+        final long[] loaded = new long[1];
+        final IncludeExecutor.Include busy = new IncludeExecutor.Include("busy") {
+            protected void load() {
+                // ignores the interrupt, as a load blocked on I/O would
+                final long end = System.currentTimeMillis() + 200;
+                while (System.currentTimeMillis() < end) {
+                    Thread.yield();
+                }
+                loaded[0] = System.currentTimeMillis();
+            }
+        };
+        executor.execute("busy", busy);
+        assertFalse(executor.awaitAll());
+        final long returned = System.currentTimeMillis();
+        assertTrue("The load has ended", loaded[0] != 0);
+        assertTrue(loaded[0] <= returned);
+    }
+
+    public void testNoIncludeAfterAwaitAll() {
+        final IncludeExecutor executor = createExecutor(new TestRunnableManager(true), 50, 0);
+        final TestInclude child = new TestInclude("child", 0, null);
+        final IncludeExecutor.Include parent = new IncludeExecutor.Include("parent") {
+            protected void load() {
+                final long end = System.currentTimeMillis() + 200;
+                while (System.currentTimeMillis() < end) {
+                    Thread.yield();
+                }
+                // started while the executor is stopping its includes
+                executor.execute("child", child);
+            }
+        };
+        executor.execute("parent", parent);
+        assertFalse(executor.awaitAll());
+        assertFalse("Cancelled", executor.await(child));
+        assertEquals("Not run", 0, child.loads);
+    }
+}
@@ -90,4 +90,26 @@ public interface ObjectModel extends Map {
      * @param parentObjectModel
      */
     void setParent(ObjectModel parentObjectModel);
+
+    /**
+     * <p>Returns the evaluation context an expression language has stored for this Object Model, e.g. a
+     * <code>JXPathContext</code>. This allows all expressions evaluated against the same Object Model to share
+     * one context instead of creating their own.</p>
+     *
+     * <p>Stored contexts are dropped whenever the Object Model is modified or a local context is marked or
+     * cleaned up, so they may depend on the current entries.</p>
+     *
+     * @param key identifies the expression language
+     * @return the stored context or <code>null</code> if there is none
+     */
+    Object getEvaluationContext(String key);
+
+    /**
+     * Stores the evaluation context of an expression language.
+     *
+     * @see #getEvaluationContext(String)
+     * @param key identifies the expression language
+     * @param context the context to store
+     */
+    void setEvaluationContext(String key, Object context);
 }
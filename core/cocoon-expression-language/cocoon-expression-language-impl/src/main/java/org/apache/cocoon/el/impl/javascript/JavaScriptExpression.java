@@ -36,6 +36,9 @@ import org.mozilla.javascript.Wrapper;
  */
 public class JavaScriptExpression extends AbstractExpression {
 
+    /** The key of the shared scope in the object model */
+    private static final String SCOPE_KEY = JavaScriptExpression.class.getName();
+
     private Script script;
     private JSIntrospector introspector;
     private Scriptable rootScope;
@@ -58,16 +61,12 @@ public class JavaScriptExpression extends AbstractExpression {
     public Object evaluate(ObjectModel objectModel) throws ExpressionException {
         Context ctx = Context.enter();
         try {
-            Scriptable scope = ctx.newObject(getScope(rootScope));
-
-            // Populate the scope
-            Iterator iter = objectModel.entrySet().iterator();
-            while (iter.hasNext()) {
-                Map.Entry entry = (Map.Entry) iter.next();
-                String key = (String) entry.getKey();
-                Object value = entry.getValue();
-                scope.put(key, scope, Context.toObject(value, scope));
-            }
+            // Variables assigned by the script end up in this scope and
+            // don't change the shared scope holding the object model
+            Scriptable objectModelScope = getObjectModelScope(objectModel);
+            Scriptable scope = ctx.newObject(objectModelScope);
+            scope.setPrototype(objectModelScope);
+            scope.setParentScope(null);
 
             Object result = this.script.exec(ctx, scope);
             return unwrap(result);
@@ -108,6 +107,28 @@ public class JavaScriptExpression extends AbstractExpression {
         return evaluate(objectModel);
     }
 
+    /**
+     * @return the scope holding the entries of the object model, shared
+     *         by all expressions until the object model is modified
+     */
+    private Scriptable getObjectModelScope(ObjectModel objectModel) {
+        Scriptable scope = (Scriptable) objectModel.getEvaluationContext(SCOPE_KEY);
+        if (scope == null || scope.getPrototype() != this.rootScope) {
+            scope = getScope(this.rootScope);
+
+            // Populate the scope
+            Iterator iter = objectModel.entrySet().iterator();
+            while (iter.hasNext()) {
+                Map.Entry entry = (Map.Entry) iter.next();
+                String key = (String) entry.getKey();
+                Object value = entry.getValue();
+                scope.put(key, scope, Context.toObject(value, scope));
+            }
+            objectModel.setEvaluationContext(SCOPE_KEY, scope);
+        }
+        return scope;
+    }
+
     private Scriptable getScope(Scriptable rootScope) {
         Scriptable scope;
         Context ctx = Context.enter();
@@ -32,6 +32,9 @@ import org.apache.commons.jexl.util.introspection.Info;
  */
 public class JexlExpression extends AbstractExpression {
 
+    /** The key of the shared JexlContext in the object model */
+    private static final String CONTEXT_KEY = JexlExpression.class.getName();
+
     private final org.apache.commons.jexl.Expression compiledExpression;
 
     public JexlExpression(String language, String expression) throws ExpressionException {
@@ -45,7 +48,7 @@ public class JexlExpression extends AbstractExpression {
 
     public Object evaluate(ObjectModel objectModel) throws ExpressionException {
         try {
-            return this.compiledExpression.evaluate(new ContextAdapter(objectModel));
+            return this.compiledExpression.evaluate(getContext(objectModel));
         } catch (Exception e) {
             throw new ExpressionException("Couldn't evaluate expression " + getExpression(), e);
         }
@@ -82,6 +85,15 @@ public class JexlExpression extends AbstractExpression {
         return evaluate(objectModel);
     }
 
+    private JexlContext getContext(ObjectModel objectModel) {
+        JexlContext context = (JexlContext) objectModel.getEvaluationContext(CONTEXT_KEY);
+        if (context == null) {
+            context = new ContextAdapter(objectModel);
+            objectModel.setEvaluationContext(CONTEXT_KEY, context);
+        }
+        return context;
+    }
+
     private static class ContextAdapter implements JexlContext {
         private Map objectModel;
 
@@ -43,6 +43,9 @@ public class JXPathExpression implements Expression {
 
     public static final String LENIENT = "lenient";
 
+    /** The key of the shared JXPathContext in the object model */
+    private static final String CONTEXT_KEY = JXPathExpression.class.getName();
+
     public JXPathExpression(String language, String expression)
         throws ExpressionException {
         this.language = language;
@@ -130,13 +133,16 @@ public class JXPathExpression implements Expression {
     }
 
     private JXPathContext getContext(ObjectModel objectModel) {
-        // This could be made more efficient by caching the
-        // JXPathContext within the Context object.
-        
-        JXPathContext jxobjectModel = JXPathContext.newContext(objectModel.get(ObjectModel.CONTEXTBEAN));
-        jxobjectModel.setVariables(new VariableAdapter(objectModel));
+        // The context is shared by all JXPath expressions until the
+        // object model is modified, only the lenient flag differs.
+        JXPathContext jxobjectModel = (JXPathContext) objectModel.getEvaluationContext(CONTEXT_KEY);
+        if (jxobjectModel == null) {
+            jxobjectModel = JXPathContext.newContext(objectModel.get(ObjectModel.CONTEXTBEAN));
+            jxobjectModel.setVariables(new VariableAdapter(objectModel));
+            jxobjectModel.setNamespaceContextPointer(new NamespacesTablePointer((NamespacesTable)objectModel.get(ObjectModel.NAMESPACE)));
+            objectModel.setEvaluationContext(CONTEXT_KEY, jxobjectModel);
+        }
         jxobjectModel.setLenient(this.lenient);
-        jxobjectModel.setNamespaceContextPointer(new NamespacesTablePointer((NamespacesTable)objectModel.get(ObjectModel.NAMESPACE)));
         return jxobjectModel;
     }
 
@@ -51,6 +51,9 @@ public class ObjectModelImpl extends AbstractMapDecorator implements ObjectModel
     private MultiMap multiValueMapForLocated;
     private Map initialEntries;
 
+    /** Evaluation contexts of the expression languages, dropped on every modification */
+    private final Map evaluationContexts = new HashMap(4);
+
     //FIXME: This is a temporary solution
     private boolean modified;
 
@@ -91,6 +94,7 @@ public class ObjectModelImpl extends AbstractMapDecorator implements ObjectModel
 
     public Object put(Object key, Object value) {
         modified = true;
+        dropEvaluationContexts();
         if (!localContexts.empty()) {
             ((ArrayStack) localContexts.peek()).push(new DefaultKeyValue(key, value));
         }
@@ -103,6 +107,7 @@ public class ObjectModelImpl extends AbstractMapDecorator implements ObjectModel
 
     public void putAll(Map mapToCopy) {
         modified = true;
+        dropEvaluationContexts();
         if (!localContexts.empty()) {
             ArrayStack entries = (ArrayStack)localContexts.peek();
             for (Iterator keysIterator = mapToCopy.keySet().iterator(); keysIterator.hasNext();) {
@@ -115,6 +120,16 @@ public class ObjectModelImpl extends AbstractMapDecorator implements ObjectModel
         multiValueMap.putAll(mapToCopy);
     }
 
+    public Object remove(Object key) {
+        dropEvaluationContexts();
+        return super.remove(key);
+    }
+
+    public void clear() {
+        dropEvaluationContexts();
+        super.clear();
+    }
+
     /**
      * Locates map at given path
      * @param path where Map can be found
@@ -162,6 +177,7 @@ public class ObjectModelImpl extends AbstractMapDecorator implements ObjectModel
             throw new IllegalArgumentException("Path cannot be empty");
         }
 
+        dropEvaluationContexts();
         Map map = locateMapAt(path, true);
         String key = path.substring(path.lastIndexOf(SEGMENT_SEPARATOR) + 1, path.length());
         if (!localContexts.empty()) {
@@ -197,6 +213,7 @@ public class ObjectModelImpl extends AbstractMapDecorator implements ObjectModel
             throw new IllegalStateException("Local contexts stack is empty");
         }
 
+        dropEvaluationContexts();
         ArrayStack removeEntries = (ArrayStack)localContexts.pop();
         while (!removeEntries.isEmpty()) {
             if (removeEntries.peek() instanceof PathValue) {
@@ -218,9 +235,30 @@ public class ObjectModelImpl extends AbstractMapDecorator implements ObjectModel
     }
 
     public void markLocalContext() {
+        dropEvaluationContexts();
         localContexts.push(new ArrayStack());
     }
 
+    /* (non-Javadoc)
+     * @see ObjectModel#getEvaluationContext(String)
+     */
+    public Object getEvaluationContext(String key) {
+        return evaluationContexts.get(key);
+    }
+
+    /* (non-Javadoc)
+     * @see ObjectModel#setEvaluationContext(String, Object)
+     */
+    public void setEvaluationContext(String key, Object context) {
+        evaluationContexts.put(key, context);
+    }
+
+    private void dropEvaluationContexts() {
+        if (!evaluationContexts.isEmpty()) {
+            evaluationContexts.clear();
+        }
+    }
+
     public Map getInitialEntries() {
         return initialEntries;
     }
@@ -312,6 +350,7 @@ public class ObjectModelImpl extends AbstractMapDecorator implements ObjectModel
             throw new IllegalStateException("Setting parent may occur only if Object Model is empty.");
         }
 
+        dropEvaluationContexts();
         singleValueMap.putAll(parentObjectModel);
         multiValueMap.putAll(parentObjectModel.getAll());
     }
@@ -63,4 +63,24 @@ public class JavaScriptTestCase extends TestCase {
         assertEquals("foo", iter.next());
         assertFalse("hasNext", iter.hasNext());
     }
+
+    public void testModifiedObjectModel() throws ExpressionException {
+        JavaScriptCompiler compiler = new JavaScriptCompiler();
+        compiler.setRootScope(RhinoScopeFactory.createRhinoScope());
+        ObjectModel objectModel = new ObjectModelImpl();
+        objectModel.put("a", new Long(1));
+        Expression expression = compiler.compile("js", "a+1");
+        assertEquals(new Double(2), expression.evaluate(objectModel));
+        objectModel.put("a", new Long(2));
+        assertEquals(new Double(3), expression.evaluate(objectModel));
+    }
+
+    public void testAssignmentIsNotShared() throws ExpressionException {
+        JavaScriptCompiler compiler = new JavaScriptCompiler();
+        compiler.setRootScope(RhinoScopeFactory.createRhinoScope());
+        ObjectModel objectModel = new ObjectModelImpl();
+        objectModel.put("a", new Long(1));
+        compiler.compile("js", "b = a").evaluate(objectModel);
+        assertEquals("undefined", compiler.compile("js", "typeof b").evaluate(objectModel));
+    }
 }
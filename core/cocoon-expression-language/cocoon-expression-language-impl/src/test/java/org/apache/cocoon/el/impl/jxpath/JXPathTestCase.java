@@ -23,6 +23,7 @@ import org.apache.cocoon.el.ExpressionCompiler;
 import org.apache.cocoon.el.ExpressionException;
 import org.apache.cocoon.el.impl.jxpath.JXPathCompiler;
 import org.apache.cocoon.el.impl.objectmodel.ObjectModelImpl;
+import org.apache.cocoon.el.objectmodel.ObjectModel;
 
 public class JXPathTestCase extends TestCase {
 
@@ -32,6 +33,17 @@ public class JXPathTestCase extends TestCase {
         assertEquals(new Double(3), expression.evaluate(new ObjectModelImpl()));
     }
 
+    public void testModifiedContextBean() throws ExpressionException {
+        ExpressionCompiler compiler = new JXPathCompiler();
+        ObjectModel objectModel = new ObjectModelImpl();
+        Expression expression = compiler.compile("jxpath", ".");
+        objectModel.put(ObjectModel.CONTEXTBEAN, "foo");
+        assertEquals("foo", expression.evaluate(objectModel));
+        assertEquals("foo", expression.evaluate(objectModel));
+        objectModel.put(ObjectModel.CONTEXTBEAN, "bar");
+        assertEquals("bar", expression.evaluate(objectModel));
+    }
+
     /*public void testContextExpression() throws ExpressionException {
         ExpressionCompiler compiler = new JXPathCompiler();
         ObjectModel objectModel = new ObjectModel();
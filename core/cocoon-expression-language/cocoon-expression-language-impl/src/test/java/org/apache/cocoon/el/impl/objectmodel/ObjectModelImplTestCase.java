@@ -174,4 +174,40 @@ public class ObjectModelImplTestCase extends TestCase {
         
         assertEquals("bar", objectModel.get("foo"));
     }
+
+    public void testEvaluationContext() {
+        Object context = new Object();
+        objectModel.setEvaluationContext("test", context);
+        assertSame(context, objectModel.getEvaluationContext("test"));
+
+        objectModel.put("foo", "bar");
+        assertNull(objectModel.getEvaluationContext("test"));
+
+        objectModel.setEvaluationContext("test", context);
+        objectModel.markLocalContext();
+        assertNull(objectModel.getEvaluationContext("test"));
+
+        objectModel.setEvaluationContext("test", context);
+        objectModel.putAt("foo2/bar", "xyz");
+        assertNull(objectModel.getEvaluationContext("test"));
+
+        objectModel.setEvaluationContext("test", context);
+        objectModel.cleanupLocalContext();
+        assertNull(objectModel.getEvaluationContext("test"));
+    }
+
+    public void testEvaluationContextAfterRemove() {
+        Object context = new Object();
+        objectModel.put("foo", "bar");
+        objectModel.setEvaluationContext("test", context);
+        objectModel.remove("foo");
+        assertNull(objectModel.getEvaluationContext("test"));
+        assertNull(objectModel.get("foo"));
+
+        objectModel.put("foo", "bar");
+        objectModel.setEvaluationContext("test", context);
+        objectModel.clear();
+        assertNull(objectModel.getEvaluationContext("test"));
+        assertTrue(objectModel.isEmpty());
+    }
 }
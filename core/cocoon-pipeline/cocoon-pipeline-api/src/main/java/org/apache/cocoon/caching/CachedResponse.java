@@ -16,6 +16,8 @@
  */
 package org.apache.cocoon.caching;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Serializable;
 
 import org.apache.excalibur.source.SourceValidity;
@@ -96,6 +98,24 @@ public class CachedResponse
         return this.response;
     }
 
+    /**
+     * Get the length of the cached response.
+     *
+     * @return The number of bytes of the sax stream or character stream
+     */
+    public int getLength() {
+        return this.response == null ? 0 : this.response.length;
+    }
+
+    /**
+     * Write the cached response to the given stream.
+     */
+    public void writeTo(OutputStream os) throws IOException {
+        if (this.response != null) {
+            os.write(this.response);
+        }
+    }
+
     /**
      * Get the configured expires.
      *
@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.caching;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.excalibur.source.SourceValidity;
+
+/**
+ * A cached response which keeps the character response in the segments of
+ * a {@link SegmentedOutputStream} instead of a single byte array. This
+ * avoids copying large responses into one array when caching them and
+ * writes them out segment by segment.
+ *
+ * <p>{@link #getResponse()} still works but has to copy the segments
+ * into a new array on each call; use {@link #getLength()} and
+ * {@link #writeTo(OutputStream)} instead.</p>
+ *
+ * @since 2.2
+ * @version $Id$
+ */
+public class SegmentedCachedResponse extends CachedResponse {
+
+    protected final byte[][] segments;
+    protected final int      length;
+
+    /**
+     * Create a new entry for the cache.
+     *
+     * @param validityObjects The SourceValidity objects in the order
+     *                        they occured in the pipeline
+     * @param segments        The character stream
+     * @param expires         The configured expires, or null if no
+     *                        expires was defined.
+     */
+    public SegmentedCachedResponse(SourceValidity[] validityObjects,
+                                   byte[][]         segments,
+                                   Long             expires) {
+        super(validityObjects, null, expires);
+        this.segments = segments;
+        int length = 0;
+        for (int i = 0; i < segments.length; i++) {
+            length += segments[i].length;
+        }
+        this.length = length;
+    }
+
+    /**
+     * Create a new entry for the cache.
+     *
+     * @param validityObjects The SourceValidity objects in the order
+     *                        they occured in the pipeline
+     * @param segments        The character stream
+     */
+    public SegmentedCachedResponse(SourceValidity[] validityObjects,
+                                   byte[][]         segments) {
+        this(validityObjects, segments, null);
+    }
+
+    /**
+     * Get a copy of the cached response.
+     *
+     * @see org.apache.cocoon.caching.CachedResponse#getResponse()
+     */
+    public byte[] getResponse() {
+        final byte[] response = new byte[this.length];
+        int pos = 0;
+        for (int i = 0; i < this.segments.length; i++) {
+            System.arraycopy(this.segments[i], 0, response, pos, this.segments[i].length);
+            pos += this.segments[i].length;
+        }
+        return response;
+    }
+
+    /**
+     * @see org.apache.cocoon.caching.CachedResponse#getLength()
+     */
+    public int getLength() {
+        return this.length;
+    }
+
+    /**
+     * @see org.apache.cocoon.caching.CachedResponse#writeTo(java.io.OutputStream)
+     */
+    public void writeTo(OutputStream os) throws IOException {
+        for (int i = 0; i < this.segments.length; i++) {
+            os.write(this.segments[i]);
+        }
+    }
+}
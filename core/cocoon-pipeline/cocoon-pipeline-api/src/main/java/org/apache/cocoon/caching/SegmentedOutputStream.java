@@ -0,0 +1,193 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.caching;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An output stream which buffers all bytes in a list of fixed-size segments
+ * instead of a single growing array. The buffer never copies what has been
+ * written when it grows, and the segments can be handed over to a
+ * {@link SegmentedCachedResponse} without copying them again.
+ *
+ * <p>Segments are taken from a shared pool. A buffer which is only used
+ * temporarily, e.g. to determine the content length, should be given back
+ * with {@link #release()}. Segments passed on with {@link #getSegments()} are
+ * owned by the caller and are not returned to the pool.</p>
+ *
+ * @since 2.2
+ * @version $Id$
+ */
+public class SegmentedOutputStream extends OutputStream {
+
+    /** The size of a segment in bytes */
+    public static final int SEGMENT_SIZE = 8192;
+
+    /** The maximum number of segments kept in the pool (4MB) */
+    private static final int MAX_POOLED_SEGMENTS = 512;
+
+    private static final Queue POOL = new ConcurrentLinkedQueue();
+    private static final AtomicInteger POOLED = new AtomicInteger();
+
+    /** The full segments */
+    private final List segments = new ArrayList();
+
+    /** The segment currently written to */
+    private byte[] current;
+
+    /** The number of bytes in the current segment */
+    private int count;
+
+    /** The total number of bytes written */
+    private int size;
+
+    public void write(int b) {
+        if (this.current == null || this.count == SEGMENT_SIZE) {
+            nextSegment();
+        }
+        this.current[this.count++] = (byte) b;
+        this.size++;
+    }
+
+    public void write(byte b[], int off, int len) {
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        while (len > 0) {
+            if (this.current == null || this.count == SEGMENT_SIZE) {
+                nextSegment();
+            }
+            final int n = Math.min(len, SEGMENT_SIZE - this.count);
+            System.arraycopy(b, off, this.current, this.count, n);
+            this.count += n;
+            this.size += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void nextSegment() {
+        if (this.current != null) {
+            this.segments.add(this.current);
+        }
+        this.current = takeSegment();
+        this.count = 0;
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Write the buffered bytes segment by segment to the given stream.
+     */
+    public void writeTo(OutputStream os) throws IOException {
+        for (int i = 0; i < this.segments.size(); i++) {
+            os.write((byte[]) this.segments.get(i), 0, SEGMENT_SIZE);
+        }
+        if (this.count > 0) {
+            os.write(this.current, 0, this.count);
+        }
+    }
+
+    /**
+     * @return a copy of the buffered bytes in a single array
+     */
+    public byte[] toByteArray() {
+        final byte[] bytes = new byte[this.size];
+        int pos = 0;
+        for (int i = 0; i < this.segments.size(); i++) {
+            System.arraycopy(this.segments.get(i), 0, bytes, pos, SEGMENT_SIZE);
+            pos += SEGMENT_SIZE;
+        }
+        if (this.count > 0) {
+            System.arraycopy(this.current, 0, bytes, pos, this.count);
+        }
+        return bytes;
+    }
+
+    /**
+     * Pass the buffered bytes on as segments. All segments but the last one
+     * have {@link #SEGMENT_SIZE} bytes, the last one is trimmed to the bytes
+     * written. The buffer is empty afterwards.
+     */
+    public byte[][] getSegments() {
+        final int full = this.segments.size();
+        final byte[][] result = new byte[full + (this.count > 0 ? 1 : 0)][];
+        for (int i = 0; i < full; i++) {
+            result[i] = (byte[]) this.segments.get(i);
+        }
+        if (this.count > 0) {
+            if (this.count == SEGMENT_SIZE) {
+                result[full] = this.current;
+            } else {
+                result[full] = new byte[this.count];
+                System.arraycopy(this.current, 0, result[full], 0, this.count);
+                giveBack(this.current);
+            }
+        } else if (this.current != null) {
+            giveBack(this.current);
+        }
+        this.segments.clear();
+        this.current = null;
+        this.count = 0;
+        this.size = 0;
+        return result;
+    }
+
+    /**
+     * Give all segments back to the pool. The buffer is empty afterwards.
+     */
+    public void release() {
+        for (int i = 0; i < this.segments.size(); i++) {
+            giveBack((byte[]) this.segments.get(i));
+        }
+        if (this.current != null) {
+            giveBack(this.current);
+        }
+        this.segments.clear();
+        this.current = null;
+        this.count = 0;
+        this.size = 0;
+    }
+
+    private static byte[] takeSegment() {
+        final byte[] segment = (byte[]) POOL.poll();
+        if (segment == null) {
+            return new byte[SEGMENT_SIZE];
+        }
+        POOLED.decrementAndGet();
+        return segment;
+    }
+
+    private static void giveBack(byte[] segment) {
+        if (POOLED.incrementAndGet() <= MAX_POOLED_SEGMENTS) {
+            POOL.offer(segment);
+        } else {
+            POOLED.decrementAndGet();
+        }
+    }
+}
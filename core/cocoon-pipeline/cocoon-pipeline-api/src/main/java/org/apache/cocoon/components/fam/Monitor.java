@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.fam;
+
+import java.io.File;
+
+/**
+ * The monitor watches files for changes and notifies the subscribed
+ * listeners. Components reloading a file on change can subscribe to the
+ * monitor instead of checking the last modification date on every request.
+ *
+ * <p>Listeners are called from a background thread of the monitor, or from
+ * {@link #subscribe(File, MonitorListener, long)} itself, and should only
+ * invalidate their state, the reload itself should happen on next use.</p>
+ *
+ * @since 2.2
+ * @version $Id$
+ */
+public interface Monitor {
+
+    /** The Avalon Role **/
+    String ROLE = Monitor.class.getName();
+
+    /**
+     * Subscribe a listener to the changes of a file. A file which does not
+     * exist yet can be monitored as well, the listener is notified when it
+     * is created.
+     *
+     * @param file     the file to monitor
+     * @param listener the listener notified on every change of the file
+     */
+    void subscribe(File file, MonitorListener listener);
+
+    /**
+     * Subscribe a listener to the changes of a file since a given
+     * modification date. Components which have built their state from the
+     * file before subscribing should use this method with the modification
+     * date the state was built from: if the file has changed in the
+     * meantime, the listener is notified right away.
+     *
+     * @param file         the file to monitor
+     * @param listener     the listener notified on every change of the file
+     * @param lastModified the modification date of the file known to the listener
+     */
+    void subscribe(File file, MonitorListener listener, long lastModified);
+
+    /**
+     * Remove a listener subscribed with {@link #subscribe(File, MonitorListener)}
+     * or {@link #subscribe(File, MonitorListener, long)}.
+     * The file is no longer monitored if there are no more listeners.
+     */
+    void unsubscribe(File file, MonitorListener listener);
+}
@@ -0,0 +1,66 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.pipeline;
+
+/**
+ * The pipeline lock manager is used by the caching pipelines to avoid
+ * that several concurrent requests produce the same cacheable response.
+ * The first request generating a response takes the lock for the cache
+ * key; other requests for the same key wait until the lock is released
+ * (or a timeout is reached) and then look into the cache again.
+ *
+ * @since 2.2
+ * @version $Id$
+ */
+public interface PipelineLockManager {
+
+    /** The Avalon Role **/
+    String ROLE = PipelineLockManager.class.getName();
+
+    /**
+     * Take the lock for the given key.
+     *
+     * @param key   the key identifying the response being generated
+     * @param owner the owner of the lock (usually the current request)
+     * @return <code>true</code> if the lock was taken, <code>false</code>
+     *         if the key was already locked
+     */
+    boolean lock(Object key, Object owner);
+
+    /**
+     * Wait for a lock held by another owner to be released.
+     *
+     * @param key     the key identifying the response being generated
+     * @param owner   the owner asking (a lock held by the owner itself is
+     *                never waited on, see COCOON-1985)
+     * @param timeout maximum time to wait in milliseconds
+     * @return <code>true</code> if there was no lock to wait for,
+     *         <code>false</code> if the lock was found and waited on
+     */
+    boolean waitForLock(Object key, Object owner, long timeout);
+
+    /**
+     * Release the lock for the given key and wake up all waiting
+     * threads. The lock should be released by its owner; if another
+     * owner releases it, a warning is logged and the lock is released
+     * as well.
+     *
+     * @param key   the key identifying the response being generated
+     * @param owner the owner of the lock
+     */
+    void unlock(Object key, Object owner);
+}
@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.pipeline;
+
+/**
+ * The pipeline metrics collect the time spent in the different phases of
+ * pipeline processing. The processing pipelines report the times of every
+ * request; the metrics aggregate them per sitemap location of the pipeline
+ * (the location of the generate or read statement) and pipeline type.
+ *
+ * <p>All times are in nanoseconds. A time of <code>-1</code> means that the
+ * phase has not been measured.</p>
+ *
+ * @since 2.2
+ * @version $Id$
+ */
+public interface PipelineMetrics {
+
+    /** The Avalon Role **/
+    String ROLE = PipelineMetrics.class.getName();
+
+    /** Setting up the pipeline components (without cache key and validity) */
+    int SETUP = 0;
+
+    /** Generating the cache key */
+    int CACHE_KEY = 1;
+
+    /** Checking the validity of a cached response */
+    int VALIDITY = 2;
+
+    /** Processing the pipeline: generating, transforming and serializing */
+    int PROCESSING = 3;
+
+    /** The generator (or the cached events replayed instead) */
+    int GENERATOR = 4;
+
+    /** The serializer (or the consumer of an internal pipeline) */
+    int SERIALIZER = 5;
+
+    /** The first transformer, the following transformers use the following indexes */
+    int TRANSFORMER = 6;
+
+    /**
+     * Should the time of the single pipeline components be measured?
+     * This requires timing every SAX event and is therefore more expensive
+     * than measuring the phases.
+     */
+    boolean isComponentTimingEnabled();
+
+    /**
+     * Record the times of one processed request.
+     *
+     * @param location the sitemap location of the pipeline
+     * @param type     the pipeline type
+     * @param times    the times in nanoseconds, indexed by phase
+     * @param bytes    the number of bytes written, or <code>-1</code>
+     */
+    void record(String location, String type, long[] times, long bytes);
+
+    /**
+     * @return a human readable summary of the recorded metrics,
+     *         one line per pipeline and phase
+     */
+    String[] getSummary();
+}
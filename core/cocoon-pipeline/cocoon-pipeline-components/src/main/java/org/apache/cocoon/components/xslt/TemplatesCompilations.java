@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.xslt;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.apache.excalibur.source.SourceValidity;
+
+/**
+ * The stylesheet compilations in progress of an XSLT processor. A
+ * stylesheet is compiled only once at a time: concurrent requests for the
+ * same stylesheet wait for the running compilation and share its result.
+ *
+ * @since 2.2
+ * @version $Id$
+ */
+final class TemplatesCompilations {
+
+    /** Compilations in progress: store key to {@link FutureTask} */
+    private final ConcurrentMap compilations = new ConcurrentHashMap();
+
+    /**
+     * Compile a stylesheet, or wait for the compilation already running.
+     *
+     * @param key         the store key of the stylesheet
+     * @param compilation compiles the stylesheet, unless a compilation is
+     *                    running already
+     * @return the result of the compilation
+     * @throws Exception the exception of the compilation, or an
+     *         <code>InterruptedException</code> if interrupted while waiting
+     */
+    public Object compile(Object key, Callable compilation) throws Exception {
+        final FutureTask task = new FutureTask(compilation);
+        FutureTask running = (FutureTask) this.compilations.putIfAbsent(key, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                this.compilations.remove(key, task);
+            }
+        }
+
+        try {
+            return running.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the stylesheet is being compiled
+     */
+    public boolean isCompiling(Object key) {
+        return this.compilations.containsKey(key);
+    }
+
+    /**
+     * Get the validity of content produced with the previous Templates of a
+     * stylesheet, while it is recompiled. The content is valid until the
+     * compilation is over, so that it can be cached in the meantime.
+     *
+     * @return the validity, or <code>null</code> if the stylesheet is not
+     *         being compiled
+     */
+    public SourceValidity getRecompilingValidity(Object key) {
+        final Future running = (Future) this.compilations.get(key);
+        return running == null ? null : new RecompilingValidity(running);
+    }
+
+    /**
+     * Valid while a stylesheet is recompiled.
+     */
+    private static final class RecompilingValidity implements SourceValidity {
+
+        private final transient Future compilation;
+
+        RecompilingValidity(Future compilation) {
+            this.compilation = compilation;
+        }
+
+        public int isValid() {
+            return this.compilation != null && !this.compilation.isDone() ? VALID : INVALID;
+        }
+
+        public int isValid(SourceValidity newValidity) {
+            return INVALID;
+        }
+    }
+}
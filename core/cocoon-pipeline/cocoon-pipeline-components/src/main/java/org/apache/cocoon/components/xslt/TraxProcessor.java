@@ -20,11 +20,20 @@ package org.apache.cocoon.components.xslt;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Method;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import javax.xml.transform.Result;
 import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
@@ -49,7 +58,9 @@ import org.apache.excalibur.source.Source;
 import org.apache.excalibur.source.SourceException;
 import org.apache.excalibur.source.SourceResolver;
 import org.apache.excalibur.source.SourceValidity;
+import org.apache.excalibur.source.impl.FileSource;
 import org.apache.excalibur.source.impl.validity.AggregatedValidity;
+import org.apache.excalibur.source.impl.validity.TimeStampValidity;
 import org.apache.excalibur.store.Store;
 import org.apache.excalibur.xml.sax.SAXParser;
 import org.apache.excalibur.xml.sax.XMLizable;
@@ -57,6 +68,8 @@ import org.apache.excalibur.xml.xslt.XSLTProcessor;
 import org.apache.excalibur.xml.xslt.XSLTProcessorException;
 
 import org.apache.cocoon.ProcessingException;
+import org.apache.cocoon.components.fam.Monitor;
+import org.apache.cocoon.components.fam.MonitorListener;
 import org.apache.cocoon.components.source.util.SourceUtil;
 import org.apache.cocoon.util.AbstractLogEnabled;
 
@@ -69,6 +82,13 @@ import org.xml.sax.XMLFilter;
  * Adaptation of Excalibur's XSLTProcessor implementation to allow for better
  * error reporting.
  *
+ * <p>With the <code>background-recompile</code> parameter, a stylesheet which
+ * changed is recompiled synchronously by the first request noticing the
+ * change, while the other requests using the same instance keep using the
+ * previous Templates until the new ones are ready. The compilations are not
+ * shared between the instances of the pool: a request served by another
+ * instance compiles the stylesheet on its own.</p>
+ *
  * @version $Id$
  * @since 2.1.8
  */
@@ -101,10 +121,34 @@ public class TraxProcessor extends AbstractLogEnabled
     protected boolean m_checkIncludes;
 
     /** Map of pairs of System ID's / validities of the included stylesheets */
-    protected Map m_includesMap = new HashMap();
+    protected Map m_includesMap = Collections.synchronizedMap(new HashMap());
 
     protected SAXParser saxParser;
 
+    /** Keep serving the previous Templates while a changed stylesheet is recompiled? (default is off) */
+    protected boolean m_backgroundRecompile;
+
+    /**
+     * The stylesheet compilations in progress of this instance. As in
+     * {@link XSLTProcessorImpl}, they are not shared with other instances of
+     * the component, so the requests served by another instance of the pool
+     * compile a stylesheet on their own.
+     */
+    private final TemplatesCompilations m_compilations = new TemplatesCompilations();
+
+    /**
+     * Stored Templates which are valid until the monitor reports a change of
+     * the stylesheet or one of its includes: store key to {@link TemplatesMonitor}.
+     * Shared by all instances, as the templates store is.
+     */
+    private static final ConcurrentMap MONITORED = new ConcurrentHashMap();
+
+    /** The Templates of monitors which have been evicted from the store and collected */
+    private static final ReferenceQueue EVICTED = new ReferenceQueue();
+
+    /** The monitor watching the stylesheet files, if available */
+    protected Monitor m_monitor;
+
     /** The ServiceManager */
     protected ServiceManager m_manager;
 
@@ -114,6 +158,7 @@ public class TraxProcessor extends AbstractLogEnabled
      * @avalon.service interface="XMLizer"
      * @avalon.service interface="SourceResolver"
      * @avalon.service interface="Store/TransientStore" optional="true"
+     * @avalon.service interface="Monitor" optional="true"
      */
     public void service(final ServiceManager manager) throws ServiceException {
         m_manager = manager;
@@ -123,6 +168,9 @@ public class TraxProcessor extends AbstractLogEnabled
         if (m_manager.hasService(Store.TRANSIENT_STORE)) {
             m_store = (Store) m_manager.lookup(Store.TRANSIENT_STORE);
         }
+        if (m_manager.hasService(Monitor.ROLE)) {
+            m_monitor = (Monitor) m_manager.lookup(Monitor.ROLE);
+        }
     }
 
     /**
@@ -137,11 +185,23 @@ public class TraxProcessor extends AbstractLogEnabled
      * @see org.apache.avalon.framework.activity.Disposable#dispose()
      */
     public void dispose() {
+        if (null != m_monitor) {
+            // Stop watching with the released monitor, the Templates are
+            // watched again on their next use
+            for (Iterator i = MONITORED.values().iterator(); i.hasNext();) {
+                final TemplatesMonitor monitored = (TemplatesMonitor) i.next();
+                if (monitored.isWatchedBy(m_monitor)) {
+                    monitored.cancel();
+                }
+            }
+        }
         if (null != m_manager) {
             m_manager.release(m_store);
             m_manager.release(m_resolver);
+            m_manager.release(m_monitor);
             m_manager = null;
         }
+        m_monitor = null;
         saxParser = null;
         m_store = null;
         m_resolver = null;
@@ -155,6 +215,7 @@ public class TraxProcessor extends AbstractLogEnabled
         m_incrementalProcessing = params.getParameterAsBoolean("incremental-processing", this.m_incrementalProcessing);
         m_transformerFactory = params.getParameter("transformer-factory", null);
         m_checkIncludes = params.getParameterAsBoolean("check-includes", true);
+        m_backgroundRecompile = params.getParameterAsBoolean("background-recompile", this.m_backgroundRecompile);
         if (!m_useStore) {
             // release the store, if we don't need it anymore
             m_manager.release(m_store);
@@ -207,11 +268,68 @@ public class TraxProcessor extends AbstractLogEnabled
                 }
                 return handlerAndValidity;
             }
+
+            if (m_backgroundRecompile) {
+                handlerAndValidity = getPreviousTemplates(id);
+                if (handlerAndValidity != null) {
+                    if (getLogger().isDebugEnabled()) {
+                        getLogger().debug("Reusing previous Templates for " + id + " while it is recompiled");
+                    }
+                    return handlerAndValidity;
+                }
+            }
         } catch (Exception e) {
             throw new XSLTProcessorException("Error retrieving template", e);
         }
 
+        final Object[] templatesAndValidity = compileTemplates(stylesheet, filter, id);
+        try {
+            return createHandlerAndValidity((Templates) templatesAndValidity[0],
+                                            (SourceValidity) templatesAndValidity[1],
+                                            id);
+        } catch (TransformerException e) {
+            throw new XSLTProcessorException("Exception when creating Transformer from " + id, e);
+        }
+    }
+
+    /**
+     * Compile the stylesheet, making sure it is compiled only once at a time:
+     * concurrent requests for the same stylesheet wait for the running
+     * compilation and share its result.
+     *
+     * @return the compiled <code>Templates</code> and their validity
+     */
+    private Object[] compileTemplates(final Source stylesheet, final XMLFilter filter, final String id)
+    throws XSLTProcessorException {
+        final String key = getTemplatesKey(id);
+        if (getLogger().isDebugEnabled() && m_compilations.isCompiling(key)) {
+            getLogger().debug("Waiting for Templates for " + id + " being compiled by another request");
+        }
+
+        try {
+            return (Object[]) m_compilations.compile(key, new Callable() {
+                public Object call() throws Exception {
+                    return doCompileTemplates(stylesheet, filter, id);
+                }
+            });
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (XSLTProcessorException e) {
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new XSLTProcessorException("Interrupted while waiting for Templates for " + id, e);
+        } catch (Exception e) {
+            throw new XSLTProcessorException("Exception when creating Transformer from " + id, e);
+        }
+    }
+
+    private Object[] doCompileTemplates(Source stylesheet, XMLFilter filter, String id)
+    throws XSLTProcessorException {
+        Object[] templatesAndValidity;
+
         TraxErrorListener errorListener = new TraxErrorListener(stylesheet.getURI());
+        boolean stored = false;
         try {
             if (getLogger().isDebugEnabled()) {
                 getLogger().debug("Creating new Templates for " + id);
@@ -261,12 +379,7 @@ public class TraxProcessor extends AbstractLogEnabled
                     method.invoke(template, new Object[]{id});
                 }
 
-                putTemplates(template, stylesheet, id);
-
-                // Create transformer handler
-                final TransformerHandler handler = m_factory.newTransformerHandler(template);
-                handler.getTransformer().setErrorListener(new TraxErrorListener(stylesheet.getURI()));
-                handler.getTransformer().setURIResolver(this);
+                stored = putTemplates(template, stylesheet, id);
 
                 // Create aggregated validity
                 AggregatedValidity aggregated;
@@ -283,14 +396,14 @@ public class TraxProcessor extends AbstractLogEnabled
                 }
 
                 // Create result
-                handlerAndValidity = new MyTransformerHandlerAndValidity(handler, validity);
+                templatesAndValidity = new Object[] { template, validity };
             } finally {
                 if (m_checkIncludes) {
                     m_includesMap.remove(id);
                 }
             }
 
-            return handlerAndValidity;
+            return templatesAndValidity;
         } catch (Exception e) {
             Throwable realEx = errorListener.getThrowable();
             if (realEx == null) {
@@ -306,9 +419,24 @@ public class TraxProcessor extends AbstractLogEnabled
             }
 
             throw new XSLTProcessorException("Exception when creating Transformer from " + stylesheet.getURI(), realEx);
+        } finally {
+            if (!stored && m_backgroundRecompile && m_useStore) {
+                // the previous Templates are not replaced, stop using them
+                m_store.remove(getTemplatesKey(id));
+            }
         }
     }
 
+    private TransformerHandlerAndValidity createHandlerAndValidity(Templates templates,
+                                                                   SourceValidity validity,
+                                                                   String id)
+    throws TransformerException {
+        final TransformerHandler handler = m_factory.newTransformerHandler(templates);
+        handler.getTransformer().setErrorListener(new TraxErrorListener(id));
+        handler.getTransformer().setURIResolver(this);
+        return new MyTransformerHandlerAndValidity(handler, validity);
+    }
+
     private void sourceToSAX(Source source, ContentHandler handler)
     throws SAXException, IOException, ProcessingException {
         if (source instanceof XMLizable) {
@@ -420,10 +548,7 @@ public class TraxProcessor extends AbstractLogEnabled
             return null;
         }
 
-        // we must augment the template ID with the factory classname since one
-        // transformer implementation cannot handle the instances of a
-        // template created by another one.
-        String key = "XSLTTemplate: " + id + '(' + m_factory.getClass().getName() + ')';
+        String key = getTemplatesKey(id);
 
         if (getLogger().isDebugEnabled()) {
             getLogger().debug("getTemplates: stylesheet " + id);
@@ -432,11 +557,26 @@ public class TraxProcessor extends AbstractLogEnabled
         // Stored is an array of the templates and the caching time and list of
         // includes
         Object[] templateAndValidityAndIncludes = (Object[]) m_store.get(key);
+        final TemplatesMonitor monitored = (TemplatesMonitor) MONITORED.get(key);
         if (templateAndValidityAndIncludes == null) {
             // Templates not found in cache
+            if (monitored != null) {
+                // the Templates have been evicted from the store
+                monitored.cancel();
+            }
             return null;
         }
 
+        // Templates watched by the monitor are valid until a change is reported
+        if (monitored != null) {
+            final Templates templates = monitored.getTemplates();
+            if (templates == templateAndValidityAndIncludes[0]) {
+                return createHandlerAndValidity(templates, monitored.validity, id);
+            }
+            // the stored Templates have been replaced
+            monitored.cancel();
+        }
+
         // Check template validity
         SourceValidity storedValidity = (SourceValidity) templateAndValidityAndIncludes[1];
         int valid = storedValidity.isValid();
@@ -449,7 +589,7 @@ public class TraxProcessor extends AbstractLogEnabled
 
         // Only valid stylesheets are stored
         if (valid != SourceValidity.VALID) {
-            m_store.remove(key);
+            removeInvalidTemplates(key);
             return null;
         }
 
@@ -481,7 +621,7 @@ public class TraxProcessor extends AbstractLogEnabled
                         }
                     }
                     if (valid != SourceValidity.VALID) {
-                        m_store.remove(key);
+                        removeInvalidTemplates(key);
                         return null;
                     }
                 }
@@ -489,21 +629,123 @@ public class TraxProcessor extends AbstractLogEnabled
             }
         }
 
-        TransformerHandler handler = m_factory.newTransformerHandler((Templates) templateAndValidityAndIncludes[0]);
-        handler.getTransformer().setErrorListener(new TraxErrorListener(stylesheet.getURI()));
-        handler.getTransformer().setURIResolver(this);
-        return new MyTransformerHandlerAndValidity(handler, storedValidity);
+        monitorTemplates(key, (Templates) templateAndValidityAndIncludes[0], storedValidity,
+                         stylesheet, (SourceValidity) templateAndValidityAndIncludes[1],
+                         m_checkIncludes ? (List) templateAndValidityAndIncludes[2] : null);
+        return createHandlerAndValidity((Templates) templateAndValidityAndIncludes[0], storedValidity, id);
     }
 
-    private void putTemplates(Templates templates, Source stylesheet, String id) throws IOException {
-        if (!m_useStore) {
+    /**
+     * Watch the files of valid Templates, so their validity does not have to
+     * be checked again until one of them changes. This is only possible if
+     * the stylesheet and all included stylesheets are files whose
+     * modification date at compile time is known from their stored validity,
+     * so changes made after the compilation are not missed.
+     */
+    private void monitorTemplates(String key, Templates templates, SourceValidity validity,
+                                  Source stylesheet, SourceValidity stylesheetValidity, List includes) {
+        if (m_monitor == null || !(stylesheet instanceof FileSource)
+            || !(stylesheetValidity instanceof TimeStampValidity)) {
             return;
         }
+        expungeEvictedTemplates();
+
+        final List files = new ArrayList();
+        final List lastModified = new ArrayList();
+        files.add(((FileSource) stylesheet).getFile());
+        lastModified.add(new Long(((TimeStampValidity) stylesheetValidity).getTimeStamp()));
+        if (includes != null) {
+            for (int i = 0; i < includes.size(); i++) {
+                final Object[] pair = (Object[]) includes.get(i);
+                final String uri = (String) pair[0];
+                if (!uri.startsWith("file:") || !(pair[1] instanceof TimeStampValidity)) {
+                    return;
+                }
+                files.add(getFile(uri));
+                lastModified.add(new Long(((TimeStampValidity) pair[1]).getTimeStamp()));
+            }
+        }
+
+        final TemplatesMonitor monitored = new TemplatesMonitor(key, templates, validity, files,
+                                                                lastModified, m_monitor);
+        if (MONITORED.putIfAbsent(key, monitored) == null) {
+            monitored.subscribe();
+        }
+    }
+
+    /**
+     * Stop watching the files of Templates which have been evicted from the
+     * store without being requested again.
+     */
+    private static void expungeEvictedTemplates() {
+        TemplatesReference evicted;
+        while ((evicted = (TemplatesReference) EVICTED.poll()) != null) {
+            evicted.monitor.cancel();
+        }
+    }
+
+    /**
+     * Get the file of a <code>file:</code> URI, decoding escaped characters
+     * such as <code>%20</code>.
+     */
+    private static File getFile(String uri) {
+        try {
+            return new File(new URI(uri));
+        } catch (URISyntaxException e) {
+            // not escaped, use the path as it is
+        } catch (IllegalArgumentException e) {
+            // not a plain file URI, use the path as it is
+        }
+        return new File(uri.substring(5));
+    }
+
+    /**
+     * Get the previously compiled Templates of a stylesheet which is no longer
+     * valid, but only while another request is recompiling it.
+     */
+    private TransformerHandlerAndValidity getPreviousTemplates(String id)
+    throws TransformerException {
+        if (m_store == null) {
+            return null;
+        }
+
+        final String key = getTemplatesKey(id);
+        final SourceValidity validity = m_compilations.getRecompilingValidity(key);
+        if (validity == null) {
+            return null;
+        }
 
+        final Object[] templateAndValidityAndIncludes = (Object[]) m_store.get(key);
+        if (templateAndValidityAndIncludes == null) {
+            return null;
+        }
+
+        // the stored validity is no longer valid: content produced with the
+        // previous Templates is valid until the new ones are compiled
+        return createHandlerAndValidity((Templates) templateAndValidityAndIncludes[0], validity, id);
+    }
+
+    private String getTemplatesKey(String id) {
         // we must augment the template ID with the factory classname since one
         // transformer implementation cannot handle the instances of a
         // template created by another one.
-        String key = "XSLTTemplate: " + id + '(' + m_factory.getClass().getName() + ')';
+        return "XSLTTemplate: " + id + '(' + m_factory.getClass().getName() + ')';
+    }
+
+    private void removeInvalidTemplates(String key) {
+        // With background recompilation, the invalid Templates are kept until
+        // they are replaced, so they can be used while being recompiled
+        if (!m_backgroundRecompile) {
+            m_store.remove(key);
+        }
+    }
+
+    private boolean putTemplates(Templates templates, Source stylesheet, String id) throws IOException {
+        if (!m_useStore) {
+            return false;
+        }
+
+        String key = getTemplatesKey(id);
 
         // only stylesheets with a last modification date are stored
         SourceValidity validity = stylesheet.getValidity();
@@ -516,7 +758,9 @@ public class TraxProcessor extends AbstractLogEnabled
                 templateAndValidityAndIncludes[2] = m_includesMap.get(id);
             }
             m_store.store(key, templateAndValidityAndIncludes);
+            return true;
         }
+        return false;
     }
 
     /**
@@ -560,9 +804,9 @@ public class TraxProcessor extends AbstractLogEnabled
                         xslSource = m_resolver.resolveURI(base.substring(0, lastPathElementPos) + "/" + href);
                     }
                 } else {
-                    File parent = new File(base.substring(5));
+                    File parent = getFile(base);
                     File parent2 = new File(parent.getParentFile(), href);
-                    xslSource = m_resolver.resolveURI(parent2.toURL().toExternalForm());
+                    xslSource = m_resolver.resolveURI(parent2.toURI().toURL().toExternalForm());
                 }
             }
 
@@ -637,6 +881,74 @@ public class TraxProcessor extends AbstractLogEnabled
         }
     }
 
+    /**
+     * Removes the Templates from the monitored Templates as soon as one of
+     * its files changes. The Templates are only weakly referenced, so that
+     * they are not kept alive after they have been evicted from the store.
+     */
+    private static final class TemplatesMonitor implements MonitorListener {
+        final String key;
+        private final TemplatesReference templates;
+        final SourceValidity validity;
+        private final List files;
+        /** The modification dates of the files the Templates have been compiled from */
+        private final List lastModified;
+        private Monitor monitor;
+
+        TemplatesMonitor(String key, Templates templates, SourceValidity validity, List files,
+                         List lastModified, Monitor monitor) {
+            this.key = key;
+            this.templates = new TemplatesReference(templates, this);
+            this.validity = validity;
+            this.files = files;
+            this.lastModified = lastModified;
+            this.monitor = monitor;
+        }
+
+        Templates getTemplates() {
+            return (Templates) this.templates.get();
+        }
+
+        synchronized boolean isWatchedBy(Monitor monitor) {
+            return this.monitor == monitor;
+        }
+
+        synchronized void subscribe() {
+            // a change since the compilation cancels this monitor right away
+            for (int i = 0; this.monitor != null && i < this.files.size(); i++) {
+                this.monitor.subscribe((File) this.files.get(i), this,
+                                       ((Long) this.lastModified.get(i)).longValue());
+            }
+        }
+
+        synchronized void cancel() {
+            MONITORED.remove(this.key, this);
+            if (this.monitor != null) {
+                for (int i = 0; i < this.files.size(); i++) {
+                    this.monitor.unsubscribe((File) this.files.get(i), this);
+                }
+                this.monitor = null;
+            }
+        }
+
+        public void fileChanged(File file) {
+            cancel();
+        }
+    }
+
+    /**
+     * Weak reference to monitored Templates, enqueued when they have been
+     * collected.
+     */
+    private static final class TemplatesReference extends WeakReference {
+        final TemplatesMonitor monitor;
+
+        TemplatesReference(Templates templates, TemplatesMonitor monitor) {
+            super(templates, EVICTED);
+            this.monitor = monitor;
+        }
+    }
+
     /**
      * Subclass to allow for instanciation, as for some unknown reason the
      * constructor is protected....
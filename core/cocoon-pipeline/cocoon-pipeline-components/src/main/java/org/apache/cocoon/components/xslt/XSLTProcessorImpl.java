@@ -22,10 +22,12 @@ import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 import javax.xml.transform.Result;
 import javax.xml.transform.Templates;
@@ -59,6 +61,10 @@ import org.xml.sax.XMLFilter;
  * error reporting. This is a bean implementation that can be configured in
  * a spring context.
  *
+ * <p>With background recompilation, a stylesheet which changed is recompiled
+ * synchronously by the first request noticing the change, while the other
+ * requests keep using the previous Templates until the new ones are ready.</p>
+ *
  * @version $Id$
  */
 public class XSLTProcessorImpl
@@ -84,10 +90,16 @@ public class XSLTProcessorImpl
     protected boolean checkIncludes;
 
     /** Map of pairs of System ID's / validities of the included stylesheets */
-    protected Map includesMap = new HashMap();
+    protected Map includesMap = Collections.synchronizedMap(new HashMap());
 
     protected SAXParser saxParser;
 
+    /** Keep serving the previous Templates while a changed stylesheet is recompiled? */
+    protected boolean backgroundRecompile;
+
+    /** The stylesheet compilations in progress of this instance */
+    private final TemplatesCompilations compilations = new TemplatesCompilations();
+
     /**
      * Initialize this component.
      */
@@ -111,6 +123,15 @@ public class XSLTProcessorImpl
         this.checkIncludes = checkIncludes;
     }
 
+    /**
+     * If set, a stylesheet which changed is recompiled by the first request
+     * noticing the change while all other requests keep using the previously
+     * compiled Templates until the new ones are ready.
+     */
+    public void setBackgroundRecompile(boolean backgroundRecompile) {
+        this.backgroundRecompile = backgroundRecompile;
+    }
+
     public void setSaxParser(SAXParser saxParser) {
         this.saxParser = saxParser;
     }
@@ -161,11 +182,68 @@ public class XSLTProcessorImpl
                 }
                 return handlerAndValidity;
             }
-        } catch(Exception e) {
+
+            if (backgroundRecompile) {
+                handlerAndValidity = getPreviousTemplates(id);
+                if (handlerAndValidity != null) {
+                    if (getLogger().isDebugEnabled()) {
+                        getLogger().debug("Reusing previous Templates for " + id + " while it is recompiled");
+                    }
+                    return handlerAndValidity;
+                }
+            }
+        } catch (Exception e) {
             throw new XSLTProcessorException("Error retrieving template", e);
         }
 
+        final Object[] templatesAndValidity = compileTemplates(stylesheet, filter, id);
+        try {
+            return createHandlerAndValidity((Templates) templatesAndValidity[0],
+                                            (SourceValidity) templatesAndValidity[1],
+                                            id);
+        } catch (TransformerException e) {
+            throw new XSLTProcessorException("Exception when creating Transformer from " + id, e);
+        }
+    }
+
+    /**
+     * Compile the stylesheet, making sure it is compiled only once at a time:
+     * concurrent requests for the same stylesheet wait for the running
+     * compilation and share its result.
+     *
+     * @return the compiled <code>Templates</code> and their validity
+     */
+    private Object[] compileTemplates(final Source stylesheet, final XMLFilter filter, final String id)
+    throws XSLTProcessorException {
+        final String key = getTemplatesKey(id);
+        if (getLogger().isDebugEnabled() && this.compilations.isCompiling(key)) {
+            getLogger().debug("Waiting for Templates for " + id + " being compiled by another request");
+        }
+
+        try {
+            return (Object[]) this.compilations.compile(key, new Callable() {
+                public Object call() throws Exception {
+                    return doCompileTemplates(stylesheet, filter, id);
+                }
+            });
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (XSLTProcessorException e) {
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new XSLTProcessorException("Interrupted while waiting for Templates for " + id, e);
+        } catch (Exception e) {
+            throw new XSLTProcessorException("Exception when creating Transformer from " + id, e);
+        }
+    }
+
+    private Object[] doCompileTemplates(Source stylesheet, XMLFilter filter, String id)
+    throws XSLTProcessorException {
+        Object[] templatesAndValidity;
+
         XSLTProcessorErrorListener errorListener = new XSLTProcessorErrorListener(getLogger(), stylesheet.getURI());
+        boolean stored = false;
         try{
             if (getLogger().isDebugEnabled()) {
                 getLogger().debug("Creating new Templates for " + id);
@@ -215,12 +293,7 @@ public class XSLTProcessorImpl
                     method.invoke(template, new Object[]{id});
                 }
 
-                putTemplates(template, stylesheet, id);
-
-                // Create transformer handler
-                final TransformerHandler handler = factory.newTransformerHandler(template);
-                handler.getTransformer().setErrorListener(new XSLTProcessorErrorListener(getLogger(), stylesheet.getURI()));
-                handler.getTransformer().setURIResolver(this);
+                stored = putTemplates(template, stylesheet, id);
 
                 // Create aggregated validity
                 AggregatedValidity aggregated = null;
@@ -237,13 +310,13 @@ public class XSLTProcessorImpl
                 }
 
                 // Create result
-                handlerAndValidity = new MyTransformerHandlerAndValidity(handler, validity);
+                templatesAndValidity = new Object[] { template, validity };
             } finally {
                 if (checkIncludes)
                     includesMap.remove(id);
             }
 
-            return handlerAndValidity;
+            return templatesAndValidity;
         } catch (Exception e) {
             Throwable realEx = errorListener.getThrowable();
             if (realEx == null) realEx = e;
@@ -257,9 +330,24 @@ public class XSLTProcessorImpl
             }
 
             throw new XSLTProcessorException("Exception when creating Transformer from " + stylesheet.getURI(), realEx);
+        } finally {
+            if (!stored && backgroundRecompile && store != null) {
+                // the previous Templates are not replaced, stop using them
+                store.remove(getTemplatesKey(id));
+            }
         }
     }
 
+    private TransformerHandlerAndValidity createHandlerAndValidity(Templates templates,
+                                                                   SourceValidity validity,
+                                                                   String id)
+    throws TransformerException {
+        final TransformerHandler handler = factory.newTransformerHandler(templates);
+        handler.getTransformer().setErrorListener(new XSLTProcessorErrorListener(getLogger(), id));
+        handler.getTransformer().setURIResolver(this);
+        return new MyTransformerHandlerAndValidity(handler, validity);
+    }
+
     private void sourceToSAX(Source source, ContentHandler handler)
     throws SAXException, IOException, SourceException, ProcessingException {
         if (source instanceof XMLizable) {
@@ -374,10 +462,7 @@ public class XSLTProcessorImpl
             return null;
         }
 
-        // we must augment the template ID with the factory classname since one
-        // transformer implementation cannot handle the instances of a
-        // template created by another one.
-        String key = "XSLTTemplate: " + id + '(' + factory.getClass().getName() + ')';
+        String key = getTemplatesKey(id);
 
         if (getLogger().isDebugEnabled()) {
             getLogger().debug("getTemplates: stylesheet " + id);
@@ -411,7 +496,7 @@ public class XSLTProcessorImpl
             isValid = (valid == 1);
         }
         if (!isValid) {
-            store.remove(key);
+            removeInvalidTemplates(key);
             return null;
         }
 
@@ -447,7 +532,7 @@ public class XSLTProcessorImpl
                         isValid = (valid == 1);
                     }
                     if (!isValid) {
-                        store.remove(key);
+                        removeInvalidTemplates(key);
                         return null;
                     }
                 }
@@ -455,20 +540,55 @@ public class XSLTProcessorImpl
             }
         }
 
-        TransformerHandler handler = factory.newTransformerHandler((Templates) templateAndValidityAndIncludes[0]);
-        handler.getTransformer().setErrorListener(new XSLTProcessorErrorListener(getLogger(), stylesheet.getURI()));
-        handler.getTransformer().setURIResolver(this);
-        return new MyTransformerHandlerAndValidity(handler, storedValidity);
+        return createHandlerAndValidity((Templates) templateAndValidityAndIncludes[0], storedValidity, id);
     }
 
-    private void putTemplates(Templates templates, Source stylesheet, String id) throws IOException {
-        if (this.store == null) {
-            return;
+    /**
+     * Get the previously compiled Templates of a stylesheet which is no longer
+     * valid, but only while another request is recompiling it.
+     */
+    private TransformerHandlerAndValidity getPreviousTemplates(String id)
+    throws TransformerException {
+        if (store == null) {
+            return null;
+        }
+
+        final String key = getTemplatesKey(id);
+        final SourceValidity validity = this.compilations.getRecompilingValidity(key);
+        if (validity == null) {
+            return null;
         }
+
+        final Object[] templateAndValidityAndIncludes = (Object[]) store.get(key);
+        if (templateAndValidityAndIncludes == null) {
+            return null;
+        }
+
+        // the stored validity is no longer valid: content produced with the
+        // previous Templates is valid until the new ones are compiled
+        return createHandlerAndValidity((Templates) templateAndValidityAndIncludes[0], validity, id);
+    }
+
+    private String getTemplatesKey(String id) {
         // we must augment the template ID with the factory classname since one
         // transformer implementation cannot handle the instances of a
         // template created by another one.
-        String key = "XSLTTemplate: " + id + '(' + factory.getClass().getName() + ')';
+        return "XSLTTemplate: " + id + '(' + factory.getClass().getName() + ')';
+    }
+
+    private void removeInvalidTemplates(String key) {
+        // With background recompilation, the invalid Templates are kept until
+        // they are replaced, so they can be used while being recompiled
+        if (!backgroundRecompile) {
+            store.remove(key);
+        }
+    }
+
+    private boolean putTemplates(Templates templates, Source stylesheet, String id) throws IOException {
+        if (this.store == null) {
+            return false;
+        }
+        String key = getTemplatesKey(id);
 
         // only stylesheets with a last modification date are stored
         SourceValidity validity = stylesheet.getValidity();
@@ -481,7 +601,9 @@ public class XSLTProcessorImpl
                 templateAndValidityAndIncludes[2] = includesMap.get(id);
             }
             store.store(key, templateAndValidityAndIncludes);
+            return true;
         }
+        return false;
     }
 
     /**
@@ -0,0 +1,65 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.xslt;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.excalibur.store.Store;
+
+/**
+ * A store holding everything in a map.
+ *
+ * @version $Id$
+ */
+class MapStore implements Store {
+
+    final Map map = new ConcurrentHashMap();
+
+    public Object get(Object key) {
+        return this.map.get(key);
+    }
+
+    public void store(Object key, Object value) {
+        this.map.put(key, value);
+    }
+
+    public void free() {
+    }
+
+    public void remove(Object key) {
+        this.map.remove(key);
+    }
+
+    public void clear() {
+        this.map.clear();
+    }
+
+    public boolean containsKey(Object key) {
+        return this.map.containsKey(key);
+    }
+
+    public Enumeration keys() {
+        return Collections.enumeration(this.map.keySet());
+    }
+
+    public int size() {
+        return this.map.size();
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.xslt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.apache.excalibur.source.Source;
+import org.apache.excalibur.source.SourceValidity;
+import org.apache.excalibur.xml.sax.XMLizable;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+/**
+ * A stylesheet counting how often it is compiled. The compilation can be
+ * held back, and it fails while the stylesheet is broken.
+ *
+ * @version $Id$
+ */
+class StylesheetSource implements Source, XMLizable {
+
+    private static final String STYLESHEET =
+        "<xsl:stylesheet version='1.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>" +
+        "<xsl:template match='/'><result/></xsl:template>" +
+        "</xsl:stylesheet>";
+
+    /** How often the stylesheet has been parsed */
+    final AtomicInteger compilations = new AtomicInteger();
+
+    /** Released when a compilation is started */
+    volatile CountDownLatch started = new CountDownLatch(1);
+
+    /** Compilations wait for this, if set */
+    volatile CountDownLatch proceed;
+
+    volatile boolean broken;
+
+    private TestValidity validity = new TestValidity();
+
+    /**
+     * Change the stylesheet: the current validity is invalid from now on.
+     */
+    synchronized void change() {
+        this.validity.valid = false;
+        this.validity = new TestValidity();
+    }
+
+    public synchronized SourceValidity getValidity() {
+        return this.validity;
+    }
+
+    public void toSAX(ContentHandler handler) throws SAXException {
+        this.compilations.incrementAndGet();
+        this.started.countDown();
+        try {
+            if (this.proceed != null) {
+                this.proceed.await();
+            }
+            if (this.broken) {
+                throw new SAXException("Broken stylesheet");
+            }
+            final SAXParserFactory factory = SAXParserFactory.newInstance();
+            factory.setNamespaceAware(true);
+            final XMLReader reader = factory.newSAXParser().getXMLReader();
+            reader.setContentHandler(handler);
+            reader.parse(new InputSource(new StringReader(STYLESHEET)));
+        } catch (InterruptedException e) {
+            throw new SAXException(e);
+        } catch (IOException e) {
+            throw new SAXException(e);
+        } catch (ParserConfigurationException e) {
+            throw new SAXException(e);
+        }
+    }
+
+    public boolean exists() {
+        return true;
+    }
+
+    public InputStream getInputStream() {
+        throw new UnsupportedOperationException();
+    }
+
+    public String getURI() {
+        return "test:stylesheet.xsl";
+    }
+
+    public String getScheme() {
+        return "test";
+    }
+
+    public void refresh() {
+    }
+
+    public String getMimeType() {
+        return "text/xml";
+    }
+
+    public long getContentLength() {
+        return -1;
+    }
+
+    public long getLastModified() {
+        return 0;
+    }
+
+    /**
+     * Valid until the stylesheet is changed.
+     */
+    static class TestValidity implements SourceValidity {
+        volatile boolean valid = true;
+
+        public int isValid() {
+            return this.valid ? VALID : INVALID;
+        }
+
+        public int isValid(SourceValidity newValidity) {
+            return INVALID;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.xslt;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.avalon.framework.parameters.Parameters;
+import org.apache.avalon.framework.service.ServiceException;
+import org.apache.avalon.framework.service.ServiceManager;
+import org.apache.excalibur.source.SourceValidity;
+import org.apache.excalibur.store.Store;
+import org.apache.excalibur.xml.xslt.XSLTProcessor;
+import org.apache.excalibur.xml.xslt.XSLTProcessorException;
+
+/**
+ * Test case for the compilation and storage of Templates by the
+ * {@link TraxProcessor}.
+ *
+ * @version $Id$
+ */
+public class TraxProcessorTestCase extends TestCase {
+
+    private MapStore store;
+    private StylesheetSource stylesheet;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.store = new MapStore();
+        this.stylesheet = new StylesheetSource();
+    }
+
+    protected TraxProcessor createProcessor(boolean backgroundRecompile) throws Exception {
+        final TraxProcessor processor = new TraxProcessor();
+        processor.service(new ServiceManager() {
+            public Object lookup(String role) throws ServiceException {
+                return Store.TRANSIENT_STORE.equals(role) ? store : null;
+            }
+
+            public boolean hasService(String role) {
+                return Store.TRANSIENT_STORE.equals(role);
+            }
+
+            public void release(Object component) {
+            }
+        });
+        final Parameters params = new Parameters();
+        params.setParameter("use-store", "true");
+        params.setParameter("background-recompile", String.valueOf(backgroundRecompile));
+        processor.parameterize(params);
+        processor.initialize();
+        return processor;
+    }
+
+    private SourceValidity getValidity(XSLTProcessor processor) throws XSLTProcessorException {
+        return processor.getTransformerHandlerAndValidity(this.stylesheet).getTransfomerValidity();
+    }
+
+    public void testStored() throws Exception {
+        final TraxProcessor processor = createProcessor(false);
+        assertNotNull(processor.getTransformerHandler(this.stylesheet));
+        assertNotNull(processor.getTransformerHandler(this.stylesheet));
+        assertEquals("Compiled once", 1, this.stylesheet.compilations.get());
+
+        this.stylesheet.change();
+        processor.getTransformerHandler(this.stylesheet);
+        assertEquals("Recompiled", 2, this.stylesheet.compilations.get());
+        processor.dispose();
+    }
+
+    public void testBackgroundRecompile() throws Exception {
+        final TraxProcessor processor = createProcessor(true);
+        processor.getTransformerHandler(this.stylesheet);
+        this.stylesheet.change();
+        this.stylesheet.proceed = new CountDownLatch(1);
+        this.stylesheet.started = new CountDownLatch(1);
+
+        final SourceValidity[] recompiled = new SourceValidity[1];
+        final Thread recompile = new Thread() {
+            public void run() {
+                try {
+                    recompiled[0] = getValidity(processor);
+                } catch (XSLTProcessorException e) {
+                    // validity stays null
+                }
+            }
+        };
+        recompile.start();
+        assertTrue(this.stylesheet.started.await(10, TimeUnit.SECONDS));
+
+        // another request using the same instance is served with the previous Templates
+        final SourceValidity previous = getValidity(processor);
+        assertEquals("Not waiting for the compilation", 2, this.stylesheet.compilations.get());
+        assertEquals("Cacheable while recompiling", SourceValidity.VALID, previous.isValid());
+
+        this.stylesheet.proceed.countDown();
+        recompile.join(10000);
+        assertNotNull(recompiled[0]);
+        assertEquals("Invalid once recompiled", SourceValidity.INVALID, previous.isValid());
+
+        getValidity(processor);
+        assertEquals("The new Templates are stored", 2, this.stylesheet.compilations.get());
+        processor.dispose();
+    }
+
+    public void testFailedRecompile() throws Exception {
+        final TraxProcessor processor = createProcessor(true);
+        processor.getTransformerHandler(this.stylesheet);
+        this.stylesheet.change();
+        this.stylesheet.broken = true;
+        try {
+            processor.getTransformerHandler(this.stylesheet);
+            fail("The stylesheet is broken");
+        } catch (XSLTProcessorException e) {
+            // expected
+        }
+        assertEquals("The previous Templates are removed", 0, this.store.size());
+        processor.dispose();
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.xslt;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.excalibur.source.SourceValidity;
+
+/**
+ * Test case for the compilation and storage of Templates by the
+ * {@link XSLTProcessorImpl}.
+ *
+ * @version $Id$
+ */
+public class XSLTProcessorImplTestCase extends TestCase {
+
+    private MapStore store;
+    private StylesheetSource stylesheet;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.store = new MapStore();
+        this.stylesheet = new StylesheetSource();
+    }
+
+    protected XSLTProcessor createProcessor(boolean backgroundRecompile) throws Exception {
+        final XSLTProcessorImpl processor = new XSLTProcessorImpl();
+        processor.setStore(this.store);
+        processor.setBackgroundRecompile(backgroundRecompile);
+        processor.init();
+        return processor;
+    }
+
+    /**
+     * Get the Templates in another thread.
+     */
+    private Thread transform(final XSLTProcessor processor, final SourceValidity[] validity) {
+        final Thread thread = new Thread() {
+            public void run() {
+                try {
+                    validity[0] = processor.getTransformerHandlerAndValidity(stylesheet).getTransfomerValidity();
+                } catch (XSLTProcessorException e) {
+                    // validity stays null
+                }
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    public void testStored() throws Exception {
+        final XSLTProcessor processor = createProcessor(false);
+        assertNotNull(processor.getTransformerHandler(this.stylesheet));
+        assertNotNull(processor.getTransformerHandler(this.stylesheet));
+        assertEquals("Compiled once", 1, this.stylesheet.compilations.get());
+        assertEquals(1, this.store.size());
+    }
+
+    public void testChanged() throws Exception {
+        final XSLTProcessor processor = createProcessor(false);
+        processor.getTransformerHandler(this.stylesheet);
+        this.stylesheet.change();
+        processor.getTransformerHandler(this.stylesheet);
+        assertEquals("Recompiled", 2, this.stylesheet.compilations.get());
+        processor.getTransformerHandler(this.stylesheet);
+        assertEquals(2, this.stylesheet.compilations.get());
+    }
+
+    public void testCompiledOnce() throws Exception {
+        final XSLTProcessor processor = createProcessor(false);
+        this.stylesheet.proceed = new CountDownLatch(1);
+
+        final SourceValidity[][] validities = new SourceValidity[4][1];
+        final Thread[] threads = new Thread[validities.length];
+        threads[0] = transform(processor, validities[0]);
+        assertTrue(this.stylesheet.started.await(10, TimeUnit.SECONDS));
+        for (int i = 1; i < threads.length; i++) {
+            threads[i] = transform(processor, validities[i]);
+        }
+        Thread.sleep(100);
+        this.stylesheet.proceed.countDown();
+
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join(10000);
+            assertNotNull("Got Templates " + i, validities[i][0]);
+        }
+        assertEquals("Compiled once", 1, this.stylesheet.compilations.get());
+    }
+
+    public void testBackgroundRecompile() throws Exception {
+        final XSLTProcessor processor = createProcessor(true);
+        processor.getTransformerHandler(this.stylesheet);
+        this.stylesheet.change();
+        this.stylesheet.proceed = new CountDownLatch(1);
+        this.stylesheet.started = new CountDownLatch(1);
+
+        final SourceValidity[] recompiled = new SourceValidity[1];
+        final Thread recompile = transform(processor, recompiled);
+        assertTrue(this.stylesheet.started.await(10, TimeUnit.SECONDS));
+
+        // served with the previous Templates in the meantime
+        final SourceValidity previous = processor.getTransformerHandlerAndValidity(this.stylesheet).getTransfomerValidity();
+        assertEquals("Not waiting for the compilation", 2, this.stylesheet.compilations.get());
+        assertEquals("Cacheable while recompiling", SourceValidity.VALID, previous.isValid());
+
+        this.stylesheet.proceed.countDown();
+        recompile.join(10000);
+        assertNotNull(recompiled[0]);
+        assertEquals(SourceValidity.VALID, recompiled[0].isValid());
+        assertEquals("Invalid once recompiled", SourceValidity.INVALID, previous.isValid());
+
+        processor.getTransformerHandler(this.stylesheet);
+        assertEquals("The new Templates are stored", 2, this.stylesheet.compilations.get());
+    }
+
+    public void testFailedRecompile() throws Exception {
+        final XSLTProcessor processor = createProcessor(true);
+        processor.getTransformerHandler(this.stylesheet);
+        this.stylesheet.change();
+        this.stylesheet.broken = true;
+        try {
+            processor.getTransformerHandler(this.stylesheet);
+            fail("The stylesheet is broken");
+        } catch (XSLTProcessorException e) {
+            // expected
+        }
+        assertEquals("The previous Templates are removed", 0, this.store.size());
+
+        this.stylesheet.broken = false;
+        processor.getTransformerHandler(this.stylesheet);
+        assertEquals(3, this.stylesheet.compilations.get());
+        assertEquals(1, this.store.size());
+    }
+}
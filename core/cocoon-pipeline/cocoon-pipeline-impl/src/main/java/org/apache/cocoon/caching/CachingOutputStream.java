@@ -22,7 +22,8 @@ import java.io.OutputStream;
 /**
  * This is an {@link OutputStream} which forwards all received bytes to another
  * output stream and in addition caches all bytes, thus acting like a
- * TeeOutputStream.
+ * TeeOutputStream. The bytes are cached in the segments of a
+ * {@link SegmentedOutputStream}, so the cache never has to be copied when it grows.
  *
  * @version $Id$
  */
@@ -32,33 +33,40 @@ extends OutputStream {
     private OutputStream receiver;
 
     /** The buffer for the compile xml byte stream. */
-    private byte buf[];
-
-    /** The number of valid bytes in the buffer. */
-    private int bufCount;
+    private final SegmentedOutputStream buffer;
 
     public CachingOutputStream(OutputStream os) {
         this.receiver = os;
-        this.buf = new byte[1024];
-        this.bufCount = 0;
+        this.buffer = new SegmentedOutputStream();
     }
 
+    /**
+     * @return a copy of the cached bytes in a single array
+     */
     public byte[] getContent() {
-        byte newbuf[] = new byte[this.bufCount];
-        System.arraycopy(this.buf, 0, newbuf, 0, this.bufCount);
-        return newbuf;
+        return this.buffer.toByteArray();
+    }
+
+    /**
+     * Pass the cached bytes on as segments, without copying them.
+     * The cache is empty afterwards.
+     *
+     * @see SegmentedOutputStream#getSegments()
+     */
+    public byte[][] getSegments() {
+        return this.buffer.getSegments();
+    }
+
+    /**
+     * @return the number of cached bytes
+     */
+    public int size() {
+        return this.buffer.size();
     }
 
     public void write(int b) throws IOException {
         this.receiver.write(b);
-        int newcount = this.bufCount + 1;
-        if (newcount > this.buf.length) {
-            byte newbuf[] = new byte[this.buf.length << 1];
-            System.arraycopy(this.buf, 0, newbuf, 0, this.bufCount);
-            this.buf = newbuf;
-        }
-        this.buf[this.bufCount] = (byte)b;
-        this.bufCount = newcount;
+        this.buffer.write(b);
     }
 
     public void write( byte b[] ) throws IOException {
@@ -68,14 +76,7 @@ extends OutputStream {
     public void write(byte b[], int off, int len) throws IOException {
         this.receiver.write(b, off, len);
         if (len == 0) return;
-        int newcount = this.bufCount + len;
-        if (newcount > this.buf.length) {
-            byte newbuf[] = new byte[Math.max(this.buf.length << 1, newcount)];
-            System.arraycopy(this.buf, 0, newbuf, 0, this.bufCount);
-            this.buf = newbuf;
-        }
-        System.arraycopy(b, off, this.buf, this.bufCount, len);
-        this.bufCount = newcount;
+        this.buffer.write(b, off, len);
     }
 
     public void flush() throws IOException {
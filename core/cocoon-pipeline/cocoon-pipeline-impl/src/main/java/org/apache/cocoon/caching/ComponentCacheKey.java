@@ -112,6 +112,13 @@ public final class ComponentCacheKey
         return toString;
     }
 
+    /**
+     * Return the component type
+     */
+    public int getType() {
+        return this.type;
+    }
+
     /**
      * Check if we are a cachepoint 
      */
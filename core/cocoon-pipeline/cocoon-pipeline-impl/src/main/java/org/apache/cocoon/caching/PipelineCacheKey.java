@@ -92,6 +92,13 @@ public final class PipelineCacheKey
         return this.keys.size();
     }
 
+    /**
+     * Return the key at the given position
+     */
+    public ComponentCacheKey getKey(int index) {
+        return (ComponentCacheKey) this.keys.get(index);
+    }
+
     /**
      * Compare
      */
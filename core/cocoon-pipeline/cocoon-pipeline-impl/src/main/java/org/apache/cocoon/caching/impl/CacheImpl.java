@@ -18,10 +18,24 @@ package org.apache.cocoon.caching.impl;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.cocoon.ProcessingException;
 import org.apache.cocoon.caching.Cache;
 import org.apache.cocoon.caching.CachedResponse;
+import org.apache.cocoon.caching.ComponentCacheKey;
+import org.apache.cocoon.caching.IdentifierCacheKey;
+import org.apache.cocoon.caching.PipelineCacheKey;
+import org.apache.cocoon.util.ObservableStore;
+import org.apache.cocoon.util.StoreListener;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.excalibur.store.Store;
@@ -32,16 +46,92 @@ import org.apache.excalibur.store.Store;
  * or the investigate which responses are cached etc.
  * This component will grow!
  *
+ * <p>Optionally the cache can be limited by memory instead of by the number
+ * of objects in the store: if <code>maxBytes</code> is set, the size of every
+ * stored response is tracked and responses are removed from the store
+ * (least recently used first, using a second chance algorithm) as soon as
+ * the total exceeds the budget. The size of a response can be weighted by
+ * the type of the response, see {@link #setWeights(Map)}. Sizes are only
+ * tracked if a budget is configured.</p>
+ *
+ * <p>The store may remove responses on its own or keep them out of memory.
+ * If it is an {@link ObservableStore}, the tracked sizes follow the responses
+ * it reports to be held in memory. Otherwise, responses are counted when
+ * they are stored or found by {@link #get(Serializable)}, for example after
+ * being loaded from a persistent store, and no longer counted when a lookup
+ * shows that the store has dropped them.</p>
+ *
  * @since 2.1
  * @version $Id$
  */
 public class CacheImpl implements Cache {
 
+    /** Type of responses produced by a reader */
+    public static final String TYPE_READER = "reader";
+
+    /** Type of complete (serialized) responses of an XML pipeline */
+    public static final String TYPE_SERIALIZED = "serialized";
+
+    /** Type of partial responses (compiled SAX events) of an XML pipeline */
+    public static final String TYPE_SAX = "sax";
+
+    /** Type of responses cached by the expires pipeline */
+    public static final String TYPE_EXPIRES = "expires";
+
+    /** Type of all other cached responses */
+    public static final String TYPE_OTHER = "other";
+
+    /** Estimated memory used by a cached response besides the content */
+    private static final int RESPONSE_OVERHEAD = 128;
+
     private Log logger = LogFactory.getLog(getClass());
 
     /** The store containing the cached responses */
     protected Store store;
 
+    /** The memory budget in bytes, 0 means no limit */
+    private long maxBytes;
+
+    /** Estimated memory used by a single validity object */
+    private int validityOverhead = 64;
+
+    /** The weights per response type */
+    private Map weights = new HashMap();
+
+    /** The size of all responses held: key to {@link Entry} */
+    private final ConcurrentMap entries = new ConcurrentHashMap();
+
+    /** The eviction order of the entries */
+    private final Queue evictionQueue = new ConcurrentLinkedQueue();
+
+    /** Number of entries in the eviction queue, including stale ones */
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /** The bytes held by the cached responses */
+    private final AtomicLong currentBytes = new AtomicLong();
+
+    /** The weighted bytes held by the cached responses */
+    private final AtomicLong currentWeight = new AtomicLong();
+
+    /** Number of responses removed because of the memory budget */
+    private final AtomicLong evictions = new AtomicLong();
+
+    /** Whether the store reports the responses it holds */
+    private boolean observed;
+
+    /** Follows the responses held by an {@link ObservableStore} */
+    private final StoreListener listener = new StoreListener() {
+        public void held(Object key, Object value) {
+            if (maxBytes > 0 && key instanceof Serializable && value instanceof CachedResponse) {
+                track((Serializable) key, (CachedResponse) value);
+            }
+        }
+
+        public void removed(Object key) {
+            untrack(key);
+        }
+    };
+
     /**
      * Store a cached response
      * @param key         the key used by the caching algorithm to identify the
@@ -50,6 +140,29 @@ public class CacheImpl implements Cache {
      */
     public void store(Serializable     key,
                       CachedResponse   response)
+    throws ProcessingException {
+        if (this.maxBytes <= 0) {
+            storeResponse(key, response);
+            return;
+        }
+
+        final long size = getSize(response);
+        final long weight = (long) (size * getWeight(key));
+        if (weight > this.maxBytes) {
+            if (getLogger().isInfoEnabled()) {
+                getLogger().info("Not caching response for " + key + ", size " + size +
+                                 " exceeds the cache budget of " + this.maxBytes + " bytes");
+            }
+            return;
+        }
+
+        storeResponse(key, response);
+        if (!this.observed) {
+            track(key, response);
+        }
+    }
+
+    private void storeResponse(Serializable key, CachedResponse response)
     throws ProcessingException {
         if (getLogger().isInfoEnabled()) {
             getLogger().info("Caching new response for " + key);
@@ -72,6 +185,23 @@ public class CacheImpl implements Cache {
         if (getLogger().isInfoEnabled()) {
             getLogger().info("Cache " + (r == null ? "MISS" : "HIT") + " for " + key);
         }
+
+        if (this.maxBytes > 0) {
+            final Entry entry = (Entry) this.entries.get(key);
+            if (entry != null) {
+                if (r == null) {
+                    // the store has dropped the response on its own
+                    if (this.entries.remove(key, entry)) {
+                        subtract(entry);
+                    }
+                } else {
+                    entry.referenced = true;
+                }
+            } else if (r != null && !this.observed) {
+                // not stored by this cache, e.g. loaded from a persistent store
+                track(key, r);
+            }
+        }
         return r;
     }
 
@@ -86,6 +216,7 @@ public class CacheImpl implements Cache {
             getLogger().info("Removing cached response for " + key);
         }
         this.store.remove(key);
+        untrack(key);
     }
 
     /**
@@ -97,6 +228,12 @@ public class CacheImpl implements Cache {
         }
         // FIXME this clears the whole store!
         this.store.clear();
+
+        for (Iterator i = this.entries.values().iterator(); i.hasNext();) {
+            final Entry entry = (Entry) i.next();
+            i.remove();
+            subtract(entry);
+        }
     }
 
 	/**
@@ -110,10 +247,232 @@ public class CacheImpl implements Cache {
      * Set the Store implementation
      */
     public void setStore(Store store) {
+        if (this.observed) {
+            ((ObservableStore) this.store).removeStoreListener(this.listener);
+        }
         this.store = store;
+        this.observed = store instanceof ObservableStore;
+        if (this.observed) {
+            ((ObservableStore) store).addStoreListener(this.listener);
+        }
+    }
+
+    /**
+     * Set the maximum number of (weighted) bytes the cached responses
+     * may use. If not set or 0, the cache is only limited by the store.
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Set the estimated number of bytes used by a single validity
+     * object of a cached response. (Default: 64)
+     */
+    public void setValidityOverhead(int validityOverhead) {
+        this.validityOverhead = validityOverhead;
+    }
+
+    /**
+     * Set the weights of the different types of responses. The size of a
+     * response is multiplied by the weight of its type before it is
+     * compared to the memory budget. Types are {@link #TYPE_READER},
+     * {@link #TYPE_SERIALIZED}, {@link #TYPE_SAX}, {@link #TYPE_EXPIRES}
+     * and {@link #TYPE_OTHER}; types without a weight have a weight of 1.
+     */
+    public void setWeights(Map weights) {
+        final Map map = new HashMap();
+        for (Iterator i = weights.entrySet().iterator(); i.hasNext();) {
+            final Map.Entry e = (Map.Entry) i.next();
+            final Double weight = Double.valueOf(e.getValue().toString());
+            if (weight.doubleValue() <= 0) {
+                throw new IllegalArgumentException("Weight of '" + e.getKey() + "' must be greater than 0.");
+            }
+            map.put(e.getKey(), weight);
+        }
+        this.weights = map;
+    }
+
+    /**
+     * @return the configured memory budget in bytes, 0 if unlimited
+     */
+    public long getMaxBytes() {
+        return this.maxBytes;
+    }
+
+    /**
+     * @return the bytes held by the cached responses
+     */
+    public long getCurrentBytes() {
+        return this.currentBytes.get();
+    }
+
+    /**
+     * @return the weighted bytes held by the cached responses
+     */
+    public long getCurrentWeight() {
+        return this.currentWeight.get();
+    }
+
+    /**
+     * @return the number of responses whose size is tracked
+     */
+    public int getEntryCount() {
+        return this.entries.size();
+    }
+
+    /**
+     * @return the number of responses removed because of the memory budget
+     */
+    public long getEvictionCount() {
+        return this.evictions.get();
+    }
+
+    /**
+     * Estimate the memory used by a cached response: the response bytes plus
+     * some overhead for the response itself and for its validity objects.
+     */
+    protected long getSize(CachedResponse response) {
+        long size = RESPONSE_OVERHEAD + response.getLength();
+        if (response.getValidityObjects() != null) {
+            size += (long) response.getValidityObjects().length * this.validityOverhead;
+        }
+        return size;
+    }
+
+    /**
+     * Determine the type of the response cached under the given key.
+     */
+    protected String getType(Serializable key) {
+        if (key instanceof PipelineCacheKey) {
+            final PipelineCacheKey pck = (PipelineCacheKey) key;
+            if (pck.size() == 0) {
+                return TYPE_OTHER;
+            }
+            if (pck.getKey(0).getType() == ComponentCacheKey.ComponentType_Reader) {
+                return TYPE_READER;
+            }
+            if (pck.getKey(pck.size() - 1).getType() == ComponentCacheKey.ComponentType_Serializer) {
+                return TYPE_SERIALIZED;
+            }
+            return TYPE_SAX;
+        }
+        if (key instanceof IdentifierCacheKey) {
+            return TYPE_EXPIRES;
+        }
+        return TYPE_OTHER;
+    }
+
+    private double getWeight(Serializable key) {
+        final Double weight = (Double) this.weights.get(getType(key));
+        return weight == null ? 1.0 : weight.doubleValue();
+    }
+
+    /**
+     * Count a response held by the store, and remove other responses if the
+     * budget is exceeded.
+     */
+    private void track(Serializable key, CachedResponse response) {
+        final long size = getSize(response);
+        final long weight = (long) (size * getWeight(key));
+        if (weight > this.maxBytes) {
+            untrack(key);
+            return;
+        }
+
+        final Entry entry = new Entry(key, size, weight);
+        final Entry old = (Entry) this.entries.put(key, entry);
+        if (old != null) {
+            subtract(old);
+        }
+        add(entry);
+        evict();
+    }
+
+    /**
+     * Stop counting a response which is no longer held by the store.
+     */
+    private void untrack(Object key) {
+        final Entry entry = (Entry) this.entries.remove(key);
+        if (entry != null) {
+            subtract(entry);
+        }
+    }
+
+    private void add(Entry entry) {
+        this.currentBytes.addAndGet(entry.size);
+        this.currentWeight.addAndGet(entry.weight);
+        this.evictionQueue.add(entry);
+        this.queued.incrementAndGet();
+    }
+
+    private void subtract(Entry entry) {
+        this.currentBytes.addAndGet(-entry.size);
+        this.currentWeight.addAndGet(-entry.weight);
+    }
+
+    /**
+     * Remove responses from the store until the budget is met again. Entries
+     * which have been used since they were last looked at get a second chance.
+     */
+    private void evict() {
+        int attempts = this.queued.get() * 2;
+        while (this.currentWeight.get() > this.maxBytes && attempts-- > 0) {
+            final Entry entry = (Entry) this.evictionQueue.poll();
+            if (entry == null) {
+                break;
+            }
+            this.queued.decrementAndGet();
+
+            if (this.entries.get(entry.key) != entry) {
+                // stale, the response has been removed or replaced
+                continue;
+            }
+            if (entry.referenced) {
+                entry.referenced = false;
+                this.evictionQueue.add(entry);
+                this.queued.incrementAndGet();
+                continue;
+            }
+            if (this.entries.remove(entry.key, entry)) {
+                subtract(entry);
+                this.store.remove(entry.key);
+                this.evictions.incrementAndGet();
+                if (getLogger().isInfoEnabled()) {
+                    getLogger().info("Removed cached response for " + entry.key + " to stay within budget");
+                }
+            }
+        }
+
+        // Drop stale entries if removed and replaced responses pile up
+        if (this.queued.get() > 2 * this.entries.size() + 64) {
+            for (Iterator i = this.evictionQueue.iterator(); i.hasNext();) {
+                final Entry entry = (Entry) i.next();
+                if (this.entries.get(entry.key) != entry) {
+                    i.remove();
+                    this.queued.decrementAndGet();
+                }
+            }
+        }
     }
 
     protected Log getLogger() {
         return this.logger;
     }
+
+    /**
+     * The size of a cached response.
+     */
+    private static final class Entry {
+        final Serializable key;
+        final long size;
+        final long weight;
+        volatile boolean referenced;
+
+        Entry(Serializable key, long size, long weight) {
+            this.key = key;
+            this.size = size;
+            this.weight = weight;
+        }
+    }
 }
@@ -16,10 +16,12 @@
  */
 package org.apache.cocoon.components.pipeline;
 
-import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.SocketException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.StringTokenizer;
@@ -36,6 +38,8 @@ import org.apache.excalibur.source.SourceValidity;
 
 import org.apache.cocoon.ConnectionResetException;
 import org.apache.cocoon.ProcessingException;
+import org.apache.cocoon.caching.SegmentedOutputStream;
+import org.apache.cocoon.components.sax.TimingXMLPipe;
 import org.apache.cocoon.components.source.util.SourceUtil;
 import org.apache.cocoon.environment.Environment;
 import org.apache.cocoon.environment.ObjectModelHelper;
@@ -51,6 +55,7 @@ import org.apache.cocoon.transformation.Transformer;
 import org.apache.cocoon.util.AbstractLogEnabled;
 import org.apache.cocoon.util.location.Locatable;
 import org.apache.cocoon.util.location.Location;
+import org.apache.cocoon.xml.CompactSaxBuffer;
 import org.apache.cocoon.xml.SaxBuffer;
 import org.apache.cocoon.xml.XMLConsumer;
 import org.apache.cocoon.xml.XMLProducer;
@@ -133,6 +138,18 @@ public abstract class AbstractProcessingPipeline extends AbstractLogEnabled
     /** The current SourceResolver */
     protected SourceResolver sourceResolver;
 
+    /** The pipeline metrics, if available */
+    protected PipelineMetrics metrics;
+
+    /** The times of the current request indexed by phase, null if not measured */
+    protected long[] times;
+
+    /** The bytes written to the output stream, -1 if unknown */
+    private long bytesOut = -1;
+
+    /** The timing pipes inserted in front of the transformers and the serializer */
+    private ArrayList timingPipes;
+
     /**
      * @see org.apache.avalon.framework.service.Serviceable#service(org.apache.avalon.framework.service.ServiceManager)
      */
@@ -140,6 +157,9 @@ public abstract class AbstractProcessingPipeline extends AbstractLogEnabled
     throws ServiceException {
         this.manager = aManager;
         this.newManager = aManager;
+        if (aManager.hasService(PipelineMetrics.ROLE)) {
+            this.metrics = (PipelineMetrics) aManager.lookup(PipelineMetrics.ROLE);
+        }
     }
 
     /**
@@ -385,6 +405,15 @@ public abstract class AbstractProcessingPipeline extends AbstractLogEnabled
                            XMLProducer producer,
                            XMLConsumer consumer)
     throws ProcessingException {
+        if (this.times != null && this.metrics.isComponentTimingEnabled()) {
+            final TimingXMLPipe pipe = new TimingXMLPipe();
+            pipe.setConsumer(consumer);
+            if (this.timingPipes == null) {
+                this.timingPipes = new ArrayList();
+            }
+            this.timingPipes.add(pipe);
+            consumer = pipe;
+        }
         // Connect next component.
         producer.setConsumer(consumer);
     }
@@ -416,6 +445,17 @@ public abstract class AbstractProcessingPipeline extends AbstractLogEnabled
             preparePipeline(environment);
         }
 
+        final long start = System.nanoTime();
+        try {
+            return processPipeline(environment);
+        } finally {
+            addTime(PipelineMetrics.PROCESSING, start);
+            recordMetrics();
+        }
+    }
+
+    private boolean processPipeline(Environment environment)
+    throws ProcessingException {
         // See if we need to set an "Expires:" header
         if (this.expires != 0) {
             Response res = ObjectModelHelper.getResponse(environment.getObjectModel());
@@ -465,11 +505,17 @@ public abstract class AbstractProcessingPipeline extends AbstractLogEnabled
             throw new ProcessingException("Duplicate preparePipeline call caught.");
         }
 
+        if (this.metrics != null) {
+            this.times = new long[PipelineMetrics.TRANSFORMER + this.transformers.size()];
+            Arrays.fill(this.times, -1);
+        }
+        final long start = System.nanoTime();
         if (this.reader != null) {
             setupReader(environment);
         } else {
             setupPipeline(environment);
         }
+        addTime(PipelineMetrics.SETUP, start);
         this.prepared = true;
     }
 
@@ -535,16 +581,20 @@ public abstract class AbstractProcessingPipeline extends AbstractLogEnabled
             } else {
                 if (this.serializer.shouldSetContentLength()) {
                     // set the output stream
-                    ByteArrayOutputStream os = new ByteArrayOutputStream();
-                    this.serializer.setOutputStream(os);
-
-                    // execute the pipeline:
-                    this.generator.generate();
-                    environment.setContentLength(os.size());
-                    os.writeTo(environment.getOutputStream(0));
+                    SegmentedOutputStream os = new SegmentedOutputStream();
+                    try {
+                        this.serializer.setOutputStream(os);
+
+                        // execute the pipeline:
+                        this.generator.generate();
+                        environment.setContentLength(os.size());
+                        os.writeTo(getOutputStream(environment, 0));
+                    } finally {
+                        os.release();
+                    }
                 } else {
                     // set the output stream
-                    this.serializer.setOutputStream(environment.getOutputStream(this.outputBufferSize));
+                    this.serializer.setOutputStream(getOutputStream(environment, this.outputBufferSize));
                     // execute the pipeline:
                     this.generator.generate();
                 }
@@ -651,20 +701,24 @@ public abstract class AbstractProcessingPipeline extends AbstractLogEnabled
         try {
             this.setMimeTypeForReader(environment);
             if (this.reader.shouldSetContentLength()) {
-                ByteArrayOutputStream os = new ByteArrayOutputStream();
+                SegmentedOutputStream os = new SegmentedOutputStream();
                 try {
-                    this.reader.setOutputStream(os);
-                    this.reader.generate();
-                } catch (SourceException se) {
-                    //it's valid that generate() method returns SourceException (which extension to IOException)
-                    //and pipeline execution should be more clever
-                    throw SourceUtil.handle(se);
+                    try {
+                        this.reader.setOutputStream(os);
+                        this.reader.generate();
+                    } catch (SourceException se) {
+                        //it's valid that generate() method returns SourceException (which extension to IOException)
+                        //and pipeline execution should be more clever
+                        throw SourceUtil.handle(se);
+                    }
+                    environment.setContentLength(os.size());
+                    os.writeTo(getOutputStream(environment, 0));
+                } finally {
+                    os.release();
                 }
-                environment.setContentLength(os.size());
-                os.writeTo(environment.getOutputStream(0));
             } else {
                 try {
-                    this.reader.setOutputStream(environment.getOutputStream(this.outputBufferSize));
+                    this.reader.setOutputStream(getOutputStream(environment, this.outputBufferSize));
                     this.reader.generate();
                 } catch (SourceException se) {
                     //it's valid that generate() method returns SourceException (which extension to IOException)
@@ -742,6 +796,10 @@ public abstract class AbstractProcessingPipeline extends AbstractLogEnabled
         // This is not done by using release in the creating container as release
         // is a noop for the Avalon life style in the Spring container 
         this.errorPipeline = null;
+
+        this.times = null;
+        this.timingPipes = null;
+        this.bytesOut = -1;
     }
 
     /**
@@ -761,7 +819,8 @@ public abstract class AbstractProcessingPipeline extends AbstractLogEnabled
 
         // Have to buffer events if error handler is specified.
         SaxBuffer buffer = null;
-        this.lastConsumer = this.errorHandler == null? consumer: (buffer = new SaxBuffer());
+        this.lastConsumer = this.errorHandler == null? consumer: (buffer = new CompactSaxBuffer());
+        final long start = System.nanoTime();
         try {
             connectPipeline(environment);
             return processXMLPipeline(environment);
@@ -776,6 +835,104 @@ public abstract class AbstractProcessingPipeline extends AbstractLogEnabled
                     throw new ProcessingException("Failed to execute pipeline.", e);
                 }
             }
+            addTime(PipelineMetrics.PROCESSING, start);
+            recordMetrics();
+        }
+    }
+
+    /**
+     * Add the time since <code>start</code> to the given phase, if the
+     * current request is measured.
+     */
+    protected final void addTime(int phase, long start) {
+        if (this.times != null && phase < this.times.length) {
+            final long time = System.nanoTime() - start;
+            this.times[phase] = this.times[phase] < 0 ? time : this.times[phase] + time;
+        }
+    }
+
+    /**
+     * Report the times of the current request to the pipeline metrics.
+     */
+    private void recordMetrics() {
+        final long[] t = this.times;
+        if (t == null) {
+            return;
+        }
+        this.times = null;
+
+        // setup includes the cache key and the validity
+        if (t[PipelineMetrics.SETUP] >= 0) {
+            t[PipelineMetrics.SETUP] -= Math.max(t[PipelineMetrics.CACHE_KEY], 0)
+                                        + Math.max(t[PipelineMetrics.VALIDITY], 0);
+        }
+
+        // the timing pipes measure the time of all following components,
+        // the last pipe is in front of the serializer
+        if (this.timingPipes != null && t[PipelineMetrics.PROCESSING] >= 0) {
+            final int n = this.timingPipes.size();
+            final int first = this.transformers.size() - (n - 1);
+            for (int i = 0; i < n; i++) {
+                final long inclusive = ((TimingXMLPipe) this.timingPipes.get(i)).getTime();
+                final long next = i + 1 < n ? ((TimingXMLPipe) this.timingPipes.get(i + 1)).getTime() : 0;
+                if (i + 1 < n) {
+                    if (first + i >= 0) {
+                        t[PipelineMetrics.TRANSFORMER + first + i] = inclusive - next;
+                    }
+                } else {
+                    t[PipelineMetrics.SERIALIZER] = inclusive;
+                }
+                if (i == 0) {
+                    t[PipelineMetrics.GENERATOR] = Math.max(t[PipelineMetrics.PROCESSING] - inclusive, 0);
+                }
+            }
+        }
+
+        final Parameters param = this.reader != null ? this.readerParam : this.generatorParam;
+        final String type = getClass().getName();
+        try {
+            this.metrics.record(getLocation(param).toString(),
+                                type.substring(type.lastIndexOf('.') + 1),
+                                t,
+                                this.bytesOut);
+        } catch (RuntimeException e) {
+            getLogger().warn("Unable to record pipeline metrics", e);
+        }
+    }
+
+    /**
+     * Get the output stream of the environment. If the current request is
+     * measured, the bytes written to the stream are counted.
+     */
+    protected OutputStream getOutputStream(Environment environment, int bufferSize)
+    throws IOException {
+        final OutputStream stream = environment.getOutputStream(bufferSize);
+        if (this.times == null || stream == null) {
+            return stream;
+        }
+        if (this.bytesOut < 0) {
+            this.bytesOut = 0;
+        }
+        return new CountingOutputStream(stream);
+    }
+
+    /**
+     * Counts the bytes written to the output stream of the environment.
+     */
+    private final class CountingOutputStream extends FilterOutputStream {
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        public void write(int b) throws IOException {
+            this.out.write(b);
+            bytesOut++;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            this.out.write(b, off, len);
+            bytesOut += len;
         }
     }
 
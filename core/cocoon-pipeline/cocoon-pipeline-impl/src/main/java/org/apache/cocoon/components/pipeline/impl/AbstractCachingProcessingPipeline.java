@@ -16,7 +16,6 @@
  */
 package org.apache.cocoon.components.pipeline.impl;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Serializable;
@@ -35,6 +34,10 @@ import org.apache.cocoon.caching.CachedResponse;
 import org.apache.cocoon.caching.CachingOutputStream;
 import org.apache.cocoon.caching.ComponentCacheKey;
 import org.apache.cocoon.caching.PipelineCacheKey;
+import org.apache.cocoon.caching.SegmentedCachedResponse;
+import org.apache.cocoon.caching.SegmentedOutputStream;
+import org.apache.cocoon.components.pipeline.PipelineLockManager;
+import org.apache.cocoon.components.pipeline.PipelineMetrics;
 import org.apache.cocoon.components.source.util.SourceUtil;
 import org.apache.cocoon.environment.Environment;
 import org.apache.cocoon.transformation.Transformer;
@@ -44,7 +47,6 @@ import org.apache.excalibur.source.SourceValidity;
 import org.apache.excalibur.source.impl.validity.AggregatedValidity;
 import org.apache.excalibur.source.impl.validity.DeferredValidity;
 import org.apache.excalibur.source.impl.validity.NOPValidity;
-import org.apache.excalibur.store.Store;
 import org.springframework.web.context.request.RequestContextHolder;
 
 /**
@@ -53,12 +55,9 @@ import org.springframework.web.context.request.RequestContextHolder;
  *
  * @since 2.1
  * @version $Id$
- * @noinspection SynchronizeOnNonFinalField
  */
 public abstract class AbstractCachingProcessingPipeline extends BaseCachingProcessingPipeline {
 
-    public static final String PIPELOCK_PREFIX = "PIPELOCK:";
-
     /** The role name of the generator */
     protected String generatorRole;
 
@@ -96,12 +95,18 @@ public abstract class AbstractCachingProcessingPipeline extends BaseCachingProce
     /** Cache complete response */
     protected boolean cacheCompleteResponse;
 
-    /** Store for pipeline locks (optional) */
-    protected Store transientStore;
+    /** Manager for pipeline locks (optional) */
+    protected PipelineLockManager lockManager;
 
     /** Maximum wait time on a pipeline lock */
     protected long lockTimeout;
 
+    /** The key of the lock taken by this pipeline, if any */
+    private Object lockedKey;
+
+    /** The owner the lock has been taken for */
+    private Object lockOwner;
+
 
     /**
      * Abstract method defined in subclasses.
@@ -130,15 +135,15 @@ public abstract class AbstractCachingProcessingPipeline extends BaseCachingProce
         // Is pipeline locking enabled?
         if (params.getParameterAsBoolean("locking", true)) {
             lockTimeout = params.getParameterAsLong("locking-timeout", 7000);
-            final String storeRole = params.getParameter("store-role", Store.TRANSIENT_STORE);
+            final String lockManagerRole = params.getParameter("lock-manager-role", PipelineLockManager.ROLE);
             try {
-                transientStore = (Store) manager.lookup(storeRole);
+                lockManager = (PipelineLockManager) manager.lookup(lockManagerRole);
             } catch (ServiceException e) {
                 if (getLogger().isDebugEnabled()) {
-                    getLogger().debug("Transient store '" + storeRole + "' not available. Pipeline locking will not work.", e);
+                    getLogger().debug("Pipeline lock manager '" + lockManagerRole + "' not available. Pipeline locking will not work.", e);
                 }
-             }
-         }
+            }
+        }
     }
 
     /**
@@ -187,105 +192,36 @@ public abstract class AbstractCachingProcessingPipeline extends BaseCachingProce
      * @return false if able to find a lock and was notified
      */
     protected boolean waitForLock(Object key) {
-        if (transientStore != null) {
-            final String lockKey = PIPELOCK_PREFIX + key;
-
-            // Get a lock object from the store
-            Object lock;
-            synchronized (transientStore) {
-                lock = transientStore.get(lockKey);
-            }
-
-            // Avoid deadlock with self (see JIRA COCOON-1985).
-            Object current = RequestContextHolder.getRequestAttributes();
-            if (lock != null && lock != current) {
-                if (getLogger().isDebugEnabled()) {
-                    getLogger().debug("Waiting on Lock '" + lockKey + "'");
-                }
-
-                try {
-                    synchronized (lock) {
-                        // Close synchronization gap between retrieving the lock and
-                        // waiting on it. If lock is not in store anymore, don't wait
-                        // on it.
-                        synchronized (transientStore) {
-                            if (!transientStore.containsKey(lockKey)) {
-                                return false;
-                            }
-                        }
-
-                        lock.wait(lockTimeout);
-                    }
-
-                    if (getLogger().isDebugEnabled()) {
-                        getLogger().debug("Notified on Lock '" + lockKey + "'");
-                    }
-                } catch (InterruptedException e) {
-                    /* ignored */
-                }
-
-                return false;
-            }
+        if (lockManager != null) {
+            return lockManager.waitForLock(key, RequestContextHolder.getRequestAttributes(), lockTimeout);
         }
 
         return true;
     }
 
     /**
-     * Makes the lock (instantiates a new object and puts it into the store)
+     * Makes the lock (registers it with the lock manager)
      */
     protected void generateLock(Object key) {
-        if (transientStore != null && key != null) {
-            final String lockKey = PIPELOCK_PREFIX + key;
-            if (getLogger().isDebugEnabled()) {
-                getLogger().debug("Adding Lock '" + lockKey + "'");
-            }
-
-            synchronized (transientStore) {
-                if (transientStore.containsKey(lockKey)) {
-                    if (getLogger().isDebugEnabled()) {
-                        getLogger().debug("Lock EXISTS: '" + lockKey + "'");
-                    }
-                } else {
-                    Object lock = RequestContextHolder.getRequestAttributes();
-                    try {
-                        transientStore.store(lockKey, lock);
-                    } catch (IOException e) {
-                        /* should not happen */
-                    }
-                }
+        if (lockManager != null && key != null) {
+            final Object owner = RequestContextHolder.getRequestAttributes();
+            if (lockManager.lock(key, owner)) {
+                this.lockedKey = key;
+                this.lockOwner = owner;
             }
         }
     }
 
     /**
-     * Releases the lock (notifies it and removes it from the store)
+     * Releases the lock (notifies waiting requests and removes it from the lock manager)
      */
     protected void releaseLock(Object key) {
-        if (transientStore != null && key != null) {
-            final String lockKey = PIPELOCK_PREFIX + key;
-            if (getLogger().isDebugEnabled()) {
-                getLogger().debug("Releasing Lock '" + lockKey + "'");
-            }
-
-            Object lock = null;
-            synchronized (transientStore) {
-                if (!transientStore.containsKey(lockKey)) {
-                    if (getLogger().isDebugEnabled()) {
-                        getLogger().debug("Lock MISSING: '" + lockKey + "'");
-                    }
-                } else {
-                    lock = transientStore.get(lockKey);
-                    transientStore.remove(lockKey);
-                }
-            }
-
-            if (lock != null) {
-                // Notify everybody who's waiting
-                synchronized (lock) {
-                    lock.notifyAll();
-                }
-            }
+        // Only release the lock taken by this pipeline, with the owner it was
+        // taken for: a lock of another request must not be released here
+        if (lockManager != null && key != null && key.equals(this.lockedKey)) {
+            lockManager.unlock(key, this.lockOwner);
+            this.lockedKey = null;
+            this.lockOwner = null;
         }
     }
 
@@ -313,11 +249,10 @@ public abstract class AbstractCachingProcessingPipeline extends BaseCachingProce
 
             // Write response out
             try {
-                final OutputStream outputStream = environment.getOutputStream(0);
-                final byte[] content = this.cachedResponse.getResponse();
-                if (content.length > 0) {
-                    environment.setContentLength(content.length);
-                    outputStream.write(content);
+                final OutputStream outputStream = getOutputStream(environment, 0);
+                if (this.cachedResponse.getLength() > 0) {
+                    environment.setContentLength(this.cachedResponse.getLength());
+                    this.cachedResponse.writeTo(outputStream);
                 }
             } catch (Exception e) {
                 handleException(e);
@@ -335,12 +270,12 @@ public abstract class AbstractCachingProcessingPipeline extends BaseCachingProce
                 OutputStream os = null;
 
                 if (this.cacheCompleteResponse && this.toCacheKey != null) {
-                    os = new CachingOutputStream(environment.getOutputStream(this.outputBufferSize));
+                    os = new CachingOutputStream(getOutputStream(environment, this.outputBufferSize));
                 }
 
                 if (super.serializer != super.lastConsumer) {
                     if (os == null) {
-                        os = environment.getOutputStream(this.outputBufferSize);
+                        os = getOutputStream(environment, this.outputBufferSize);
                     }
 
                     // internal processing
@@ -353,25 +288,29 @@ public abstract class AbstractCachingProcessingPipeline extends BaseCachingProce
                 } else {
                     if (this.serializer.shouldSetContentLength()) {
                         if (os == null) {
-                            os = environment.getOutputStream(0);
+                            os = getOutputStream(environment, 0);
                         }
 
                         // Set the output stream
-                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                        this.serializer.setOutputStream(baos);
+                        SegmentedOutputStream buffer = new SegmentedOutputStream();
+                        try {
+                            this.serializer.setOutputStream(buffer);
 
-                        // Execute the pipeline
-                        if (this.xmlDeserializer != null) {
-                            this.xmlDeserializer.deserialize(this.cachedResponse.getResponse());
-                        } else {
-                            this.generator.generate();
-                        }
+                            // Execute the pipeline
+                            if (this.xmlDeserializer != null) {
+                                this.xmlDeserializer.deserialize(this.cachedResponse.getResponse());
+                            } else {
+                                this.generator.generate();
+                            }
 
-                        environment.setContentLength(baos.size());
-                        baos.writeTo(os);
+                            environment.setContentLength(buffer.size());
+                            buffer.writeTo(os);
+                        } finally {
+                            buffer.release();
+                        }
                     } else {
                         if (os == null) {
-                            os = environment.getOutputStream(this.outputBufferSize);
+                            os = getOutputStream(environment, this.outputBufferSize);
                         }
 
                         // Set the output stream
@@ -734,11 +673,15 @@ public abstract class AbstractCachingProcessingPipeline extends BaseCachingProce
         super.setupPipeline(environment);
 
         // Generate the key to fill the cache
+        long start = System.nanoTime();
         generateCachingKey(environment);
+        addTime(PipelineMetrics.CACHE_KEY, start);
 
         // Test the cache for a valid response
         if (this.toCacheKey != null) {
+            start = System.nanoTime();
             validatePipeline(environment);
+            addTime(PipelineMetrics.VALIDITY, start);
         }
 
         setupValidities();
@@ -821,17 +764,16 @@ public abstract class AbstractCachingProcessingPipeline extends BaseCachingProce
                                     getLogger().debug("processReader: using valid cached content for '" +
                                             environment.getURI() + "'.");
                                 }
-                                byte[] response = cachedObject.getResponse();
-                                if (response.length > 0) {
+                                if (cachedObject.getLength() > 0) {
                                     usedCache = true;
                                     if (cachedObject.getContentType() != null) {
                                         environment.setContentType(cachedObject.getContentType());
                                     } else {
                                         setMimeTypeForReader(environment);
                                     }
-                                    outputStream = environment.getOutputStream(0);
-                                    environment.setContentLength(response.length);
-                                    outputStream.write(response);
+                                    outputStream = getOutputStream(environment, 0);
+                                    environment.setContentLength(cachedObject.getLength());
+                                    cachedObject.writeTo(outputStream);
                                 }
                             } else {
                                 if (getLogger().isDebugEnabled()) {
@@ -867,30 +809,34 @@ public abstract class AbstractCachingProcessingPipeline extends BaseCachingProce
                         }
 
                         if (readerValidity != null) {
-                            outputStream = environment.getOutputStream(this.outputBufferSize);
+                            outputStream = getOutputStream(environment, this.outputBufferSize);
                             outputStream = new CachingOutputStream(outputStream);
                         }
                     }
 
                     setMimeTypeForReader(environment);
                     if (this.reader.shouldSetContentLength()) {
-                        ByteArrayOutputStream os = new ByteArrayOutputStream();
+                        SegmentedOutputStream os = new SegmentedOutputStream();
                         try {
-                            this.reader.setOutputStream(os);
-                            this.reader.generate();
-                        } catch (SourceException se) {
-                            //it's valid that generate() method returns SourceException (which extension to IOException)
-                            //and pipeline execution should be more clever
-                            throw SourceUtil.handle(se);
-                        }
-                        environment.setContentLength(os.size());
-                        if (outputStream == null) {
-                            outputStream = environment.getOutputStream(0);
+                            try {
+                                this.reader.setOutputStream(os);
+                                this.reader.generate();
+                            } catch (SourceException se) {
+                                //it's valid that generate() method returns SourceException (which extension to IOException)
+                                //and pipeline execution should be more clever
+                                throw SourceUtil.handle(se);
+                            }
+                            environment.setContentLength(os.size());
+                            if (outputStream == null) {
+                                outputStream = getOutputStream(environment, 0);
+                            }
+                            os.writeTo(outputStream);
+                        } finally {
+                            os.release();
                         }
-                        os.writeTo(outputStream);
                     } else {
                         if (outputStream == null) {
-                            outputStream = environment.getOutputStream(this.outputBufferSize);
+                            outputStream = getOutputStream(environment, this.outputBufferSize);
                         }
                         try {
                             this.reader.setOutputStream(outputStream);
@@ -904,8 +850,8 @@ public abstract class AbstractCachingProcessingPipeline extends BaseCachingProce
 
                     // store the response
                     if (pcKey != null && readerValidity != null) {
-                        final CachedResponse res = new CachedResponse(new SourceValidity[] {readerValidity},
-                                ((CachingOutputStream)outputStream).getContent());
+                        final CachedResponse res = new SegmentedCachedResponse(new SourceValidity[] {readerValidity},
+                                ((CachingOutputStream)outputStream).getSegments());
                         res.setContentType(environment.getContentType());
                         this.cache.store(pcKey, res);
                     }
@@ -1039,6 +985,9 @@ public abstract class AbstractCachingProcessingPipeline extends BaseCachingProce
      * Recyclable Interface
      */
     public void recycle() {
+        // the lock must never outlive the processing
+        releaseLock(this.lockedKey);
+
         this.generatorRole = null;
         this.transformerRoles.clear();
         this.serializerRole = null;
@@ -28,6 +28,7 @@ import org.apache.cocoon.ProcessingException;
 import org.apache.cocoon.caching.CachedResponse;
 import org.apache.cocoon.caching.CachingOutputStream;
 import org.apache.cocoon.caching.ComponentCacheKey;
+import org.apache.cocoon.caching.SegmentedCachedResponse;
 import org.apache.cocoon.components.sax.XMLByteStreamCompiler;
 import org.apache.cocoon.components.sax.XMLByteStreamInterpreter;
 import org.apache.cocoon.components.sax.XMLTeePipe;
@@ -175,8 +176,8 @@ public class CachingPointProcessingPipeline
                     this.getLogger().debug("Cached: caching complete response; pSisze"
                                            + this.toCacheKey.size() + " Key " + this.toCacheKey);
                 }
-                CachedResponse response = new CachedResponse(this.toCacheSourceValidities,
-                                          ((CachingOutputStream)os).getContent());
+                CachedResponse response = new SegmentedCachedResponse(this.toCacheSourceValidities,
+                                          ((CachingOutputStream)os).getSegments());
                 response.setContentType(environment.getContentType());
                 this.cache.store(this.toCacheKey.copy(),
                                  response);
@@ -24,6 +24,7 @@ import org.apache.cocoon.ProcessingException;
 import org.apache.cocoon.caching.CachedResponse;
 import org.apache.cocoon.caching.CachingOutputStream;
 import org.apache.cocoon.caching.ComponentCacheKey;
+import org.apache.cocoon.caching.SegmentedCachedResponse;
 import org.apache.cocoon.components.sax.XMLByteStreamCompiler;
 import org.apache.cocoon.components.sax.XMLByteStreamInterpreter;
 import org.apache.cocoon.components.sax.XMLTeePipe;
@@ -50,9 +51,9 @@ public class CachingProcessingPipeline extends AbstractCachingProcessingPipeline
 
             CachedResponse response;
             if (this.cacheCompleteResponse) {
-                response = new CachedResponse(this.toCacheSourceValidities,
-                                              ((CachingOutputStream) os).getContent(),
-                                              expiresObj);
+                response = new SegmentedCachedResponse(this.toCacheSourceValidities,
+                                                       ((CachingOutputStream) os).getSegments(),
+                                                       expiresObj);
                 response.setContentType(environment.getContentType());
             } else {
                 response = new CachedResponse(this.toCacheSourceValidities,
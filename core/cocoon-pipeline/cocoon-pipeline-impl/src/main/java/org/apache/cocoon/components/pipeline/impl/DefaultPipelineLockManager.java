@@ -0,0 +1,244 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.pipeline.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cocoon.components.pipeline.PipelineLockManager;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Default implementation of the {@link PipelineLockManager}.
+ *
+ * <p>Locks are kept in a striped concurrent map instead of the transient
+ * store, so taking or checking a lock never serializes all requests on a
+ * single monitor, and locks can not be evicted while a response is being
+ * generated. Each lock is a latch which is released once the owner has
+ * finished; waiting threads block on the latch of their key only.</p>
+ *
+ * <p>Some simple statistics about the lock usage are collected and can
+ * be used to monitor the contention on pipeline locks.</p>
+ *
+ * @since 2.2
+ * @version $Id$
+ */
+public class DefaultPipelineLockManager implements PipelineLockManager {
+
+    private Log logger = LogFactory.getLog(getClass());
+
+    /** The current locks: key string to {@link Lock} */
+    private ConcurrentMap locks = new ConcurrentHashMap(64, 0.75f, 16);
+
+    /** Number of locks taken */
+    private final AtomicLong lockCount = new AtomicLong();
+
+    /** Number of times a request had to wait for a lock */
+    private final AtomicLong waitCount = new AtomicLong();
+
+    /** Number of waits which ran into the timeout */
+    private final AtomicLong timeoutCount = new AtomicLong();
+
+    /** Total time spent waiting on locks in milliseconds */
+    private final AtomicLong waitTime = new AtomicLong();
+
+    /** Number of threads currently waiting */
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    /** Highest number of threads waiting at the same time */
+    private final AtomicInteger maxWaiters = new AtomicInteger();
+
+    /**
+     * @see org.apache.cocoon.components.pipeline.PipelineLockManager#lock(java.lang.Object, java.lang.Object)
+     */
+    public boolean lock(Object key, Object owner) {
+        if (key == null) {
+            return false;
+        }
+
+        final String lockKey = key.toString();
+        final Lock lock = new Lock(owner);
+        if (this.locks.putIfAbsent(lockKey, lock) != null) {
+            if (getLogger().isDebugEnabled()) {
+                getLogger().debug("Lock EXISTS: '" + lockKey + "'");
+            }
+            return false;
+        }
+
+        this.lockCount.incrementAndGet();
+        if (getLogger().isDebugEnabled()) {
+            getLogger().debug("Added Lock '" + lockKey + "'");
+        }
+        return true;
+    }
+
+    /**
+     * @see org.apache.cocoon.components.pipeline.PipelineLockManager#waitForLock(java.lang.Object, java.lang.Object, long)
+     */
+    public boolean waitForLock(Object key, Object owner, long timeout) {
+        if (key == null) {
+            return true;
+        }
+
+        final String lockKey = key.toString();
+        final Lock lock = (Lock) this.locks.get(lockKey);
+
+        // Avoid deadlock with self (see JIRA COCOON-1985).
+        if (lock == null || lock.owner == owner) {
+            return true;
+        }
+
+        if (getLogger().isDebugEnabled()) {
+            getLogger().debug("Waiting on Lock '" + lockKey + "'");
+        }
+
+        this.waitCount.incrementAndGet();
+        final int current = this.waiters.incrementAndGet();
+        int max = this.maxWaiters.get();
+        while (current > max && !this.maxWaiters.compareAndSet(max, current)) {
+            max = this.maxWaiters.get();
+        }
+
+        final long start = System.currentTimeMillis();
+        try {
+            if (!lock.latch.await(timeout, TimeUnit.MILLISECONDS)) {
+                this.timeoutCount.incrementAndGet();
+                if (getLogger().isDebugEnabled()) {
+                    getLogger().debug("Timeout waiting on Lock '" + lockKey + "'");
+                }
+            } else if (getLogger().isDebugEnabled()) {
+                getLogger().debug("Notified on Lock '" + lockKey + "'");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            this.waiters.decrementAndGet();
+            this.waitTime.addAndGet(System.currentTimeMillis() - start);
+        }
+
+        return false;
+    }
+
+    /**
+     * @see org.apache.cocoon.components.pipeline.PipelineLockManager#unlock(java.lang.Object, java.lang.Object)
+     */
+    public void unlock(Object key, Object owner) {
+        if (key == null) {
+            return;
+        }
+
+        final String lockKey = key.toString();
+        final Lock lock = (Lock) this.locks.get(lockKey);
+        if (lock == null) {
+            if (getLogger().isDebugEnabled()) {
+                getLogger().debug("Lock MISSING: '" + lockKey + "'");
+            }
+            return;
+        }
+        if (lock.owner != owner) {
+            // Release it anyway: a lock which is never released makes every
+            // request for the key wait for the timeout
+            getLogger().warn("Lock '" + lockKey + "' is released by another owner than the one who took it");
+        }
+
+        if (this.locks.remove(lockKey, lock)) {
+            if (getLogger().isDebugEnabled()) {
+                getLogger().debug("Released Lock '" + lockKey + "'");
+            }
+            // Notify everybody who's waiting
+            lock.latch.countDown();
+        }
+    }
+
+    /**
+     * Set the number of stripes used for the lock map. This is a hint
+     * for the expected number of concurrently locking threads.
+     */
+    public void setConcurrencyLevel(int concurrencyLevel) {
+        this.locks = new ConcurrentHashMap(64, 0.75f, concurrencyLevel);
+    }
+
+    /**
+     * @return the number of locks currently held
+     */
+    public int getLockedCount() {
+        return this.locks.size();
+    }
+
+    /**
+     * @return the number of locks taken since startup
+     */
+    public long getLockCount() {
+        return this.lockCount.get();
+    }
+
+    /**
+     * @return the number of times a request waited on a lock
+     */
+    public long getWaitCount() {
+        return this.waitCount.get();
+    }
+
+    /**
+     * @return the number of waits that ended because of the timeout
+     */
+    public long getTimeoutCount() {
+        return this.timeoutCount.get();
+    }
+
+    /**
+     * @return the total time spent waiting on locks in milliseconds
+     */
+    public long getWaitTime() {
+        return this.waitTime.get();
+    }
+
+    /**
+     * @return the number of threads currently waiting on a lock
+     */
+    public int getWaiters() {
+        return this.waiters.get();
+    }
+
+    /**
+     * @return the highest number of threads waiting at the same time
+     */
+    public int getMaxWaiters() {
+        return this.maxWaiters.get();
+    }
+
+    protected Log getLogger() {
+        return this.logger;
+    }
+
+    /**
+     * A single pipeline lock.
+     */
+    private static final class Lock {
+        final Object owner;
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        Lock(Object owner) {
+            this.owner = owner;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.pipeline.impl;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.cocoon.components.pipeline.PipelineMetrics;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Default implementation of the {@link PipelineMetrics}.
+ *
+ * <p>The times of every phase are collected in a {@link Histogram} per
+ * pipeline type and sitemap location, so percentiles like the 99th can be
+ * read at any time. Recording is lock free. Every histogram takes about
+ * 5KB; to bound the memory used, only <code>maxPipelines</code> pipelines
+ * are tracked separately and all further pipelines are collected under
+ * the location "[other]".</p>
+ *
+ * <p>The metrics are registered as MBean under <code>objectName</code> and
+ * are shown by the status generator.</p>
+ *
+ * <p>A few parameters can be used:
+ * <ul>
+ *  <li><b>componentTimingEnabled</b>: Measure the time of every generator,
+ *      transformer and serializer. This times every SAX event and is not
+ *      free, so it is switched off by default and can be switched on via
+ *      JMX when needed. (Default: false)</li>
+ *  <li><b>maxPipelines</b>: Maximum number of pipelines tracked
+ *      separately (Default: 256)</li>
+ *  <li><b>objectName</b>: The JMX object name, if empty the metrics are
+ *      not registered (Default: org.apache.cocoon:type=PipelineMetrics)</li>
+ * </ul></p>
+ *
+ * @since 2.2
+ * @version $Id$
+ */
+public class DefaultPipelineMetrics implements PipelineMetrics, DefaultPipelineMetricsMBean {
+
+    private static final String[] PHASE_NAMES = {
+        "setup", "cache-key", "validity", "processing", "generator", "serializer"
+    };
+
+    private static final String OTHER = "[other]";
+
+    private static final String BYTES = "bytes";
+
+    private static final String TRANSFORMER_PREFIX = "transformer-";
+
+    private Log logger = LogFactory.getLog(getClass());
+
+    private volatile boolean componentTimingEnabled;
+
+    private int maxPipelines = 256;
+
+    private String objectName = "org.apache.cocoon:type=PipelineMetrics";
+
+    private ObjectName registeredName;
+
+    /** The statistics: "type location" to {@link Statistics} */
+    private final ConcurrentMap statistics = new ConcurrentHashMap();
+
+    private final AtomicLong requestCount = new AtomicLong();
+
+    /** Cached phase names of the transformers */
+    private volatile String[] transformerNames = new String[0];
+
+    public void setComponentTimingEnabled(boolean enabled) {
+        this.componentTimingEnabled = enabled;
+    }
+
+    public boolean isComponentTimingEnabled() {
+        return this.componentTimingEnabled;
+    }
+
+    public void setMaxPipelines(int maxPipelines) {
+        this.maxPipelines = maxPipelines;
+    }
+
+    public void setObjectName(String objectName) {
+        this.objectName = objectName;
+    }
+
+    public Log getLogger() {
+        return this.logger;
+    }
+
+    public void setLogger(Log l) {
+        this.logger = l;
+    }
+
+    /**
+     * Register the metrics as MBean.
+     */
+    public void init() {
+        if (this.objectName == null || this.objectName.length() == 0) {
+            return;
+        }
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(this.objectName);
+            server.registerMBean(this, name);
+            this.registeredName = name;
+        } catch (Exception e) {
+            // e.g. another web application registered the name already
+            getLogger().warn("Unable to register pipeline metrics as " + this.objectName, e);
+        }
+    }
+
+    /**
+     * Unregister the MBean.
+     */
+    public void destroy() {
+        if (this.registeredName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.registeredName);
+            } catch (Exception e) {
+                getLogger().warn("Unable to unregister pipeline metrics " + this.registeredName, e);
+            }
+            this.registeredName = null;
+        }
+    }
+
+    /**
+     * @see org.apache.cocoon.components.pipeline.PipelineMetrics#record(java.lang.String, java.lang.String, long[], long)
+     */
+    public void record(String location, String type, long[] times, long bytes) {
+        this.requestCount.incrementAndGet();
+        final Statistics stats = getStatistics(type, location);
+        for (int i = 0; i < times.length; i++) {
+            if (times[i] >= 0) {
+                stats.getHistogram(phaseName(i)).record(times[i] / 1000);
+            }
+        }
+        if (bytes >= 0) {
+            stats.getHistogram(BYTES).record(bytes);
+        }
+    }
+
+    private Statistics getStatistics(String type, String location) {
+        String key = type + ' ' + location;
+        Statistics stats = (Statistics) this.statistics.get(key);
+        if (stats == null) {
+            if (this.statistics.size() >= this.maxPipelines) {
+                key = type + ' ' + OTHER;
+                stats = (Statistics) this.statistics.get(key);
+                if (stats != null) {
+                    return stats;
+                }
+            }
+            stats = new Statistics();
+            final Statistics old = (Statistics) this.statistics.putIfAbsent(key, stats);
+            if (old != null) {
+                stats = old;
+            }
+        }
+        return stats;
+    }
+
+    private String phaseName(int phase) {
+        if (phase < TRANSFORMER) {
+            return PHASE_NAMES[phase];
+        }
+        final int index = phase - TRANSFORMER;
+        String[] names = this.transformerNames;
+        if (index >= names.length) {
+            final String[] newNames = new String[index + 1];
+            System.arraycopy(names, 0, newNames, 0, names.length);
+            for (int i = names.length; i < newNames.length; i++) {
+                newNames[i] = TRANSFORMER_PREFIX + (i + 1);
+            }
+            this.transformerNames = names = newNames;
+        }
+        return names[index];
+    }
+
+    /**
+     * @see org.apache.cocoon.components.pipeline.impl.DefaultPipelineMetricsMBean#getRequestCount()
+     */
+    public long getRequestCount() {
+        return this.requestCount.get();
+    }
+
+    /**
+     * @see org.apache.cocoon.components.pipeline.impl.DefaultPipelineMetricsMBean#getPipelines()
+     */
+    public String[] getPipelines() {
+        final String[] pipelines = (String[]) this.statistics.keySet().toArray(new String[0]);
+        Arrays.sort(pipelines);
+        return pipelines;
+    }
+
+    /**
+     * @see org.apache.cocoon.components.pipeline.PipelineMetrics#getSummary()
+     */
+    public String[] getSummary() {
+        final List lines = new ArrayList();
+        final String[] pipelines = getPipelines();
+        for (int i = 0; i < pipelines.length; i++) {
+            final Statistics stats = (Statistics) this.statistics.get(pipelines[i]);
+            if (stats == null) {
+                continue;
+            }
+            final Iterator phases = stats.getPhases().iterator();
+            while (phases.hasNext()) {
+                final String phase = (String) phases.next();
+                final Histogram h = stats.getHistogram(phase);
+                final String unit = BYTES.equals(phase) ? "" : "us";
+                lines.add(pipelines[i] + ' ' + phase
+                          + ": count=" + h.getCount()
+                          + " mean=" + h.getMean() + unit
+                          + " p50=" + h.getPercentile(50) + unit
+                          + " p90=" + h.getPercentile(90) + unit
+                          + " p99=" + h.getPercentile(99) + unit
+                          + " max=" + h.getMax() + unit);
+            }
+        }
+        return (String[]) lines.toArray(new String[lines.size()]);
+    }
+
+    /**
+     * @see org.apache.cocoon.components.pipeline.impl.DefaultPipelineMetricsMBean#getPercentile(java.lang.String, java.lang.String, double)
+     */
+    public long getPercentile(String pipeline, String phase, double percentile) {
+        final Statistics stats = (Statistics) this.statistics.get(pipeline);
+        if (stats == null || !stats.getPhases().contains(phase)) {
+            return -1;
+        }
+        return stats.getHistogram(phase).getPercentile(percentile);
+    }
+
+    /**
+     * @see org.apache.cocoon.components.pipeline.impl.DefaultPipelineMetricsMBean#reset()
+     */
+    public void reset() {
+        this.statistics.clear();
+        this.requestCount.set(0);
+    }
+
+    /**
+     * The histograms of one pipeline, created on first use.
+     */
+    private static final class Statistics {
+        private final ConcurrentMap histograms = new ConcurrentHashMap(16, 0.75f, 4);
+
+        Histogram getHistogram(String phase) {
+            Histogram h = (Histogram) this.histograms.get(phase);
+            if (h == null) {
+                h = new Histogram();
+                final Histogram old = (Histogram) this.histograms.putIfAbsent(phase, h);
+                if (old != null) {
+                    h = old;
+                }
+            }
+            return h;
+        }
+
+        /**
+         * @return the phase names in pipeline order
+         */
+        List getPhases() {
+            final List phases = new ArrayList();
+            for (int i = 0; i < SERIALIZER; i++) {
+                if (this.histograms.containsKey(PHASE_NAMES[i])) {
+                    phases.add(PHASE_NAMES[i]);
+                }
+            }
+            // transformers may be missing, e.g. if they are skipped by a cached response
+            int last = 0;
+            final Iterator names = this.histograms.keySet().iterator();
+            while (names.hasNext()) {
+                final String name = (String) names.next();
+                if (name.startsWith(TRANSFORMER_PREFIX)) {
+                    last = Math.max(last, Integer.parseInt(name.substring(TRANSFORMER_PREFIX.length())));
+                }
+            }
+            for (int i = 1; i <= last; i++) {
+                if (this.histograms.containsKey(TRANSFORMER_PREFIX + i)) {
+                    phases.add(TRANSFORMER_PREFIX + i);
+                }
+            }
+            if (this.histograms.containsKey(PHASE_NAMES[SERIALIZER])) {
+                phases.add(PHASE_NAMES[SERIALIZER]);
+            }
+            if (this.histograms.containsKey(BYTES)) {
+                phases.add(BYTES);
+            }
+            return phases;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.pipeline.impl;
+
+/**
+ * The management interface of the {@link DefaultPipelineMetrics}.
+ *
+ * @since 2.2
+ * @version $Id$
+ */
+public interface DefaultPipelineMetricsMBean {
+
+    /**
+     * @return the number of recorded requests
+     */
+    long getRequestCount();
+
+    /**
+     * @return the pipelines with recorded metrics as "type location"
+     */
+    String[] getPipelines();
+
+    /**
+     * @return one line per pipeline and phase with count, mean, 50th, 90th
+     *         and 99th percentile and maximum in microseconds
+     */
+    String[] getSummary();
+
+    /**
+     * @param pipeline   the pipeline as returned by {@link #getPipelines()}
+     * @param phase      the phase name, e.g. "processing" or "transformer-1"
+     * @param percentile the percentile between 0 and 100
+     * @return the time of the percentile in microseconds, -1 if unknown
+     */
+    long getPercentile(String pipeline, String phase, double percentile);
+
+    boolean isComponentTimingEnabled();
+
+    void setComponentTimingEnabled(boolean enabled);
+
+    /**
+     * Remove all recorded metrics.
+     */
+    void reset();
+}
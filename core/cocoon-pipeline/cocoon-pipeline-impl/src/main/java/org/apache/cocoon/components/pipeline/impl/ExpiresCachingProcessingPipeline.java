@@ -23,6 +23,8 @@ import org.apache.cocoon.ProcessingException;
 import org.apache.cocoon.caching.CachedResponse;
 import org.apache.cocoon.caching.CachingOutputStream;
 import org.apache.cocoon.caching.IdentifierCacheKey;
+import org.apache.cocoon.caching.SegmentedCachedResponse;
+import org.apache.cocoon.caching.SegmentedOutputStream;
 import org.apache.cocoon.components.sax.XMLByteStreamCompiler;
 import org.apache.cocoon.components.sax.XMLByteStreamInterpreter;
 import org.apache.cocoon.components.sax.XMLTeePipe;
@@ -37,7 +39,6 @@ import org.apache.excalibur.source.SourceValidity;
 import org.apache.excalibur.source.impl.validity.ExpiresValidity;
 import org.apache.excalibur.source.impl.validity.NOPValidity;
 
-import java.io.ByteArrayOutputStream;
 import java.io.OutputStream;
 import java.util.Map;
 
@@ -97,23 +98,21 @@ public class ExpiresCachingProcessingPipeline
     throws ProcessingException {
         try {
             if (this.cachedResponse != null) {
-                byte[] content = cachedResponse.getResponse();
-
                 if ( this.serializer == this.lastConsumer ) {
                     if ( cachedResponse.getContentType() != null ) {
                         environment.setContentType(cachedResponse.getContentType());
                     } else {
                         this.setMimeTypeForSerializer(environment);
                     }
-                    final OutputStream outputStream = environment.getOutputStream(0);
-                    if (content.length > 0) {
-                        environment.setContentLength(content.length);
-                        outputStream.write(content);
+                    final OutputStream outputStream = getOutputStream(environment, 0);
+                    if (cachedResponse.getLength() > 0) {
+                        environment.setContentLength(cachedResponse.getLength());
+                        cachedResponse.writeTo(outputStream);
                     }
                 } else {
                     this.setMimeTypeForSerializer(environment);
                     this.xmlDeserializer.setConsumer( this.lastConsumer );
-                    this.xmlDeserializer.deserialize( content );
+                    this.xmlDeserializer.deserialize( cachedResponse.getResponse() );
                 }
 
             } else {
@@ -125,33 +124,41 @@ public class ExpiresCachingProcessingPipeline
                 }
 
                 this.setMimeTypeForSerializer(environment);
-                byte[] cachedData;
+                CachedResponse response;
                 if ( this.serializer == this.lastConsumer ) {
 
                     if (this.serializer.shouldSetContentLength()) {
-                        OutputStream os = environment.getOutputStream(this.outputBufferSize);
+                        OutputStream os = getOutputStream(environment, this.outputBufferSize);
 
                         // set the output stream
-                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                        this.serializer.setOutputStream(baos);
-
-                        this.generator.generate();
-
-                        cachedData = baos.toByteArray();
-                        environment.setContentLength(cachedData.length);
-                        os.write(cachedData);
+                        SegmentedOutputStream buffer = new SegmentedOutputStream();
+                        try {
+                            this.serializer.setOutputStream(buffer);
+
+                            this.generator.generate();
+
+                            environment.setContentLength(buffer.size());
+                            buffer.writeTo(os);
+                            response = new SegmentedCachedResponse(new SourceValidity[] {this.cacheValidity},
+                                                                   buffer.getSegments());
+                        } finally {
+                            // only gives back what has not been passed on
+                            buffer.release();
+                        }
                     } else {
-                        CachingOutputStream os = new CachingOutputStream( environment.getOutputStream(this.outputBufferSize) );
+                        CachingOutputStream os = new CachingOutputStream( getOutputStream(environment, this.outputBufferSize) );
                         // set the output stream
                         this.serializer.setOutputStream( os );
                         this.generator.generate();
 
-                        cachedData = os.getContent();
+                        response = new SegmentedCachedResponse(new SourceValidity[] {this.cacheValidity},
+                                                               os.getSegments());
                     }
 
                 } else {
                     this.generator.generate();
-                    cachedData = (byte[])this.xmlSerializer.getSAXFragment();
+                    response = new CachedResponse(this.cacheValidity,
+                                                  (byte[])this.xmlSerializer.getSAXFragment());
                 }
 
                 //
@@ -159,8 +166,7 @@ public class ExpiresCachingProcessingPipeline
                 // we do the actual caching
                 //
                 if (this.cacheValidity != null) {
-                    cachedResponse = new CachedResponse(this.cacheValidity,
-                                                        cachedData);
+                    cachedResponse = response;
                     cachedResponse.setContentType(environment.getContentType());
                     this.cache.store(this.cacheKey, cachedResponse);
                 }
@@ -306,11 +312,10 @@ public class ExpiresCachingProcessingPipeline
                     this.setMimeTypeForReader(environment);
                 }
 
-                final byte[] content = cachedResponse.getResponse();
-                environment.setContentLength(content.length);
+                environment.setContentLength(cachedResponse.getLength());
 
-                final OutputStream os = environment.getOutputStream(0);
-                os.write(content);
+                final OutputStream os = getOutputStream(environment, 0);
+                cachedResponse.writeTo(os);
 
             } else {
                 // generate new response
@@ -319,28 +324,31 @@ public class ExpiresCachingProcessingPipeline
                     return super.processReader( environment );
                 }
 
-                byte[] cachedData;
+                byte[][] cachedData;
 
                 this.setMimeTypeForReader(environment);
                 if (this.reader.shouldSetContentLength()) {
-                    final OutputStream os = environment.getOutputStream(this.outputBufferSize);
+                    final OutputStream os = getOutputStream(environment, this.outputBufferSize);
 
                     // set the output stream
-                    final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                    final SegmentedOutputStream buffer = new SegmentedOutputStream();
                     try {
-                        this.reader.setOutputStream(baos);
+                        this.reader.setOutputStream(buffer);
                         this.reader.generate();
+
+                        environment.setContentLength(buffer.size());
+                        buffer.writeTo(os);
+                        cachedData = buffer.getSegments();
                     } catch (SourceException se) {
                         //it's valid that generate() method returns SourceException (which extension to IOException)
                         //and pipeline execution should be more clever
                         throw SourceUtil.handle(se);
+                    } finally {
+                        // only gives back what has not been passed on
+                        buffer.release();
                     }
-
-                    cachedData = baos.toByteArray();
-                    environment.setContentLength(cachedData.length);
-                    os.write(cachedData);
                 } else {
-                    final CachingOutputStream os = new CachingOutputStream( environment.getOutputStream(this.outputBufferSize) );
+                    final CachingOutputStream os = new CachingOutputStream( getOutputStream(environment, this.outputBufferSize) );
                     
                     try {
                         // set the output stream
@@ -352,7 +360,7 @@ public class ExpiresCachingProcessingPipeline
                         throw SourceUtil.handle(se);
                     }
 
-                    cachedData = os.getContent();
+                    cachedData = os.getSegments();
                 }
 
                 //
@@ -360,8 +368,8 @@ public class ExpiresCachingProcessingPipeline
                 // we do the actual caching
                 //
                 if (this.cacheValidity != null) {
-                    cachedResponse = new CachedResponse(this.cacheValidity,
-                                                        cachedData);
+                    cachedResponse = new SegmentedCachedResponse(new SourceValidity[] {this.cacheValidity},
+                                                                 cachedData);
                     cachedResponse.setContentType(environment.getContentType());
                     this.cache.store(this.cacheKey, cachedResponse);
                 }
@@ -0,0 +1,148 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.pipeline.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non negative values with a fixed relative precision.
+ *
+ * <p>Values below 16 get their own bucket. Above, every power of two is
+ * split into 16 buckets, so the value reported for a percentile is at most
+ * 1/16 (6.25%) below the recorded value. Values up to 2^40 are counted,
+ * larger values are counted in the last bucket.</p>
+ *
+ * <p>Recording is lock free and never allocates, so a histogram can be
+ * updated by many threads at the same time. Reading is not atomic: a
+ * percentile computed while values are recorded may be slightly off.</p>
+ *
+ * @since 2.2
+ * @version $Id$
+ */
+public class Histogram {
+
+    /** Bits for the buckets within a power of two */
+    private static final int SUB_BITS = 4;
+
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    /** The highest power of two counted */
+    private static final int MAX_BITS = 40;
+
+    private static final int BUCKETS = (MAX_BITS - SUB_BITS + 2) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong total = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a value. Negative values are ignored.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            return;
+        }
+        this.counts.incrementAndGet(index(value));
+        this.count.incrementAndGet();
+        this.total.addAndGet(value);
+        long current;
+        while (value > (current = this.max.get())) {
+            if (this.max.compareAndSet(current, value)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return the number of recorded values
+     */
+    public long getCount() {
+        return this.count.get();
+    }
+
+    /**
+     * @return the mean of the recorded values
+     */
+    public long getMean() {
+        final long n = this.count.get();
+        return n == 0 ? 0 : this.total.get() / n;
+    }
+
+    /**
+     * @return the largest recorded value
+     */
+    public long getMax() {
+        return this.max.get();
+    }
+
+    /**
+     * @param percentile the percentile, between 0 and 100
+     * @return the lowest value of the bucket holding the percentile
+     */
+    public long getPercentile(double percentile) {
+        final long n = this.count.get();
+        if (n == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(n * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += this.counts.get(i);
+            if (seen >= rank) {
+                return Math.min(value(i), this.max.get());
+            }
+        }
+        return this.max.get();
+    }
+
+    /**
+     * Remove all recorded values.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            this.counts.set(i, 0);
+        }
+        this.count.set(0);
+        this.total.set(0);
+        this.max.set(0);
+    }
+
+    static int index(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        final int msb = 63 - Long.numberOfLeadingZeros(value);
+        if (msb > MAX_BITS) {
+            return BUCKETS - 1;
+        }
+        final int shift = msb - SUB_BITS;
+        return shift * SUB_COUNT + (int) (value >>> shift);
+    }
+
+    static long value(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        final int shift = index / SUB_COUNT - 1;
+        return ((long) (index - shift * SUB_COUNT)) << shift;
+    }
+}
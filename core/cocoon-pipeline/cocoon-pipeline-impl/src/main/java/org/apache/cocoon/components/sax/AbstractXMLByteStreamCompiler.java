@@ -17,6 +17,7 @@
 package org.apache.cocoon.components.sax;
 
 import java.util.HashMap;
+import java.util.Map;
 
 import org.apache.cocoon.xml.XMLConsumer;
 import org.xml.sax.Attributes;
@@ -28,22 +29,42 @@ import org.xml.sax.SAXException;
  * If you want to reuse this instance, make sure to call {@link #recycle()}
  * inbetween two compilation tasks.
  *
+ * <p>The events are written in the compact format version 2: all numbers
+ * are variable length integers (7 bits per byte), text is written as UTF-8
+ * and every string as well as every element and attribute name is written
+ * only once and referenced by its index afterwards. The
+ * {@link AbstractXMLByteStreamInterpreter} reads this format as well as the
+ * format version 1 written by earlier versions.</p>
+ *
  * @version $Id$
  */
 public abstract class AbstractXMLByteStreamCompiler implements XMLConsumer, XMLByteStreamConstants {
 
-    private HashMap map;
-    private int mapCount;
+    /** The format version written by this compiler. */
+    public static final int FORMAT_VERSION = 2;
+
+    /** The string dictionary: string to index */
+    private final Map strings = new HashMap();
+
+    /** The element name dictionary: {@link Name} to index */
+    private final Map elementNames = new HashMap();
+
+    /** The attribute name dictionary: {@link Name} to index */
+    private final Map attributeNames = new HashMap();
+
+    /** The key used to look up names without creating a new object */
+    private final Name probe = new Name();
+
     private boolean hasProlog = false;
 
     protected AbstractXMLByteStreamCompiler() {
-        this.map = new HashMap();
         this.initOutput();
     }
 
     private void initOutput() {
-        this.mapCount = 0;
-        this.map.clear();
+        this.strings.clear();
+        this.elementNames.clear();
+        this.attributeNames.clear();
         this.hasProlog = false;
     }
 
@@ -79,22 +100,16 @@ public abstract class AbstractXMLByteStreamCompiler implements XMLConsumer, XMLB
         this.writeEvent(START_ELEMENT);
         this.writeAttributes(length);
         for (int i = 0; i < length; i++) {
-            this.writeString(atts.getURI(i));
-            this.writeString(atts.getLocalName(i));
-            this.writeString(atts.getQName(i));
-            this.writeString(atts.getType(i));
+            this.writeName(this.attributeNames, atts.getURI(i), atts.getLocalName(i), atts.getQName(i),
+                           atts.getType(i) == null ? "CDATA" : atts.getType(i));
             this.writeString(atts.getValue(i));
-         }
-         this.writeString((namespaceURI == null ? "" : namespaceURI));
-         this.writeString(localName);
-         this.writeString(qName);
-     }
+        }
+        this.writeName(this.elementNames, namespaceURI, localName, qName, null);
+    }
 
     public void endElement(String namespaceURI, String localName, String qName) throws SAXException {
         this.writeEvent(END_ELEMENT);
-        this.writeString((namespaceURI == null ? "" : namespaceURI));
-        this.writeString(localName);
-        this.writeString(qName);
+        this.writeName(this.elementNames, namespaceURI, localName, qName, null);
     }
 
     public void characters(char[] ch, int start, int length) throws SAXException {
@@ -124,8 +139,8 @@ public abstract class AbstractXMLByteStreamCompiler implements XMLConsumer, XMLB
             String systemId = locator.getSystemId();
             this.writeString(publicId!=null?publicId:"");
             this.writeString(systemId!=null?systemId:"");
-            this.write(locator.getLineNumber());
-            this.write(locator.getColumnNumber());
+            this.writeNumber(Math.max(locator.getLineNumber(), -1) + 1);
+            this.writeNumber(Math.max(locator.getColumnNumber(), -1) + 1);
         } catch (Exception e) {
              throw new DocumentLocatorException("Error while handling locator", e);
         }
@@ -200,43 +215,93 @@ public abstract class AbstractXMLByteStreamCompiler implements XMLConsumer, XMLB
     }
 
     public final void writeAttributes( final int attributes) throws SAXException {
-        if (attributes > 0xFFFF) throw new SAXException("Too many attributes");
-        this.write((attributes >>> 8) & 0xFF);
-        this.write((attributes >>> 0) & 0xFF);
+        this.writeNumber(attributes);
     }
 
+    /**
+     * Write a string. A string which has been written before is written as
+     * a reference to the dictionary, otherwise the string follows as UTF-8.
+     */
     public final void writeString( final String str) throws SAXException {
-        Integer index = (Integer) map.get(str);
-        if (index == null) {
-            map.put(str, new Integer(mapCount++));
-            int length = str.length();
-            this.writeChars(str.toCharArray(), 0, length);
+        final Integer index = (Integer) this.strings.get(str);
+        if (index != null) {
+            this.writeNumber((index.intValue() << 1) | 1);
         } else {
-            int i = index.intValue();
-
-            if (i <= 0x7FFF) {
-                // write index value in 16-bits
-                this.write(((i >>> 8) & 0xFF) | 0x80);
-                this.write((i >>> 0) & 0xFF);
-            } else {
-                // write escape code (Short.MAX_VALUE) to write a full 32-bit value
-                write((byte)0x7F);
-                write((byte)0xFF);
-                // write index value in 32-bit
-                write((byte) ((i >>> 24) & 0xFF) | 0x80);
-                write((byte) ((i >>> 16) & 0xFF));
-                write((byte) ((i >>>  8) & 0xFF));
-                write((byte) ((i >>>  0) & 0xFF));
-            }
+            this.strings.put(str, new Integer(this.strings.size()));
+            final int length = str.length();
+            this.writeUTF(str.toCharArray(), 0, length, utfLength(str, length) << 1);
         }
     }
 
+    /**
+     * Write text. Text is never added to the dictionary.
+     */
     public final void writeChars( final char[] ch, final int start, final int length) throws SAXException {
-        int utflen = 0;
-        int c;
+        this.writeUTF(ch, start, length, utfLength(ch, start, length));
+    }
 
-        for (int i = 0; i < length; i++) {
-            c = ch[i + start];
+    /**
+     * Write a name tuple. A name which has been written before is written as
+     * a reference (index + 1) to the given dictionary, a new name as zero
+     * followed by its strings.
+     */
+    private void writeName(Map names, String uri, String localName, String qName, String type)
+    throws SAXException {
+        this.probe.set(uri == null ? "" : uri, localName, qName, type);
+        final Integer index = (Integer) names.get(this.probe);
+        if (index != null) {
+            this.writeNumber(index.intValue() + 1);
+        } else {
+            final Name name = new Name();
+            name.set(this.probe.uri, localName, qName, type);
+            names.put(name, new Integer(names.size()));
+            this.writeNumber(0);
+            this.writeString(name.uri);
+            this.writeString(localName);
+            this.writeString(qName);
+            if (type != null) {
+                this.writeString(type);
+            }
+        }
+    }
+
+    /**
+     * Write a non negative number as variable length integer: seven bits
+     * per byte, least significant group first, the high bit is set on all
+     * bytes except the last one.
+     */
+    public final void writeNumber( int value) throws SAXException {
+        while ((value & ~0x7F) != 0) {
+            this.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        this.write(value);
+    }
+
+    private void writeUTF(final char[] ch, final int start, final int length, final int header)
+    throws SAXException {
+        this.writeNumber(header);
+        for (int i = start; i < start + length; i++) {
+            final int c = ch[i];
+            if ((c >= 0x0001) && (c <= 0x007F)) {
+                write(c);
+            }
+            else if (c > 0x07FF) {
+                write(0xE0 | ((c >> 12) & 0x0F));
+                write(0x80 | ((c >>  6) & 0x3F));
+                write(0x80 | ((c >>  0) & 0x3F));
+            }
+            else {
+                write(0xC0 | ((c >>  6) & 0x1F));
+                write(0x80 | ((c >>  0) & 0x3F));
+            }
+        }
+    }
+
+    private static int utfLength(final char[] ch, final int start, final int length) {
+        int utflen = 0;
+        for (int i = start; i < start + length; i++) {
+            final int c = ch[i];
             if ((c >= 0x0001) && (c <= 0x007F)) {
                 utflen++;
             }
@@ -247,35 +312,24 @@ public abstract class AbstractXMLByteStreamCompiler implements XMLConsumer, XMLB
                 utflen += 2;
             }
         }
+        return utflen;
+    }
 
-        if (utflen >= 0x00007FFF) {
-            write((byte)0x7F);
-            write((byte)0xFF);
-            write((byte) ((utflen >>> 24) & 0xFF));
-            write((byte) ((utflen >>> 16) & 0xFF));
-            write((byte) ((utflen >>>  8) & 0xFF));
-            write((byte) ((utflen >>>  0) & 0xFF));
-        }
-        else {
-            write((byte) ((utflen >>> 8) & 0xFF));
-            write((byte) ((utflen >>> 0) & 0xFF));
-        }
-
+    private static int utfLength(final String str, final int length) {
+        int utflen = 0;
         for (int i = 0; i < length; i++) {
-            c = ch[i + start];
+            final int c = str.charAt(i);
             if ((c >= 0x0001) && (c <= 0x007F)) {
-                write((byte) c);
+                utflen++;
             }
             else if (c > 0x07FF) {
-                write((byte) (0xE0 | ((c >> 12) & 0x0F)));
-                write((byte) (0x80 | ((c >>  6) & 0x3F)));
-                write((byte) (0x80 | ((c >>  0) & 0x3F)));
+                utflen += 3;
             }
             else {
-                write((byte) (0xC0 | ((c >>  6) & 0x1F)));
-                write((byte) (0x80 | ((c >>  0) & 0x3F)));
+                utflen += 2;
             }
         }
+        return utflen;
     }
 
     abstract protected void write( final int b ) throws SAXException;
@@ -285,8 +339,41 @@ public abstract class AbstractXMLByteStreamCompiler implements XMLConsumer, XMLB
         write((byte)'X');
         write((byte)'M');
         write((byte)'L');
-        write((byte)1);
+        write((byte)FORMAT_VERSION);
         write((byte)0);
         hasProlog = true;
     }
+
+    /**
+     * The key of the name dictionaries.
+     */
+    private static final class Name {
+        String uri;
+        String localName;
+        String qName;
+        String type;
+        int hash;
+
+        void set(String uri, String localName, String qName, String type) {
+            this.uri = uri;
+            this.localName = localName;
+            this.qName = qName;
+            this.type = type;
+            this.hash = qName.hashCode() * 31 + localName.hashCode();
+        }
+
+        public int hashCode() {
+            return this.hash;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Name)) {
+                return false;
+            }
+            final Name n = (Name) o;
+            return this.qName.equals(n.qName) && this.localName.equals(n.localName)
+                   && this.uri.equals(n.uri)
+                   && (this.type == null ? n.type == null : this.type.equals(n.type));
+        }
+    }
 }
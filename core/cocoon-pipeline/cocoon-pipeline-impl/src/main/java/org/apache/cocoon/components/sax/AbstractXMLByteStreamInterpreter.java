@@ -32,12 +32,34 @@ import org.xml.sax.helpers.DefaultHandler;
  * If you want to reuse this interpreter make sure to call first {@link #recycle()}
  * and then set the new consumer for the sax events.
  *
+ * <p>Both the compact format version 2 written by the current
+ * {@link AbstractXMLByteStreamCompiler} and the format version 1 written by
+ * earlier versions are understood. When reading version 2 strings and names
+ * are only created the first time they occur, text is decoded into a reused
+ * buffer and the same <code>Attributes</code> instance is passed on for every
+ * element.</p>
+ *
  * @version $Id$
  */
 public abstract class AbstractXMLByteStreamInterpreter implements XMLProducer, XMLByteStreamConstants {
 
+    /** The buffers are dropped on recycling when they grew larger than this */
+    private static final int MAX_KEPT_BUFFER = 8192;
+
     private ArrayList list = new ArrayList();
 
+    /** The element names of format version 2: String[] {uri, local name, qname} */
+    private ArrayList elementNames = new ArrayList();
+
+    /** The attribute names of format version 2: String[] {uri, local name, qname, type} */
+    private ArrayList attributeNames = new ArrayList();
+
+    /** The attributes passed to startElement for format version 2 */
+    private final AttributesImpl attributes = new AttributesImpl();
+
+    private char[] charBuffer = new char[256];
+    private byte[] byteBuffer = new byte[256];
+
     protected static final ContentHandler EMPTY_CONTENT_HANDLER = new DefaultHandler();
 
     /** The <code>ContentHandler</code> receiving SAX events. */
@@ -81,6 +103,15 @@ public abstract class AbstractXMLByteStreamInterpreter implements XMLProducer, X
         this.contentHandler = EMPTY_CONTENT_HANDLER;
         this.lexicalHandler = DefaultLexicalHandler.NULL_HANDLER;
         this.list.clear();
+        this.elementNames.clear();
+        this.attributeNames.clear();
+        this.attributes.clear();
+        if (this.charBuffer.length > MAX_KEPT_BUFFER) {
+            this.charBuffer = new char[256];
+        }
+        if (this.byteBuffer.length > MAX_KEPT_BUFFER) {
+            this.byteBuffer = new byte[256];
+        }
     }
 
     /**
@@ -90,7 +121,17 @@ public abstract class AbstractXMLByteStreamInterpreter implements XMLProducer, X
      */
     protected void parse() throws SAXException {
         this.list.clear();
-        this.checkProlog();
+        final int version = this.checkProlog();
+        if (version == 1) {
+            this.parseVersion1();
+        } else {
+            this.elementNames.clear();
+            this.attributeNames.clear();
+            this.parseVersion2();
+        }
+    }
+
+    private void parseVersion1() throws SAXException {
         int event = -1;
         int lastEvent = -1;
         while ( ( event = readEvent() ) != -1 ) {
@@ -187,6 +228,99 @@ public abstract class AbstractXMLByteStreamInterpreter implements XMLProducer, X
         }
     }
 
+    private void parseVersion2() throws SAXException {
+        int event = -1;
+        int lastEvent = -1;
+        int len;
+        String[] name;
+        while ( ( event = readEvent() ) != -1 ) {
+            lastEvent = event;
+            switch (event) {
+                case START_DOCUMENT:
+                    contentHandler.startDocument();
+                    break;
+                case END_DOCUMENT:
+                    contentHandler.endDocument();
+                    break;
+                case START_PREFIX_MAPPING:
+                    contentHandler.startPrefixMapping(this.readDictionaryString(), this.readDictionaryString());
+                    break;
+                case END_PREFIX_MAPPING:
+                    contentHandler.endPrefixMapping(this.readDictionaryString());
+                    break;
+                case START_ELEMENT:
+                    int attributes = this.readNumber();
+                    this.attributes.clear();
+                    for (int i = 0; i < attributes; i++) {
+                        name = this.readName(this.attributeNames, 4);
+                        this.attributes.addAttribute(name[0], name[1], name[2], name[3], this.readDictionaryString());
+                    }
+                    name = this.readName(this.elementNames, 3);
+                    contentHandler.startElement(name[0], name[1], name[2], this.attributes);
+                    break;
+                case END_ELEMENT:
+                    name = this.readName(this.elementNames, 3);
+                    contentHandler.endElement(name[0], name[1], name[2]);
+                    break;
+                case CHARACTERS:
+                case IGNORABLE_WHITESPACE:
+                    len = this.readText(this.readNumber());
+                    if (len > 0) contentHandler.characters(this.charBuffer, 0, len);
+                    break;
+                case PROCESSING_INSTRUCTION:
+                    contentHandler.processingInstruction(this.readDictionaryString(), this.readDictionaryString());
+                    break;
+                case COMMENT:
+                    len = this.readText(this.readNumber());
+                    if (len > 0) lexicalHandler.comment(this.charBuffer, 0, len);
+                    break;
+                case LOCATOR:
+                    {
+                    String publicId = this.readDictionaryString();
+                    String systemId = this.readDictionaryString();
+                    int lineNumber = this.readNumber() - 1;
+                    int columnNumber = this.readNumber() - 1;
+                    org.xml.sax.helpers.LocatorImpl locator = new org.xml.sax.helpers.LocatorImpl();
+                    locator.setPublicId(publicId);
+                    locator.setSystemId(systemId);
+                    locator.setLineNumber(lineNumber);
+                    locator.setColumnNumber(columnNumber);
+                    contentHandler.setDocumentLocator(locator);
+                    }
+                    break;
+                case START_DTD:
+                    lexicalHandler.startDTD(this.readDictionaryString(),
+                                            this.readDictionaryString(),
+                                            this.readDictionaryString());
+                    break;
+                case END_DTD:
+                    lexicalHandler.endDTD();
+                    break;
+                case START_CDATA:
+                    lexicalHandler.startCDATA();
+                    break;
+                case END_CDATA:
+                    lexicalHandler.endCDATA();
+                    break;
+                case SKIPPED_ENTITY:
+                    contentHandler.skippedEntity( this.readDictionaryString() );
+                    break;
+                case START_ENTITY:
+                    lexicalHandler.startEntity( this.readDictionaryString() );
+                    break;
+                case END_ENTITY:
+                    lexicalHandler.endEntity( this.readDictionaryString() );
+                    break;
+                default:
+                    throw new SAXException ("parsing error: event not supported: " + event);
+            }
+        }
+        if( lastEvent != END_DOCUMENT )
+        {
+            throw new SAXException ("parsing error: premature end of stream (lastEvent was " + lastEvent + ")." );
+        }
+    }
+
     protected int readEvent() throws SAXException {
         return this.read();
     }
@@ -241,9 +375,125 @@ public abstract class AbstractXMLByteStreamInterpreter implements XMLProducer, X
         return this.readChars(length);
     }
 
+    /**
+     * Read a variable length integer of format version 2.
+     */
+    private int readNumber() throws SAXException {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = this.read();
+            if (b == -1) {
+                throw new SAXException("End of is reached.");
+            }
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Read a string of format version 2: either a reference to a string
+     * read before or a new string which is added to the dictionary.
+     */
+    private String readDictionaryString() throws SAXException {
+        final int header = this.readNumber();
+        if ((header & 1) != 0) {
+            return (String) list.get(header >>> 1);
+        }
+        final int len = this.readText(header >>> 1);
+        final String str = (len == 0 ? "" : new String(this.charBuffer, 0, len));
+        list.add(str);
+        return str;
+    }
+
+    /**
+     * Read a name tuple of format version 2: either a reference (index + 1)
+     * to a name read before or zero followed by the strings of a new name.
+     */
+    private String[] readName(ArrayList names, int size) throws SAXException {
+        final int index = this.readNumber();
+        if (index > 0) {
+            return (String[]) names.get(index - 1);
+        }
+        final String[] name = new String[size];
+        for (int i = 0; i < size; i++) {
+            name[i] = this.readDictionaryString();
+        }
+        names.add(name);
+        return name;
+    }
+
+    /**
+     * Decode the given number of UTF-8 bytes into the char buffer.
+     *
+     * @return the number of chars decoded
+     */
+    private int readText(final int len) throws SAXException {
+        if (this.byteBuffer.length < len) {
+            this.byteBuffer = new byte[Math.max(len, this.byteBuffer.length << 1)];
+        }
+        if (this.charBuffer.length < len) {
+            this.charBuffer = new char[Math.max(len, this.charBuffer.length << 1)];
+        }
+        final byte[] bytearr = this.byteBuffer;
+        final char[] str = this.charBuffer;
+        if (this.read(bytearr, 0, len) < len) {
+            throw new SAXException("End of is reached.");
+        }
+        int c, char2, char3;
+        int count = 0;
+        int i = 0;
+        while (count < len) {
+            c = bytearr[count] & 0xff;
+            switch (c >> 4) {
+                case 0: case 1: case 2: case 3: case 4: case 5: case 6: case 7:
+                    // 0xxxxxxx
+                    count++;
+                    str[i++] = (char) c;
+                    break;
+                case 12: case 13:
+                    // 110x xxxx   10xx xxxx
+                    count += 2;
+                    char2 = bytearr[count-1];
+                    str[i++] = (char) (((c & 0x1F) << 6) | (char2 & 0x3F));
+                    break;
+                case 14:
+                    // 1110 xxxx  10xx xxxx  10xx xxxx
+                    count += 3;
+                    char2 = bytearr[count-2];
+                    char3 = bytearr[count-1];
+                    str[i++] = ((char)(((c & 0x0F) << 12) | ((char2 & 0x3F) << 6) | ((char3 & 0x3F) << 0)));
+                    break;
+                default:
+                    // 10xx xxxx,  1111 xxxx
+                    throw new SAXException("UTFDataFormatException");
+            }
+        }
+        return i;
+    }
+
     protected abstract int read() throws SAXException;
     protected abstract int read(byte[] b) throws SAXException;
 
+    /**
+     * Read <code>len</code> bytes into the given array starting at
+     * <code>off</code>. Subclasses should override this with a bulk copy.
+     *
+     * @return the number of bytes read
+     */
+    protected int read(byte[] b, int off, int len) throws SAXException {
+        for (int i = 0; i < len; i++) {
+            final int c = this.read();
+            if (c == -1) {
+                return i;
+            }
+            b[off + i] = (byte) c;
+        }
+        return len;
+    }
+
     /**
      * The returned char array might contain any number of zero bytes
      * at the end
@@ -308,7 +558,10 @@ public abstract class AbstractXMLByteStreamInterpreter implements XMLProducer, X
         return ((ch1 << 24) + (ch2 << 16) + (ch3 << 8) + (ch4 << 0));
     }
 
-    private void checkProlog() throws SAXException {
+    /**
+     * @return the format version
+     */
+    private int checkProlog() throws SAXException {
         int valid = 0;
         int ch = 0;
         if ((ch = this.read()) == 'C') valid++;
@@ -319,9 +572,11 @@ public abstract class AbstractXMLByteStreamInterpreter implements XMLProducer, X
         else throw new SAXException("Unrecognized file format (." + valid + "," + ch + ")");
         if ((ch = this.read()) == 'L') valid++;
         else throw new SAXException("Unrecognized file format (." + valid + "," + ch + ")");
-        if ((ch = this.read()) == 1) valid++;
-        else throw new SAXException("Unrecognized file format (." + valid + "," + ch + ")");
+        final int version = this.read();
+        if (version == 1 || version == 2) valid++;
+        else throw new SAXException("Unrecognized file format (." + valid + "," + version + ")");
         if ((ch = this.read()) == 0) valid++;
         else throw new SAXException("Unrecognized file format (." + valid + "," + ch + ")");
+        return version;
     }
 }
@@ -0,0 +1,206 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.sax;
+
+import org.apache.cocoon.xml.AbstractXMLPipe;
+import org.xml.sax.Attributes;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+
+/**
+ * This pipe forwards all events and measures the time the following
+ * components spend handling them. The time includes all components
+ * further down the pipeline.
+ *
+ * @since 2.2
+ * @version $Id$
+ */
+public class TimingXMLPipe extends AbstractXMLPipe {
+
+    private long time;
+
+    /**
+     * @return the time spent in the following components in nanoseconds
+     */
+    public long getTime() {
+        return this.time;
+    }
+
+    public void recycle() {
+        super.recycle();
+        this.time = 0;
+    }
+
+    public void setDocumentLocator(Locator locator) {
+        final long start = System.nanoTime();
+        super.setDocumentLocator(locator);
+        this.time += System.nanoTime() - start;
+    }
+
+    public void startDocument() throws SAXException {
+        final long start = System.nanoTime();
+        try {
+            super.startDocument();
+        } finally {
+            this.time += System.nanoTime() - start;
+        }
+    }
+
+    public void endDocument() throws SAXException {
+        final long start = System.nanoTime();
+        try {
+            super.endDocument();
+        } finally {
+            this.time += System.nanoTime() - start;
+        }
+    }
+
+    public void startPrefixMapping(String prefix, String uri) throws SAXException {
+        final long start = System.nanoTime();
+        try {
+            super.startPrefixMapping(prefix, uri);
+        } finally {
+            this.time += System.nanoTime() - start;
+        }
+    }
+
+    public void endPrefixMapping(String prefix) throws SAXException {
+        final long start = System.nanoTime();
+        try {
+            super.endPrefixMapping(prefix);
+        } finally {
+            this.time += System.nanoTime() - start;
+        }
+    }
+
+    public void startElement(String uri, String loc, String raw, Attributes a) throws SAXException {
+        final long start = System.nanoTime();
+        try {
+            super.startElement(uri, loc, raw, a);
+        } finally {
+            this.time += System.nanoTime() - start;
+        }
+    }
+
+    public void endElement(String uri, String loc, String raw) throws SAXException {
+        final long start = System.nanoTime();
+        try {
+            super.endElement(uri, loc, raw);
+        } finally {
+            this.time += System.nanoTime() - start;
+        }
+    }
+
+    public void characters(char[] c, int start, int len) throws SAXException {
+        final long begin = System.nanoTime();
+        try {
+            super.characters(c, start, len);
+        } finally {
+            this.time += System.nanoTime() - begin;
+        }
+    }
+
+    public void ignorableWhitespace(char[] c, int start, int len) throws SAXException {
+        final long begin = System.nanoTime();
+        try {
+            super.ignorableWhitespace(c, start, len);
+        } finally {
+            this.time += System.nanoTime() - begin;
+        }
+    }
+
+    public void processingInstruction(String target, String data) throws SAXException {
+        final long start = System.nanoTime();
+        try {
+            super.processingInstruction(target, data);
+        } finally {
+            this.time += System.nanoTime() - start;
+        }
+    }
+
+    public void skippedEntity(String name) throws SAXException {
+        final long start = System.nanoTime();
+        try {
+            super.skippedEntity(name);
+        } finally {
+            this.time += System.nanoTime() - start;
+        }
+    }
+
+    public void startDTD(String name, String publicId, String systemId) throws SAXException {
+        final long start = System.nanoTime();
+        try {
+            super.startDTD(name, publicId, systemId);
+        } finally {
+            this.time += System.nanoTime() - start;
+        }
+    }
+
+    public void endDTD() throws SAXException {
+        final long start = System.nanoTime();
+        try {
+            super.endDTD();
+        } finally {
+            this.time += System.nanoTime() - start;
+        }
+    }
+
+    public void startEntity(String name) throws SAXException {
+        final long start = System.nanoTime();
+        try {
+            super.startEntity(name);
+        } finally {
+            this.time += System.nanoTime() - start;
+        }
+    }
+
+    public void endEntity(String name) throws SAXException {
+        final long start = System.nanoTime();
+        try {
+            super.endEntity(name);
+        } finally {
+            this.time += System.nanoTime() - start;
+        }
+    }
+
+    public void startCDATA() throws SAXException {
+        final long start = System.nanoTime();
+        try {
+            super.startCDATA();
+        } finally {
+            this.time += System.nanoTime() - start;
+        }
+    }
+
+    public void endCDATA() throws SAXException {
+        final long start = System.nanoTime();
+        try {
+            super.endCDATA();
+        } finally {
+            this.time += System.nanoTime() - start;
+        }
+    }
+
+    public void comment(char[] ch, int start, int len) throws SAXException {
+        final long begin = System.nanoTime();
+        try {
+            super.comment(ch, start, len);
+        } finally {
+            this.time += System.nanoTime() - begin;
+        }
+    }
+}
@@ -56,4 +56,11 @@ public final class XMLByteStreamInterpreter extends AbstractXMLByteStreamInterpr
         this.currentPos += bytesRead;
         return bytesRead;
     }
+
+    protected int read(byte[] b, int off, int len) throws SAXException {
+        final int bytesRead = Math.min(len, this.input.length - this.currentPos);
+        System.arraycopy(this.input, this.currentPos, b, off, bytesRead);
+        this.currentPos += bytesRead;
+        return bytesRead;
+    }
 }
@@ -64,4 +64,21 @@ public final class XMLInputStreamInterpreter
             throw new SAXException(e);
         }
     }
+
+    protected int read(final byte[] b, final int off, final int len)
+        throws SAXException {
+        try {
+            int count = 0;
+            while (count < len) {
+                final int n = is.read(b, off + count, len - count);
+                if (n == -1) {
+                    break;
+                }
+                count += n;
+            }
+            return count;
+        } catch(final IOException e) {
+            throw new SAXException(e);
+        }
+    }
 }
@@ -91,6 +91,16 @@ public class MultiSourceValidity extends AbstractAggregatedValidity {
         }
     }
 
+    /**
+     * <p>Force this instance to be always invalid, for example because the
+     * content of one of the sources could not be included.</p>
+     *
+     * @since 2.2
+     */
+    public void invalidate() {
+        this.uris = null;
+    }
+
     /**
      * <p>Close this instance, or in other words declare that no other sources will
      * be added to this {@link MultiSourceValidity} and that checkings can be now
@@ -38,7 +38,7 @@ import org.apache.cocoon.util.TraxErrorHandler;
 import org.apache.cocoon.xml.AttributesImpl;
 import org.apache.cocoon.xml.ImmutableAttributesImpl;
 import org.apache.cocoon.xml.IncludeXMLConsumer;
-import org.apache.cocoon.xml.SaxBuffer;
+import org.apache.cocoon.xml.CompactSaxBuffer;
 import org.apache.cocoon.xml.XMLConsumer;
 import org.apache.cocoon.xml.XMLUtils;
 import org.apache.cocoon.xml.dom.DOMBuilder;
@@ -670,7 +670,7 @@ public abstract class AbstractSAXTransformer extends AbstractTransformer
      */
     public void startSAXRecording()
     throws SAXException {
-        addRecorder(new SaxBuffer());
+        addRecorder(new CompactSaxBuffer());
         sendStartPrefixMapping();
     }
 
@@ -0,0 +1,689 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.xml;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.excalibur.xml.sax.XMLizable;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+
+/**
+ * A {@link SaxBuffer} which packs the recorded events into arrays instead of
+ * creating an object for every event.
+ *
+ * <p>Every event is stored as an opcode followed by its operands in an
+ * <code>int</code> array. Names, prefixes and other strings are stored once
+ * in a value table and referenced by their index, text is appended to a
+ * single <code>char</code> array. Replaying the buffer creates no objects per
+ * event: the text is passed on directly from the char array and one
+ * <code>Attributes</code> view onto the recorded attributes is used for all
+ * elements of a replay. Replaying is thread safe, so a filled buffer can be
+ * shared, e.g. in a cache.</p>
+ *
+ * <p>The buffer is a drop-in replacement for {@link SaxBuffer}:
+ * {@link #getBits()} and {@link #dump(Writer)} create the usual bits on
+ * demand. As it does not keep a list of bits it cannot be extended with
+ * custom bits and is therefore final.</p>
+ *
+ * @since 2.2
+ * @version $Id$
+ */
+public final class CompactSaxBuffer extends SaxBuffer {
+
+    private static final int START_DOCUMENT = 0;
+    private static final int END_DOCUMENT = 1;
+    private static final int START_PREFIX_MAPPING = 2;
+    private static final int END_PREFIX_MAPPING = 3;
+    private static final int START_ELEMENT = 4;
+    private static final int END_ELEMENT = 5;
+    private static final int CHARACTERS = 6;
+    private static final int IGNORABLE_WHITESPACE = 7;
+    private static final int PROCESSING_INSTRUCTION = 8;
+    private static final int COMMENT = 9;
+    private static final int START_DTD = 10;
+    private static final int END_DTD = 11;
+    private static final int START_CDATA = 12;
+    private static final int END_CDATA = 13;
+    private static final int SKIPPED_ENTITY = 14;
+    private static final int START_ENTITY = 15;
+    private static final int END_ENTITY = 16;
+    private static final int XMLIZABLE = 17;
+
+    /** The initial capacity of the arrays */
+    private static final int INITIAL_SIZE = 64;
+
+    /** Recycling drops arrays which grew larger than this */
+    private static final int MAX_KEPT_SIZE = 8192;
+
+    /** The events: opcode followed by the operands */
+    private int[] events;
+    private int eventsLength;
+
+    /** The recorded text */
+    private char[] chars;
+    private int charsLength;
+
+    /** The strings and XMLizable objects referenced by the events */
+    private Object[] values;
+    private int valuesLength;
+
+    /** The index of every name in the value table, only needed while recording */
+    private transient Map names;
+
+    /**
+     * Creates empty CompactSaxBuffer
+     */
+    public CompactSaxBuffer() {
+        super(Collections.EMPTY_LIST);
+        init();
+    }
+
+    /**
+     * Creates copy of another CompactSaxBuffer
+     */
+    public CompactSaxBuffer(CompactSaxBuffer saxBuffer) {
+        super(Collections.EMPTY_LIST);
+        this.events = new int[Math.max(saxBuffer.eventsLength, INITIAL_SIZE)];
+        System.arraycopy(saxBuffer.events, 0, this.events, 0, saxBuffer.eventsLength);
+        this.eventsLength = saxBuffer.eventsLength;
+        this.chars = new char[Math.max(saxBuffer.charsLength, INITIAL_SIZE)];
+        System.arraycopy(saxBuffer.chars, 0, this.chars, 0, saxBuffer.charsLength);
+        this.charsLength = saxBuffer.charsLength;
+        this.values = new Object[Math.max(saxBuffer.valuesLength, INITIAL_SIZE)];
+        System.arraycopy(saxBuffer.values, 0, this.values, 0, saxBuffer.valuesLength);
+        this.valuesLength = saxBuffer.valuesLength;
+    }
+
+    private void init() {
+        this.events = new int[INITIAL_SIZE];
+        this.eventsLength = 0;
+        this.chars = new char[INITIAL_SIZE];
+        this.charsLength = 0;
+        this.values = new Object[INITIAL_SIZE];
+        this.valuesLength = 0;
+        this.names = null;
+    }
+
+    //
+    // ContentHandler Interface
+    //
+
+    public void skippedEntity(String name) throws SAXException {
+        addEvent(SKIPPED_ENTITY, name(name));
+    }
+
+    public void ignorableWhitespace(char ch[], int start, int length) throws SAXException {
+        addText(IGNORABLE_WHITESPACE, ch, start, length);
+    }
+
+    public void processingInstruction(String target, String data) throws SAXException {
+        addEvent(PROCESSING_INSTRUCTION, name(target), value(data));
+    }
+
+    public void startDocument() throws SAXException {
+        addEvent(START_DOCUMENT);
+    }
+
+    public void startElement(String namespaceURI, String localName, String qName, Attributes atts) throws SAXException {
+        final int length = atts.getLength();
+        ensureEvents(5 + length * 5);
+        final int[] e = this.events;
+        int pos = this.eventsLength;
+        e[pos++] = START_ELEMENT;
+        e[pos++] = name(namespaceURI);
+        e[pos++] = name(localName);
+        e[pos++] = name(qName);
+        e[pos++] = length;
+        for (int i = 0; i < length; i++) {
+            e[pos++] = name(atts.getURI(i));
+            e[pos++] = name(atts.getLocalName(i));
+            e[pos++] = name(atts.getQName(i));
+            e[pos++] = name(atts.getType(i));
+            e[pos++] = value(atts.getValue(i));
+        }
+        this.eventsLength = pos;
+    }
+
+    public void endPrefixMapping(String prefix) throws SAXException {
+        addEvent(END_PREFIX_MAPPING, name(prefix));
+    }
+
+    public void characters(char ch[], int start, int length) throws SAXException {
+        addText(CHARACTERS, ch, start, length);
+    }
+
+    public void endElement(String namespaceURI, String localName, String qName) throws SAXException {
+        addEvent(END_ELEMENT, name(namespaceURI), name(localName), name(qName));
+    }
+
+    public void endDocument() throws SAXException {
+        addEvent(END_DOCUMENT);
+    }
+
+    public void startPrefixMapping(String prefix, String uri) throws SAXException {
+        addEvent(START_PREFIX_MAPPING, name(prefix), name(uri));
+    }
+
+    //
+    // LexicalHandler Interface
+    //
+
+    public void endCDATA() throws SAXException {
+        addEvent(END_CDATA);
+    }
+
+    public void comment(char ch[], int start, int length) throws SAXException {
+        addText(COMMENT, ch, start, length);
+    }
+
+    public void startEntity(String name) throws SAXException {
+        addEvent(START_ENTITY, name(name));
+    }
+
+    public void endDTD() throws SAXException {
+        addEvent(END_DTD);
+    }
+
+    public void startDTD(String name, String publicId, String systemId) throws SAXException {
+        addEvent(START_DTD, name(name), name(publicId), name(systemId));
+    }
+
+    public void startCDATA() throws SAXException {
+        addEvent(START_CDATA);
+    }
+
+    public void endEntity(String name) throws SAXException {
+        addEvent(END_ENTITY, name(name));
+    }
+
+    //
+    // Public Methods
+    //
+
+    /**
+     * Add a bit containing XMLizable object
+     */
+    public void xmlizable(XMLizable xml) {
+        addEvent(XMLIZABLE, value(xml));
+    }
+
+    /**
+     * @return true if buffer is empty
+     */
+    public boolean isEmpty() {
+        return this.eventsLength == 0;
+    }
+
+    /**
+     * @return unmodifiable list of SAX bits, created from the recorded events
+     */
+    public List getBits() {
+        final List bits = new ArrayList();
+        final int[] e = this.events;
+        final Object[] v = this.values;
+        int pos = 0;
+        while (pos < this.eventsLength) {
+            switch (e[pos]) {
+                case START_DOCUMENT:
+                    bits.add(StartDocument.SINGLETON);
+                    pos += 1;
+                    break;
+                case END_DOCUMENT:
+                    bits.add(EndDocument.SINGLETON);
+                    pos += 1;
+                    break;
+                case START_PREFIX_MAPPING:
+                    bits.add(new StartPrefixMapping((String) v[e[pos + 1]], (String) v[e[pos + 2]]));
+                    pos += 3;
+                    break;
+                case END_PREFIX_MAPPING:
+                    bits.add(new EndPrefixMapping((String) v[e[pos + 1]]));
+                    pos += 2;
+                    break;
+                case START_ELEMENT:
+                    final org.xml.sax.helpers.AttributesImpl atts = new org.xml.sax.helpers.AttributesImpl();
+                    final int length = e[pos + 4];
+                    for (int i = 0, a = pos + 5; i < length; i++, a += 5) {
+                        atts.addAttribute((String) v[e[a]], (String) v[e[a + 1]], (String) v[e[a + 2]],
+                                          (String) v[e[a + 3]], (String) v[e[a + 4]]);
+                    }
+                    bits.add(new StartElement((String) v[e[pos + 1]], (String) v[e[pos + 2]],
+                                              (String) v[e[pos + 3]], atts));
+                    pos += 5 + length * 5;
+                    break;
+                case END_ELEMENT:
+                    bits.add(new EndElement((String) v[e[pos + 1]], (String) v[e[pos + 2]], (String) v[e[pos + 3]]));
+                    pos += 4;
+                    break;
+                case CHARACTERS:
+                    bits.add(new Characters(this.chars, e[pos + 1], e[pos + 2]));
+                    pos += 3;
+                    break;
+                case IGNORABLE_WHITESPACE:
+                    bits.add(new IgnorableWhitespace(this.chars, e[pos + 1], e[pos + 2]));
+                    pos += 3;
+                    break;
+                case PROCESSING_INSTRUCTION:
+                    bits.add(new PI((String) v[e[pos + 1]], (String) v[e[pos + 2]]));
+                    pos += 3;
+                    break;
+                case COMMENT:
+                    bits.add(new Comment(this.chars, e[pos + 1], e[pos + 2]));
+                    pos += 3;
+                    break;
+                case START_DTD:
+                    bits.add(new StartDTD((String) v[e[pos + 1]], (String) v[e[pos + 2]], (String) v[e[pos + 3]]));
+                    pos += 4;
+                    break;
+                case END_DTD:
+                    bits.add(EndDTD.SINGLETON);
+                    pos += 1;
+                    break;
+                case START_CDATA:
+                    bits.add(StartCDATA.SINGLETON);
+                    pos += 1;
+                    break;
+                case END_CDATA:
+                    bits.add(EndCDATA.SINGLETON);
+                    pos += 1;
+                    break;
+                case SKIPPED_ENTITY:
+                    bits.add(new SkippedEntity((String) v[e[pos + 1]]));
+                    pos += 2;
+                    break;
+                case START_ENTITY:
+                    bits.add(new StartEntity((String) v[e[pos + 1]]));
+                    pos += 2;
+                    break;
+                case END_ENTITY:
+                    bits.add(new EndEntity((String) v[e[pos + 1]]));
+                    pos += 2;
+                    break;
+                case XMLIZABLE:
+                    bits.add(new XMLizableBit((XMLizable) v[e[pos + 1]]));
+                    pos += 2;
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown event " + e[pos]);
+            }
+        }
+        return Collections.unmodifiableList(bits);
+    }
+
+    /**
+     * Stream this buffer into the provided content handler.
+     * If contentHandler object implements LexicalHandler, it will get lexical
+     * events as well.
+     */
+    public void toSAX(ContentHandler contentHandler) throws SAXException {
+        final LexicalHandler lexicalHandler =
+            contentHandler instanceof LexicalHandler ? (LexicalHandler) contentHandler : null;
+        final int[] e = this.events;
+        final Object[] v = this.values;
+        final char[] ch = this.chars;
+        final int eventsLength = this.eventsLength;
+        RecordedAttributes atts = null;
+        int pos = 0;
+        while (pos < eventsLength) {
+            switch (e[pos]) {
+                case START_DOCUMENT:
+                    contentHandler.startDocument();
+                    pos += 1;
+                    break;
+                case END_DOCUMENT:
+                    contentHandler.endDocument();
+                    pos += 1;
+                    break;
+                case START_PREFIX_MAPPING:
+                    contentHandler.startPrefixMapping((String) v[e[pos + 1]], (String) v[e[pos + 2]]);
+                    pos += 3;
+                    break;
+                case END_PREFIX_MAPPING:
+                    contentHandler.endPrefixMapping((String) v[e[pos + 1]]);
+                    pos += 2;
+                    break;
+                case START_ELEMENT:
+                    if (atts == null) {
+                        atts = new RecordedAttributes(e, v);
+                    }
+                    atts.offset = pos + 5;
+                    atts.length = e[pos + 4];
+                    contentHandler.startElement((String) v[e[pos + 1]], (String) v[e[pos + 2]],
+                                                (String) v[e[pos + 3]], atts);
+                    pos += 5 + atts.length * 5;
+                    break;
+                case END_ELEMENT:
+                    contentHandler.endElement((String) v[e[pos + 1]], (String) v[e[pos + 2]], (String) v[e[pos + 3]]);
+                    pos += 4;
+                    break;
+                case CHARACTERS:
+                    contentHandler.characters(ch, e[pos + 1], e[pos + 2]);
+                    pos += 3;
+                    break;
+                case IGNORABLE_WHITESPACE:
+                    contentHandler.ignorableWhitespace(ch, e[pos + 1], e[pos + 2]);
+                    pos += 3;
+                    break;
+                case PROCESSING_INSTRUCTION:
+                    contentHandler.processingInstruction((String) v[e[pos + 1]], (String) v[e[pos + 2]]);
+                    pos += 3;
+                    break;
+                case COMMENT:
+                    if (lexicalHandler != null)
+                        lexicalHandler.comment(ch, e[pos + 1], e[pos + 2]);
+                    pos += 3;
+                    break;
+                case START_DTD:
+                    if (lexicalHandler != null)
+                        lexicalHandler.startDTD((String) v[e[pos + 1]], (String) v[e[pos + 2]], (String) v[e[pos + 3]]);
+                    pos += 4;
+                    break;
+                case END_DTD:
+                    if (lexicalHandler != null)
+                        lexicalHandler.endDTD();
+                    pos += 1;
+                    break;
+                case START_CDATA:
+                    if (lexicalHandler != null)
+                        lexicalHandler.startCDATA();
+                    pos += 1;
+                    break;
+                case END_CDATA:
+                    if (lexicalHandler != null)
+                        lexicalHandler.endCDATA();
+                    pos += 1;
+                    break;
+                case SKIPPED_ENTITY:
+                    contentHandler.skippedEntity((String) v[e[pos + 1]]);
+                    pos += 2;
+                    break;
+                case START_ENTITY:
+                    if (lexicalHandler != null)
+                        lexicalHandler.startEntity((String) v[e[pos + 1]]);
+                    pos += 2;
+                    break;
+                case END_ENTITY:
+                    if (lexicalHandler != null)
+                        lexicalHandler.endEntity((String) v[e[pos + 1]]);
+                    pos += 2;
+                    break;
+                case XMLIZABLE:
+                    ((XMLizable) v[e[pos + 1]]).toSAX(new EmbeddedXMLPipe(contentHandler));
+                    pos += 2;
+                    break;
+                default:
+                    throw new SAXException("Unknown event " + e[pos]);
+            }
+        }
+    }
+
+    /**
+     * @return String value of the buffer
+     */
+    public String toString() {
+        // NOTE: This method is used in i18n XML bundle implementation
+        final StringBuffer value = new StringBuffer();
+        final int[] e = this.events;
+        int pos = 0;
+        while (pos < this.eventsLength) {
+            final int event = e[pos];
+            if (event == CHARACTERS) {
+                value.append(this.chars, e[pos + 1], e[pos + 2]);
+            }
+            pos += size(event, pos);
+        }
+        return value.toString();
+    }
+
+    /**
+     * Clear this buffer
+     */
+    public void recycle() {
+        if (this.events.length > MAX_KEPT_SIZE || this.chars.length > MAX_KEPT_SIZE
+            || this.values.length > MAX_KEPT_SIZE) {
+            init();
+        } else {
+            this.eventsLength = 0;
+            this.charsLength = 0;
+            for (int i = 0; i < this.valuesLength; i++) {
+                this.values[i] = null;
+            }
+            this.valuesLength = 0;
+            this.names = null;
+        }
+    }
+
+    /**
+     * Dump buffer contents into the provided writer.
+     */
+    public void dump(Writer writer) throws IOException {
+        final List bits = getBits();
+        for (int i = 0; i < bits.size(); i++) {
+            ((SaxBit) bits.get(i)).dump(writer);
+        }
+        writer.flush();
+    }
+
+    //
+    // Implementation Methods
+    //
+
+    /**
+     * @return the number of ints used by the event at the given position
+     */
+    private int size(int event, int pos) {
+        switch (event) {
+            case START_DOCUMENT:
+            case END_DOCUMENT:
+            case END_DTD:
+            case START_CDATA:
+            case END_CDATA:
+                return 1;
+            case END_PREFIX_MAPPING:
+            case SKIPPED_ENTITY:
+            case START_ENTITY:
+            case END_ENTITY:
+            case XMLIZABLE:
+                return 2;
+            case START_PREFIX_MAPPING:
+            case CHARACTERS:
+            case IGNORABLE_WHITESPACE:
+            case PROCESSING_INSTRUCTION:
+            case COMMENT:
+                return 3;
+            case END_ELEMENT:
+            case START_DTD:
+                return 4;
+            case START_ELEMENT:
+                return 5 + this.events[pos + 4] * 5;
+            default:
+                throw new IllegalStateException("Unknown event " + event);
+        }
+    }
+
+    private void addEvent(int event) {
+        ensureEvents(1);
+        this.events[this.eventsLength++] = event;
+    }
+
+    private void addEvent(int event, int a) {
+        ensureEvents(2);
+        this.events[this.eventsLength++] = event;
+        this.events[this.eventsLength++] = a;
+    }
+
+    private void addEvent(int event, int a, int b) {
+        ensureEvents(3);
+        this.events[this.eventsLength++] = event;
+        this.events[this.eventsLength++] = a;
+        this.events[this.eventsLength++] = b;
+    }
+
+    private void addEvent(int event, int a, int b, int c) {
+        ensureEvents(4);
+        this.events[this.eventsLength++] = event;
+        this.events[this.eventsLength++] = a;
+        this.events[this.eventsLength++] = b;
+        this.events[this.eventsLength++] = c;
+    }
+
+    private void addText(int event, char[] ch, int start, int length) {
+        if (this.charsLength + length > this.chars.length) {
+            final char[] newChars = new char[Math.max(this.chars.length << 1, this.charsLength + length)];
+            System.arraycopy(this.chars, 0, newChars, 0, this.charsLength);
+            this.chars = newChars;
+        }
+        System.arraycopy(ch, start, this.chars, this.charsLength, length);
+        addEvent(event, this.charsLength, length);
+        this.charsLength += length;
+    }
+
+    private void ensureEvents(int size) {
+        if (this.eventsLength + size > this.events.length) {
+            final int[] newEvents = new int[Math.max(this.events.length << 1, this.eventsLength + size)];
+            System.arraycopy(this.events, 0, newEvents, 0, this.eventsLength);
+            this.events = newEvents;
+        }
+    }
+
+    /**
+     * Add a name to the value table, every name is stored only once.
+     *
+     * @return the index of the name
+     */
+    private int name(String name) {
+        if (this.names == null) {
+            this.names = new HashMap();
+            for (int i = 0; i < this.valuesLength; i++) {
+                if (this.values[i] instanceof String && !this.names.containsKey(this.values[i])) {
+                    this.names.put(this.values[i], new Integer(i));
+                }
+            }
+        }
+        final Integer index = (Integer) this.names.get(name);
+        if (index != null) {
+            return index.intValue();
+        }
+        final int i = value(name);
+        this.names.put(name, new Integer(i));
+        return i;
+    }
+
+    /**
+     * Add a value to the value table.
+     *
+     * @return the index of the value
+     */
+    private int value(Object value) {
+        if (this.valuesLength == this.values.length) {
+            final Object[] newValues = new Object[this.values.length << 1];
+            System.arraycopy(this.values, 0, newValues, 0, this.valuesLength);
+            this.values = newValues;
+        }
+        this.values[this.valuesLength] = value;
+        return this.valuesLength++;
+    }
+
+    /**
+     * A read only view onto the recorded attributes of an element.
+     */
+    private static final class RecordedAttributes implements Attributes {
+        private final int[] events;
+        private final Object[] values;
+        int offset;
+        int length;
+
+        RecordedAttributes(int[] events, Object[] values) {
+            this.events = events;
+            this.values = values;
+        }
+
+        public int getLength() {
+            return this.length;
+        }
+
+        private String get(int index, int field) {
+            if (index < 0 || index >= this.length) {
+                return null;
+            }
+            return (String) this.values[this.events[this.offset + index * 5 + field]];
+        }
+
+        public String getURI(int index) {
+            return get(index, 0);
+        }
+
+        public String getLocalName(int index) {
+            return get(index, 1);
+        }
+
+        public String getQName(int index) {
+            return get(index, 2);
+        }
+
+        public String getType(int index) {
+            return get(index, 3);
+        }
+
+        public String getValue(int index) {
+            return get(index, 4);
+        }
+
+        public int getIndex(String uri, String localName) {
+            for (int i = 0; i < this.length; i++) {
+                if (uri.equals(getURI(i)) && localName.equals(getLocalName(i))) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        public int getIndex(String qName) {
+            for (int i = 0; i < this.length; i++) {
+                if (qName.equals(getQName(i))) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        public String getType(String uri, String localName) {
+            return getType(getIndex(uri, localName));
+        }
+
+        public String getType(String qName) {
+            return getType(getIndex(qName));
+        }
+
+        public String getValue(String uri, String localName) {
+            return getValue(getIndex(uri, localName));
+        }
+
+        public String getValue(String qName) {
+            return getValue(getIndex(qName));
+        }
+    }
+}
@@ -47,6 +47,10 @@ import java.util.Collections;
  * <p>Both {@link ContentHandler} and {@link LexicalHandler} are supported, the only
  * exception is that the setDocumentLocator event is not recorded.</p>
  *
+ * <p>{@link CompactSaxBuffer} records the same events into arrays instead of
+ * one object per event and should be preferred where no custom bits are
+ * added.</p>
+ *
  * @version $Id$
  */
 public class SaxBuffer extends AbstractSAXFragment
@@ -75,7 +79,7 @@ public class SaxBuffer extends AbstractSAXFragment
      * Creates copy of another SaxBuffer
      */
     public SaxBuffer(SaxBuffer saxBuffer) {
-        this.saxbits = new ArrayList(saxBuffer.saxbits);
+        this.saxbits = new ArrayList(saxBuffer.getBits());
     }
 
     //
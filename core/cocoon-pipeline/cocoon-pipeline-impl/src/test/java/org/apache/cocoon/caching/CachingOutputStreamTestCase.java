@@ -115,4 +115,31 @@ public class CachingOutputStreamTestCase extends TestCase {
         assertTrue("Cached content differs", Arrays.equals(content, cachedContent));
     }
 
+    public void testSegments() throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        CachingOutputStream cachingOutputStream = new CachingOutputStream(byteArrayOutputStream);
+
+        // Exceed two segments, written in parts crossing the segment borders
+        byte[] data = new byte[SegmentedOutputStream.SEGMENT_SIZE * 2 + 100];
+        new Random().nextBytes(data);
+        for (int i = 0; i < data.length; i += 1000) {
+            cachingOutputStream.write(data, i, Math.min(1000, data.length - i));
+        }
+        assertEquals(data.length, cachingOutputStream.size());
+
+        byte[][] segments = cachingOutputStream.getSegments();
+        assertEquals("Wrong number of segments:", 3, segments.length);
+        assertEquals("Last segment is not trimmed:", 100, segments[2].length);
+        assertEquals("Segments are not passed on:", 0, cachingOutputStream.size());
+
+        CachedResponse response = new SegmentedCachedResponse(null, segments);
+        assertEquals("Length of cached content is wrong:", data.length, response.getLength());
+        assertTrue("Cached content differs", Arrays.equals(data, response.getResponse()));
+
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        response.writeTo(written);
+        assertTrue("Written content differs", Arrays.equals(data, written.toByteArray()));
+        assertTrue("Cached content differs", Arrays.equals(byteArrayOutputStream.toByteArray(), written.toByteArray()));
+    }
+
 }
@@ -0,0 +1,218 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.caching.impl;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.cocoon.caching.CachedResponse;
+import org.apache.cocoon.util.ObservableStore;
+import org.apache.cocoon.util.StoreListener;
+import org.apache.excalibur.source.SourceValidity;
+import org.apache.excalibur.store.Store;
+
+/**
+ * Test case for the memory budget of the {@link CacheImpl}.
+ *
+ * @version $Id$
+ */
+public class CacheImplTestCase extends TestCase {
+
+    /** The size of a response including the overhead */
+    private static final int SIZE = 1000;
+
+    /**
+     * A store holding everything in a map.
+     */
+    private static class MapStore implements Store {
+        final Map map = new HashMap();
+
+        public Object get(Object key) {
+            return this.map.get(key);
+        }
+
+        public void store(Object key, Object value) {
+            this.map.put(key, value);
+        }
+
+        public void free() {
+        }
+
+        public void remove(Object key) {
+            this.map.remove(key);
+        }
+
+        public void clear() {
+            this.map.clear();
+        }
+
+        public boolean containsKey(Object key) {
+            return this.map.containsKey(key);
+        }
+
+        public Enumeration keys() {
+            return Collections.enumeration(this.map.keySet());
+        }
+
+        public int size() {
+            return this.map.size();
+        }
+    }
+
+    /**
+     * A store reporting what it holds.
+     */
+    private static class ObservableMapStore extends MapStore implements ObservableStore {
+        StoreListener listener;
+
+        public void store(Object key, Object value) {
+            super.store(key, value);
+            this.listener.held(key, value);
+        }
+
+        /** Remove an object like a store running out of memory */
+        void drop(Object key) {
+            this.map.remove(key);
+            this.listener.removed(key);
+        }
+
+        public void addStoreListener(StoreListener listener) {
+            this.listener = listener;
+        }
+
+        public void removeStoreListener(StoreListener listener) {
+            this.listener = null;
+        }
+    }
+
+    private static CachedResponse response() {
+        return new CachedResponse(new SourceValidity[0], new byte[SIZE - 128]);
+    }
+
+    private CacheImpl createCache(Store store) {
+        final CacheImpl cache = new CacheImpl();
+        cache.setStore(store);
+        cache.setMaxBytes(3 * SIZE);
+        return cache;
+    }
+
+    public void testEviction() throws Exception {
+        final MapStore store = new MapStore();
+        final CacheImpl cache = createCache(store);
+        cache.store("a", response());
+        cache.store("b", response());
+        cache.store("c", response());
+        assertEquals(3 * SIZE, cache.getCurrentWeight());
+        assertEquals(0, cache.getEvictionCount());
+
+        cache.store("d", response());
+        assertEquals("The oldest response is removed", null, cache.get("a"));
+        assertTrue(cache.containsKey("d"));
+        assertEquals(3 * SIZE, cache.getCurrentWeight());
+        assertEquals(3, cache.getEntryCount());
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    public void testSecondChance() throws Exception {
+        final MapStore store = new MapStore();
+        final CacheImpl cache = createCache(store);
+        cache.store("a", response());
+        cache.store("b", response());
+        cache.store("c", response());
+        assertNotNull(cache.get("a"));
+
+        cache.store("d", response());
+        assertTrue("a has been used", cache.containsKey("a"));
+        assertFalse(cache.containsKey("b"));
+        assertTrue(cache.containsKey("c"));
+        assertTrue(cache.containsKey("d"));
+    }
+
+    public void testReplaceAndRemove() throws Exception {
+        final MapStore store = new MapStore();
+        final CacheImpl cache = createCache(store);
+        cache.store("a", response());
+        cache.store("a", response());
+        assertEquals(SIZE, cache.getCurrentWeight());
+        cache.remove("a");
+        assertEquals(0, cache.getCurrentWeight());
+        cache.store("b", response());
+        cache.clear();
+        assertEquals(0, cache.getCurrentWeight());
+        assertEquals(0, cache.getEntryCount());
+    }
+
+    public void testTooLarge() throws Exception {
+        final MapStore store = new MapStore();
+        final CacheImpl cache = createCache(store);
+        cache.store("a", new CachedResponse(new SourceValidity[0], new byte[4 * SIZE]));
+        assertFalse(cache.containsKey("a"));
+        assertEquals(0, cache.getCurrentWeight());
+    }
+
+    public void testDroppedByStore() throws Exception {
+        final MapStore store = new MapStore();
+        final CacheImpl cache = createCache(store);
+        cache.store("a", response());
+        store.map.remove("a");
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.getCurrentWeight());
+        assertEquals(0, cache.getEntryCount());
+    }
+
+    public void testLoadedByStore() throws Exception {
+        final MapStore store = new MapStore();
+        // responses stored before a restart
+        store.store("a", response());
+        store.store("b", response());
+        final CacheImpl cache = createCache(store);
+        assertNotNull(cache.get("a"));
+        assertNotNull(cache.get("b"));
+        assertEquals(2 * SIZE, cache.getCurrentWeight());
+
+        cache.store("c", response());
+        cache.store("d", response());
+        assertEquals(3 * SIZE, cache.getCurrentWeight());
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    public void testObservableStore() throws Exception {
+        final ObservableMapStore store = new ObservableMapStore();
+        final CacheImpl cache = createCache(store);
+        cache.store("a", response());
+        cache.store("b", response());
+        assertEquals(2 * SIZE, cache.getCurrentWeight());
+
+        store.drop("a");
+        assertEquals("Overflowed responses are no longer counted", SIZE, cache.getCurrentWeight());
+
+        // held again, like a response loaded from a persistent store
+        store.store("a", response());
+        assertEquals(2 * SIZE, cache.getCurrentWeight());
+        assertNotNull(cache.get("a"));
+        assertEquals(2 * SIZE, cache.getCurrentWeight());
+
+        cache.store("c", response());
+        cache.store("d", response());
+        assertEquals(3 * SIZE, cache.getCurrentWeight());
+        assertFalse("b is the least recently used", cache.containsKey("b"));
+    }
+}
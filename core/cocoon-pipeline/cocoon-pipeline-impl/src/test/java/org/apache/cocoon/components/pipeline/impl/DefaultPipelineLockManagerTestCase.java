@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.pipeline.impl;
+
+import junit.framework.TestCase;
+
+public class DefaultPipelineLockManagerTestCase extends TestCase {
+
+    public void testLockAndUnlock() {
+        DefaultPipelineLockManager manager = new DefaultPipelineLockManager();
+        Object owner = new Object();
+
+        assertTrue("No lock yet", manager.waitForLock("key", owner, 100));
+        assertTrue("Lock should be taken", manager.lock("key", owner));
+        assertFalse("Lock is already taken", manager.lock("key", new Object()));
+        assertTrue("Owner must not wait on its own lock", manager.waitForLock("key", owner, 100));
+        assertEquals(1, manager.getLockedCount());
+
+        manager.unlock("key", owner);
+        assertEquals(0, manager.getLockedCount());
+        assertEquals(1, manager.getLockCount());
+
+        manager.unlock("key", owner);
+        assertEquals("Releasing a missing lock does nothing", 0, manager.getLockedCount());
+    }
+
+    public void testUnlockByOtherOwner() throws InterruptedException {
+        final DefaultPipelineLockManager manager = new DefaultPipelineLockManager();
+        manager.lock("key", new Object());
+
+        final Thread waiting = new Thread() {
+            public void run() {
+                manager.waitForLock("key", new Object(), 10000);
+            }
+        };
+        waiting.start();
+        while (manager.getWaiters() < 1) {
+            Thread.sleep(10);
+        }
+
+        manager.unlock("key", new Object());
+        assertEquals("The lock is not kept forever", 0, manager.getLockedCount());
+        waiting.join(5000);
+        assertFalse("Waiting thread was not notified", waiting.isAlive());
+        assertTrue(manager.lock("key", new Object()));
+    }
+
+    public void testTimeout() {
+        DefaultPipelineLockManager manager = new DefaultPipelineLockManager();
+        manager.lock("key", new Object());
+
+        assertFalse("Lock should be waited on", manager.waitForLock("key", new Object(), 10));
+        assertEquals(1, manager.getWaitCount());
+        assertEquals(1, manager.getTimeoutCount());
+        assertEquals(0, manager.getWaiters());
+    }
+
+    public void testWaitersAreNotified() throws InterruptedException {
+        final DefaultPipelineLockManager manager = new DefaultPipelineLockManager();
+        final Object owner = new Object();
+        manager.lock("key", owner);
+
+        Thread[] threads = new Thread[5];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    manager.waitForLock("key", new Object(), 10000);
+                }
+            };
+            threads[i].start();
+        }
+
+        while (manager.getWaiters() < threads.length) {
+            Thread.sleep(10);
+        }
+        manager.unlock("key", owner);
+
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join(5000);
+            assertFalse("Waiting thread was not notified", threads[i].isAlive());
+        }
+        assertEquals(0, manager.getTimeoutCount());
+        assertEquals(threads.length, manager.getMaxWaiters());
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.pipeline.impl;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.apache.cocoon.components.pipeline.PipelineMetrics;
+
+public class DefaultPipelineMetricsTestCase extends TestCase {
+
+    public void testHistogramPercentiles() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500, histogram.getMean());
+        assertEquals(1000, histogram.getMax());
+        assertWithin(500, histogram.getPercentile(50));
+        assertWithin(990, histogram.getPercentile(99));
+        assertEquals(1, histogram.getPercentile(0));
+        assertWithin(1000, histogram.getPercentile(100));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(50));
+    }
+
+    public void testHistogramBuckets() {
+        for (long v = 0; v < (1L << 42); v = v * 3 / 2 + 1) {
+            long low = Histogram.value(Histogram.index(v));
+            assertTrue("Bucket of " + v + " starts at " + low, low <= v);
+            if (v < (1L << 40)) {
+                assertTrue("Bucket of " + v + " starts at " + low, v - low <= v / 16);
+            }
+        }
+    }
+
+    public void testRecord() {
+        DefaultPipelineMetrics metrics = new DefaultPipelineMetrics();
+        metrics.setMaxPipelines(1);
+        long[] times = new long[PipelineMetrics.TRANSFORMER + 2];
+        Arrays.fill(times, -1);
+        times[PipelineMetrics.PROCESSING] = 5000000;
+        times[PipelineMetrics.TRANSFORMER + 1] = 2000;
+
+        metrics.record("sitemap.xmap:10:5", "CachingProcessingPipeline", times, 100);
+        metrics.record("sitemap.xmap:20:5", "CachingProcessingPipeline", times, -1);
+
+        assertEquals(2, metrics.getRequestCount());
+        String[] pipelines = metrics.getPipelines();
+        assertEquals(2, pipelines.length);
+        assertEquals("CachingProcessingPipeline [other]", pipelines[0]);
+        assertEquals("CachingProcessingPipeline sitemap.xmap:10:5", pipelines[1]);
+        assertWithin(5000, metrics.getPercentile(pipelines[1], "processing", 50));
+        assertWithin(2, metrics.getPercentile(pipelines[1], "transformer-2", 50));
+        assertEquals(-1, metrics.getPercentile(pipelines[1], "transformer-1", 50));
+        assertEquals(5, metrics.getSummary().length);
+
+        metrics.reset();
+        assertEquals(0, metrics.getPipelines().length);
+    }
+
+    private void assertWithin(long expected, long actual) {
+        assertTrue("Expected about " + expected + " but was " + actual,
+                   actual <= expected && actual >= expected - expected / 16);
+    }
+}
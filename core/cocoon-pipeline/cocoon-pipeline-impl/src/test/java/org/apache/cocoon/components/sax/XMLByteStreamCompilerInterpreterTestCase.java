@@ -16,6 +16,7 @@
  */
 package org.apache.cocoon.components.sax;
 
+import org.xml.sax.helpers.AttributesImpl;
 import org.xml.sax.helpers.DefaultHandler;
 import org.xml.sax.ContentHandler;
 import org.apache.cocoon.xml.dom.DOMBuilder;
@@ -24,6 +25,7 @@ import org.apache.cocoon.xml.DefaultHandlerWrapper;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 
 /**
  * Testcase for XMLByteStreamCompiler and Interpreter
@@ -135,4 +137,96 @@ public final class XMLByteStreamCompilerInterpreterTestCase extends AbstractXMLT
         r = 1000*loop/(stop-start);
         System.out.println("recalling: " + r + " documents per second");
     }
+
+    public void testRepeatedNames() throws Exception {
+        DOMBuilder in = new DOMBuilder();
+        XMLByteStreamCompiler xmlc = new XMLByteStreamCompiler();
+        generateRepeatedSAX(in);
+        generateRepeatedSAX(xmlc);
+
+        byte[] fragment = (byte[]) xmlc.getSAXFragment();
+        assertEquals(AbstractXMLByteStreamCompiler.FORMAT_VERSION, fragment[4]);
+
+        XMLByteStreamInterpreter xmli = new XMLByteStreamInterpreter();
+        DOMBuilder out = new DOMBuilder();
+        xmli.setConsumer(out);
+        xmli.deserialize(fragment);
+        assertXMLEqual(in.getDocument(), out.getDocument());
+
+        // the same stream read from an input stream
+        XMLInputStreamInterpreter xmlis = new XMLInputStreamInterpreter();
+        out = new DOMBuilder();
+        xmlis.setConsumer(out);
+        xmlis.deserialize(new ByteArrayInputStream(fragment));
+        assertXMLEqual(in.getDocument(), out.getDocument());
+    }
+
+    public void testReadVersion1() throws Exception {
+        // <root a="v">téxt<root/></root> in format version 1
+        ByteArrayOutputStream v1 = new ByteArrayOutputStream();
+        v1.write(new byte[] { 'C', 'X', 'M', 'L', 1, 0 });
+        v1.write(XMLByteStreamConstants.START_DOCUMENT);
+        v1.write(XMLByteStreamConstants.START_ELEMENT);
+        v1.write(new byte[] { 0, 1 });
+        writeVersion1String(v1, "");       // 0
+        writeVersion1String(v1, "a");      // 1
+        v1.write(new byte[] { (byte) 0x80, 1 });
+        writeVersion1String(v1, "CDATA");  // 2
+        writeVersion1String(v1, "v");      // 3
+        v1.write(new byte[] { (byte) 0x80, 0 });
+        writeVersion1String(v1, "root");   // 4
+        v1.write(new byte[] { (byte) 0x80, 4 });
+        v1.write(XMLByteStreamConstants.CHARACTERS);
+        writeVersion1String(v1, "t\u00e9xt");
+        v1.write(XMLByteStreamConstants.START_ELEMENT);
+        v1.write(new byte[] { 0, 0 });
+        v1.write(new byte[] { (byte) 0x80, 0, (byte) 0x80, 4, (byte) 0x80, 4 });
+        for (int i = 0; i < 2; i++) {
+            v1.write(XMLByteStreamConstants.END_ELEMENT);
+            v1.write(new byte[] { (byte) 0x80, 0, (byte) 0x80, 4, (byte) 0x80, 4 });
+        }
+        v1.write(XMLByteStreamConstants.END_DOCUMENT);
+
+        DOMBuilder in = new DOMBuilder();
+        in.startDocument();
+        AttributesImpl atts = new AttributesImpl();
+        atts.addAttribute("", "a", "a", "CDATA", "v");
+        in.startElement("", "root", "root", atts);
+        in.characters("t\u00e9xt".toCharArray(), 0, 4);
+        in.startElement("", "root", "root", new AttributesImpl());
+        in.endElement("", "root", "root");
+        in.endElement("", "root", "root");
+        in.endDocument();
+
+        XMLByteStreamInterpreter xmli = new XMLByteStreamInterpreter();
+        DOMBuilder out = new DOMBuilder();
+        xmli.setConsumer(out);
+        xmli.deserialize(v1.toByteArray());
+        assertXMLEqual(in.getDocument(), out.getDocument());
+    }
+
+    private void generateRepeatedSAX(ContentHandler consumer) throws Exception {
+        consumer.startDocument();
+        consumer.startPrefixMapping("n", "urn:test");
+        consumer.startElement("urn:test", "list", "n:list", new AttributesImpl());
+        for (int i = 0; i < 300; i++) {
+            AttributesImpl atts = new AttributesImpl();
+            atts.addAttribute("", "id", "id", "CDATA", String.valueOf(i));
+            atts.addAttribute("", "class", "class", "CDATA", "item");
+            consumer.startElement("urn:test", "item", "n:item", atts);
+            char[] text = ("\u20ac " + i + " \u00fc").toCharArray();
+            consumer.characters(text, 0, text.length);
+            consumer.endElement("urn:test", "item", "n:item");
+        }
+        consumer.endElement("urn:test", "list", "n:list");
+        consumer.endPrefixMapping("n");
+        consumer.endDocument();
+    }
+
+    private void writeVersion1String(ByteArrayOutputStream out, String str) throws Exception {
+        byte[] utf = str.getBytes("UTF-8");
+        out.write((utf.length >>> 8) & 0xFF);
+        out.write(utf.length & 0xFF);
+        out.write(utf);
+    }
 }
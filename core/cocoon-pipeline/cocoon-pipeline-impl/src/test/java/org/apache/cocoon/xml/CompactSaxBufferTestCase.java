@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.xml;
+
+import java.io.StringWriter;
+
+import org.apache.cocoon.xml.dom.DOMBuilder;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Testcase for CompactSaxBuffer
+ *
+ * @version $Id$
+ */
+public final class CompactSaxBufferTestCase extends AbstractXMLTestCase {
+    public CompactSaxBufferTestCase(String s) {
+        super(s);
+    }
+
+    public void testCompareDOM() throws Exception {
+        DOMBuilder in = new DOMBuilder();
+        generateLargeSAX(in);
+
+        CompactSaxBuffer sb = new CompactSaxBuffer();
+        generateLargeSAX(sb);
+
+        DOMBuilder out = new DOMBuilder();
+        sb.toSAX(out);
+
+        assertXMLEqual(in.getDocument(), out.getDocument());
+    }
+
+    public void testCompareToSaxBuffer() throws Exception {
+        SaxBuffer reference = new SaxBuffer();
+        generateMixedSAX(reference);
+        CompactSaxBuffer sb = new CompactSaxBuffer();
+        generateMixedSAX(sb);
+
+        assertEquals(reference.getBits().size(), sb.getBits().size());
+        assertEquals(reference.toString(), sb.toString());
+        assertEquals(dump(reference), dump(sb));
+
+        // a copy and a buffer filled from a replay are the same
+        assertEquals(dump(reference), dump(new CompactSaxBuffer(sb)));
+        assertEquals(dump(reference), dump(new SaxBuffer(sb)));
+        CompactSaxBuffer replayed = new CompactSaxBuffer();
+        sb.toSAX(replayed);
+        assertEquals(dump(reference), dump(replayed));
+
+        sb.recycle();
+        assertTrue(sb.isEmpty());
+        generateMixedSAX(sb);
+        assertEquals(dump(reference), dump(sb));
+    }
+
+    public void testStressLoop() throws Exception {
+        SaxBuffer reference = new SaxBuffer();
+        CompactSaxBuffer sb = new CompactSaxBuffer();
+        generateMixedSAX(reference);
+        generateMixedSAX(sb);
+
+        ContentHandler ch = new DefaultHandler();
+        long loop = 10000;
+
+        long start = System.currentTimeMillis();
+        for(int i=0;i<loop;i++) {
+            reference.toSAX(ch);
+        }
+        long stop = System.currentTimeMillis() + 1;
+        double r = 1000*loop/(stop-start);
+        System.out.println("SaxBuffer recalling: " + r + " documents per second");
+
+        start = System.currentTimeMillis();
+        for(int i=0;i<loop;i++) {
+            sb.toSAX(ch);
+        }
+        stop = System.currentTimeMillis() + 1;
+        r = 1000*loop/(stop-start);
+        System.out.println("CompactSaxBuffer recalling: " + r + " documents per second");
+
+        System.out.println("SaxBuffer footprint: " + footprint(false) + " bytes");
+        System.out.println("CompactSaxBuffer footprint: " + footprint(true) + " bytes");
+    }
+
+    private void generateMixedSAX(ContentHandler consumer) throws SAXException {
+        consumer.startDocument();
+        consumer.startPrefixMapping("t", "urn:test");
+        consumer.startElement("urn:test", "root", "t:root", new AttributesImpl());
+        for (int i = 0; i < 100; i++) {
+            AttributesImpl atts = new AttributesImpl();
+            atts.addAttribute("", "id", "id", "CDATA", String.valueOf(i));
+            atts.addAttribute("", "class", "class", "CDATA", "row");
+            consumer.startElement("urn:test", "row", "t:row", atts);
+            char[] text = ("row " + i).toCharArray();
+            consumer.characters(text, 0, text.length);
+            consumer.ignorableWhitespace("\n".toCharArray(), 0, 1);
+            consumer.endElement("urn:test", "row", "t:row");
+        }
+        consumer.processingInstruction("target", "data");
+        ((LexicalHandler) consumer).startCDATA();
+        consumer.characters("<cdata>".toCharArray(), 0, 7);
+        ((LexicalHandler) consumer).endCDATA();
+        ((LexicalHandler) consumer).comment("comment".toCharArray(), 0, 7);
+        consumer.endElement("urn:test", "root", "t:root");
+        consumer.endPrefixMapping("t");
+        consumer.endDocument();
+    }
+
+    private String dump(SaxBuffer buffer) throws Exception {
+        StringWriter writer = new StringWriter();
+        buffer.dump(writer);
+        return writer.toString();
+    }
+
+    /**
+     * @return the approximate heap used by one filled buffer
+     */
+    private long footprint(boolean compact) throws Exception {
+        final int count = 200;
+        SaxBuffer[] buffers = new SaxBuffer[count];
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long before = runtime.totalMemory() - runtime.freeMemory();
+        for (int i = 0; i < count; i++) {
+            buffers[i] = compact ? new CompactSaxBuffer() : new SaxBuffer();
+            generateMixedSAX(buffers[i]);
+        }
+        System.gc();
+        long after = runtime.totalMemory() - runtime.freeMemory();
+        assertEquals(count, buffers.length);
+        return (after - before) / count;
+    }
+}
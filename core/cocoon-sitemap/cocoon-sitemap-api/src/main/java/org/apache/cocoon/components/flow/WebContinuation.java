@@ -91,7 +91,7 @@ public class WebContinuation implements Comparable, Cloneable {
      * continuation is accessed, this time is set to the time of the
      * access.
      */
-    protected long lastAccessTime;
+    protected volatile long lastAccessTime;
 
     /**
      * Indicates how long does this continuation will live (in
@@ -0,0 +1,50 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.matching;
+
+import java.util.Map;
+
+/**
+ * A matcher whose patterns can be indexed by the sitemap. All patterns of an
+ * indexable matcher are matched against the same string, and every string
+ * matched by a pattern starts with a literal prefix of the pattern. This
+ * allows the sitemap to skip the matchers whose prefix does not fit the
+ * string without evaluating them.
+ *
+ * @since 2.2
+ * @version $Id$
+ */
+public interface IndexableMatcher extends Matcher {
+
+    /**
+     * Get the literal prefix of a pattern: every string matched by the pattern
+     * starts with it.
+     *
+     * @param pattern The pattern, as used with {@link #match(String, Map, org.apache.avalon.framework.parameters.Parameters)}.
+     * @return the prefix, an empty string if nothing is known about the matched strings.
+     */
+    String getPrefix(String pattern);
+
+    /**
+     * Get the string the patterns are matched against. It must not depend on
+     * the sitemap parameters of the match.
+     *
+     * @param objectModel The <code>Map</code> with objects of the calling environment.
+     * @return the string, or null if no pattern can match.
+     */
+    String getMatchString(Map objectModel);
+}
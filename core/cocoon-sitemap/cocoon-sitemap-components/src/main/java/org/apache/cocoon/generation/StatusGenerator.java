@@ -32,6 +32,7 @@ import org.apache.cocoon.ResourceNotFoundException;
 import org.apache.cocoon.components.flow.ContinuationsManager;
 import org.apache.cocoon.components.flow.WebContinuation;
 import org.apache.cocoon.components.flow.WebContinuationDataBean;
+import org.apache.cocoon.components.pipeline.PipelineMetrics;
 import org.apache.cocoon.components.source.util.SourceUtil;
 import org.apache.cocoon.configuration.Settings;
 import org.apache.cocoon.environment.SourceResolver;
@@ -54,6 +55,7 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.text.DateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.Enumeration;
@@ -165,6 +167,16 @@ public class StatusGenerator extends ServiceableGenerator
      */
     private Source libDirectory;
 
+    /**
+     * Show the pipeline metrics
+     */
+    private boolean showPipelineMetrics;
+
+    /**
+     * The pipeline metrics
+     */
+    private PipelineMetrics pipelineMetrics;
+
     public void contextualize(Context avalonContext) throws ContextException {
         this.context = avalonContext;
     }
@@ -172,6 +184,7 @@ public class StatusGenerator extends ServiceableGenerator
     public void configure(Configuration configuration) throws ConfigurationException {
         this.showContinuations = configuration.getChild("show-continuations").getValueAsBoolean(true);
         this.showLibrary = configuration.getChild("show-libraries").getValueAsBoolean(true);
+        this.showPipelineMetrics = configuration.getChild("show-pipeline-metrics").getValueAsBoolean(true);
     }
 
     /**
@@ -206,6 +219,12 @@ public class StatusGenerator extends ServiceableGenerator
         } else {
             getLogger().info("ContinuationsManager is not available. Sorry no overview of created continuations");
         }
+
+        if (this.manager.hasService(PipelineMetrics.ROLE)) {
+            this.pipelineMetrics = (PipelineMetrics) this.manager.lookup(PipelineMetrics.ROLE);
+        } else {
+            getLogger().info("PipelineMetrics are not available. Sorry no pipeline timings");
+        }
     }
 
     public void setup(SourceResolver resolver, Map objectModel, String src, Parameters par)
@@ -230,11 +249,13 @@ public class StatusGenerator extends ServiceableGenerator
             this.manager.release(this.storePersistent);
             this.manager.release(this.storeJanitor);
             this.manager.release(this.continuationsManager);
+            this.manager.release(this.pipelineMetrics);
             this.settings = null;
             this.storePersistent = null;
             this.store = null;
             this.storeJanitor = null;
             this.continuationsManager = null;
+            this.pipelineMetrics = null;
         }
 
         if (this.libDirectory != null) {
@@ -299,6 +320,9 @@ public class StatusGenerator extends ServiceableGenerator
         }
         genSettings();
         genVMStatus();
+        if (this.showPipelineMetrics && this.pipelineMetrics != null) {
+            genPipelineMetrics();
+        }
         genBeans();
         genProperties();
         if (this.showLibrary) {
@@ -361,6 +385,15 @@ public class StatusGenerator extends ServiceableGenerator
         endGroup();
     }
 
+    private void genPipelineMetrics() throws SAXException {
+        startGroup("Pipeline Metrics");
+        final String[] summary = this.pipelineMetrics.getSummary();
+        if (summary.length > 0) {
+            addMultilineValue("summary", Arrays.asList(summary));
+        }
+        endGroup();
+    }
+
     private void genContinuationsTree() throws SAXException {
         startGroup("Continuations");
         Set continuations = this.continuationsManager.getForest();
@@ -29,7 +29,15 @@ import java.util.Map;
  *
  * @version $Id$
  */
-public class RegexpURIMatcher extends AbstractRegexpMatcher {
+public class RegexpURIMatcher extends AbstractRegexpMatcher
+                              implements IndexableMatcher {
+
+    /**
+     * @see org.apache.cocoon.matching.IndexableMatcher#getMatchString(java.util.Map)
+     */
+    public String getMatchString(Map objectModel) {
+        return getMatchString(objectModel, null);
+    }
 
     /**
      * Return the request URI.
@@ -29,8 +29,16 @@ import java.util.Map;
  *
  * @version $Id$
  */
-public class WildcardURIMatcher extends AbstractWildcardMatcher {
+public class WildcardURIMatcher extends AbstractWildcardMatcher
+                                implements IndexableMatcher {
     
+    /**
+     * @see org.apache.cocoon.matching.IndexableMatcher#getMatchString(java.util.Map)
+     */
+    public String getMatchString(Map objectModel) {
+        return getMatchString(objectModel, null);
+    }
+
     /**
      * Return the request URI.
      */
@@ -16,22 +16,25 @@
  */
 package org.apache.cocoon.components.flow;
 
+import java.lang.management.ManagementFactory;
 import java.security.SecureRandom;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.management.ObjectName;
 import javax.servlet.http.HttpSession;
 import javax.servlet.http.HttpSessionBindingEvent;
 import javax.servlet.http.HttpSessionBindingListener;
 
+import org.apache.avalon.framework.activity.Disposable;
 import org.apache.avalon.framework.configuration.Configurable;
 import org.apache.avalon.framework.configuration.Configuration;
 import org.apache.avalon.framework.context.Context;
@@ -49,9 +52,6 @@ import org.apache.cocoon.thread.RunnableManager;
 import org.apache.cocoon.util.AbstractLogEnabled;
 import org.apache.cocoon.util.Deprecation;
 
-import org.apache.commons.collections.Predicate;
-import org.apache.commons.collections.iterators.FilterIterator;
-
 
 /**
  * The default implementation of {@link ContinuationsManager}. <br/>There are
@@ -68,28 +68,44 @@ import org.apache.commons.collections.iterators.FilterIterator;
  * configuration option to true to activate this mode.</li>
  * </ul>
  *
+ * <p>The continuations are held in concurrent maps and expire through an
+ * {@link ExpirationWheel}, so looking up a continuation doesn't take a
+ * global lock. The number of live and expired continuations per interpreter
+ * is registered as MBean under the "object-name" configuration attribute
+ * (default: org.apache.cocoon:type=ContinuationsManager, empty to disable).</p>
+ *
  * @since March 19, 2002
  * @see ContinuationsManager
  * @version $Id$
  */
 public class ContinuationsManagerImpl extends AbstractLogEnabled
                                       implements ContinuationsManager, Configurable, ThreadSafe,
-                                                 Serviceable, Contextualizable {
+                                                 Serviceable, Contextualizable, Disposable,
+                                                 ContinuationsManagerImplMBean {
 
     private static final int CONTINUATION_ID_LENGTH = 20;
 
+    /** Number of slots of the expiration wheel */
+    private static final int EXPIRATION_WHEEL_SIZE = 512;
+
     /**
      * Random number generator used to create continuation ID
      */
     protected SecureRandom random;
-    protected final byte[] bytes = new byte[CONTINUATION_ID_LENGTH];
 
     /**
-     * Sorted set of <code>WebContinuation</code> instances, based on
+     * Timing wheel of <code>WebContinuation</code> instances, based on
      * their expiration time. This is used by the background thread to
      * invalidate continuations.
      */
-    protected final SortedSet expirations = Collections.synchronizedSortedSet(new TreeSet());
+    protected ExpirationWheel expirations;
+
+    /**
+     * The statistics: interpreter id to {@link InterpreterStatistics}
+     */
+    private final ConcurrentMap statistics = new ConcurrentHashMap();
+
+    private ObjectName registeredName;
 
     protected ServiceManager serviceManager;
     protected Context context;
@@ -138,6 +154,8 @@ public class ContinuationsManagerImpl extends AbstractLogEnabled
         final Configuration expireConf = config.getChild("expirations-check");
         final long initialDelay = expireConf.getChild("offset", true).getValueAsLong(180000);
         final long interval = expireConf.getChild("period", true).getValueAsLong(180000);
+        // every check visits the slots of the time passed since the last one
+        this.expirations = new ExpirationWheel(interval, EXPIRATION_WHEEL_SIZE);
         try {
             final RunnableManager runnableManager = (RunnableManager)serviceManager.lookup(RunnableManager.ROLE);
             runnableManager.execute( new Runnable() {
@@ -151,6 +169,36 @@ public class ContinuationsManagerImpl extends AbstractLogEnabled
             getLogger().warn("Could not enqueue continuations expiration task. " +
                              "Continuations will not automatically expire.", e);
         }
+
+        registerMBean(config.getAttribute("object-name", "org.apache.cocoon:type=ContinuationsManager"));
+    }
+
+    private void registerMBean(String objectName) {
+        if (objectName.length() == 0) {
+            return;
+        }
+        try {
+            final ObjectName name = new ObjectName(objectName);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            this.registeredName = name;
+        } catch (Exception e) {
+            // e.g. another web application registered the name already
+            getLogger().warn("Unable to register continuations manager as " + objectName, e);
+        }
+    }
+
+    /**
+     * Unregister the MBean.
+     */
+    public void dispose() {
+        if (this.registeredName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.registeredName);
+            } catch (Exception e) {
+                getLogger().warn("Unable to unregister continuations manager " + this.registeredName, e);
+            }
+            this.registeredName = null;
+        }
     }
 
     public WebContinuation createWebContinuation(Object kont,
@@ -162,12 +210,10 @@ public class ContinuationsManagerImpl extends AbstractLogEnabled
 
         WebContinuation wk = generateContinuation(kont, parent, ttl, interpreterId, disposer);
 
-        synchronized (this.expirations) {
-            if (parent != null) {
-                expirations.remove(parent);
-            }
-            expirations.add(wk);
+        if (parent != null) {
+            this.expirations.cancel(parent);
         }
+        this.expirations.schedule(wk);
 
         if (getLogger().isDebugEnabled()) {
             getLogger().debug("WK: Created continuation " + wk.getId());
@@ -200,13 +246,8 @@ public class ContinuationsManagerImpl extends AbstractLogEnabled
             return null;
         }
 
-        // COCOON-2109: Sorting in the TreeSet happens on insert. So in order to re-sort the
-        //              continuation has to be re-added.
-        synchronized (this.expirations) {
-            this.expirations.remove(kont);
-            kont.updateLastAccessTime();
-            this.expirations.add(kont);
-        }
+        // COCOON-2109: the wheel doesn't need to re-sort on access
+        this.expirations.touch(kont);
 
         return kont;
     }
@@ -229,6 +270,7 @@ public class ContinuationsManagerImpl extends AbstractLogEnabled
                                                    int ttl,
                                                    String interpreterId,
                                                    ContinuationsDisposer disposer) {
+        final byte[] bytes = new byte[CONTINUATION_ID_LENGTH];
         char[] result = new char[bytes.length * 2];
         WebContinuation wk;
         WebContinuationsHolder continuationsHolder = lookupWebContinuationsHolder(true);
@@ -242,7 +284,7 @@ public class ContinuationsManagerImpl extends AbstractLogEnabled
             }
 
             final String id = new String(result);
-            synchronized (continuationsHolder.holder) {
+            synchronized (continuationsHolder.getLock(id)) {
                 if (!continuationsHolder.contains(id)) {
                     if (this.bindContinuationsToSession) {
                         wk = new HolderAwareWebContinuation(id, kont, parent,
@@ -257,6 +299,7 @@ public class ContinuationsManagerImpl extends AbstractLogEnabled
                 }
             }
         }
+        getStatistics(interpreterId).live.incrementAndGet();
 
         return wk;
     }
@@ -276,7 +319,7 @@ public class ContinuationsManagerImpl extends AbstractLogEnabled
             getLogger().debug("WK: Manual expire of continuation " + wk.getId());
         }
         disposeContinuation(continuationsHolder, wk);
-        expirations.remove(wk);
+        this.expirations.cancel(wk);
 
         // Invalidate all the children continuations as well
         List children = wk.getChildren();
@@ -306,7 +349,9 @@ public class ContinuationsManagerImpl extends AbstractLogEnabled
      * @param wk the continuation to dispose.
      */
     protected void disposeContinuation(WebContinuationsHolder continuationsHolder, WebContinuation wk) {
-        continuationsHolder.removeContinuation(wk);
+        if (continuationsHolder.removeContinuation(wk)) {
+            getStatistics(wk.getInterpreterId()).live.decrementAndGet();
+        }
         wk.dispose();
     }
 
@@ -324,6 +369,9 @@ public class ContinuationsManagerImpl extends AbstractLogEnabled
         }
 
         // remove access to this continuation
+        if (continuationsHolder.contains(wk)) {
+            getStatistics(wk.getInterpreterId()).expired.incrementAndGet();
+        }
         disposeContinuation(continuationsHolder, wk);
         _detach(wk);
 
@@ -353,24 +401,17 @@ public class ContinuationsManagerImpl extends AbstractLogEnabled
         }
 
         // Clean up expired continuations
-        int count = 0;
-        FilterIterator expirationIterator = new FilterIterator();
-        Predicate expirationPredicate = new ExpirationPredicate();
-        expirationIterator.setPredicate(expirationPredicate);
-        synchronized (this.expirations) {
-            expirationIterator.setIterator(this.expirations.iterator());
-            while (expirationIterator.hasNext()) {
-                WebContinuation wk = (WebContinuation) expirationIterator.next();
-                expirationIterator.remove();
-                WebContinuationsHolder continuationsHolder;
-                if (wk instanceof HolderAwareWebContinuation) {
-                    continuationsHolder = ((HolderAwareWebContinuation) wk).getContinuationsHolder();
-                } else {
-                    continuationsHolder = this.continuationsHolder;
-                }
-                removeContinuation(continuationsHolder, wk);
-                count++;
+        final List expired = this.expirations.expire(System.currentTimeMillis());
+        final int count = expired.size();
+        for (int i = 0; i < count; i++) {
+            WebContinuation wk = (WebContinuation) expired.get(i);
+            WebContinuationsHolder continuationsHolder;
+            if (wk instanceof HolderAwareWebContinuation) {
+                continuationsHolder = ((HolderAwareWebContinuation) wk).getContinuationsHolder();
+            } else {
+                continuationsHolder = this.continuationsHolder;
             }
+            removeContinuation(continuationsHolder, wk);
         }
 
         if (getLogger().isDebugEnabled()) {
@@ -387,11 +428,8 @@ public class ContinuationsManagerImpl extends AbstractLogEnabled
     protected void invalidateContinuations(WebContinuationsHolder continuationsHolder) {
         // It's not possible to just iterate over continuationsHolder.holder since _invalidate(..)
         // calls remove(..) on the map leading to ConcurrentModification at the end.
-        WebContinuation[] continuations;
-        synchronized (continuationsHolder.holder) {
-            continuations = new WebContinuation[continuationsHolder.holder.size()];
-            continuations = (WebContinuation[]) continuationsHolder.holder.values().toArray(continuations);
-        }
+        WebContinuation[] continuations =
+            (WebContinuation[]) continuationsHolder.holder.values().toArray(new WebContinuation[0]);
         for (int i = 0; i < continuations.length; i++) {
             _detach(continuations[i]);
             _invalidate(continuationsHolder, continuations[i]);
@@ -433,15 +471,13 @@ public class ContinuationsManagerImpl extends AbstractLogEnabled
 
     public Set getForest() {
         Set rootWebContinuations = new HashSet();
-        // identify the root continuations, once done no more need to lock
-        synchronized (this.expirations) {
-            for (Iterator iter = this.expirations.iterator(); iter.hasNext();) {
-                WebContinuation webContinuation = (WebContinuation) iter.next();
-                while (webContinuation.getParentContinuation() != null) {
-                    webContinuation = webContinuation.getParentContinuation();
-                }
-                rootWebContinuations.add(webContinuation);
+        // identify the root continuations
+        for (Iterator iter = this.expirations.getContinuations().iterator(); iter.hasNext();) {
+            WebContinuation webContinuation = (WebContinuation) iter.next();
+            while (webContinuation.getParentContinuation() != null) {
+                webContinuation = webContinuation.getParentContinuation();
             }
+            rootWebContinuations.add(webContinuation);
         }
 
         Set clonedRootWebContinuations = new HashSet();
@@ -471,23 +507,22 @@ public class ContinuationsManagerImpl extends AbstractLogEnabled
 
     /**
      * Dump to Log file the current contents of
-     * the expirations <code>SortedSet</code>
+     * the expirations wheel
      */
     protected void displayExpireSet() {
         StringBuffer wkSet = new StringBuffer("\nWK; Expire set size: ");
 
-        synchronized (this.expirations) {
-            wkSet.append(this.expirations.size());
-            for (Iterator i = this.expirations.iterator(); i.hasNext();) {
-                final WebContinuation wk = (WebContinuation) i.next();
-                wkSet.append("\nWK: ").append(wk.getId()).append(" ExpireTime [");
-                if (wk.hasExpired()) {
-                    wkSet.append("Expired");
-                } else {
-                    wkSet.append(wk.getLastAccessTime() + wk.getTimeToLive());
-                }
-                wkSet.append("]");
+        final List continuations = this.expirations.getContinuations();
+        wkSet.append(continuations.size());
+        for (Iterator i = continuations.iterator(); i.hasNext();) {
+            final WebContinuation wk = (WebContinuation) i.next();
+            wkSet.append("\nWK: ").append(wk.getId()).append(" ExpireTime [");
+            if (wk.hasExpired()) {
+                wkSet.append("Expired");
+            } else {
+                wkSet.append(wk.getLastAccessTime() + wk.getTimeToLive());
             }
+            wkSet.append("]");
         }
         getLogger().debug(wkSet.toString());
     }
@@ -509,17 +544,111 @@ public class ContinuationsManagerImpl extends AbstractLogEnabled
         }
     }
 
+    /**
+     * The statistics are kept under "" for continuations without interpreter,
+     * as a {@link ConcurrentMap} does not take null keys.
+     */
+    private static String statisticsKey(String interpreterId) {
+        return interpreterId == null ? "" : interpreterId;
+    }
+
+    private InterpreterStatistics getStatistics(String interpreterId) {
+        final String key = statisticsKey(interpreterId);
+        InterpreterStatistics stats = (InterpreterStatistics) this.statistics.get(key);
+        if (stats == null) {
+            stats = new InterpreterStatistics();
+            final InterpreterStatistics old =
+                (InterpreterStatistics) this.statistics.putIfAbsent(key, stats);
+            if (old != null) {
+                stats = old;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * @see org.apache.cocoon.components.flow.ContinuationsManagerImplMBean#getInterpreters()
+     */
+    public String[] getInterpreters() {
+        final String[] interpreters = (String[]) this.statistics.keySet().toArray(new String[0]);
+        Arrays.sort(interpreters);
+        return interpreters;
+    }
+
+    /**
+     * @see org.apache.cocoon.components.flow.ContinuationsManagerImplMBean#getLiveContinuations(java.lang.String)
+     */
+    public long getLiveContinuations(String interpreterId) {
+        final InterpreterStatistics stats = (InterpreterStatistics) this.statistics.get(statisticsKey(interpreterId));
+        return stats == null ? 0 : stats.live.get();
+    }
+
+    /**
+     * @see org.apache.cocoon.components.flow.ContinuationsManagerImplMBean#getExpiredContinuations(java.lang.String)
+     */
+    public long getExpiredContinuations(String interpreterId) {
+        final InterpreterStatistics stats = (InterpreterStatistics) this.statistics.get(statisticsKey(interpreterId));
+        return stats == null ? 0 : stats.expired.get();
+    }
+
+    /**
+     * @see org.apache.cocoon.components.flow.ContinuationsManagerImplMBean#getSummary()
+     */
+    public String[] getSummary() {
+        final String[] interpreters = getInterpreters();
+        final String[] lines = new String[interpreters.length];
+        for (int i = 0; i < interpreters.length; i++) {
+            lines[i] = interpreters[i]
+                       + ": live=" + getLiveContinuations(interpreters[i])
+                       + " expired=" + getExpiredContinuations(interpreters[i]);
+        }
+        return lines;
+    }
+
+    /**
+     * @see org.apache.cocoon.components.flow.ContinuationsManagerImplMBean#getScheduledContinuations()
+     */
+    public int getScheduledContinuations() {
+        return this.expirations.size();
+    }
+
+    /**
+     * The continuation counts of one interpreter.
+     */
+    private static final class InterpreterStatistics {
+        final AtomicLong live = new AtomicLong();
+        final AtomicLong expired = new AtomicLong();
+    }
+
     /**
      * A holder for WebContinuations. When bound to session notifies the
      * continuations manager of session invalidation.
      *
-     * For thread-safe access you have to synchronize on the Map {@link #holder}!
+     * The {@link #holder} map is concurrent. To add a continuation only if
+     * its id is unique, synchronize on {@link #getLock(String)}.
      */
     protected class WebContinuationsHolder implements HttpSessionBindingListener {
 
         private final static String CONTINUATIONS_HOLDER = "o.a.c.c.f.SCMI.WebContinuationsHolder";
 
-        private Map holder = Collections.synchronizedMap(new HashMap());
+        private static final int LOCK_STRIPES = 16;
+
+        private final Map holder = new ConcurrentHashMap();
+
+        private final Object[] locks = new Object[LOCK_STRIPES];
+
+        public WebContinuationsHolder() {
+            for (int i = 0; i < LOCK_STRIPES; i++) {
+                this.locks[i] = new Object();
+            }
+        }
+
+        /**
+         * @return the lock for adding a continuation with the id
+         */
+        public Object getLock(String continuationId) {
+            return this.locks[(continuationId.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+        }
 
         public WebContinuation get(Object id) {
             return (WebContinuation) this.holder.get(id);
@@ -529,8 +658,11 @@ public class ContinuationsManagerImpl extends AbstractLogEnabled
             this.holder.put(wk.getId(), wk);
         }
 
-        public void removeContinuation(WebContinuation wk) {
-            this.holder.remove(wk.getId());
+        /**
+         * @return true if the continuation was held
+         */
+        public boolean removeContinuation(WebContinuation wk) {
+            return this.holder.remove(wk.getId()) != null;
         }
 
         public boolean contains(String continuationId) {
@@ -576,12 +708,4 @@ public class ContinuationsManagerImpl extends AbstractLogEnabled
 
     }
 
-    protected static class ExpirationPredicate implements Predicate {
-
-        public boolean evaluate(final Object obj) {
-            return ((WebContinuation)obj).hasExpired();
-        }
-
-    }
-
 }
@@ -0,0 +1,54 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.flow;
+
+/**
+ * The management interface of the {@link ContinuationsManagerImpl}.
+ *
+ * @since 2.2
+ * @version $Id$
+ */
+public interface ContinuationsManagerImplMBean {
+
+    /**
+     * @return the ids of the interpreters which created continuations
+     */
+    String[] getInterpreters();
+
+    /**
+     * @return the number of continuations of the interpreter which can
+     *         be looked up
+     */
+    long getLiveContinuations(String interpreterId);
+
+    /**
+     * @return the number of continuations of the interpreter which have
+     *         been removed because they expired
+     */
+    long getExpiredContinuations(String interpreterId);
+
+    /**
+     * @return one line per interpreter with the number of live and
+     *         expired continuations
+     */
+    String[] getSummary();
+
+    /**
+     * @return the number of continuations waiting for expiration
+     */
+    int getScheduledContinuations();
+}
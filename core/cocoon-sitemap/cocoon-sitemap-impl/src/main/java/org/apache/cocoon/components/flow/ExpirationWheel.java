@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.flow;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A hashed timing wheel holding the <code>WebContinuation</code>s that
+ * expire. Every slot of the wheel covers one tick of time and holds the
+ * continuations expiring during this tick or, if the wheel has turned
+ * around, during a later round.
+ *
+ * <p>Accessing a continuation doesn't move it: {@link #touch(WebContinuation)}
+ * only updates its last access time. When its slot comes up and the
+ * continuation hasn't expired, it is moved to the slot of its new expiration
+ * time. So scheduling, touching and cancelling take constant time without
+ * a lock on the whole wheel.</p>
+ *
+ * @since 2.2
+ * @version $Id$
+ */
+public class ExpirationWheel {
+
+    /** The slots, sets of <code>WebContinuation</code>s */
+    private final Set[] slots;
+
+    /** The slot of every scheduled <code>WebContinuation</code> */
+    private final ConcurrentMap scheduled = new ConcurrentHashMap();
+
+    /** The time covered by a slot in milliseconds */
+    private final long tick;
+
+    /** The tick processed last by {@link #expire(long)} */
+    private volatile long lastTick;
+
+    /**
+     * @param tick  the time covered by a slot in milliseconds
+     * @param size  the number of slots
+     */
+    public ExpirationWheel(long tick, int size) {
+        this.tick = Math.max(1, tick);
+        this.slots = new Set[size];
+        for (int i = 0; i < size; i++) {
+            this.slots[i] = Collections.newSetFromMap(new ConcurrentHashMap());
+        }
+        this.lastTick = System.currentTimeMillis() / this.tick;
+    }
+
+    /**
+     * Add a continuation to the wheel.
+     */
+    public void schedule(WebContinuation wk) {
+        final Integer slot = slotFor(wk);
+        final Integer old = (Integer) this.scheduled.put(wk, slot);
+        if (old != null && !old.equals(slot)) {
+            this.slots[old.intValue()].remove(wk);
+        }
+        this.slots[slot.intValue()].add(wk);
+    }
+
+    /**
+     * Remove a continuation from the wheel.
+     */
+    public void cancel(WebContinuation wk) {
+        final Integer slot = (Integer) this.scheduled.remove(wk);
+        if (slot != null) {
+            this.slots[slot.intValue()].remove(wk);
+        }
+    }
+
+    /**
+     * Mark a continuation as accessed and add it to the wheel if it
+     * isn't scheduled.
+     */
+    public void touch(WebContinuation wk) {
+        wk.updateLastAccessTime();
+        if (!this.scheduled.containsKey(wk)) {
+            schedule(wk);
+        }
+    }
+
+    /**
+     * @return the number of scheduled continuations
+     */
+    public int size() {
+        return this.scheduled.size();
+    }
+
+    /**
+     * @return a snapshot of the scheduled continuations
+     */
+    public List getContinuations() {
+        return new ArrayList(this.scheduled.keySet());
+    }
+
+    /**
+     * Remove all continuations which have expired at the given time from
+     * the wheel. Only the slots of the ticks passed since the last call are
+     * visited. This method must not be called concurrently.
+     *
+     * @param now the current time in milliseconds
+     * @return the expired <code>WebContinuation</code>s
+     */
+    public List expire(long now) {
+        final long currentTick = now / this.tick;
+        // the slot processed last is visited again, its tick may not have
+        // been over
+        long first = this.lastTick;
+        if (currentTick - first >= this.slots.length) {
+            first = currentTick - this.slots.length + 1;
+        }
+        this.lastTick = currentTick;
+
+        final List expired = new ArrayList();
+        for (long t = first; t <= currentTick; t++) {
+            expireSlot((int) (t % this.slots.length), now, expired);
+        }
+        return expired;
+    }
+
+    private void expireSlot(int index, long now, List expired) {
+        final Integer slot = new Integer(index);
+        for (Iterator i = this.slots[index].iterator(); i.hasNext();) {
+            final WebContinuation wk = (WebContinuation) i.next();
+            if (!slot.equals(this.scheduled.get(wk))) {
+                // cancelled or moved meanwhile
+                i.remove();
+            } else if (now > wk.getLastAccessTime() + wk.getTimeToLive()) {
+                i.remove();
+                if (this.scheduled.remove(wk, slot)) {
+                    expired.add(wk);
+                }
+            } else {
+                // touched or expiring in a later round
+                final Integer newSlot = slotFor(wk);
+                if (!newSlot.equals(slot) && this.scheduled.replace(wk, slot, newSlot)) {
+                    i.remove();
+                    this.slots[newSlot.intValue()].add(wk);
+                }
+            }
+        }
+    }
+
+    private Integer slotFor(WebContinuation wk) {
+        // a continuation expiring before the last visited tick is put into
+        // its slot, which is visited again next time
+        final long expires = Math.max((wk.getLastAccessTime() + wk.getTimeToLive()) / this.tick,
+                                      this.lastTick);
+        return new Integer((int) (expires % this.slots.length));
+    }
+}
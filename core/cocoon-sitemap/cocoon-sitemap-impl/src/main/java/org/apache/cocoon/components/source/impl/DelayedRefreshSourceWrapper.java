@@ -17,30 +17,40 @@
 package org.apache.cocoon.components.source.impl;
 
 import org.apache.avalon.excalibur.pool.Recyclable;
+import org.apache.cocoon.components.fam.Monitor;
+import org.apache.cocoon.components.fam.MonitorListener;
 import org.apache.excalibur.source.Source;
 import org.apache.excalibur.source.SourceException;
 import org.apache.excalibur.source.SourceValidity;
+import org.apache.excalibur.source.impl.FileSource;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 
 /**
  * A wrapper around a <code>Source</code> that reduces the number of calls to
  * <code>Source.getLastModified()</code> which can be a costly operation.
+ * If a {@link Monitor} is given and the source is a file, the last
+ * modification time is only refreshed when the monitor reports a change.
  *
  * @version $Id$
  */
 public final class DelayedRefreshSourceWrapper
-    implements Source, Recyclable {
+    implements Source, Recyclable, MonitorListener {
 
     private Source source;
 
     private long delay;
 
-    private long nextCheckTime;
+    private volatile long nextCheckTime;
 
     private long lastModified;
 
+    private Monitor monitor;
+
+    private File file;
+
     /**
      * Creates a wrapper for a <code>Source</code> which ensures that
      * <code>Source.getLastModified()</code> won't be called more than once per
@@ -54,6 +64,25 @@ public final class DelayedRefreshSourceWrapper
         this.delay = delay;
     }
 
+    /**
+     * Creates a wrapper for a <code>Source</code> which only calls
+     * <code>Source.getLastModified()</code> again when the monitor reports a
+     * change. Sources which are not files can't be monitored, for them
+     * the <code>delay</code> is used.
+     *
+     * @param source  the wrapped <code>Source</code>
+     * @param delay   the last-modified refresh delay, in milliseconds
+     * @param monitor the monitor to subscribe to, can be <code>null</code>
+     */
+    public DelayedRefreshSourceWrapper(Source source, long delay, Monitor monitor) {
+        this(source, delay);
+        if (monitor != null && source instanceof FileSource) {
+            this.monitor = monitor;
+            this.file = ((FileSource) source).getFile();
+            monitor.subscribe(this.file, this);
+        }
+    }
+
     /**
      * Get the real source
      */
@@ -126,7 +155,12 @@ public final class DelayedRefreshSourceWrapper
      */
     public synchronized final void refresh() {
 
-        this.nextCheckTime = System.currentTimeMillis() + this.delay;
+        if (this.monitor != null) {
+            // wait for the next change reported by the monitor
+            this.nextCheckTime = Long.MAX_VALUE;
+        } else {
+            this.nextCheckTime = System.currentTimeMillis() + this.delay;
+        }
         // Refresh modifiable sources
         this.source.refresh();
 
@@ -134,6 +168,26 @@ public final class DelayedRefreshSourceWrapper
         this.lastModified = source.getLastModified();
     }
 
+    /**
+     * @see org.apache.cocoon.components.fam.MonitorListener#fileChanged(java.io.File)
+     */
+    public void fileChanged(File changedFile) {
+        // refresh on next call of getLastModified()
+        this.nextCheckTime = 0;
+    }
+
+    /**
+     * Stop monitoring the wrapped source. This has to be called if the
+     * wrapper has been created with a monitor and is no longer used.
+     */
+    public void unsubscribe() {
+        if (this.monitor != null) {
+            this.monitor.unsubscribe(this.file, this);
+            this.monitor = null;
+            this.nextCheckTime = 0;
+        }
+    }
+
     /**
      * @see org.apache.excalibur.source.Source#getContentLength()
      */
@@ -18,6 +18,8 @@ package org.apache.cocoon.components.treeprocessor;
 
 import java.io.IOException;
 import java.net.URL;
+import java.util.concurrent.locks.ReentrantLock;
+
 import javax.xml.XMLConstants;
 import javax.xml.transform.stream.StreamSource;
 import javax.xml.validation.Schema;
@@ -41,6 +43,7 @@ import org.apache.regexp.RE;
 
 import org.apache.cocoon.ProcessingException;
 import org.apache.cocoon.Processor;
+import org.apache.cocoon.components.fam.Monitor;
 import org.apache.cocoon.components.flow.Interpreter;
 import org.apache.cocoon.components.source.impl.DelayedRefreshSourceWrapper;
 import org.apache.cocoon.components.source.util.SourceUtil;
@@ -77,7 +80,7 @@ public class TreeProcessor extends AbstractLogEnabled
     protected Settings settings;
 
     /** Last modification time */
-    protected long lastModified = 0;
+    protected volatile long lastModified = 0;
 
     /** The source of the tree definition */
     protected DelayedRefreshSourceWrapper source;
@@ -89,11 +92,14 @@ public class TreeProcessor extends AbstractLogEnabled
     protected boolean checkReload;
     
     /** Need component classes to be reloaded, due to jci notification? */
-    protected boolean classReload;
+    protected volatile boolean classReload;
     
     /** The source resolver */
     protected SourceResolver resolver;
 
+    /** The monitor notifying about changes of the sitemap, if available */
+    protected Monitor monitor;
+
     /** The environment helper */
     private EnvironmentHelper environmentHelper;
 
@@ -104,7 +110,10 @@ public class TreeProcessor extends AbstractLogEnabled
     private boolean releaseSitemapExecutor;
 
     /** The actual processor */
-    protected ConcreteTreeProcessor concreteProcessor;
+    protected volatile ConcreteTreeProcessor concreteProcessor;
+
+    /** Held while the concrete processor is built */
+    private final ReentrantLock buildLock = new ReentrantLock();
 
     /** The sitemap schema used for validation. */
     protected Schema sitemapSchema;
@@ -139,6 +148,7 @@ public class TreeProcessor extends AbstractLogEnabled
         this.source = sitemapSource;
         this.checkReload = checkReload;
         this.lastModifiedDelay = parent.lastModifiedDelay;
+        this.monitor = parent.monitor;
 
         this.manager = parent.concreteProcessor.getServiceManager();
 
@@ -162,7 +172,8 @@ public class TreeProcessor extends AbstractLogEnabled
                                               String  prefix)
     throws Exception {
         DelayedRefreshSourceWrapper delayedSource = new DelayedRefreshSourceWrapper(
-                this.resolver.resolveURI(src), this.lastModifiedDelay);
+                this.resolver.resolveURI(src), this.lastModifiedDelay,
+                configuredCheckReload ? this.monitor : null);
         return new TreeProcessor(this, delayedSource, configuredCheckReload, prefix);
     }
 
@@ -173,6 +184,9 @@ public class TreeProcessor extends AbstractLogEnabled
         this.manager = serviceManager;
         this.resolver = (SourceResolver) this.manager.lookup(SourceResolver.ROLE);
         this.settings = (Settings) this.manager.lookup(Settings.ROLE);
+        if (this.manager.hasService(Monitor.ROLE)) {
+            this.monitor = (Monitor) this.manager.lookup(Monitor.ROLE);
+        }
     }
 
     /**
@@ -225,7 +239,8 @@ public class TreeProcessor extends AbstractLogEnabled
         String fileName = config.getAttribute("file", "sitemap.xmap");
         
         try {
-            this.source = new DelayedRefreshSourceWrapper(this.resolver.resolveURI(fileName), lastModifiedDelay);
+            this.source = new DelayedRefreshSourceWrapper(this.resolver.resolveURI(fileName), lastModifiedDelay,
+                                                          this.checkReload ? this.monitor : null);
         } catch (Exception e) {
             throw new ConfigurationException("Cannot resolve " + fileName, e);
         }
@@ -243,8 +258,7 @@ public class TreeProcessor extends AbstractLogEnabled
      */
     public boolean process(Environment environment) throws Exception {
         // Get the concrete processor and delegate it the job
-        setupConcreteProcessor(environment);
-        return this.concreteProcessor.process(environment);
+        return setupConcreteProcessor(environment).process(environment);
     }
 
 
@@ -256,8 +270,7 @@ public class TreeProcessor extends AbstractLogEnabled
     public InternalPipelineDescription buildPipeline(Environment environment)
     throws Exception {
         // Get the concrete processor and delegate it the job
-        setupConcreteProcessor(environment);
-        return this.concreteProcessor.buildPipeline(environment);
+        return setupConcreteProcessor(environment).buildPipeline(environment);
     }
 
     /**
@@ -325,19 +338,37 @@ public class TreeProcessor extends AbstractLogEnabled
 
     /**
      * Sets up the concrete processor, building or rebuilding it if necessary.
+     * While the sitemap is rebuilt, other requests are still served by the
+     * previous processor; only the first build blocks them.
+     *
+     * @return the concrete processor to use for the request
      */
-    private void setupConcreteProcessor(Environment env) throws Exception {
+    ConcreteTreeProcessor setupConcreteProcessor(Environment env) throws Exception {
 
         if (this.parent == null) {
             // Ensure root sitemap uses the correct context, even if not located in the webapp context
             this.environmentHelper.changeContext(this.source, "");
         }
 
-        if (this.concreteProcessor == null ||
+        ConcreteTreeProcessor processor = this.concreteProcessor;
+        if (processor == null ||
                 (this.checkReload && (this.classReload || (this.source.getLastModified() != this.lastModified)))) {
-            buildConcreteProcessor(env);
-            this.classReload = false;
+            if (processor == null) {
+                // Nothing to serve the request with yet
+                this.buildLock.lock();
+            } else if (!this.buildLock.tryLock()) {
+                // Another request is rebuilding the sitemap
+                return processor;
+            }
+            try {
+                buildConcreteProcessor(env);
+                this.classReload = false;
+            } finally {
+                this.buildLock.unlock();
+            }
+            processor = this.concreteProcessor;
         }
+        return processor;
     }
     
     private Configuration createSitemapProgram(Source sitemapSource)
@@ -359,11 +390,12 @@ public class TreeProcessor extends AbstractLogEnabled
     
     /**
      * Build the concrete processor (i.e. loads the sitemap). Should be called
-     * only by setupProcessor();
+     * only by setupProcessor() while holding the build lock. Package private
+     * for the test case.
      */
-    private synchronized void buildConcreteProcessor(Environment env) throws Exception {
+    void buildConcreteProcessor(Environment env) throws Exception {
 
-        // Now that we entered the synchronized area, recheck what's already
+        // Now that we hold the build lock, recheck what's already
         // been checked in process().
         if (this.concreteProcessor != null && !this.classReload && source.getLastModified() == this.lastModified) {
             // Nothing changed
@@ -385,12 +417,6 @@ public class TreeProcessor extends AbstractLogEnabled
             }            
         }
         
-        // Dispose the old processor, if any
-        if (oldProcessor != null) {
-            oldProcessor.markForDisposal();
-        }
-
-
         // We have to do a call to enterProcessor() here as during building
         // of the tree, components (e.g. actions) are already instantiated
         // (ThreadSafe ones mostly).
@@ -444,6 +470,11 @@ public class TreeProcessor extends AbstractLogEnabled
         // Switch to the new processor (ensure it's never temporarily null)
         this.concreteProcessor = newProcessor;
         this.lastModified = newLastModified;
+
+        // Dispose the old processor, if any, once its requests are finished
+        if (oldProcessor != null) {
+            oldProcessor.markForDisposal();
+        }
     }
 
     /**
@@ -462,11 +493,16 @@ public class TreeProcessor extends AbstractLogEnabled
 
         if (this.manager != null) {
             if (this.source != null) {
+                this.source.unsubscribe();
                 this.resolver.release(this.source.getSource());
                 this.source = null;
             }
             this.manager.release(this.resolver);
             this.manager.release(this.settings);
+            if (this.parent == null) {
+                this.manager.release(this.monitor);
+            }
+            this.monitor = null;
             this.resolver = null;
             this.manager = null;
             this.settings = null;
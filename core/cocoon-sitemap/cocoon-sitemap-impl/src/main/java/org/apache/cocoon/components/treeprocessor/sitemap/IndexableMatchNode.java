@@ -0,0 +1,47 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.treeprocessor.sitemap;
+
+import java.util.Map;
+
+import org.apache.cocoon.components.treeprocessor.ProcessingNode;
+
+/**
+ * A match node whose matcher is an {@link org.apache.cocoon.matching.IndexableMatcher}
+ * and can therefore be part of a {@link MatchIndexNode}.
+ *
+ * @since 2.2
+ * @version $Id$
+ */
+public interface IndexableMatchNode extends ProcessingNode {
+
+    /**
+     * @return the type of the matcher
+     */
+    String getType();
+
+    /**
+     * @return the literal prefix of the strings matched by this node, or null
+     *         if the node can not be indexed
+     */
+    String getIndexPrefix() throws Exception;
+
+    /**
+     * @return the string the matcher of this node matches against
+     */
+    String getIndexString(Map objectModel) throws Exception;
+}
@@ -0,0 +1,184 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.treeprocessor.sitemap;
+
+import java.util.BitSet;
+
+import org.apache.cocoon.ProcessingException;
+import org.apache.cocoon.components.treeprocessor.AbstractProcessingNode;
+import org.apache.cocoon.components.treeprocessor.InvokeContext;
+import org.apache.cocoon.environment.Environment;
+
+/**
+ * Replaces a sequence of match nodes of the same indexable matcher type.
+ * The literal prefixes of their patterns are compiled into a trie, so only
+ * the nodes whose prefix is a prefix of the matched string are invoked; the
+ * others can not match. The candidates are invoked in sitemap order, so the
+ * first matching node still wins.
+ *
+ * <p>The match nodes inform the pipeline of a branch point before matching;
+ * as the skipped nodes don't, this node does it once for all of them.</p>
+ *
+ * @since 2.2
+ * @version $Id$
+ */
+public class MatchIndexNode extends AbstractProcessingNode {
+
+    /** The indexed nodes in sitemap order */
+    private final IndexableMatchNode[] nodes;
+
+    /** The root of the prefix trie */
+    private final Entry root = new Entry();
+
+    /**
+     * @param nodes    the match nodes in sitemap order
+     * @param prefixes the literal prefix of each node
+     */
+    public MatchIndexNode(IndexableMatchNode[] nodes, String[] prefixes) {
+        super(nodes[0].getType());
+        this.nodes = nodes;
+        for (int i = 0; i < nodes.length; i++) {
+            Entry entry = this.root;
+            for (int j = 0; j < prefixes[i].length(); j++) {
+                entry = entry.getOrAddChild(prefixes[i].charAt(j));
+            }
+            entry.addNode(i);
+        }
+        setLocation(nodes[0].getLocation());
+    }
+
+    /**
+     * @return the number of indexed nodes
+     */
+    public int getNodeCount() {
+        return this.nodes.length;
+    }
+
+    /**
+     * @see org.apache.cocoon.components.treeprocessor.ProcessingNode#invoke(org.apache.cocoon.environment.Environment, org.apache.cocoon.components.treeprocessor.InvokeContext)
+     */
+    public final boolean invoke(Environment env, InvokeContext context)
+    throws Exception {
+        if (context.hasPipeline()) {
+            context.getProcessingPipeline().informBranchPoint();
+        }
+
+        final String value;
+        try {
+            value = this.nodes[0].getIndexString(env.getObjectModel());
+        } catch (Exception e) {
+            throw ProcessingException.throwLocated("Sitemap: error invoking matcher", e, getLocation());
+        }
+        if (value == null) {
+            // no matcher will match
+            return false;
+        }
+
+        final BitSet candidates = getCandidates(value);
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            if (this.nodes[i].invoke(env, context)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the indexes of the nodes whose prefix is a prefix of the value
+     */
+    protected BitSet getCandidates(String value) {
+        final BitSet candidates = new BitSet(this.nodes.length);
+        Entry entry = this.root;
+        entry.addTo(candidates);
+        for (int i = 0; i < value.length(); i++) {
+            entry = entry.getChild(value.charAt(i));
+            if (entry == null) {
+                break;
+            }
+            entry.addTo(candidates);
+        }
+        return candidates;
+    }
+
+    /**
+     * An entry of the prefix trie.
+     */
+    private static final class Entry {
+        private static final int[] NO_NODES = new int[0];
+        private static final Entry[] NO_CHILDREN = new Entry[0];
+
+        /** The nodes whose prefix ends here */
+        private int[] nodes = NO_NODES;
+
+        /** The characters of the children, sorted */
+        private char[] chars = new char[0];
+
+        private Entry[] children = NO_CHILDREN;
+
+        Entry getChild(char c) {
+            final char[] keys = this.chars;
+            int low = 0;
+            int high = keys.length - 1;
+            while (low <= high) {
+                final int mid = (low + high) >>> 1;
+                if (keys[mid] < c) {
+                    low = mid + 1;
+                } else if (keys[mid] > c) {
+                    high = mid - 1;
+                } else {
+                    return this.children[mid];
+                }
+            }
+            return null;
+        }
+
+        Entry getOrAddChild(char c) {
+            Entry child = getChild(c);
+            if (child == null) {
+                int pos = 0;
+                while (pos < this.chars.length && this.chars[pos] < c) {
+                    pos++;
+                }
+                final char[] newChars = new char[this.chars.length + 1];
+                final Entry[] newChildren = new Entry[this.children.length + 1];
+                System.arraycopy(this.chars, 0, newChars, 0, pos);
+                System.arraycopy(this.children, 0, newChildren, 0, pos);
+                System.arraycopy(this.chars, pos, newChars, pos + 1, this.chars.length - pos);
+                System.arraycopy(this.children, pos, newChildren, pos + 1, this.children.length - pos);
+                child = new Entry();
+                newChars[pos] = c;
+                newChildren[pos] = child;
+                this.chars = newChars;
+                this.children = newChildren;
+            }
+            return child;
+        }
+
+        void addNode(int index) {
+            final int[] newNodes = new int[this.nodes.length + 1];
+            System.arraycopy(this.nodes, 0, newNodes, 0, this.nodes.length);
+            newNodes[this.nodes.length] = index;
+            this.nodes = newNodes;
+        }
+
+        void addTo(BitSet candidates) {
+            for (int i = 0; i < this.nodes.length; i++) {
+                candidates.set(this.nodes[i]);
+            }
+        }
+    }
+}
@@ -26,13 +26,14 @@ import org.apache.cocoon.components.treeprocessor.ParameterizableProcessingNode;
 import org.apache.cocoon.components.treeprocessor.SimpleSelectorProcessingNode;
 import org.apache.cocoon.components.treeprocessor.variables.VariableResolver;
 import org.apache.cocoon.environment.Environment;
+import org.apache.cocoon.matching.IndexableMatcher;
 import org.apache.cocoon.matching.Matcher;
 
 /**
  * @version $Id$
  */
 public class MatchNode extends SimpleSelectorProcessingNode
-                       implements ParameterizableProcessingNode {
+                       implements ParameterizableProcessingNode, IndexableMatchNode {
 
     /** The 'pattern' attribute */
     private VariableResolver pattern;
@@ -42,6 +43,9 @@ public class MatchNode extends SimpleSelectorProcessingNode
 
     private Map parameters;
 
+    /** The pattern if it doesn't need request-time resolution */
+    private String staticPattern;
+
 
     public MatchNode(String type, VariableResolver pattern, String name) {
         super(Matcher.ROLE + "Selector", type);
@@ -53,6 +57,44 @@ public class MatchNode extends SimpleSelectorProcessingNode
         this.parameters = parameterMap;
     }
 
+    /**
+     * Set the pattern if it doesn't need request-time resolution. Only
+     * nodes with a static pattern can be indexed.
+     */
+    public void setStaticPattern(String pattern) {
+        this.staticPattern = pattern;
+    }
+
+    /**
+     * @see IndexableMatchNode#getIndexPrefix()
+     */
+    public String getIndexPrefix() throws Exception {
+        if (this.staticPattern == null) {
+            return null;
+        }
+        final Object matcher = getComponent();
+        try {
+            if (matcher instanceof IndexableMatcher) {
+                return ((IndexableMatcher) matcher).getPrefix(this.staticPattern);
+            }
+            return null;
+        } finally {
+            releaseComponent(matcher);
+        }
+    }
+
+    /**
+     * @see IndexableMatchNode#getIndexString(java.util.Map)
+     */
+    public String getIndexString(Map objectModel) throws Exception {
+        final IndexableMatcher matcher = (IndexableMatcher) getComponent();
+        try {
+            return matcher.getMatchString(objectModel);
+        } finally {
+            releaseComponent(matcher);
+        }
+    }
+
     public final boolean invoke(Environment env, InvokeContext context)
     throws Exception {
 
@@ -67,6 +67,9 @@ public class MatchNodeBuilder extends AbstractParentProcessingNodeBuilder
             node = new PreparableMatchNode(type, VariableResolverFactory.unescape(pattern),name);
         } else {
             node = new MatchNode(type, patternResolver,name);
+            if (pattern != null && !VariableResolverFactory.needsResolve(pattern)) {
+                ((MatchNode) node).setStaticPattern(VariableResolverFactory.unescape(pattern));
+            }
         }
 
         this.treeBuilder.setupNode(node, config);
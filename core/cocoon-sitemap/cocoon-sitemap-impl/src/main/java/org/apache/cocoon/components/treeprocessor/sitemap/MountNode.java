@@ -16,9 +16,14 @@
  */
 package org.apache.cocoon.components.treeprocessor.sitemap;
 
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import org.apache.avalon.framework.activity.Disposable;
 import org.apache.avalon.framework.container.ContainerUtil;
@@ -47,8 +52,12 @@ public class MountNode extends AbstractProcessingNode
     /** The 'src' attribute */
     private final VariableResolver source;
 
-    /** Processors for sources */
-    private Map processors = new HashMap();
+    /**
+     * Processors for sources. The values are futures, so a processor is
+     * created only once even if several requests need it at the same time,
+     * without blocking the requests for other sources.
+     */
+    private final ConcurrentMap processors = new ConcurrentHashMap();
 
     /** The processor for this node */
     private final TreeProcessor parentProcessor;
@@ -59,6 +68,9 @@ public class MountNode extends AbstractProcessingNode
     /** The value of the 'pass-through' attribute */
     private final Boolean passThrough;
 
+    /** Set when this node is disposed, so that processors created later are disposed as well */
+    private volatile boolean disposed;
+
 
     public MountNode(VariableResolver prefix,
                      VariableResolver source,
@@ -130,28 +142,75 @@ public class MountNode extends AbstractProcessingNode
         }
     }
 
-    private synchronized TreeProcessor getProcessor(String source, String prefix)
+    /**
+     * Get the processor for a source, creating it if needed. Package private
+     * for the test case.
+     */
+    TreeProcessor getProcessor(final String source, final String prefix)
     throws Exception {
 
-        TreeProcessor processor = (TreeProcessor) processors.get(source);
-        if (processor == null) {
-            processor = this.parentProcessor.createChildProcessor(source, this.checkReload, prefix);
+        Future future = (Future) this.processors.get(source);
+        if (future == null) {
+            final FutureTask task = new FutureTask(new Callable() {
+                public Object call() throws Exception {
+                    final TreeProcessor processor = parentProcessor.createChildProcessor(source, checkReload, prefix);
+                    if (disposed) {
+                        // dispose() may have missed this task
+                        ContainerUtil.dispose(processor);
+                        throw new ProcessingException("Sitemap: mount node has been disposed");
+                    }
+                    return processor;
+                }
+            });
 
             // Associate to the original source
-            processors.put(source, processor);
+            future = (Future) this.processors.putIfAbsent(source, task);
+            if (future == null) {
+                future = task;
+                task.run();
+            }
         }
 
-        return processor;
+        try {
+            return (TreeProcessor) future.get();
+        } catch (ExecutionException e) {
+            // Let the next request try again
+            this.processors.remove(source, future);
+            final Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw (Error) cause;
+        }
     }
 
     /**
      * @see org.apache.avalon.framework.activity.Disposable#dispose()
      */
     public void dispose() {
+        this.disposed = true;
+        boolean interrupted = false;
         Iterator i = this.processors.values().iterator();
         while (i.hasNext()) {
-            ContainerUtil.dispose(i.next());
+            final Future future = (Future) i.next();
+            // Wait for processors still being created, they are disposed as well
+            Object processor = null;
+            while (true) {
+                try {
+                    processor = future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException ignored) {
+                    // The processor couldn't be created, or has disposed itself
+                    break;
+                }
+            }
+            ContainerUtil.dispose(processor);
         }
         this.processors.clear();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
     }
 }
@@ -37,6 +37,8 @@ public class PipelineNodeBuilder extends AbstractParentProcessingNodeBuilder {
 
     private static final String ATTRIBUTE_INTERNAL_ONLY = "internal-only";
 
+    private static final String ATTRIBUTE_MATCH_INDEX = "match-index";
+
     private static final String PROPERTY_SITEMAP_INTERNALONLY = "org.apache.cocoon.sitemap.internalonly.disable";
 
     /** Will the ignore-internal flag of a pipeline be ignored? */
@@ -101,9 +103,62 @@ public class PipelineNodeBuilder extends AbstractParentProcessingNodeBuilder {
             }
         }
 
+        if (config.getAttributeAsBoolean(PipelineNodeBuilder.ATTRIBUTE_MATCH_INDEX, false)) {
+            children = indexMatchNodes(children);
+        }
+
         node.setChildren(toNodeArray(children));
         node.setErrorHandler(handler);
 
         return node;
     }
+
+    /**
+     * Replace each sequence of indexable match nodes of the same matcher type
+     * by a {@link MatchIndexNode}.
+     *
+     * @param children the child nodes of the pipeline
+     * @return the child nodes with the sequences replaced
+     */
+    protected List indexMatchNodes(List children) throws Exception {
+        List result = new ArrayList();
+        List run = new ArrayList();
+        List prefixes = new ArrayList();
+        for (int i = 0; i < children.size(); i++) {
+            ProcessingNode child = (ProcessingNode) children.get(i);
+            String prefix = null;
+            if (child instanceof IndexableMatchNode) {
+                prefix = ((IndexableMatchNode) child).getIndexPrefix();
+            }
+            if (prefix == null
+                || (!run.isEmpty()
+                    && !((IndexableMatchNode) child).getType().equals(((IndexableMatchNode) run.get(0)).getType()))) {
+                addMatchIndex(result, run, prefixes);
+            }
+            if (prefix == null) {
+                result.add(child);
+            } else {
+                run.add(child);
+                prefixes.add(prefix);
+            }
+        }
+        addMatchIndex(result, run, prefixes);
+        return result;
+    }
+
+    private void addMatchIndex(List result, List run, List prefixes) {
+        if (run.size() > 1) {
+            MatchIndexNode index = new MatchIndexNode(
+                    (IndexableMatchNode[]) run.toArray(new IndexableMatchNode[run.size()]),
+                    (String[]) prefixes.toArray(new String[prefixes.size()]));
+            if (getLogger().isDebugEnabled()) {
+                getLogger().debug("Indexed " + run.size() + " matchers at " + index.getLocation());
+            }
+            result.add(index);
+        } else {
+            result.addAll(run);
+        }
+        run.clear();
+        prefixes.clear();
+    }
 }
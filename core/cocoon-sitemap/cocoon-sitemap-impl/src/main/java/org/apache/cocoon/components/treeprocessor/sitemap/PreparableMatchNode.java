@@ -26,6 +26,7 @@ import org.apache.cocoon.components.treeprocessor.ParameterizableProcessingNode;
 import org.apache.cocoon.components.treeprocessor.SimpleSelectorProcessingNode;
 import org.apache.cocoon.components.treeprocessor.variables.VariableResolver;
 import org.apache.cocoon.environment.Environment;
+import org.apache.cocoon.matching.IndexableMatcher;
 import org.apache.cocoon.matching.Matcher;
 import org.apache.cocoon.matching.PreparableMatcher;
 import org.apache.cocoon.sitemap.PatternException;
@@ -35,7 +36,8 @@ import org.apache.cocoon.ProcessingException;
  * @version $Id$
  */
 public class PreparableMatchNode extends SimpleSelectorProcessingNode
-                                 implements ParameterizableProcessingNode, Initializable {
+                                 implements ParameterizableProcessingNode, Initializable,
+                                            IndexableMatchNode {
 
     /** The 'pattern' attribute */
     private String pattern;
@@ -61,6 +63,33 @@ public class PreparableMatchNode extends SimpleSelectorProcessingNode
         this.parameters = parameterMap;
     }
 
+    /**
+     * @see IndexableMatchNode#getIndexPrefix()
+     */
+    public String getIndexPrefix() throws Exception {
+        final Object matcher = getComponent();
+        try {
+            if (matcher instanceof IndexableMatcher) {
+                return ((IndexableMatcher) matcher).getPrefix(this.pattern);
+            }
+            return null;
+        } finally {
+            releaseComponent(matcher);
+        }
+    }
+
+    /**
+     * @see IndexableMatchNode#getIndexString(java.util.Map)
+     */
+    public String getIndexString(Map objectModel) throws Exception {
+        final IndexableMatcher matcher = (IndexableMatcher) getComponent();
+        try {
+            return matcher.getMatchString(objectModel);
+        } finally {
+            releaseComponent(matcher);
+        }
+    }
+
     /* (non-Javadoc)
      * @see org.apache.avalon.framework.activity.Initializable#initialize()
      */
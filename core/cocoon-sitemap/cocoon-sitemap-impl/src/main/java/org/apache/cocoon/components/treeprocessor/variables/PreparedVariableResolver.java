@@ -17,6 +17,7 @@
 package org.apache.cocoon.components.treeprocessor.variables;
 
 import java.util.ArrayList;
+import java.util.EmptyStackException;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -38,6 +39,10 @@ import org.apache.cocoon.sitemap.PatternException;
 /**
  * Prepared implementation of {@link VariableResolver} for fast evaluation.
  *
+ * <p>The expression is compiled into a tree of evaluators when it is set:
+ * constant texts are folded, sitemap variables are resolved to their level
+ * in the map stack and thread safe input modules are looked up once.</p>
+ *
  * @version $Id$
  */
 final public class PreparedVariableResolver extends VariableResolver
@@ -49,7 +54,6 @@ final public class PreparedVariableResolver extends VariableResolver
     private static final int CLOSE = -3;
     private static final int COLON = -4;
     private static final int TEXT = -5;
-    private static final int EXPR = -7;
     private static final int SITEMAP_VAR = -9;
     private static final int THREADSAFE_MODULE = -10;
     private static final int STATEFUL_MODULE = -11;
@@ -57,12 +61,14 @@ final public class PreparedVariableResolver extends VariableResolver
     protected static final Token COLON_TOKEN = new Token(COLON);
     protected static final Token OPEN_TOKEN = new Token(OPEN);
     protected static final Token CLOSE_TOKEN = new Token(CLOSE);
-    protected static final Token EMPTY_TOKEN = new Token(EXPR);
-    
+
     private ServiceManager manager;
     protected List tokens;
     protected boolean needsMapStack;
 
+    /** The compiled expression */
+    private Evaluator evaluator;
+
 
     public PreparedVariableResolver() {
         super();
@@ -128,6 +134,7 @@ final public class PreparedVariableResolver extends VariableResolver
                 }
             }
         });
+        this.evaluator = compile();
     }
 
     protected Token getNewVariableToken(String variable) {
@@ -167,8 +174,125 @@ final public class PreparedVariableResolver extends VariableResolver
         return token;
     }
 
+    /**
+     * Compile the tokens into an evaluator. This evaluates the token stack
+     * once at build time: texts are folded into constants, sitemap
+     * variables are resolved to their level and modules are bound, so
+     * only the dynamic parts remain for every request.
+     */
+    private Evaluator compile() throws PatternException {
+        final Stack stack = new Stack();
+        try {
+            for (Iterator i = tokens.iterator(); i.hasNext();) {
+                Token token = (Token) i.next();
+                switch (token.getType()) {
+                    case TEXT:
+                        push(stack, new ConstantEvaluator(token.getStringValue()));
+                        break;
+                    case CLOSE:
+                        Object expr = stack.pop();
+                        Object lastButOne = stack.pop();
+                        Evaluator result;
+                        if (hasType(expr, COLON)) { // i.e. nothing was specified after the colon
+                            stack.pop(); // Pop the OPEN
+                            result = compileModule((Token) lastButOne, new ConstantEvaluator(""));
+                        } else if (hasType(lastButOne, COLON)) {
+                            Token module = (Token) stack.pop();
+                            stack.pop(); // Pop the OPEN
+                            result = compileModule(module, toEvaluator(expr));
+                        } else if (hasType(lastButOne, VariableExpressionTokenizer.TokenReciever.NEW_EXPRESSION)) {
+                            stack.pop(); // Pop the OPEN
+                            result = new NewExpressionEvaluator(((Token) lastButOne).getStringValue());
+                        } else {
+                            result = compileVariable((Token) expr);
+                        }
+                        push(stack, result);
+                        break;
+                    case OPEN:
+                    case COLON:
+                    case ANCHOR_VAR:
+                    case THREADSAFE_MODULE:
+                    case STATEFUL_MODULE:
+                    case ROOT_SITEMAP_VARIABLE:
+                    default: {
+                        stack.push(token);
+                        break;
+                    }
+                }
+            }
+        } catch (EmptyStackException e) {
+            throw new PatternException("Evaluation error in expression: " + originalExpr);
+        } catch (ClassCastException e) {
+            throw new PatternException("Evaluation error in expression: " + originalExpr);
+        }
+        if (stack.size() != 1) {
+            throw new PatternException("Evaluation error in expression: " + originalExpr);
+        }
+        return toEvaluator(stack.pop());
+    }
+
+    private static boolean hasType(Object item, int type) {
+        return item instanceof Token && ((Token) item).hasType(type);
+    }
+
+    /**
+     * Push an evaluator, merging it with the evaluators on top of the stack.
+     * Merged evaluators are kept as a <code>List</code>, adjacent constants
+     * are folded into one.
+     */
+    private static void push(Stack stack, Evaluator evaluator) {
+        if (!stack.empty() && stack.peek() instanceof List) {
+            List parts = (List) stack.peek();
+            Evaluator last = (Evaluator) parts.get(parts.size() - 1);
+            if (last instanceof ConstantEvaluator && evaluator instanceof ConstantEvaluator) {
+                parts.set(parts.size() - 1,
+                          new ConstantEvaluator(((ConstantEvaluator) last).value + ((ConstantEvaluator) evaluator).value));
+            } else {
+                parts.add(evaluator);
+            }
+        } else {
+            List parts = new ArrayList();
+            parts.add(evaluator);
+            stack.push(parts);
+        }
+    }
+
+    private Evaluator toEvaluator(Object item) {
+        if (item instanceof List) {
+            List parts = (List) item;
+            if (parts.size() == 1) {
+                return (Evaluator) parts.get(0);
+            }
+            return new ConcatEvaluator((Evaluator[]) parts.toArray(new Evaluator[parts.size()]));
+        }
+        return new ConstantEvaluator(((Token) item).getStringValue());
+    }
+
+    private Evaluator compileModule(Token module, Evaluator key) throws PatternException {
+        switch (module.getType()) {
+            case ANCHOR_VAR:
+                return new AnchorEvaluator(module.getStringValue(), key);
+            case THREADSAFE_MODULE:
+                return new ModuleEvaluator(module.getModule(), key);
+            case STATEFUL_MODULE:
+                return new StatefulModuleEvaluator(module.getStringValue(), key);
+            case SITEMAP_VAR:
+                if (key instanceof ConstantEvaluator) {
+                    return compileVariable(getNewVariableToken(((ConstantEvaluator) key).value));
+                }
+                // Prefixed sitemap variable must be parsed at runtime
+                return new SitemapVariableEvaluator(key);
+            default:
+                throw new PatternException("Unknown token type: " + module.getType());
+        }
+    }
+
+    private Evaluator compileVariable(Token variable) {
+        return new VariableEvaluator(variable.getType(), variable.getStringValue());
+    }
+
     public final String resolve(InvokeContext context, Map objectModel) throws PatternException {
-        List mapStack = null; // get the stack only when necessary - lazy inside the loop
+        List mapStack = null;
         int stackSize = 0;
 
         if (needsMapStack) {
@@ -179,193 +303,215 @@ final public class PreparedVariableResolver extends VariableResolver
             stackSize = mapStack.size();
         }
 
-        Stack stack = new Stack();
+        return this.evaluator.evaluate(context, objectModel, mapStack, stackSize);
+    }
 
-        for (Iterator i = tokens.iterator(); i.hasNext();) {
-            Token token = (Token) i.next();
-            Token last;
-            switch (token.getType()){
-                case TEXT:
-                    if (stack.empty()) {
-                        stack.push(new Token(EXPR, token.getStringValue()));
-                    } else {
-                        last = (Token)stack.peek();
-                        if (last.hasType(EXPR)) {
-                            last.merge(token);
-                        } else {
-                            stack.push(new Token(EXPR, token.getStringValue()));
-                        }
-                    }
-                    break;
-                case CLOSE:
-                    Token expr = (Token)stack.pop();
-                    Token lastButOne = (Token)stack.pop();
-                    Token result;
-                    if (expr.hasType(COLON)) { // i.e. nothing was specified after the colon
-                        stack.pop(); // Pop the OPEN
-                        result = processModule(lastButOne, EMPTY_TOKEN, objectModel, context, mapStack, stackSize);
-                    } else if (lastButOne.hasType(COLON)) {
-                        Token module = (Token)stack.pop();
-                        stack.pop(); // Pop the OPEN
-                        result = processModule(module, expr, objectModel, context, mapStack, stackSize);
-                    } else if (lastButOne.hasType(VariableExpressionTokenizer.TokenReciever.NEW_EXPRESSION)) {
-                        stack.pop(); // Pop the OPEN
-                        ExpressionFactory expressionFactory = null;
-                        ObjectModel newObjectModel = null;
-                        try {
-                            expressionFactory = (ExpressionFactory)manager.lookup(ExpressionFactory.ROLE);
-                            newObjectModel = (ObjectModel)manager.lookup(ObjectModel.ROLE);
-                            result = processNewExpression(lastButOne, expressionFactory, newObjectModel);
-                        } catch (ServiceException e) {
-                            throw new PatternException("Cannot obtain necessary components to evaluate new expression '"
-                                    + lastButOne.getStringValue() + "' in expression '" + this.originalExpr + "'", e);
-                        } finally {
-                            if (expressionFactory != null)
-                                manager.release(expressionFactory);
-                            if (newObjectModel != null)
-                                manager.release(newObjectModel);
-                        }
-                    } else {
-                        result = processVariable(expr, mapStack, stackSize);
-                    }
-                    if (stack.empty()) {
-                        stack.push(result);
-                    } else {
-                        last = (Token)stack.peek();
-                        if (last.hasType(EXPR)) {
-                            last.merge(result);
-                        } else {
-                            stack.push(result);
-                        }
-                    }
-                    break;
-                case OPEN:
-                case COLON:
-                case ANCHOR_VAR:
-                case THREADSAFE_MODULE:
-                case STATEFUL_MODULE:
-                case ROOT_SITEMAP_VARIABLE:
-                default: {
-                    stack.push(token);
-                    break;
+    private static String stringValue(Object result) {
+        return result == null ? "" : result.toString();
+    }
+
+    /**
+     * @see org.apache.avalon.framework.activity.Disposable#dispose()
+     */
+    public final void dispose() {
+        if (this.manager != null) {
+            for (Iterator i = tokens.iterator(); i.hasNext();) {
+                Token token = (Token)i.next();
+                if (token.hasType(THREADSAFE_MODULE)) {
+                    InputModule im = token.getModule();
+                    this.manager.release(im);
                 }
             }
+            this.tokens.clear();
+            this.evaluator = null;
+            this.manager = null;
         }
-        if (stack.size() !=1) {
-            throw new PatternException("Evaluation error in expression: " + originalExpr);
+    }
+
+    /**
+     * A compiled part of the expression.
+     */
+    private static abstract class Evaluator {
+        abstract String evaluate(InvokeContext context, Map objectModel, List mapStack, int stackSize)
+        throws PatternException;
+    }
+
+    private static final class ConstantEvaluator extends Evaluator {
+        final String value;
+
+        ConstantEvaluator(String value) {
+            this.value = value;
+        }
+
+        String evaluate(InvokeContext context, Map objectModel, List mapStack, int stackSize) {
+            return this.value;
+        }
+    }
+
+    private static final class ConcatEvaluator extends Evaluator {
+        private final Evaluator[] parts;
+
+        ConcatEvaluator(Evaluator[] parts) {
+            this.parts = parts;
+        }
+
+        String evaluate(InvokeContext context, Map objectModel, List mapStack, int stackSize)
+        throws PatternException {
+            StringBuffer buffer = new StringBuffer();
+            for (int i = 0; i < this.parts.length; i++) {
+                buffer.append(this.parts[i].evaluate(context, objectModel, mapStack, stackSize));
+            }
+            return buffer.toString();
+        }
+    }
+
+    private final class VariableEvaluator extends Evaluator {
+        /** The level, relative to the top of the map stack, or the root sitemap level */
+        private final int level;
+        private final String name;
+
+        VariableEvaluator(int level, String name) {
+            this.level = level;
+            this.name = name;
+        }
+
+        String evaluate(InvokeContext context, Map objectModel, List mapStack, int stackSize)
+        throws PatternException {
+            if (this.level == ROOT_SITEMAP_VARIABLE) {
+                return stringValue(((Map) mapStack.get(0)).get(this.name));
+            }
+            // relative sitemap variable
+            if (this.level > stackSize) {
+                throw new PatternException("Error while evaluating '" + originalExpr +
+                    "' : not so many levels");
+            }
+            return stringValue(((Map) mapStack.get(stackSize - this.level)).get(this.name));
+        }
+    }
+
+    private final class SitemapVariableEvaluator extends Evaluator {
+        private final Evaluator key;
+
+        SitemapVariableEvaluator(Evaluator key) {
+            this.key = key;
+        }
+
+        String evaluate(InvokeContext context, Map objectModel, List mapStack, int stackSize)
+        throws PatternException {
+            Token token = getNewVariableToken(this.key.evaluate(context, objectModel, mapStack, stackSize));
+            return compileVariable(token).evaluate(context, objectModel, mapStack, stackSize);
         }
-        return ((Token)stack.pop()).getStringValue();
     }
 
-    private Token processModule(Token module, Token expr, Map objectModel, InvokeContext context, List mapStack, int stackSize) throws PatternException {
-        int type = module.getType();
+    private final class AnchorEvaluator extends Evaluator {
+        private final String anchor;
+        private final Evaluator key;
 
-        if (type == ANCHOR_VAR) {
-            Map levelResult = context.getMapByAnchor(module.getStringValue());
+        AnchorEvaluator(String anchor, Evaluator key) {
+            this.anchor = anchor;
+            this.key = key;
+        }
+
+        String evaluate(InvokeContext context, Map objectModel, List mapStack, int stackSize)
+        throws PatternException {
+            Map levelResult = context.getMapByAnchor(this.anchor);
 
             if (levelResult == null) {
-              throw new PatternException("Error while evaluating '" + this.originalExpr +
-                "' : no anchor '" + String.valueOf(module.getStringValue()) + "' found in context");
+              throw new PatternException("Error while evaluating '" + originalExpr +
+                "' : no anchor '" + String.valueOf(this.anchor) + "' found in context");
             }
 
-            Object result = levelResult.get(expr.getStringValue());
-            return new Token(EXPR, result==null ? "" : result.toString());
-        } else if (type == THREADSAFE_MODULE) {
-            try {
-                InputModule im = module.getModule();
-                Object result = im.getAttribute(expr.getStringValue(), null, objectModel);
-                return new Token(EXPR, result==null ? "" : result.toString());
+            return stringValue(levelResult.get(this.key.evaluate(context, objectModel, mapStack, stackSize)));
+        }
+    }
 
+    private final class ModuleEvaluator extends Evaluator {
+        private final InputModule module;
+        private final Evaluator key;
+
+        ModuleEvaluator(InputModule module, Evaluator key) {
+            this.module = module;
+            this.key = key;
+        }
+
+        String evaluate(InvokeContext context, Map objectModel, List mapStack, int stackSize)
+        throws PatternException {
+            String name = this.key.evaluate(context, objectModel, mapStack, stackSize);
+            try {
+                return stringValue(this.module.getAttribute(name, null, objectModel));
             } catch(ConfigurationException confEx) {
-                throw new PatternException("Cannot get variable '" + expr.getStringValue() +
-                    "' in expression '" + this.originalExpr + "'", confEx);
+                throw new PatternException("Cannot get variable '" + name +
+                    "' in expression '" + originalExpr + "'", confEx);
             }
+        }
+    }
+
+    private final class StatefulModuleEvaluator extends Evaluator {
+        private final String moduleName;
+        private final Evaluator key;
+
+        StatefulModuleEvaluator(String moduleName, Evaluator key) {
+            this.moduleName = moduleName;
+            this.key = key;
+        }
 
-        } else if (type == STATEFUL_MODULE) {
+        String evaluate(InvokeContext context, Map objectModel, List mapStack, int stackSize)
+        throws PatternException {
+            String name = this.key.evaluate(context, objectModel, mapStack, stackSize);
             InputModule im = null;
-            String moduleName = module.getStringValue();
             try {
-                im = (InputModule) this.manager.lookup(InputModule.ROLE + '/' + moduleName);
-
-                Object result = im.getAttribute(expr.getStringValue(), null, objectModel);
-                return new Token(EXPR, result==null ? "" : result.toString());
+                im = (InputModule) manager.lookup(InputModule.ROLE + '/' + this.moduleName);
+                return stringValue(im.getAttribute(name, null, objectModel));
 
             } catch(ServiceException e) {
-                throw new PatternException("Cannot get module '" + moduleName +
-                                           "' in expression '" + this.originalExpr + "'", e);
+                throw new PatternException("Cannot get module '" + this.moduleName +
+                                           "' in expression '" + originalExpr + "'", e);
 
             } catch(ConfigurationException confEx) {
-                throw new PatternException("Cannot get variable '" + expr.getStringValue() +
-                    "' in expression '" + this.originalExpr + "'", confEx);
+                throw new PatternException("Cannot get variable '" + name +
+                    "' in expression '" + originalExpr + "'", confEx);
 
             } finally {
-                this.manager.release(im);
-            }
-        } else if (type == SITEMAP_VAR) {
-            // Prefixed sitemap variable must be parsed at runtime
-            String variable = expr.getStringValue();
-            Token token;
-            if (variable.startsWith("/")) {
-                token = new Token(ROOT_SITEMAP_VARIABLE, variable.substring(1));
-            } else {
-                // Find level
-                int level = 1; // Start at 1 since it will be substracted from list.size()
-                int pos = 0;
-                while (variable.startsWith("../", pos)) {
-                    level++;
-                    pos += "../".length();
-                }
-                token = new Token(level, variable.substring(pos));
+                manager.release(im);
             }
-            return processVariable(token, mapStack, stackSize);
-        } else {
-            throw new PatternException("Unknown token type: " + expr.getType());
         }
     }
 
-    private Token processVariable(Token expr, List mapStack, int stackSize) throws PatternException {
-        int type = expr.getType();
-        String value = expr.getStringValue();
-        if (type == ROOT_SITEMAP_VARIABLE) {
-            Object result = ((Map)mapStack.get(0)).get(value);
-            return new Token(EXPR, result==null ? "" : result.toString());
-        }
-        // relative sitemap variable
-        if (type > stackSize) {
-            throw new PatternException("Error while evaluating '" + this.originalExpr +
-                "' : not so many levels");
-        }
+    private final class NewExpressionEvaluator extends Evaluator {
+        private final String source;
 
-        Object result = ((Map)mapStack.get(stackSize - type)).get(value);
-        return new Token(EXPR, result==null ? "" : result.toString());
-    }
-    
-    private Token processNewExpression(Token expr, ExpressionFactory expressionFactory, ObjectModel newObjectModel) throws PatternException {
-        Object result;
-        try {
-            Expression newExpression = expressionFactory.getExpression(expr.getStringValue());
-            result = newExpression.evaluate(newObjectModel);
-        } catch (ExpressionException e) {
-            throw new PatternException("Cannot evaluate new expression '" + expr.getStringValue() + "' in expression "
-                                       + "'" + this.originalExpr + "'", e);
+        /** The expression, compiled on first use */
+        private volatile Expression expression;
+
+        NewExpressionEvaluator(String source) {
+            this.source = source;
         }
-        return new Token(EXPR, result == null ? "" : result.toString());
-    }
 
-    /**
-     * @see org.apache.avalon.framework.activity.Disposable#dispose()
-     */
-    public final void dispose() {
-        if (this.manager != null) {
-            for (Iterator i = tokens.iterator(); i.hasNext();) {
-                Token token = (Token)i.next();
-                if (token.hasType(THREADSAFE_MODULE)) {
-                    InputModule im = token.getModule();
-                    this.manager.release(im);
+        String evaluate(InvokeContext context, Map objectModel, List mapStack, int stackSize)
+        throws PatternException {
+            ExpressionFactory expressionFactory = null;
+            ObjectModel newObjectModel = null;
+            try {
+                Expression newExpression = this.expression;
+                if (newExpression == null) {
+                    expressionFactory = (ExpressionFactory) manager.lookup(ExpressionFactory.ROLE);
+                    newExpression = expressionFactory.getExpression(this.source);
+                    this.expression = newExpression;
                 }
+                newObjectModel = (ObjectModel) manager.lookup(ObjectModel.ROLE);
+                return stringValue(newExpression.evaluate(newObjectModel));
+            } catch (ServiceException e) {
+                throw new PatternException("Cannot obtain necessary components to evaluate new expression '"
+                        + this.source + "' in expression '" + originalExpr + "'", e);
+            } catch (ExpressionException e) {
+                throw new PatternException("Cannot evaluate new expression '" + this.source + "' in expression "
+                                           + "'" + originalExpr + "'", e);
+            } finally {
+                if (expressionFactory != null)
+                    manager.release(expressionFactory);
+                if (newObjectModel != null)
+                    manager.release(newObjectModel);
             }
-            this.tokens.clear();
-            this.manager = null;
         }
     }
 
@@ -375,11 +521,7 @@ final public class PreparedVariableResolver extends VariableResolver
         private int type;
 
         public Token(int type) {
-            if (type==EXPR) {
-                this.value="";
-            } else {
-                this.value = null;
-            }
+            this.value = null;
             this.type = type;
         }
 
@@ -420,10 +562,6 @@ final public class PreparedVariableResolver extends VariableResolver
             return false;
         }
 
-        public void merge(Token newToken) {
-            this.value = this.value + newToken.getStringValue();
-        }
-
         public InputModule getModule() {
             if (value instanceof InputModule) {
                 return (InputModule) value;
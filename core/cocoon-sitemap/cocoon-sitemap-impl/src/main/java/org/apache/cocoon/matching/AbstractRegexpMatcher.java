@@ -98,6 +98,40 @@ public abstract class AbstractRegexpMatcher extends AbstractPreparableMatcher im
         return null;
     }
 
+    /**
+     * Get the literal text following the '^' anchor of the expression. Expressions
+     * without anchor or with alternatives have no prefix.
+     *
+     * @see IndexableMatcher#getPrefix(String)
+     */
+    public String getPrefix(String pattern) {
+        if (pattern == null || !pattern.startsWith("^") || pattern.indexOf('|') != -1) {
+            return "";
+        }
+        final StringBuffer prefix = new StringBuffer();
+        int i = 1;
+        while (i < pattern.length()) {
+            char c = pattern.charAt(i);
+            int next = i + 1;
+            if (c == '\\') {
+                // escaped punctuation is literal, other escapes are character classes
+                if (next == pattern.length() || Character.isLetterOrDigit(pattern.charAt(next))) {
+                    break;
+                }
+                c = pattern.charAt(next++);
+            } else if (".[]()*+?{}^$".indexOf(c) != -1) {
+                break;
+            }
+            if (next < pattern.length() && "?*{".indexOf(pattern.charAt(next)) != -1) {
+                // the character is optional
+                break;
+            }
+            prefix.append(c);
+            i = next;
+        }
+        return prefix.toString();
+    }
+
     /**
      * Get the string to test against the regular expression. To be defined
      * by concrete subclasses.
@@ -53,6 +53,24 @@ public abstract class AbstractWildcardMatcher extends AbstractLogEnabled
         return WildcardMatcherHelper.match(pattern, match);
     }
 
+    /**
+     * Get the literal text in front of the first wildcard or escape character.
+     *
+     * @see IndexableMatcher#getPrefix(String)
+     */
+    public String getPrefix(String pattern) {
+        if (pattern == null) {
+            return "";
+        }
+        for (int i = 0; i < pattern.length(); i++) {
+            final char c = pattern.charAt(i);
+            if (c == WildcardMatcherHelper.STAR || c == WildcardMatcherHelper.ESC) {
+                return pattern.substring(0, i);
+            }
+        }
+        return pattern;
+    }
+
     /**
      * Get the string to test against the wildcard expression. To be defined
      * by concrete subclasses.
@@ -0,0 +1,56 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.flow;
+
+import junit.framework.TestCase;
+
+/**
+ * Testcase for the statistics of {@link ContinuationsManagerImpl}.
+ *
+ * @version $Id$
+ */
+public class ContinuationsManagerImplTestCase extends TestCase {
+
+    private ContinuationsManagerImpl manager;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.manager = new ContinuationsManagerImpl();
+        this.manager.continuationsHolder = this.manager.new WebContinuationsHolder();
+    }
+
+    public void testNoStatistics() {
+        assertEquals(0, this.manager.getLiveContinuations(null));
+        assertEquals(0, this.manager.getExpiredContinuations(null));
+        assertEquals(0, this.manager.getLiveContinuations("test"));
+        assertEquals(0, this.manager.getInterpreters().length);
+    }
+
+    public void testStatisticsWithoutInterpreter() {
+        this.manager.generateContinuation(new Object(), null, 1000, null, null);
+        this.manager.generateContinuation(new Object(), null, 1000, "test", null);
+        assertEquals(1, this.manager.getLiveContinuations(null));
+        assertEquals(0, this.manager.getExpiredContinuations(null));
+        assertEquals(1, this.manager.getLiveContinuations("test"));
+
+        final String[] interpreters = this.manager.getInterpreters();
+        assertEquals(2, interpreters.length);
+        assertEquals("", interpreters[0]);
+        assertEquals(1, this.manager.getLiveContinuations(interpreters[0]));
+        assertEquals(2, this.manager.getSummary().length);
+    }
+}
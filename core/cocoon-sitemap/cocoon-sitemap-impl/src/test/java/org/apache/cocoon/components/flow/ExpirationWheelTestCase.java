@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.flow;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Testcase for ExpirationWheel.
+ *
+ * @version $Id$
+ */
+public class ExpirationWheelTestCase extends TestCase {
+
+    private static final long TICK = 1000;
+
+    private long start;
+
+    private ExpirationWheel wheel;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.wheel = new ExpirationWheel(TICK, 8);
+        this.start = System.currentTimeMillis();
+    }
+
+    private WebContinuation createContinuation(String id, int timeToLive) {
+        final WebContinuation wk = new WebContinuation(id, new Object(), null, timeToLive, "test", null);
+        wk.lastAccessTime = this.start;
+        return wk;
+    }
+
+    public void testExpire() {
+        final WebContinuation short1 = createContinuation("short1", 500);
+        final WebContinuation short2 = createContinuation("short2", 1500);
+        final WebContinuation long1 = createContinuation("long1", 5000);
+        this.wheel.schedule(short1);
+        this.wheel.schedule(short2);
+        this.wheel.schedule(long1);
+        assertEquals(3, this.wheel.size());
+
+        assertEquals(0, this.wheel.expire(this.start).size());
+        List expired = this.wheel.expire(this.start + 2 * TICK);
+        assertEquals(2, expired.size());
+        assertTrue(expired.contains(short1));
+        assertTrue(expired.contains(short2));
+        assertEquals(1, this.wheel.size());
+
+        expired = this.wheel.expire(this.start + 6 * TICK);
+        assertEquals(1, expired.size());
+        assertSame(long1, expired.get(0));
+        assertEquals(0, this.wheel.size());
+    }
+
+    public void testLaterRound() {
+        // expires after the wheel has turned around twice
+        final WebContinuation wk = createContinuation("wk", (int) (20 * TICK));
+        this.wheel.schedule(wk);
+        for (int i = 1; i <= 20; i++) {
+            assertEquals(0, this.wheel.expire(this.start + i * TICK).size());
+        }
+        assertEquals(1, this.wheel.expire(this.start + 21 * TICK).size());
+    }
+
+    public void testTouch() {
+        final WebContinuation wk = createContinuation("wk", (int) (2 * TICK));
+        this.wheel.schedule(wk);
+        wk.lastAccessTime = this.start + 3 * TICK;
+        assertEquals(0, this.wheel.expire(this.start + 4 * TICK).size());
+        assertEquals(1, this.wheel.size());
+        assertEquals(1, this.wheel.expire(this.start + 6 * TICK).size());
+    }
+
+    public void testTouchAddsContinuation() {
+        final WebContinuation wk = createContinuation("wk", (int) TICK);
+        this.wheel.touch(wk);
+        assertEquals(1, this.wheel.size());
+        this.wheel.touch(wk);
+        assertEquals(1, this.wheel.size());
+    }
+
+    public void testCancel() {
+        final WebContinuation wk = createContinuation("wk", 500);
+        this.wheel.schedule(wk);
+        this.wheel.cancel(wk);
+        assertEquals(0, this.wheel.size());
+        assertEquals(0, this.wheel.expire(this.start + 2 * TICK).size());
+    }
+
+    public void testMissedTicks() {
+        final WebContinuation wk = createContinuation("wk", 500);
+        this.wheel.schedule(wk);
+        // more ticks than slots passed since the last check
+        assertEquals(1, this.wheel.expire(this.start + 100 * TICK).size());
+    }
+}
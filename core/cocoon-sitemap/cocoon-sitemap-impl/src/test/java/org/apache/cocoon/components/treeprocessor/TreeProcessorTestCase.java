@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.treeprocessor;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.cocoon.environment.Environment;
+
+/**
+ * Test case for the rebuild of the concrete processor of a {@link TreeProcessor}.
+ *
+ * @version $Id$
+ */
+public class TreeProcessorTestCase extends TestCase {
+
+    /**
+     * A processor whose build creates an empty concrete processor, waiting
+     * for the given latch if there is one.
+     */
+    private static class TestTreeProcessor extends TreeProcessor {
+        volatile CountDownLatch building;
+        volatile CountDownLatch release;
+        int builds;
+
+        TestTreeProcessor() {
+            // a sub-sitemap doesn't change the context of the environment
+            this.parent = new TreeProcessor();
+        }
+
+        void buildConcreteProcessor(Environment env) throws Exception {
+            this.builds++;
+            if (this.building != null) {
+                this.building.countDown();
+                this.release.await();
+            }
+            this.concreteProcessor = new ConcreteTreeProcessor(this, null);
+        }
+    }
+
+    public void testFirstBuild() throws Exception {
+        final TestTreeProcessor processor = new TestTreeProcessor();
+        final ConcreteTreeProcessor first = processor.setupConcreteProcessor(null);
+        assertNotNull(first);
+        assertEquals(1, processor.builds);
+    }
+
+    public void testRebuildServesOldProcessor() throws Exception {
+        final TestTreeProcessor processor = new TestTreeProcessor();
+        final ConcreteTreeProcessor old = processor.setupConcreteProcessor(null);
+
+        // a change is detected, the rebuild blocks until released
+        processor.handleNotification();
+        processor.building = new CountDownLatch(1);
+        processor.release = new CountDownLatch(1);
+        final ConcreteTreeProcessor[] rebuilt = new ConcreteTreeProcessor[1];
+        final Thread rebuilding = new Thread() {
+            public void run() {
+                try {
+                    rebuilt[0] = processor.setupConcreteProcessor(null);
+                } catch (Exception ignored) {
+                    // rebuilt[0] stays null
+                }
+            }
+        };
+        rebuilding.start();
+        assertTrue(processor.building.await(1000, TimeUnit.MILLISECONDS));
+
+        // another request doesn't wait for the rebuild
+        assertSame("The old processor is served", old, processor.setupConcreteProcessor(null));
+        assertEquals(2, processor.builds);
+
+        processor.release.countDown();
+        rebuilding.join(1000);
+        assertNotNull(rebuilt[0]);
+        assertNotSame(old, rebuilt[0]);
+        assertSame(rebuilt[0], processor.concreteProcessor);
+    }
+}
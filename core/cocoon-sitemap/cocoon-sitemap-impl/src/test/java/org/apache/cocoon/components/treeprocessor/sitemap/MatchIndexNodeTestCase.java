@@ -0,0 +1,310 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.treeprocessor.sitemap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.avalon.framework.parameters.Parameters;
+
+import org.apache.cocoon.components.treeprocessor.InvokeContext;
+import org.apache.cocoon.components.treeprocessor.ProcessingNode;
+import org.apache.cocoon.environment.Environment;
+import org.apache.cocoon.environment.mock.MockEnvironment;
+import org.apache.cocoon.matching.AbstractRegexpMatcher;
+import org.apache.cocoon.matching.AbstractWildcardMatcher;
+import org.apache.cocoon.util.WildcardMatcherHelper;
+import org.apache.cocoon.util.location.Location;
+
+/**
+ * Testcase for MatchIndexNode: compares the first matching route of a
+ * synthetic sitemap with 1000 wildcard routes when all matchers are
+ * evaluated in order and when only the candidates of the index are, and
+ * invokes the match nodes of a pipeline indexed by the PipelineNodeBuilder.
+ *
+ * @version $Id$
+ */
+public class MatchIndexNodeTestCase extends TestCase {
+
+    private static final int ROUTES = 1000;
+
+    private static final AbstractWildcardMatcher WILDCARD = new AbstractWildcardMatcher() {
+        protected String getMatchString(Map objectModel, Parameters parameters) {
+            return null;
+        }
+    };
+
+    private static final AbstractRegexpMatcher REGEXP = new AbstractRegexpMatcher() {
+        protected String getMatchString(Map objectModel, Parameters parameters) {
+            return null;
+        }
+    };
+
+    public void testWildcardPrefix() {
+        assertEquals("", WILDCARD.getPrefix("**"));
+        assertEquals("docs/", WILDCARD.getPrefix("docs/*.html"));
+        assertEquals("docs/", WILDCARD.getPrefix("docs/\\*.html"));
+        assertEquals("index.html", WILDCARD.getPrefix("index.html"));
+    }
+
+    public void testRegexpPrefix() {
+        assertEquals("", REGEXP.getPrefix("docs/.*"));
+        assertEquals("docs/", REGEXP.getPrefix("^docs/(.*)\\.html$"));
+        assertEquals("doc", REGEXP.getPrefix("^docs?/"));
+        assertEquals("docs.", REGEXP.getPrefix("^docs\\.\\w+"));
+        assertEquals("doccc", REGEXP.getPrefix("^doccc+"));
+        assertEquals("", REGEXP.getPrefix("^docs|^api"));
+        assertEquals("", REGEXP.getPrefix("^[a-z]+"));
+    }
+
+    public void testFirstMatchWins() {
+        final String[] patterns = createRoutes();
+        final MatchIndexNode index = createIndex(patterns);
+        final String[] uris = createURIs(patterns, 5000);
+        int matched = 0;
+        for (int i = 0; i < uris.length; i++) {
+            final int expected = matchLinear(patterns, uris[i]);
+            assertEquals(uris[i], expected, matchIndexed(index, patterns, uris[i]));
+            if (expected >= 0) {
+                matched++;
+            }
+        }
+        assertTrue("Most URIs should match", matched > uris.length / 2);
+        assertTrue("Some URIs should not match", matched < uris.length);
+    }
+
+    public void testIndexedPipeline() throws Exception {
+        final List invoked = new ArrayList();
+        final List children = new ArrayList();
+        children.add(new PatternNode(0, "wildcard", "docs/*.html", true, invoked));
+        children.add(new PatternNode(1, "wildcard", "docs/**", true, invoked));
+        children.add(new PatternNode(2, "wildcard", "api/**", true, invoked));
+        children.add(new PatternNode(3, "wildcard", "dynamic/**", false, invoked));
+        children.add(new PatternNode(4, "regexp", "^images/.*\\.png$", true, invoked));
+        children.add(new PatternNode(5, "regexp", "^images/.*", true, invoked));
+        children.add(new PatternNode(6, "wildcard", "**.css", true, invoked));
+
+        final List nodes = new PipelineNodeBuilder().indexMatchNodes(children);
+        assertEquals(4, nodes.size());
+        assertEquals(3, ((MatchIndexNode) nodes.get(0)).getNodeCount());
+        assertSame(children.get(3), nodes.get(1));
+        assertEquals(2, ((MatchIndexNode) nodes.get(2)).getNodeCount());
+        assertSame("A single node is not indexed", children.get(6), nodes.get(3));
+
+        assertInvoked(nodes, invoked, "docs/a.html", 0, new int[] { 0 });
+        assertInvoked(nodes, invoked, "docs/a/b.xml", 1, new int[] { 0, 1 });
+        assertInvoked(nodes, invoked, "api/v1", 2, new int[] { 2 });
+        assertInvoked(nodes, invoked, "images/a.png", 4, new int[] { 3, 4 });
+        assertInvoked(nodes, invoked, "images/a.gif", 5, new int[] { 3, 4, 5 });
+        assertInvoked(nodes, invoked, "style.css", 6, new int[] { 3, 6 });
+        assertInvoked(nodes, invoked, "missing", -1, new int[] { 3, 6 });
+    }
+
+    /**
+     * Invoke the nodes of a pipeline for the URI and check which node
+     * matched and which nodes have been invoked on the way.
+     */
+    private void assertInvoked(List nodes, List invoked, String uri, int expected, int[] expectedInvoked)
+    throws Exception {
+        final Map objectModel = new HashMap();
+        objectModel.put("uri", uri);
+        final MockEnvironment env = new MockEnvironment();
+        env.setObjectModel(objectModel);
+
+        int matched = -1;
+        for (int i = 0; i < nodes.size() && matched < 0; i++) {
+            if (((ProcessingNode) nodes.get(i)).invoke(env, new InvokeContext())) {
+                matched = ((Integer) objectModel.get("matched")).intValue();
+            }
+        }
+        assertEquals(uri, expected, matched);
+
+        final int[] actual = new int[invoked.size()];
+        for (int i = 0; i < actual.length; i++) {
+            actual[i] = ((Integer) invoked.get(i)).intValue();
+        }
+        assertTrue(uri + ": " + invoked, Arrays.equals(expectedInvoked, actual));
+        invoked.clear();
+    }
+
+    public void testSpeed() {
+        final String[] patterns = createRoutes();
+        final MatchIndexNode index = createIndex(patterns);
+        final String[] uris = createURIs(patterns, 2000);
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < uris.length; i++) {
+            matchLinear(patterns, uris[i]);
+        }
+        long stop = System.currentTimeMillis() + 1;
+        System.out.println("Linear matching over " + ROUTES + " routes: "
+                           + (1000L * uris.length / (stop - start)) + " requests per second");
+
+        start = System.currentTimeMillis();
+        for (int i = 0; i < uris.length; i++) {
+            matchIndexed(index, patterns, uris[i]);
+        }
+        stop = System.currentTimeMillis() + 1;
+        System.out.println("Indexed matching over " + ROUTES + " routes: "
+                           + (1000L * uris.length / (stop - start)) + " requests per second");
+    }
+
+    /**
+     * @return the patterns of a synthetic sitemap, including overlapping
+     *         and catch-all routes
+     */
+    private String[] createRoutes() {
+        final List patterns = new ArrayList();
+        for (int i = 0; patterns.size() < ROUTES - 3; i++) {
+            switch (i % 5) {
+                case 0: patterns.add("section" + i + "/*.html"); break;
+                case 1: patterns.add("section" + (i - 1) + "/**/*.xml"); break;
+                case 2: patterns.add("api/v" + i + "/**"); break;
+                case 3: patterns.add("static/" + i + "/*"); break;
+                default: patterns.add("page" + i + ".html"); break;
+            }
+        }
+        patterns.add(ROUTES / 2, "*/index.html");
+        patterns.add("**.pdf");
+        patterns.add("**/*.css");
+        return (String[]) patterns.toArray(new String[patterns.size()]);
+    }
+
+    private String[] createURIs(String[] patterns, int count) {
+        final Random random = new Random(42);
+        final String[] uris = new String[count];
+        for (int i = 0; i < count; i++) {
+            final String pattern = patterns[random.nextInt(patterns.length)];
+            String uri = pattern.replaceAll("\\*\\*", "a/b").replaceAll("\\*", "x" + i);
+            if (i % 7 == 0) {
+                uri = "missing/" + uri;
+            }
+            uris[i] = uri;
+        }
+        return uris;
+    }
+
+    private MatchIndexNode createIndex(String[] patterns) {
+        final IndexableMatchNode[] nodes = new IndexableMatchNode[patterns.length];
+        final String[] prefixes = new String[patterns.length];
+        for (int i = 0; i < patterns.length; i++) {
+            nodes[i] = new DummyNode();
+            prefixes[i] = WILDCARD.getPrefix(patterns[i]);
+        }
+        return new MatchIndexNode(nodes, prefixes);
+    }
+
+    private int matchLinear(String[] patterns, String uri) {
+        for (int i = 0; i < patterns.length; i++) {
+            if (WildcardMatcherHelper.match(patterns[i], uri) != null) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int matchIndexed(MatchIndexNode index, String[] patterns, String uri) {
+        final BitSet candidates = index.getCandidates(uri);
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            if (WildcardMatcherHelper.match(patterns[i], uri) != null) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A match node of a sitemap matching the "uri" of the object model and
+     * recording its invocations.
+     */
+    private static final class PatternNode implements IndexableMatchNode {
+        final int index;
+        final String type;
+        final String pattern;
+        final boolean indexable;
+        final List invoked;
+
+        PatternNode(int index, String type, String pattern, boolean indexable, List invoked) {
+            this.index = index;
+            this.type = type;
+            this.pattern = pattern;
+            this.indexable = indexable;
+            this.invoked = invoked;
+        }
+
+        public String getType() {
+            return this.type;
+        }
+
+        public String getIndexPrefix() {
+            if (!this.indexable) {
+                return null;
+            }
+            return "regexp".equals(this.type) ? REGEXP.getPrefix(this.pattern)
+                                              : WILDCARD.getPrefix(this.pattern);
+        }
+
+        public String getIndexString(Map objectModel) {
+            return (String) objectModel.get("uri");
+        }
+
+        public boolean invoke(Environment env, InvokeContext context) {
+            this.invoked.add(new Integer(this.index));
+            final Map objectModel = env.getObjectModel();
+            final String uri = getIndexString(objectModel);
+            final boolean matches = "regexp".equals(this.type) ? uri.matches(this.pattern)
+                                                               : WildcardMatcherHelper.match(this.pattern, uri) != null;
+            if (matches) {
+                objectModel.put("matched", new Integer(this.index));
+            }
+            return matches;
+        }
+
+        public Location getLocation() {
+            return Location.UNKNOWN;
+        }
+    }
+
+    private static final class DummyNode implements IndexableMatchNode {
+        public String getType() {
+            return "wildcard";
+        }
+
+        public String getIndexPrefix() {
+            return null;
+        }
+
+        public String getIndexString(Map objectModel) {
+            return null;
+        }
+
+        public boolean invoke(Environment env, InvokeContext context) {
+            return false;
+        }
+
+        public Location getLocation() {
+            return Location.UNKNOWN;
+        }
+    }
+}
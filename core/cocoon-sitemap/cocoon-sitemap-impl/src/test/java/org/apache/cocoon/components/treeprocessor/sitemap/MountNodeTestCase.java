@@ -0,0 +1,183 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.treeprocessor.sitemap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.cocoon.ProcessingException;
+import org.apache.cocoon.components.treeprocessor.TreeProcessor;
+
+/**
+ * Test case for the creation of the processors of a {@link MountNode}.
+ *
+ * @version $Id$
+ */
+public class MountNodeTestCase extends TestCase {
+
+    /**
+     * A mounted processor which records its disposal.
+     */
+    private static class ChildProcessor extends TreeProcessor {
+        volatile boolean disposed;
+
+        public void dispose() {
+            this.disposed = true;
+        }
+    }
+
+    /**
+     * A parent processor counting the child processors it creates. It fails
+     * as often as told and waits for the given latch before creating one.
+     */
+    private static class ParentProcessor extends TreeProcessor {
+        final AtomicInteger created = new AtomicInteger();
+        final List children = Collections.synchronizedList(new ArrayList());
+        volatile int failures;
+        volatile CountDownLatch building;
+        volatile CountDownLatch release;
+
+        public TreeProcessor createChildProcessor(String src, boolean checkReload, String prefix)
+        throws Exception {
+            this.created.incrementAndGet();
+            if (this.building != null) {
+                this.building.countDown();
+            }
+            if (this.release != null) {
+                this.release.await();
+            }
+            if (this.failures > 0) {
+                this.failures--;
+                throw new ProcessingException("Failed to build " + src);
+            }
+            final ChildProcessor child = new ChildProcessor();
+            this.children.add(child);
+            return child;
+        }
+    }
+
+    private static MountNode createNode(ParentProcessor parent) {
+        return new MountNode(null, null, parent, false, false);
+    }
+
+    public void testConcurrentFirstHits() throws Exception {
+        final ParentProcessor parent = new ParentProcessor();
+        parent.release = new CountDownLatch(1);
+        final MountNode node = createNode(parent);
+
+        final TreeProcessor[] processors = new TreeProcessor[8];
+        final Thread[] threads = new Thread[processors.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        processors[index] = node.getProcessor("sub/sitemap.xmap", "sub/");
+                    } catch (Exception e) {
+                        // processors[index] stays null
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        // let all threads ask for the processor while it is being created
+        Thread.sleep(100);
+        parent.release.countDown();
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+        }
+
+        assertEquals("One processor is created", 1, parent.created.get());
+        for (int i = 0; i < processors.length; i++) {
+            assertNotNull(processors[i]);
+            assertSame(processors[0], processors[i]);
+        }
+        assertSame(processors[0], node.getProcessor("sub/sitemap.xmap", "sub/"));
+        assertEquals(1, parent.created.get());
+    }
+
+    public void testFailedBuildIsRetried() throws Exception {
+        final ParentProcessor parent = new ParentProcessor();
+        parent.failures = 1;
+        final MountNode node = createNode(parent);
+        try {
+            node.getProcessor("sub/sitemap.xmap", "sub/");
+            fail("The first build fails");
+        } catch (ProcessingException e) {
+            // expected
+        }
+        final TreeProcessor processor = node.getProcessor("sub/sitemap.xmap", "sub/");
+        assertNotNull(processor);
+        assertEquals("The next request builds again", 2, parent.created.get());
+        assertSame(processor, node.getProcessor("sub/sitemap.xmap", "sub/"));
+    }
+
+    public void testDisposeWaitsForBuild() throws Exception {
+        final ParentProcessor parent = new ParentProcessor();
+        parent.building = new CountDownLatch(1);
+        parent.release = new CountDownLatch(1);
+        final MountNode node = createNode(parent);
+
+        final Thread request = new Thread() {
+            public void run() {
+                try {
+                    node.getProcessor("sub/sitemap.xmap", "sub/");
+                } catch (Exception ignored) {
+                    // only the disposal is checked
+                }
+            }
+        };
+        request.start();
+        assertTrue(parent.building.await(1000, TimeUnit.MILLISECONDS));
+
+        final Thread disposer = new Thread() {
+            public void run() {
+                node.dispose();
+            }
+        };
+        disposer.start();
+        disposer.join(100);
+        assertTrue("dispose() waits for the processor being built", disposer.isAlive());
+
+        parent.release.countDown();
+        disposer.join(1000);
+        request.join(1000);
+        assertFalse(disposer.isAlive());
+        assertEquals(1, parent.children.size());
+        assertTrue("Disposed once built", ((ChildProcessor) parent.children.get(0)).disposed);
+    }
+
+    public void testBuildAfterDispose() throws Exception {
+        final ParentProcessor parent = new ParentProcessor();
+        final MountNode node = createNode(parent);
+        node.dispose();
+        try {
+            node.getProcessor("sub/sitemap.xmap", "sub/");
+            fail("A disposed node does not serve new processors");
+        } catch (ProcessingException e) {
+            // expected
+        }
+        assertEquals(1, parent.children.size());
+        assertTrue(((ChildProcessor) parent.children.get(0)).disposed);
+    }
+}
@@ -0,0 +1,617 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.store.impl;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.cocoon.util.ObservableStore;
+import org.apache.cocoon.util.StoreListener;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.excalibur.store.Store;
+import org.apache.excalibur.store.StoreJanitor;
+
+/**
+ * A memory store with the same contract as the {@link MRUMemoryStore}, but
+ * which can be used by many threads at the same time.
+ *
+ * <p>The keys are spread over a number of segments. Each segment is an
+ * access ordered <code>LinkedHashMap</code> guarded by its own lock, so
+ * moving an entry to the top of the LRU list is O(1) and requests working
+ * on different keys do not block each other. The number of objects held is
+ * counted for the whole store: when it exceeds <code>maxobjects</code>, the
+ * least recently used objects of all segments are compared and the oldest
+ * one is thrown out (or swapped to the persistent store if one is
+ * configured), however the keys are spread over the segments.
+ * {@link #free()} removes the same object, so the store janitor can use
+ * this store like any other.</p>
+ *
+ * <p>{@link StoreListener}s are told about the objects held in memory, and
+ * about the objects the store removes from memory on its own.</p>
+ *
+ * @since 2.2
+ * @version $Id$
+ */
+public class ConcurrentMemoryStore implements Store, StoreStatistics, ObservableStore {
+    private static final int MAX_OBJECTS = 100;
+
+    private static final int SEGMENTS = 16;
+
+    /** By default we use the logger for this class. */
+    private Log logger = LogFactory.getLog(getClass());
+
+    private int maxObjects = MAX_OBJECTS;
+
+    private int segmentCount = SEGMENTS;
+
+    protected boolean persistent;
+
+    private Store persistentStore;
+
+    private boolean promotePersistentHits = true;
+
+    private StoreJanitor storeJanitor;
+
+    private final List listeners = new CopyOnWriteArrayList();
+
+    /** The number of objects held in all segments */
+    private final AtomicInteger count = new AtomicInteger();
+
+    private Segment[] segments;
+
+    private int segmentMask;
+
+
+    public Log getLogger() {
+        return this.logger;
+    }
+
+    public void setLogger(Log l) {
+        this.logger = l;
+    }
+
+    /**
+     * Indicates how many objects will be held in the cache. When the number of
+     * objects exceeds maxobjects the least recently used object of the store
+     * will be thrown out. (Default: 100 objects)
+     *
+     * @param maxobjects
+     */
+    public void setMaxObjects(int maxobjects) {
+        this.maxObjects = maxobjects;
+    }
+
+    /**
+     * Indicates in how many independently locked segments the store is split.
+     * The value is rounded up to the next power of two and should be about the
+     * number of threads using the store at the same time. (Default: 16)
+     *
+     * @param segments
+     */
+    public void setSegments(int segments) {
+        this.segmentCount = segments;
+    }
+
+    /**
+     * @param persistent
+     */
+    public void setUsePersistentStore(boolean persistent) {
+        this.persistent = persistent;
+    }
+
+    /**
+     * Set to keep objects persisted after container shutdown
+     *
+     * @param persistentStore
+     */
+    public void setPersistentStore(Store persistentStore) {
+        this.persistentStore = persistentStore;
+    }
+
+    /**
+     * Indicates whether objects found in the persistent store are held in
+     * memory again. Turn it off to keep them only in a persistent store which
+     * is not on the heap, like the {@link MappedFileStore}. (Default: true)
+     *
+     * @param promotePersistentHits
+     */
+    public void setPromotePersistentHits(boolean promotePersistentHits) {
+        this.promotePersistentHits = promotePersistentHits;
+    }
+
+    /**
+     * @param storeJanitor
+     */
+    public void setStoreJanitor(StoreJanitor storeJanitor) {
+        this.storeJanitor = storeJanitor;
+    }
+
+    /**
+     * Initialize the ConcurrentMemoryStore.
+     *
+     * @throws Exception
+     */
+    public void init() throws Exception {
+        if (this.maxObjects < 1) {
+            throw new Exception("ConcurrentMemoryStore maxobjects must be at least 1!");
+        }
+        if (this.segmentCount < 1) {
+            throw new Exception("ConcurrentMemoryStore segments must be at least 1!");
+        }
+
+        if (this.persistent && this.persistentStore == null) {
+            throw new Exception("The persistent store must be set if usePersistentStore is required");
+        }
+
+        this.persistent = this.persistentStore != null;
+
+        int count = 1;
+        while (count < this.segmentCount) {
+            count <<= 1;
+        }
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            this.segments[i] = new Segment();
+        }
+        this.segmentMask = count - 1;
+
+        if (this.storeJanitor != null) {
+            this.storeJanitor.register(this);
+        }
+    }
+
+    /**
+     * Dispose the component
+     */
+    public void destroy() {
+        getLogger().debug("Destroying component!");
+
+        if (this.storeJanitor != null) {
+            this.storeJanitor.unregister(this);
+        }
+
+        // save all cache entries to filesystem
+        if (this.persistent) {
+            getLogger().debug("Final cache size: " + size());
+            for (int i = 0; i < this.segments.length; i++) {
+                final Segment segment = this.segments[i];
+                final Map entries;
+                segment.lock.lock();
+                try {
+                    entries = new HashMap(segment.map);
+                    segment.map.clear();
+                    this.count.addAndGet(-entries.size());
+                } finally {
+                    segment.lock.unlock();
+                }
+
+                for (Iterator j = entries.entrySet().iterator(); j.hasNext();) {
+                    final Map.Entry entry = (Map.Entry) j.next();
+                    final Object value = ((Entry) entry.getValue()).value;
+                    try {
+                        if (checkSerializable(value)) {
+                            this.persistentStore.store(entry.getKey(), value);
+                        }
+                    } catch (IOException ioe) {
+                        getLogger().error("Error in dispose()", ioe);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Store the given object in a persistent state. It is up to the caller to
+     * ensure that the key has a persistent state across different JVM
+     * executions.
+     *
+     * @param key
+     *            The key for the object to store
+     * @param value
+     *            The object to store
+     */
+    public void store(Object key, Object value) {
+        hold(key, value);
+    }
+
+    /**
+     * This method holds the requested object in the segment of the key. If
+     * the store is full, the least recently used object of all segments is
+     * removed and stored onto the filesystem if configured.
+     *
+     * @param key
+     *            The key of the object to be stored
+     * @param value
+     *            The object to be stored
+     */
+    public void hold(Object key, Object value) {
+        if (getLogger().isDebugEnabled()) {
+            getLogger().debug("Holding object in memory:");
+            getLogger().debug("  key: " + key);
+            getLogger().debug("  value: " + value);
+        }
+        if (key == null || value == null) {
+            throw new NullPointerException();
+        }
+
+        final Segment segment = segmentFor(key);
+        segment.lock.lock();
+        try {
+            if (segment.map.put(key, new Entry(value)) == null) {
+                this.count.incrementAndGet();
+            }
+        } finally {
+            segment.lock.unlock();
+        }
+
+        fireHeld(key, value);
+        /** ...test if the max. objects in the store is reached... */
+        while (evict(this.maxObjects)) {
+            // the object just held is the most recently used one
+        }
+    }
+
+    /**
+     * Get the object associated to the given unique key.
+     *
+     * @param key
+     *            The key of the requested object
+     * @return the requested object
+     */
+    public Object get(Object key) {
+        final Segment segment = segmentFor(key);
+        Entry entry;
+        segment.lock.lock();
+        try {
+            /** the access order map puts the accessed key on top */
+            entry = (Entry) segment.map.get(key);
+            if (entry != null) {
+                entry.lastAccess = System.nanoTime();
+                segment.hits++;
+            } else {
+                segment.misses++;
+            }
+        } finally {
+            segment.lock.unlock();
+        }
+
+        if (entry != null) {
+            if (getLogger().isDebugEnabled()) {
+                getLogger().debug("Found key: " + key.toString());
+            }
+            return entry.value;
+        }
+
+        if (getLogger().isDebugEnabled()) {
+            getLogger().debug("NOT Found key: " + key.toString());
+        }
+
+        /** try to fetch from filesystem */
+        if (this.persistent) {
+            final Object value = this.persistentStore.get(key);
+            if (value != null) {
+                if (!this.promotePersistentHits) {
+                    return value;
+                }
+                try {
+                    hold(key, value);
+                    return value;
+                } catch (Exception e) {
+                    getLogger().error("Error in get()!", e);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Remove the object associated to the given key.
+     *
+     * @param key
+     *            The key of to be removed object
+     */
+    public void remove(Object key) {
+        if (getLogger().isDebugEnabled()) {
+            getLogger().debug("Removing object from store");
+            getLogger().debug("  key: " + key);
+        }
+        final Segment segment = segmentFor(key);
+        segment.lock.lock();
+        try {
+            if (segment.map.remove(key) != null) {
+                this.count.decrementAndGet();
+            }
+        } finally {
+            segment.lock.unlock();
+        }
+
+        if (this.persistent && key != null) {
+            this.persistentStore.remove(key);
+        }
+    }
+
+    /**
+     * Clear the Store of all elements
+     */
+    public void clear() {
+        for (int i = 0; i < this.segments.length; i++) {
+            final Segment segment = this.segments[i];
+            final List keys;
+            segment.lock.lock();
+            try {
+                keys = new ArrayList(segment.map.keySet());
+                segment.map.clear();
+                this.count.addAndGet(-keys.size());
+            } finally {
+                segment.lock.unlock();
+            }
+
+            if (this.persistent) {
+                for (Iterator j = keys.iterator(); j.hasNext();) {
+                    this.persistentStore.remove(j.next());
+                }
+            }
+        }
+    }
+
+    /**
+     * Indicates if the given key is associated to a contained object.
+     *
+     * @param key
+     *            The key of the object
+     * @return true if the key exists
+     */
+    public boolean containsKey(Object key) {
+        final Segment segment = segmentFor(key);
+        boolean contains;
+        segment.lock.lock();
+        try {
+            contains = segment.map.containsKey(key);
+        } finally {
+            segment.lock.unlock();
+        }
+
+        if (this.persistent) {
+            return contains || this.persistentStore.containsKey(key);
+        } else {
+            return contains;
+        }
+    }
+
+    /**
+     * Returns the list of used keys as an Enumeration. The enumeration is a
+     * snapshot of the keys, later modifications of the store are not
+     * reflected by it.
+     *
+     * @return the enumeration of the cache
+     */
+    public Enumeration keys() {
+        final List keys = new ArrayList(size());
+        for (int i = 0; i < this.segments.length; i++) {
+            final Segment segment = this.segments[i];
+            segment.lock.lock();
+            try {
+                keys.addAll(segment.map.keySet());
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return Collections.enumeration(keys);
+    }
+
+    /**
+     * Returns count of the objects in the store, or -1 if could not be
+     * obtained.
+     */
+    public int size() {
+        return this.count.get();
+    }
+
+    /**
+     * @see org.apache.cocoon.components.store.impl.StoreStatistics#getHitCount()
+     */
+    public long getHitCount() {
+        long hits = 0;
+        for (int i = 0; i < this.segments.length; i++) {
+            hits += this.segments[i].hits;
+        }
+        return hits;
+    }
+
+    /**
+     * @see org.apache.cocoon.components.store.impl.StoreStatistics#getMissCount()
+     */
+    public long getMissCount() {
+        long misses = 0;
+        for (int i = 0; i < this.segments.length; i++) {
+            misses += this.segments[i].misses;
+        }
+        return misses;
+    }
+
+    /**
+     * Frees some of the fast memory used by this store. It removes the least
+     * recently used element in the store.
+     */
+    public void free() {
+        try {
+            evict(0);
+        } catch (Exception e) {
+            getLogger().error("Error in free()", e);
+        }
+    }
+
+    /**
+     * Remove the least recently used object of the store if it holds more
+     * than the given number of objects. The count is decremented before the
+     * object is looked for, so that threads holding objects at the same time
+     * do not remove more objects than needed.
+     *
+     * @return true if an object has been removed
+     */
+    private boolean evict(int limit) {
+        int current;
+        do {
+            current = this.count.get();
+            if (current <= limit) {
+                return false;
+            }
+        } while (!this.count.compareAndSet(current, current - 1));
+
+        // Find the segment holding the least recently used element
+        Segment victim = null;
+        long oldest = 0;
+        for (int i = 0; i < this.segments.length; i++) {
+            final Segment segment = this.segments[i];
+            segment.lock.lock();
+            try {
+                if (!segment.map.isEmpty()) {
+                    final Entry eldest = (Entry) segment.map.values().iterator().next();
+                    if (victim == null || eldest.lastAccess - oldest < 0) {
+                        victim = segment;
+                        oldest = eldest.lastAccess;
+                    }
+                }
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+
+        Object key = null;
+        Entry entry = null;
+        if (victim != null) {
+            victim.lock.lock();
+            try {
+                // The segment might have been emptied in the meantime
+                if (!victim.map.isEmpty()) {
+                    final Iterator i = victim.map.entrySet().iterator();
+                    final Map.Entry eldest = (Map.Entry) i.next();
+                    i.remove();
+                    key = eldest.getKey();
+                    entry = (Entry) eldest.getValue();
+                }
+            } finally {
+                victim.lock.unlock();
+            }
+        }
+
+        if (entry == null) {
+            // removed by another thread, which has counted it already
+            this.count.incrementAndGet();
+            return false;
+        }
+        if (getLogger().isDebugEnabled()) {
+            getLogger().debug("Freeing cache.");
+            getLogger().debug("  key: " + key);
+            getLogger().debug("  value: " + entry.value);
+        }
+        swapOut(key, entry.value);
+        return true;
+    }
+
+    /**
+     * @see ObservableStore#addStoreListener(StoreListener)
+     */
+    public void addStoreListener(StoreListener listener) {
+        this.listeners.add(listener);
+    }
+
+    /**
+     * @see ObservableStore#removeStoreListener(StoreListener)
+     */
+    public void removeStoreListener(StoreListener listener) {
+        this.listeners.remove(listener);
+    }
+
+    /**
+     * Swap an object removed from memory to the persistent store, if
+     * configured.
+     */
+    private void swapOut(Object key, Object value) {
+        if (this.persistent && checkSerializable(value)) {
+            try {
+                this.persistentStore.store(key, value);
+            } catch (Exception e) {
+                getLogger().error("Error storing object on fs", e);
+            }
+        }
+        for (Iterator i = this.listeners.iterator(); i.hasNext();) {
+            ((StoreListener) i.next()).removed(key);
+        }
+    }
+
+    private void fireHeld(Object key, Object value) {
+        for (Iterator i = this.listeners.iterator(); i.hasNext();) {
+            ((StoreListener) i.next()).held(key, value);
+        }
+    }
+
+    private Segment segmentFor(Object key) {
+        // Spread the hash code to use the high bits as well
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return this.segments[h & this.segmentMask];
+    }
+
+    /**
+     * This method checks if an object is serializable.
+     *
+     * @param object
+     *            The object to be checked
+     * @return true if the object is storeable
+     */
+    private boolean checkSerializable(Object object) {
+        return object instanceof Serializable;
+    }
+
+    /**
+     * One segment of the store: an access ordered map and its lock.
+     */
+    private static final class Segment {
+        final ReentrantLock lock = new ReentrantLock();
+        final LinkedHashMap map = new LinkedHashMap(16, 0.75f, true);
+        volatile long hits;
+        volatile long misses;
+    }
+
+    /**
+     * A value held in memory together with its last access time.
+     */
+    private static final class Entry {
+        final Object value;
+        volatile long lastAccess = System.nanoTime();
+
+        Entry(Object value) {
+            this.value = value;
+        }
+    }
+}
@@ -18,17 +18,17 @@ package org.apache.cocoon.components.store.impl;
 
 
 /**
- * Default implementation of Cocoon's store. It's a <code>MRUMemoryStore</code> whose
+ * Default implementation of Cocoon's store. It's a <code>ConcurrentMemoryStore</code> whose
  * "<code>use-persistent-cache</code>" parameter defaults to <code>true</code>.
  * <p>
  * This default setting allows the store to be an in-memory front-end to the persistent store.
  * 
  * @version $Id$
  */
-public class DefaultStore extends MRUMemoryStore {
+public class DefaultStore extends ConcurrentMemoryStore {
     
     /* (non-Javadoc)
-     * @see org.apache.cocoon.components.store.impl.MRUMemoryStore#init()
+     * @see org.apache.cocoon.components.store.impl.ConcurrentMemoryStore#init()
      */
     public void init() throws Exception {
         super.init();
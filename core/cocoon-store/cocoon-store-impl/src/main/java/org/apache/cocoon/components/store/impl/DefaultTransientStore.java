@@ -18,15 +18,15 @@ package org.apache.cocoon.components.store.impl;
 
 
 /**
- * Default implementation of Cocoon's transient store. This is a <code>MRUMemoryStore</code>
+ * Default implementation of Cocoon's transient store. This is a <code>ConcurrentMemoryStore</code>
  * that cannot be backed by a persistent store (this ensure it is really transient).
  * 
  * @version $Id$
  */
-public class DefaultTransientStore extends MRUMemoryStore {
+public class DefaultTransientStore extends ConcurrentMemoryStore {
     
     /* (non-Javadoc)
-     * @see org.apache.cocoon.components.store.impl.MRUMemoryStore#init()
+     * @see org.apache.cocoon.components.store.impl.ConcurrentMemoryStore#init()
      */
     public void init() throws Exception {
         super.init();
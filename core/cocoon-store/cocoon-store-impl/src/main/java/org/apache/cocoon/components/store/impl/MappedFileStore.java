@@ -0,0 +1,585 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.store.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.cocoon.configuration.Settings;
+import org.apache.cocoon.util.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.excalibur.store.Store;
+
+/**
+ * A store which keeps the serialized objects outside of the Java heap, either
+ * in a memory-mapped file or in direct byte buffers. Only a small index of the
+ * keys is kept on the heap, so large amounts of cached content can be stored
+ * without adding to the work of the garbage collector. It is meant to be used
+ * as the persistent store behind a memory store.
+ *
+ * <p>The storage is split into slabs of <code>slabSize</code> bytes which are
+ * written as a ring: new objects are appended after the last one and, once the
+ * storage is full, overwrite the oldest objects, which are removed from the
+ * store. An object larger than a slab is not stored.</p>
+ *
+ * <p>If the store is <code>persistent</code>, the slabs are mapped from a file
+ * in the cache or work directory and the index is written next to it when the
+ * store is destroyed. It is read again on the next start, so the cached objects
+ * survive a restart. The index is deleted while the store is running, so the
+ * store starts empty after a crash.</p>
+ *
+ * <p>Objects have to be {@link Serializable}. Every hit deserializes the
+ * object directly from the mapped buffer, without an intermediate copy, so
+ * each hit costs a deserialization and creates a new copy on the heap. A
+ * {@link ConcurrentMemoryStore} in front of this store keeps the objects it
+ * gets from it in memory by default; set its <code>promotePersistentHits</code>
+ * to <code>false</code> to keep them off the heap, at the cost of deserializing
+ * them on every hit.</p>
+ *
+ * @since 2.2
+ * @version $Id$
+ */
+public class MappedFileStore implements Store {
+
+    private static final String DATA_FILE = "cocoon-mapped-store.data";
+    private static final String INDEX_FILE = "cocoon-mapped-store.index";
+    private static final int INDEX_VERSION = 1;
+
+    /** By default we use the logger for this class. */
+    private Log logger = LogFactory.getLog(getClass());
+
+    private long maxBytes = 256L * 1024 * 1024;
+    private int slabSize = 64 * 1024 * 1024;
+    private boolean persistent = true;
+    private boolean useCacheDirectory;
+    private String directory;
+    private Settings settings;
+
+    /** The storage, written as a ring */
+    private ByteBuffer[] slabs;
+    private long capacity;
+    private RandomAccessFile file;
+    private File indexFile;
+
+    /** Key to {@link Entry} */
+    private final Map index = new HashMap();
+
+    /** The entries in the order they have been written */
+    private final LinkedList entries = new LinkedList();
+
+    /** The address the next entry is written to */
+    private long writeAddress;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+
+    /**
+     * <code>maxBytes</code> (256MB) - The size of the storage. It is rounded
+     * down to a multiple of the slab size.
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * <code>slabSize</code> (64MB) - The size of a single buffer. This is also
+     * the size of the largest object which can be stored.
+     */
+    public void setSlabSize(int slabSize) {
+        this.slabSize = slabSize;
+    }
+
+    /**
+     * <code>persistent</code> (true) - Whether the objects are kept in a mapped
+     * file which survives restarts, or only in direct buffers.
+     */
+    public void setPersistent(boolean persistent) {
+        this.persistent = persistent;
+    }
+
+    /**
+     * <code>useCacheDirectory</code> (false) - Keep the file in the cache
+     * directory instead of the work directory.
+     */
+    public void setUseCacheDirectory(boolean useCacheDirectory) {
+        this.useCacheDirectory = useCacheDirectory;
+    }
+
+    /**
+     * <code>directory</code> - Alternative location of the file, relative to
+     * the work directory, or to the current directory if no settings are given.
+     */
+    public void setDirectory(String directory) {
+        this.directory = directory;
+    }
+
+    public void setSettings(Settings settings) {
+        this.settings = settings;
+    }
+
+    public Log getLogger() {
+        return this.logger;
+    }
+
+    public void setLogger(Log l) {
+        this.logger = l;
+    }
+
+    /**
+     * Allocate or map the storage and read the index of a previous run.
+     */
+    public void init() throws Exception {
+        if (this.slabSize <= 0) {
+            throw new Exception("MappedFileStore slabSize has to be greater than 0");
+        }
+        final int count = (int) Math.max(1, this.maxBytes / this.slabSize);
+        this.capacity = (long) count * this.slabSize;
+        this.slabs = new ByteBuffer[count];
+
+        if (this.persistent) {
+            final File dir = getDirectory();
+            if (!dir.exists() && !dir.mkdirs()) {
+                throw new IOException("Error creating store directory '" + dir + "'");
+            }
+            this.indexFile = new File(dir, INDEX_FILE);
+            this.file = new RandomAccessFile(new File(dir, DATA_FILE), "rw");
+            this.file.setLength(this.capacity);
+            final FileChannel channel = this.file.getChannel();
+            for (int i = 0; i < count; i++) {
+                this.slabs[i] = channel.map(FileChannel.MapMode.READ_WRITE, (long) i * this.slabSize, this.slabSize);
+            }
+            loadIndex();
+        } else {
+            for (int i = 0; i < count; i++) {
+                this.slabs[i] = ByteBuffer.allocateDirect(this.slabSize);
+            }
+        }
+
+        getLogger().info("MappedFileStore initialized with " + count + " slabs of " + this.slabSize
+                         + " bytes, " + this.index.size() + " objects restored");
+    }
+
+    /**
+     * Write the index for the next run and release the storage.
+     */
+    public void destroy() {
+        this.lock.writeLock().lock();
+        try {
+            if (this.file != null) {
+                for (int i = 0; i < this.slabs.length; i++) {
+                    ((MappedByteBuffer) this.slabs[i]).force();
+                }
+                saveIndex();
+                this.file.close();
+                this.file = null;
+            }
+        } catch (IOException e) {
+            getLogger().error("Error closing MappedFileStore", e);
+        } finally {
+            this.slabs = null;
+            this.index.clear();
+            this.entries.clear();
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    private File getDirectory() throws Exception {
+        if (this.settings == null) {
+            if (this.directory == null) {
+                throw new Exception("MappedFileStore needs the settings or a directory to store its file");
+            }
+            return new File(this.directory);
+        }
+
+        final String dir;
+        if (this.useCacheDirectory) {
+            dir = this.settings.getCacheDirectory();
+        } else if (this.directory != null) {
+            dir = IOUtils.getContextFilePath(this.settings.getWorkDirectory(), this.directory);
+        } else {
+            dir = this.settings.getWorkDirectory();
+        }
+        if (dir == null) {
+            throw new Exception("MappedFileStore " + (this.useCacheDirectory ? "cache" : "work") + " directory is not set");
+        }
+        return new File(dir);
+    }
+
+    // ---------------------------------------------------- Store implementation
+
+    /**
+     * @see org.apache.excalibur.store.Store#get(java.lang.Object)
+     */
+    public Object get(Object key) {
+        this.lock.readLock().lock();
+        try {
+            final Entry entry = (Entry) this.index.get(key);
+            if (entry == null) {
+                if (getLogger().isDebugEnabled()) {
+                    getLogger().debug("NOT Found key: " + key);
+                }
+                return null;
+            }
+
+            final ByteBuffer buffer = this.slabs[slab(entry.address)].duplicate();
+            final int offset = offset(entry.address);
+            buffer.limit(offset + entry.length);
+            buffer.position(offset);
+            return readObject(new ByteBufferInputStream(buffer));
+        } catch (Exception e) {
+            getLogger().error("Failure retrieving object from store", e);
+            return null;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @see org.apache.excalibur.store.Store#store(java.lang.Object, java.lang.Object)
+     */
+    public void store(Object key, Object value) throws IOException {
+        if (getLogger().isDebugEnabled()) {
+            getLogger().debug("Store object " + value + " with key " + key);
+        }
+
+        if (!(key instanceof Serializable)) {
+            throw new IOException("Key of class " + key.getClass().getName() + " is not Serializable");
+        }
+        if (!(value instanceof Serializable)) {
+            throw new IOException("Value of class " + value.getClass().getName() + " is not Serializable");
+        }
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(value);
+        out.close();
+        final byte[] data = bytes.toByteArray();
+
+        this.lock.writeLock().lock();
+        try {
+            if (data.length > this.slabSize) {
+                if (getLogger().isDebugEnabled()) {
+                    getLogger().debug("Object with key " + key + " is larger than a slab (" + data.length + " bytes)");
+                }
+                this.index.remove(key);
+                return;
+            }
+
+            // An entry never spans two slabs
+            long address = this.writeAddress;
+            if (offset(address) + data.length > this.slabSize) {
+                address += this.slabSize - offset(address);
+            }
+            final long end = address + data.length;
+
+            // Remove the entries which are overwritten
+            while (!this.entries.isEmpty()) {
+                final Entry oldest = (Entry) this.entries.getFirst();
+                if (oldest.address >= end - this.capacity) {
+                    break;
+                }
+                this.entries.removeFirst();
+                if (this.index.get(oldest.key) == oldest) {
+                    this.index.remove(oldest.key);
+                }
+            }
+
+            final ByteBuffer buffer = this.slabs[slab(address)].duplicate();
+            buffer.position(offset(address));
+            buffer.put(data);
+
+            final Entry entry = new Entry(key, address, data.length);
+            this.index.put(key, entry);
+            this.entries.addLast(entry);
+            this.writeAddress = end;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Frees the oldest object.
+     *
+     * @see org.apache.excalibur.store.Store#free()
+     */
+    public void free() {
+        this.lock.writeLock().lock();
+        try {
+            while (!this.entries.isEmpty()) {
+                final Entry oldest = (Entry) this.entries.removeFirst();
+                if (this.index.get(oldest.key) == oldest) {
+                    this.index.remove(oldest.key);
+                    return;
+                }
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @see org.apache.excalibur.store.Store#remove(java.lang.Object)
+     */
+    public void remove(Object key) {
+        this.lock.writeLock().lock();
+        try {
+            // The space is reused when the ring wraps around
+            this.index.remove(key);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @see org.apache.excalibur.store.Store#clear()
+     */
+    public void clear() {
+        this.lock.writeLock().lock();
+        try {
+            this.index.clear();
+            this.entries.clear();
+            this.writeAddress = 0;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @see org.apache.excalibur.store.Store#containsKey(java.lang.Object)
+     */
+    public boolean containsKey(Object key) {
+        this.lock.readLock().lock();
+        try {
+            return this.index.containsKey(key);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @see org.apache.excalibur.store.Store#keys()
+     */
+    public Enumeration keys() {
+        this.lock.readLock().lock();
+        try {
+            return Collections.enumeration(new ArrayList(this.index.keySet()));
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @see org.apache.excalibur.store.Store#size()
+     */
+    public int size() {
+        this.lock.readLock().lock();
+        try {
+            return this.index.size();
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of bytes used by the stored objects
+     */
+    public long getUsedBytes() {
+        this.lock.readLock().lock();
+        try {
+            long used = 0;
+            for (Iterator i = this.index.values().iterator(); i.hasNext();) {
+                used += ((Entry) i.next()).length;
+            }
+            return used;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    // ---------------------------------------------------- Index persistence
+
+    private void loadIndex() {
+        if (!this.indexFile.exists()) {
+            return;
+        }
+
+        try {
+            final ObjectInputStream in = new ContextObjectInputStream(new BufferedInputStream(new FileInputStream(this.indexFile)));
+            try {
+                if (in.readInt() != INDEX_VERSION || in.readLong() != this.capacity || in.readInt() != this.slabSize) {
+                    getLogger().info("MappedFileStore configuration changed, discarding stored objects");
+                    return;
+                }
+                this.writeAddress = in.readLong();
+                final int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    final Entry entry = new Entry(in.readObject(), in.readLong(), in.readInt());
+                    this.index.put(entry.key, entry);
+                    this.entries.addLast(entry);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            getLogger().warn("Unable to read MappedFileStore index, discarding stored objects", e);
+            this.index.clear();
+            this.entries.clear();
+            this.writeAddress = 0;
+        } finally {
+            // The index is only valid until the data file is written again
+            if (!this.indexFile.delete()) {
+                getLogger().warn("Unable to delete MappedFileStore index " + this.indexFile);
+            }
+        }
+    }
+
+    private void saveIndex() throws IOException {
+        final ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(this.indexFile)));
+        try {
+            out.writeInt(INDEX_VERSION);
+            out.writeLong(this.capacity);
+            out.writeInt(this.slabSize);
+            out.writeLong(this.writeAddress);
+
+            final ArrayList live = new ArrayList(this.index.size());
+            for (Iterator i = this.entries.iterator(); i.hasNext();) {
+                final Entry entry = (Entry) i.next();
+                if (this.index.get(entry.key) == entry) {
+                    live.add(entry);
+                }
+            }
+            out.writeInt(live.size());
+            for (Iterator i = live.iterator(); i.hasNext();) {
+                final Entry entry = (Entry) i.next();
+                out.writeObject(entry.key);
+                out.writeLong(entry.address);
+                out.writeInt(entry.length);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    // ---------------------------------------------------- Helpers
+
+    private int slab(long address) {
+        return (int) ((address % this.capacity) / this.slabSize);
+    }
+
+    private int offset(long address) {
+        return (int) ((address % this.capacity) % this.slabSize);
+    }
+
+    private static Object readObject(InputStream is) throws IOException, ClassNotFoundException {
+        final ObjectInputStream in = new ContextObjectInputStream(is);
+        try {
+            return in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * A stored object.
+     */
+    private static final class Entry {
+        final Object key;
+        final long address;
+        final int length;
+
+        Entry(Object key, long address, int length) {
+            this.key = key;
+            this.address = address;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Reads the remaining bytes of a buffer.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public int read() {
+            return this.buffer.hasRemaining() ? this.buffer.get() & 0xff : -1;
+        }
+
+        public int read(byte[] b, int off, int len) {
+            if (!this.buffer.hasRemaining()) {
+                return -1;
+            }
+            final int n = Math.min(len, this.buffer.remaining());
+            this.buffer.get(b, off, n);
+            return n;
+        }
+
+        public int available() {
+            return this.buffer.remaining();
+        }
+    }
+
+    /**
+     * Resolves classes with the context class loader, as the stored objects
+     * usually belong to the web application.
+     */
+    private static final class ContextObjectInputStream extends ObjectInputStream {
+
+        ContextObjectInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        protected Class resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            final ClassLoader loader = Thread.currentThread().getContextClassLoader();
+            if (loader != null) {
+                try {
+                    return Class.forName(desc.getName(), false, loader);
+                } catch (ClassNotFoundException e) {
+                    // fall back to the default resolution
+                }
+            }
+            return super.resolveClass(desc);
+        }
+    }
+}
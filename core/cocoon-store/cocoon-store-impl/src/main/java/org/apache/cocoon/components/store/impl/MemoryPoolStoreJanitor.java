@@ -0,0 +1,446 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.store.impl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import org.apache.cocoon.thread.RunnableManager;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.excalibur.store.Store;
+import org.apache.excalibur.store.StoreJanitor;
+
+/**
+ * A store janitor which is driven by the memory management of the JVM
+ * instead of polling the heap size.
+ *
+ * <p>On startup a collection usage threshold is set on every heap memory pool
+ * that supports it (usually the old generation). The JVM checks this threshold
+ * right after a garbage collection and notifies the janitor if the memory
+ * still in use exceeds it. Only then the janitor frees objects from the
+ * registered stores: the fraction freed is proportional to how far the pool
+ * is above the target usage, and stores with a low hit rate (see
+ * {@link StoreStatistics}) give up more objects than stores with a high one.</p>
+ *
+ * <p>A few parameters can be used:
+ * <ul>
+ *  <li><b>usageThreshold</b>: Percentage of the maximum pool size which triggers
+ *      the janitor when still in use after a collection (Default: 80)</li>
+ *  <li><b>targetUsage</b>: Percentage of the maximum pool size the janitor tries
+ *      to get back to (Default: 65)</li>
+ *  <li><b>maxPercentToFree</b>: Maximum percentage of the store objects to free
+ *      at once (Default: 50)</li>
+ *  <li><b>threadPool</b>: Name of the thread pool used for freeing, if a
+ *      <code>RunnableManager</code> is set (Default: daemon)</li>
+ * </ul></p>
+ *
+ * <p>What has been freed, and why, is logged on info level and the most recent
+ * runs are available from {@link #getHistory()}.</p>
+ *
+ * @since 2.2
+ * @version $Id$
+ */
+public class MemoryPoolStoreJanitor implements StoreJanitor, NotificationListener {
+
+    private static final int USAGE_THRESHOLD = 80;
+    private static final int TARGET_USAGE = 65;
+    private static final int MAX_PERCENT_TO_FREE = 50;
+    private static final String THREAD_POOL = "daemon";
+    private static final int HISTORY_SIZE = 20;
+
+    /** Hit rate assumed for stores without statistics */
+    private static final double DEFAULT_HIT_RATE = 0.5;
+
+    /** By default we use the logger for this class. */
+    private Log logger = LogFactory.getLog(getClass());
+
+    // Configuration parameters
+    private int usageThreshold = USAGE_THRESHOLD;
+    private int targetUsage = TARGET_USAGE;
+    private double maxFraction = MAX_PERCENT_TO_FREE / 100.0D;
+    private String threadPool = THREAD_POOL;
+    private RunnableManager runnableManager;
+
+    // Runtime state
+    private final List storelist = new CopyOnWriteArrayList();
+    private final List pools = new ArrayList();
+    private final AtomicBoolean freeing = new AtomicBoolean();
+    private final AtomicLong freedCount = new AtomicLong();
+    private final AtomicLong runCount = new AtomicLong();
+    private final LinkedList history = new LinkedList();
+
+    /** Hit and miss counts of the stores at the last run: store to long[2], guarded by itself */
+    private final Map lastStatistics = new IdentityHashMap();
+
+
+    /**
+     * Percentage of the maximum pool size which triggers the janitor
+     * when still in use after a garbage collection.
+     * If not specified, defaults to 80%.
+     *
+     * @param usageThreshold
+     */
+    public void setUsageThreshold(int usageThreshold) {
+        this.usageThreshold = usageThreshold;
+    }
+
+    /**
+     * Percentage of the maximum pool size the janitor tries to get back to.
+     * If not specified, defaults to 65%.
+     *
+     * @param targetUsage
+     */
+    public void setTargetUsage(int targetUsage) {
+        this.targetUsage = targetUsage;
+    }
+
+    /**
+     * Maximum percentage of the store objects to free at once.
+     * If not specified, defaults to 50%.
+     *
+     * @param percentToFree
+     */
+    public void setMaxPercentToFree(double percentToFree) {
+        this.maxFraction = percentToFree / 100.0D;
+    }
+
+    /**
+     * Name of the thread pool to use.
+     * If not specified, defaults to 'daemon'.
+     *
+     * @param threadPool
+     */
+    public void setThreadPool(String threadPool) {
+        this.threadPool = threadPool;
+    }
+
+    /**
+     * Set the <code>RunnableManager</code>. If not set, the stores are freed
+     * in the thread delivering the memory notification.
+     *
+     * @param runnableManager
+     */
+    public void setRunnableManager(RunnableManager runnableManager) {
+        this.runnableManager = runnableManager;
+    }
+
+    public Log getLogger() {
+        return this.logger;
+    }
+
+    public void setLogger(Log l) {
+        this.logger = l;
+    }
+
+    /**
+     * Initialize the MemoryPoolStoreJanitor.
+     * @throws Exception
+     */
+    public void init() throws Exception {
+        if (this.usageThreshold < 1 || this.usageThreshold > 100) {
+            throw new Exception("MemoryPoolStoreJanitor usageThreshold has to be between 1 and 100");
+        }
+        if (this.targetUsage < 1 || this.targetUsage > this.usageThreshold) {
+            throw new Exception("MemoryPoolStoreJanitor targetUsage has to be between 1 and usageThreshold");
+        }
+        if (this.maxFraction <= 0 || this.maxFraction > 1) {
+            throw new Exception("MemoryPoolStoreJanitor maxPercentToFree has to be between 1 and 100");
+        }
+
+        for (Iterator i = ManagementFactory.getMemoryPoolMXBeans().iterator(); i.hasNext();) {
+            final MemoryPoolMXBean pool = (MemoryPoolMXBean) i.next();
+            final long max = pool.getUsage().getMax();
+            if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported() && max > 0) {
+                final long threshold = max / 100 * this.usageThreshold;
+                pool.setCollectionUsageThreshold(threshold);
+                this.pools.add(pool);
+                if (getLogger().isDebugEnabled()) {
+                    getLogger().debug("Monitoring memory pool '" + pool.getName() + "', threshold="
+                                      + threshold + ", max=" + max);
+                }
+            }
+        }
+        if (this.pools.isEmpty()) {
+            getLogger().warn("No memory pool supports collection usage thresholds. Stores will not be freed.");
+        }
+
+        ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(this, null, null);
+    }
+
+    public void destroy() {
+        try {
+            ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).removeNotificationListener(this);
+        } catch (ListenerNotFoundException e) {
+            /* ignored */
+        }
+    }
+
+    /**
+     * Called by the JVM when a memory pool is still above its threshold after
+     * a garbage collection.
+     *
+     * @see javax.management.NotificationListener#handleNotification(javax.management.Notification, java.lang.Object)
+     */
+    public void handleNotification(Notification notification, Object handback) {
+        if (!MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType())) {
+            return;
+        }
+
+        final MemoryNotificationInfo info = MemoryNotificationInfo.from((CompositeData) notification.getUserData());
+        final String poolName = info.getPoolName();
+        final MemoryUsage usage = info.getUsage();
+        final Runnable command = new Runnable() {
+            public void run() {
+                freeMemory(poolName, usage);
+            }
+        };
+
+        if (this.runnableManager != null) {
+            this.runnableManager.execute(this.threadPool, command);
+        } else {
+            command.run();
+        }
+    }
+
+    /**
+     * Free objects from the registered stores, proportional to the amount
+     * the given pool exceeds the target usage.
+     *
+     * @param poolName the name of the memory pool which is too full
+     * @param usage    the memory usage of the pool after garbage collection
+     */
+    protected void freeMemory(String poolName, MemoryUsage usage) {
+        // Skip if a previous notification is still being handled
+        if (!this.freeing.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            final long max = usage.getMax();
+            final long used = usage.getUsed();
+            final long target = max / 100 * this.targetUsage;
+            if (max <= 0 || used <= target) {
+                return;
+            }
+
+            final double fraction = Math.min(this.maxFraction, (double) (used - target) / used);
+            final String reason = "pool '" + poolName + "' uses " + used + " of " + max
+                                  + " bytes after GC (" + (used * 100 / max) + "%, target "
+                                  + this.targetUsage + "%)";
+            freeStores(fraction, reason);
+        } catch (Exception e) {
+            getLogger().error("Error in freeMemory()", e);
+        } catch (OutOfMemoryError e) {
+            getLogger().error("OutOfMemoryError in freeMemory()");
+        } finally {
+            this.freeing.set(false);
+        }
+    }
+
+    /**
+     * Free the given fraction of all store objects. Stores with a low hit
+     * rate since the last run are freed first and more.
+     */
+    private void freeStores(double fraction, String reason) {
+        final Store[] stores = (Store[]) this.storelist.toArray(new Store[this.storelist.size()]);
+        final int[] sizes = new int[stores.length];
+        final double[] hitRates = new double[stores.length];
+        final double[] weights = new double[stores.length];
+
+        int total = 0;
+        double totalWeight = 0;
+        for (int i = 0; i < stores.length; i++) {
+            sizes[i] = Math.max(stores[i].size(), 0);
+            hitRates[i] = hitRate(stores[i]);
+            weights[i] = sizes[i] * (1.0D - hitRates[i]);
+            total += sizes[i];
+            totalWeight += weights[i];
+        }
+        if (total == 0) {
+            return;
+        }
+        if (totalWeight == 0) {
+            // all stores have a perfect hit rate, free proportionally to size
+            for (int i = 0; i < stores.length; i++) {
+                weights[i] = sizes[i];
+            }
+            totalWeight = total;
+        }
+
+        // Lowest hit rate first
+        final Integer[] order = new Integer[stores.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = new Integer(i);
+        }
+        Arrays.sort(order, new Comparator() {
+            public int compare(Object o1, Object o2) {
+                return Double.compare(hitRates[((Integer) o1).intValue()], hitRates[((Integer) o2).intValue()]);
+            }
+        });
+
+        int toFree = (int) Math.ceil(total * fraction);
+        final StringBuffer freed = new StringBuffer();
+        int freedTotal = 0;
+        for (int n = 0; n < order.length && toFree > 0; n++) {
+            final int i = order[n].intValue();
+            final int limit = Math.min(Math.min(sizes[i], toFree),
+                                       (int) Math.ceil(total * fraction * weights[i] / totalWeight));
+            for (int j = 0; j < limit; j++) {
+                stores[i].free();
+            }
+            toFree -= limit;
+            freedTotal += limit;
+            if (limit > 0) {
+                freed.append(freed.length() == 0 ? "" : ", ")
+                     .append(stores[i]).append(": ").append(limit).append(" of ").append(sizes[i])
+                     .append(" (hit rate ").append(Math.round(hitRates[i] * 100)).append("%)");
+            }
+        }
+
+        this.runCount.incrementAndGet();
+        this.freedCount.addAndGet(freedTotal);
+        final String message = "Freed " + freedTotal + " of " + total + " store objects because "
+                               + reason + (freed.length() > 0 ? ": " + freed : "");
+        if (getLogger().isInfoEnabled()) {
+            getLogger().info(message);
+        }
+        synchronized (this.history) {
+            this.history.addFirst(new Date() + " " + message);
+            if (this.history.size() > HISTORY_SIZE) {
+                this.history.removeLast();
+            }
+        }
+    }
+
+    /**
+     * Calculate the hit rate of a store since the last run.
+     */
+    private double hitRate(Store store) {
+        if (!(store instanceof StoreStatistics)) {
+            return DEFAULT_HIT_RATE;
+        }
+
+        final StoreStatistics statistics = (StoreStatistics) store;
+        final long hits = statistics.getHitCount();
+        final long misses = statistics.getMissCount();
+        long[] last;
+        synchronized (this.lastStatistics) {
+            last = (long[]) this.lastStatistics.put(store, new long[] { hits, misses });
+        }
+        if (last == null) {
+            last = new long[2];
+        }
+
+        final long lookups = (hits - last[0]) + (misses - last[1]);
+        return lookups > 0 ? (double) (hits - last[0]) / lookups : DEFAULT_HIT_RATE;
+    }
+
+    /**
+     * This method register the stores
+     *
+     * @param store the store to be registered
+     */
+    public void register(Store store) {
+        this.storelist.add(store);
+        if (getLogger().isDebugEnabled()) {
+            getLogger().debug("Registered store instance " + store + ". Stores now: "
+                              + this.storelist.size());
+        }
+    }
+
+    /**
+     * This method unregister the stores
+     *
+     * @param store the store to be unregistered
+     */
+    public void unregister(Store store) {
+        this.storelist.remove(store);
+        synchronized (this.lastStatistics) {
+            this.lastStatistics.remove(store);
+        }
+        if (getLogger().isDebugEnabled()) {
+            getLogger().debug("Unregistered store instance " + store + ". Stores now: "
+                              + this.storelist.size());
+        }
+    }
+
+    /**
+     * This method return a java.util.Iterator of every registered stores.
+     * The iterator works on a snapshot of the registered stores.
+     *
+     * @return a java.util.Iterator
+     */
+    public Iterator iterator() {
+        return this.storelist.iterator();
+    }
+
+    /**
+     * @return the names of the memory pools being monitored
+     */
+    public List getMonitoredPools() {
+        final List names = new ArrayList(this.pools.size());
+        for (Iterator i = this.pools.iterator(); i.hasNext();) {
+            names.add(((MemoryPoolMXBean) i.next()).getName());
+        }
+        return names;
+    }
+
+    /**
+     * @return how often stores have been freed
+     */
+    public long getRunCount() {
+        return this.runCount.get();
+    }
+
+    /**
+     * @return the number of objects freed from the stores
+     */
+    public long getFreedCount() {
+        return this.freedCount.get();
+    }
+
+    /**
+     * @return descriptions of the most recent runs, the latest first
+     */
+    public List getHistory() {
+        synchronized (this.history) {
+            return new ArrayList(this.history);
+        }
+    }
+}
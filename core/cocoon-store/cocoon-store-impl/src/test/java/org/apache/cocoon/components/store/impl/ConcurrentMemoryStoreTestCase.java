@@ -0,0 +1,241 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.store.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.excalibur.store.Store;
+
+/**
+ * Test case for the {@link ConcurrentMemoryStore}.
+ *
+ * @version $Id$
+ */
+public class ConcurrentMemoryStoreTestCase extends TestCase {
+
+    /**
+     * A persistent store keeping its objects in a map.
+     */
+    private static class TestStore implements Store {
+        final Map map = Collections.synchronizedMap(new HashMap());
+
+        public Object get(Object key) {
+            return this.map.get(key);
+        }
+
+        public void store(Object key, Object value) {
+            this.map.put(key, value);
+        }
+
+        public void free() {
+        }
+
+        public void remove(Object key) {
+            this.map.remove(key);
+        }
+
+        public void clear() {
+            this.map.clear();
+        }
+
+        public boolean containsKey(Object key) {
+            return this.map.containsKey(key);
+        }
+
+        public Enumeration keys() {
+            return Collections.enumeration(new ArrayList(this.map.keySet()));
+        }
+
+        public int size() {
+            return this.map.size();
+        }
+    }
+
+    /**
+     * Keys which all fall into the same segment.
+     */
+    private static class CollidingKey {
+        final int id;
+
+        CollidingKey(int id) {
+            this.id = id;
+        }
+
+        public int hashCode() {
+            return 0;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof CollidingKey && ((CollidingKey) o).id == this.id;
+        }
+    }
+
+    private ConcurrentMemoryStore createStore(int maxObjects, Store persistentStore) throws Exception {
+        final ConcurrentMemoryStore store = new ConcurrentMemoryStore();
+        store.setMaxObjects(maxObjects);
+        store.setPersistentStore(persistentStore);
+        store.init();
+        return store;
+    }
+
+    public void testLRUOrder() throws Exception {
+        final ConcurrentMemoryStore store = createStore(3, null);
+        store.store("a", "1");
+        store.store("b", "2");
+        store.store("c", "3");
+        // "a" is now used more recently than "b"
+        assertEquals("1", store.get("a"));
+        store.store("d", "4");
+        assertFalse("The least recently used object is thrown out", store.containsKey("b"));
+        assertTrue(store.containsKey("a"));
+        assertTrue(store.containsKey("c"));
+        assertTrue(store.containsKey("d"));
+    }
+
+    public void testMaxObjects() throws Exception {
+        final ConcurrentMemoryStore store = createStore(10, null);
+        for (int i = 0; i < 10; i++) {
+            store.store("key" + i, "value" + i);
+        }
+        assertEquals("All objects are held", 10, store.size());
+        for (int i = 0; i < 10; i++) {
+            assertTrue(store.containsKey("key" + i));
+        }
+
+        store.store("key10", "value10");
+        assertEquals(10, store.size());
+        assertFalse(store.containsKey("key0"));
+
+        // replacing an object does not throw out another one
+        store.store("key10", "other");
+        assertEquals(10, store.size());
+        assertEquals("other", store.get("key10"));
+    }
+
+    public void testMaxObjectsInOneSegment() throws Exception {
+        final ConcurrentMemoryStore store = createStore(10, null);
+        for (int i = 0; i < 10; i++) {
+            store.store(new CollidingKey(i), "value" + i);
+        }
+        assertEquals("The segment holds all objects", 10, store.size());
+        store.store(new CollidingKey(10), "value10");
+        assertEquals(10, store.size());
+        assertFalse(store.containsKey(new CollidingKey(0)));
+        assertTrue(store.containsKey(new CollidingKey(1)));
+    }
+
+    public void testPersistentStore() throws Exception {
+        final TestStore persistentStore = new TestStore();
+        final ConcurrentMemoryStore store = createStore(2, persistentStore);
+        store.store("a", "1");
+        store.store("b", "2");
+        store.store("c", "3");
+        assertEquals(2, store.size());
+        assertEquals("Swapped out", "1", persistentStore.get("a"));
+
+        // a persistent hit is held in memory again
+        assertEquals("1", store.get("a"));
+        assertEquals(2, store.size());
+        assertTrue("The least recently used object is swapped out", persistentStore.containsKey("b"));
+
+        store.remove("a");
+        assertFalse(store.containsKey("a"));
+        assertFalse(persistentStore.containsKey("a"));
+    }
+
+    public void testFree() throws Exception {
+        final ConcurrentMemoryStore store = createStore(10, null);
+        store.store("a", "1");
+        store.store("b", "2");
+        store.store("c", "3");
+        store.get("a");
+        store.free();
+        assertEquals(2, store.size());
+        assertFalse("The least recently used object is freed", store.containsKey("b"));
+        store.free();
+        store.free();
+        assertEquals(0, store.size());
+        store.free();
+        assertEquals(0, store.size());
+    }
+
+    public void testClear() throws Exception {
+        final TestStore persistentStore = new TestStore();
+        final ConcurrentMemoryStore store = createStore(10, persistentStore);
+        for (int i = 0; i < 5; i++) {
+            store.store("key" + i, "value" + i);
+        }
+        persistentStore.store("key0", "value0");
+        store.clear();
+        assertEquals(0, store.size());
+        assertFalse(store.keys().hasMoreElements());
+        assertFalse(persistentStore.containsKey("key0"));
+
+        // the store holds maxobjects objects again
+        for (int i = 0; i < 10; i++) {
+            store.store("key" + i, "value" + i);
+        }
+        assertEquals(10, store.size());
+    }
+
+    public void testConcurrentAccess() throws Exception {
+        final ConcurrentMemoryStore store = createStore(50, null);
+        final List errors = Collections.synchronizedList(new ArrayList());
+        final Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            final int thread = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < 2000; j++) {
+                            final String key = "key" + (thread * 31 + j) % 100;
+                            final Object value = store.get(key);
+                            if (value != null && !value.equals("value" + key)) {
+                                errors.add("Wrong value for " + key + ": " + value);
+                            }
+                            store.store(key, "value" + key);
+                            if (j % 100 == 0) {
+                                store.free();
+                            }
+                        }
+                    } catch (Throwable t) {
+                        errors.add(t);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+        }
+        assertEquals(Collections.EMPTY_LIST, errors);
+        assertTrue(store.size() <= 50);
+
+        int keys = 0;
+        for (Enumeration e = store.keys(); e.hasMoreElements(); e.nextElement()) {
+            keys++;
+        }
+        assertEquals("The count matches the objects held", keys, store.size());
+    }
+}
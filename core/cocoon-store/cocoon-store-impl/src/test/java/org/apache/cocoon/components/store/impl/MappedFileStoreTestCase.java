@@ -0,0 +1,225 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.store.impl;
+
+import java.io.File;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Test case for the {@link MappedFileStore}.
+ *
+ * @version $Id$
+ */
+public class MappedFileStoreTestCase extends TestCase {
+
+    /** Four slabs holding two values each */
+    private static final int SLAB_SIZE = 1024;
+    private static final int MAX_BYTES = 4 * SLAB_SIZE;
+    private static final int VALUE_SIZE = 400;
+
+    private File directory;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.directory = File.createTempFile("mappedstore", "");
+        this.directory.delete();
+    }
+
+    protected void tearDown() throws Exception {
+        final File[] files = this.directory.listFiles();
+        if (files != null) {
+            for (int i = 0; i < files.length; i++) {
+                files[i].delete();
+            }
+        }
+        this.directory.delete();
+        super.tearDown();
+    }
+
+    private MappedFileStore createStore(boolean persistent, int slabSize) throws Exception {
+        final MappedFileStore store = new MappedFileStore();
+        store.setMaxBytes(MAX_BYTES);
+        store.setSlabSize(slabSize);
+        store.setPersistent(persistent);
+        store.setDirectory(this.directory.getPath());
+        store.init();
+        return store;
+    }
+
+    private static byte[] value(int i) {
+        final byte[] value = new byte[VALUE_SIZE];
+        Arrays.fill(value, (byte) i);
+        return value;
+    }
+
+    private static void assertValue(int i, Object value) {
+        assertNotNull("value " + i, value);
+        assertTrue("value " + i, Arrays.equals(value(i), (byte[]) value));
+    }
+
+    public void testStoreAndGet() throws Exception {
+        final MappedFileStore store = createStore(false, SLAB_SIZE);
+        store.store("a", value(1));
+        store.store("b", value(2));
+        assertValue(1, store.get("a"));
+        assertValue(2, store.get("b"));
+        assertNull(store.get("c"));
+        assertEquals(2, store.size());
+
+        // replaced values only count once
+        store.store("a", value(3));
+        assertValue(3, store.get("a"));
+        assertEquals(2, store.size());
+
+        store.remove("a");
+        assertFalse(store.containsKey("a"));
+        assertEquals(1, store.size());
+        store.destroy();
+    }
+
+    public void testLargerThanSlab() throws Exception {
+        final MappedFileStore store = createStore(false, SLAB_SIZE);
+        store.store("a", value(1));
+        store.store("a", new byte[2 * SLAB_SIZE]);
+        assertNull("Too large objects are not stored", store.get("a"));
+        assertEquals(0, store.size());
+        store.destroy();
+    }
+
+    public void testAllocation() throws Exception {
+        final MappedFileStore store = createStore(false, SLAB_SIZE);
+        // two values per slab, the third one starts a new slab
+        for (int i = 0; i < 8; i++) {
+            store.store(new Integer(i), value(i));
+        }
+        assertEquals(8, store.size());
+        for (int i = 0; i < 8; i++) {
+            assertValue(i, store.get(new Integer(i)));
+        }
+        store.destroy();
+    }
+
+    public void testWrapAround() throws Exception {
+        final MappedFileStore store = createStore(false, SLAB_SIZE);
+        for (int i = 0; i < 9; i++) {
+            store.store(new Integer(i), value(i));
+        }
+        // the ninth value overwrote the first one only
+        assertEquals(8, store.size());
+        assertNull(store.get(new Integer(0)));
+        for (int i = 1; i < 9; i++) {
+            assertValue(i, store.get(new Integer(i)));
+        }
+
+        for (int i = 9; i < 50; i++) {
+            store.store(new Integer(i), value(i));
+        }
+        assertEquals(8, store.size());
+        for (int i = 42; i < 50; i++) {
+            assertValue(i, store.get(new Integer(i)));
+        }
+        store.destroy();
+    }
+
+    public void testFree() throws Exception {
+        final MappedFileStore store = createStore(false, SLAB_SIZE);
+        store.store("a", value(1));
+        store.store("b", value(2));
+        store.free();
+        assertNull("The oldest object is freed", store.get("a"));
+        assertValue(2, store.get("b"));
+        store.destroy();
+    }
+
+    public void testRestart() throws Exception {
+        MappedFileStore store = createStore(true, SLAB_SIZE);
+        for (int i = 0; i < 10; i++) {
+            store.store(new Integer(i), value(i));
+        }
+        store.destroy();
+
+        store = createStore(true, SLAB_SIZE);
+        assertFalse("The index is deleted while running",
+                    new File(this.directory, "cocoon-mapped-store.index").exists());
+        assertEquals(8, store.size());
+        for (int i = 2; i < 10; i++) {
+            assertValue(i, store.get(new Integer(i)));
+        }
+        // appending continues after the restored objects
+        store.store(new Integer(10), value(10));
+        assertNull(store.get(new Integer(2)));
+        assertValue(3, store.get(new Integer(3)));
+        store.destroy();
+    }
+
+    public void testRestartAfterCrash() throws Exception {
+        MappedFileStore store = createStore(true, SLAB_SIZE);
+        store.store("a", value(1));
+        store.destroy();
+
+        store = createStore(true, SLAB_SIZE);
+        assertEquals(1, store.size());
+        // not destroyed: no index is written
+        store = createStore(true, SLAB_SIZE);
+        assertEquals(0, store.size());
+        store.destroy();
+    }
+
+    public void testConfigurationChange() throws Exception {
+        MappedFileStore store = createStore(true, SLAB_SIZE);
+        store.store("a", value(1));
+        store.destroy();
+
+        store = createStore(true, 2 * SLAB_SIZE);
+        assertEquals("Objects are discarded", 0, store.size());
+        store.destroy();
+    }
+
+    public void testNotPromoted() throws Exception {
+        final MappedFileStore mapped = createStore(false, SLAB_SIZE);
+        final ConcurrentMemoryStore memory = new ConcurrentMemoryStore();
+        memory.setMaxObjects(1);
+        memory.setSegments(1);
+        memory.setPersistentStore(mapped);
+        memory.setPromotePersistentHits(false);
+        memory.init();
+
+        memory.store("a", value(1));
+        memory.store("b", value(2));
+        assertTrue("Swapped out", mapped.containsKey("a"));
+
+        assertValue(1, memory.get("a"));
+        assertFalse("Not held in memory, so b stays there", mapped.containsKey("b"));
+        memory.destroy();
+        mapped.destroy();
+    }
+
+    public void testNoDirectory() {
+        final MappedFileStore store = new MappedFileStore();
+        store.setMaxBytes(MAX_BYTES);
+        store.setSlabSize(SLAB_SIZE);
+        store.setUseCacheDirectory(true);
+        try {
+            store.init();
+            fail("A persistent store needs a directory");
+        } catch (Exception e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.components.store.impl;
+
+import java.lang.management.MemoryUsage;
+import java.util.Collections;
+import java.util.Enumeration;
+
+import junit.framework.TestCase;
+
+import org.apache.excalibur.store.Store;
+
+/**
+ * Test case for the selection of the stores to free by the
+ * {@link MemoryPoolStoreJanitor}.
+ *
+ * @version $Id$
+ */
+public class MemoryPoolStoreJanitorTestCase extends TestCase {
+
+    private static final long MAX = 100 * 1024 * 1024;
+
+    /**
+     * A store of the given size, counting how many objects are freed.
+     */
+    private static class TestStore implements Store {
+        int size;
+        int freed;
+
+        TestStore(int size) {
+            this.size = size;
+        }
+
+        public Object get(Object key) {
+            return null;
+        }
+
+        public void store(Object key, Object value) {
+        }
+
+        public void free() {
+            if (this.size > 0) {
+                this.size--;
+                this.freed++;
+            }
+        }
+
+        public void remove(Object key) {
+        }
+
+        public void clear() {
+            this.size = 0;
+        }
+
+        public boolean containsKey(Object key) {
+            return false;
+        }
+
+        public Enumeration keys() {
+            return Collections.enumeration(Collections.EMPTY_LIST);
+        }
+
+        public int size() {
+            return this.size;
+        }
+    }
+
+    /**
+     * A store reporting its hits and misses.
+     */
+    private static class StatisticsStore extends TestStore implements StoreStatistics {
+        long hits;
+        long misses;
+
+        StatisticsStore(int size, long hits, long misses) {
+            super(size);
+            this.hits = hits;
+            this.misses = misses;
+        }
+
+        public long getHitCount() {
+            return this.hits;
+        }
+
+        public long getMissCount() {
+            return this.misses;
+        }
+    }
+
+    /**
+     * Run the janitor for a pool using the given percentage after GC.
+     */
+    private static void freeMemory(MemoryPoolStoreJanitor janitor, int percentUsed) {
+        final long used = MAX / 100 * percentUsed;
+        janitor.freeMemory("Test Pool", new MemoryUsage(0, used, used, MAX));
+    }
+
+    public void testBelowTarget() {
+        final MemoryPoolStoreJanitor janitor = new MemoryPoolStoreJanitor();
+        final TestStore store = new TestStore(100);
+        janitor.register(store);
+
+        freeMemory(janitor, 60);
+        assertEquals(0, store.freed);
+        assertEquals(0, janitor.getRunCount());
+    }
+
+    public void testLowHitRateFreedMore() {
+        final MemoryPoolStoreJanitor janitor = new MemoryPoolStoreJanitor();
+        final StatisticsStore good = new StatisticsStore(100, 90, 10);
+        final StatisticsStore bad = new StatisticsStore(100, 10, 90);
+        janitor.register(good);
+        janitor.register(bad);
+
+        // 80% used, 65% targeted: free 15/80 of the 200 objects
+        freeMemory(janitor, 80);
+        assertEquals(38, good.freed + bad.freed);
+        assertEquals(34, bad.freed);
+        assertEquals(4, good.freed);
+        assertEquals(1, janitor.getRunCount());
+        assertEquals(38, janitor.getFreedCount());
+    }
+
+    public void testHitRateSinceLastRun() {
+        final MemoryPoolStoreJanitor janitor = new MemoryPoolStoreJanitor();
+        final StatisticsStore first = new StatisticsStore(100, 90, 10);
+        final StatisticsStore second = new StatisticsStore(100, 10, 90);
+        janitor.register(first);
+        janitor.register(second);
+        freeMemory(janitor, 80);
+
+        // since the last run, only the second store has been useful
+        first.misses += 100;
+        second.hits += 100;
+        first.freed = second.freed = 0;
+        freeMemory(janitor, 80);
+        assertTrue("The first store is freed more", first.freed > second.freed);
+        assertEquals(0, second.freed);
+    }
+
+    public void testMaxPercentToFree() {
+        final MemoryPoolStoreJanitor janitor = new MemoryPoolStoreJanitor();
+        janitor.setMaxPercentToFree(10);
+        final TestStore store = new TestStore(100);
+        janitor.register(store);
+
+        freeMemory(janitor, 100);
+        assertEquals(10, store.freed);
+    }
+
+    public void testUnregister() {
+        final MemoryPoolStoreJanitor janitor = new MemoryPoolStoreJanitor();
+        final StatisticsStore store = new StatisticsStore(100, 100, 0);
+        final TestStore other = new TestStore(100);
+        janitor.register(store);
+        janitor.register(other);
+        freeMemory(janitor, 80);
+        assertEquals("Perfect hit rate", 0, store.freed);
+
+        // registered again, the statistics of the previous registration are gone
+        janitor.unregister(store);
+        janitor.register(store);
+        freeMemory(janitor, 80);
+        assertEquals("Still a perfect hit rate", 0, store.freed);
+    }
+}
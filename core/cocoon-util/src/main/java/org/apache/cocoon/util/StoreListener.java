@@ -0,0 +1,47 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cocoon.util;
+
+/**
+ * Receives notifications about the objects a store holds in memory, so that
+ * the memory used by the stored objects can be tracked by their users. See
+ * {@link ObservableStore}.
+ *
+ * @since 2.2
+ * @version $Id$
+ */
+public interface StoreListener {
+
+    /**
+     * An object is held in memory, because it has been stored or loaded
+     * again from a persistent store.
+     *
+     * @param key   the key of the object
+     * @param value the object
+     */
+    void held(Object key, Object value);
+
+    /**
+     * The store removed an object from memory on its own: it has been
+     * evicted to make room for other objects, freed, or moved to a
+     * persistent store. Objects removed by the users of the store are not
+     * reported.
+     *
+     * @param key the key of the object
+     */
+    void removed(Object key);
+}